@@ -0,0 +1,102 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.providers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.textsecuregcm.entities.MultiRecipientMessage;
+
+/**
+ * Measures parsing of multi-recipient message bodies by {@link MultiRecipientMessageProvider#readFrom}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MultiRecipientMessageProviderBenchmark {
+
+  @Param({"1", "100", "5000"})
+  private int recipientCount;
+
+  @Param({"1024", "262144"})
+  private int commonPayloadSize;
+
+  private final MultiRecipientMessageProvider provider = new MultiRecipientMessageProvider();
+  private final MediaType mediaType = MediaType.valueOf(MultiRecipientMessageProvider.MEDIA_TYPE);
+
+  private byte[] serializedMessage;
+
+  @Setup
+  public void setUp() throws IOException {
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    outputStream.write(MultiRecipientMessageProvider.AMBIGUOUS_ID_VERSION_IDENTIFIER);
+    writeVarint(outputStream, recipientCount);
+
+    for (int i = 0; i < recipientCount; i++) {
+      final UUID uuid = UUID.randomUUID();
+      outputStream.write(ByteBuffer.allocate(16)
+          .putLong(uuid.getMostSignificantBits())
+          .putLong(uuid.getLeastSignificantBits())
+          .array());
+
+      // device ID
+      writeVarint(outputStream, 1);
+
+      // registration ID
+      final int registrationId = ThreadLocalRandom.current().nextInt(0x3fff);
+      outputStream.write(registrationId >> 8);
+      outputStream.write(registrationId & 0xff);
+
+      outputStream.write(randomBytes(48));
+    }
+
+    outputStream.write(randomBytes(commonPayloadSize));
+
+    serializedMessage = outputStream.toByteArray();
+  }
+
+  @Benchmark
+  public MultiRecipientMessage readFrom() throws IOException {
+    return provider.readFrom(MultiRecipientMessage.class, MultiRecipientMessage.class, null, mediaType,
+        new MultivaluedHashMap<>(), new ByteArrayInputStream(serializedMessage));
+  }
+
+  private static void writeVarint(final ByteArrayOutputStream outputStream, long value) {
+    while ((value & ~0x7fL) != 0) {
+      outputStream.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+
+    outputStream.write((int) value);
+  }
+
+  private static byte[] randomBytes(final int length) {
+    final byte[] bytes = new byte[length];
+    ThreadLocalRandom.current().nextBytes(bytes);
+
+    return bytes;
+  }
+}
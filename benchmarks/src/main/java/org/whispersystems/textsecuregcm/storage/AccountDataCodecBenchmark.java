@@ -0,0 +1,125 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.signal.libsignal.protocol.IdentityKey;
+import org.signal.libsignal.protocol.ecc.Curve;
+import org.signal.libsignal.protocol.ecc.ECKeyPair;
+import org.whispersystems.textsecuregcm.auth.SaltedTokenHash;
+import org.whispersystems.textsecuregcm.auth.UnidentifiedAccessUtil;
+import org.whispersystems.textsecuregcm.tests.util.AccountsHelper;
+import org.whispersystems.textsecuregcm.tests.util.DevicesHelper;
+import org.whispersystems.textsecuregcm.tests.util.KeysHelper;
+
+/**
+ * Compares encoding and decoding of stored accounts as JSON and in the compact binary format by
+ * {@link AccountDataCodec}. Each trial also prints the serialized size of the benchmark account in the chosen format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AccountDataCodecBenchmark {
+
+  @Param({"json", "compact"})
+  private String format;
+
+  @Param({"1", "5"})
+  private int deviceCount;
+
+  private final AccountDataCodec codec = new AccountDataCodec();
+
+  private Account account;
+  private byte[] accountData;
+
+  @Setup
+  public void setUp() throws IOException {
+    account = generateAccount(deviceCount);
+    accountData = codec.write(account, isCompact());
+
+    System.out.printf("%n%s account with %d device(s): %d bytes (JSON: %d bytes)%n",
+        format, deviceCount, accountData.length, codec.writeJson(account).length);
+  }
+
+  @Benchmark
+  public byte[] write() throws IOException {
+    return codec.write(account, isCompact());
+  }
+
+  @Benchmark
+  public Account read() throws IOException {
+    return AccountDataCodec.read(accountData);
+  }
+
+  private boolean isCompact() {
+    return "compact".equals(format);
+  }
+
+  private static Account generateAccount(final int deviceCount) {
+    final ECKeyPair aciIdentityKeyPair = Curve.generateKeyPair();
+    final ECKeyPair pniIdentityKeyPair = Curve.generateKeyPair();
+
+    final List<Device> devices = new ArrayList<>(deviceCount);
+
+    for (int i = 0; i < deviceCount; i++) {
+      final Device device = DevicesHelper.createDevice(Device.PRIMARY_ID + i);
+      device.setAuthTokenHash(SaltedTokenHash.generateFor("password"));
+      device.setSignedPreKey(KeysHelper.signedECPreKey(2L * i, aciIdentityKeyPair));
+      device.setPhoneNumberIdentitySignedPreKey(KeysHelper.signedECPreKey(2L * i + 1, pniIdentityKeyPair));
+      device.setName("device-name-" + i);
+      device.setUserAgent("OWI");
+
+      if (i == 0) {
+        device.setApnId(UUID.randomUUID().toString());
+      } else {
+        device.setFetchesMessages(true);
+      }
+
+      devices.add(device);
+    }
+
+    final Account account = AccountsHelper.generateTestAccount("+18005551234", UUID.randomUUID(), UUID.randomUUID(),
+        devices, randomBytes(UnidentifiedAccessUtil.UNIDENTIFIED_ACCESS_KEY_LENGTH));
+
+    account.setIdentityKey(new IdentityKey(aciIdentityKeyPair.getPublicKey()));
+    account.setPhoneNumberIdentityKey(new IdentityKey(pniIdentityKeyPair.getPublicKey()));
+    account.setUsernameHash(randomBytes(32));
+    account.setUsernameLinkDetails(UUID.randomUUID(), randomBytes(32));
+    account.setCurrentProfileVersion(UUID.randomUUID().toString());
+    account.addBadge(Clock.systemUTC(),
+        new AccountBadge("badge", Instant.now().plus(30, ChronoUnit.DAYS).truncatedTo(ChronoUnit.SECONDS), true));
+
+    return account;
+  }
+
+  private static byte[] randomBytes(final int length) {
+    final byte[] bytes = new byte[length];
+    ThreadLocalRandom.current().nextBytes(bytes);
+    return bytes;
+  }
+}
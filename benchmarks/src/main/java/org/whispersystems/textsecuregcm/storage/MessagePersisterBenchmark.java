@@ -0,0 +1,136 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
+import org.whispersystems.textsecuregcm.entities.MessageProtos;
+import org.whispersystems.textsecuregcm.redis.RedisClusterExtension;
+import org.whispersystems.textsecuregcm.storage.DynamoDbExtensionSchema.Tables;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Measures {@link MessagePersister#persistQueue(UUID, long)}, which moves a queue from the embedded Redis cluster to
+ * DynamoDB Local.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MessagePersisterBenchmark {
+
+  @Param({"10", "100", "1000"})
+  private int queueSize;
+
+  private final RedisClusterExtension redisClusterExtension = RedisClusterExtension.builder().build();
+  private final DynamoDbExtension dynamoDbExtension = new DynamoDbExtension(Tables.MESSAGES);
+
+  private ExecutorService notificationExecutorService;
+  private Scheduler messageDeliveryScheduler;
+  private ExecutorService messageDeletionExecutorService;
+
+  private MessagesCache messagesCache;
+  private MessagePersister messagePersister;
+
+  private MessageProtos.Envelope message;
+  private UUID accountUuid;
+
+  private static final long DEVICE_ID = 1;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() throws Exception {
+    redisClusterExtension.beforeAll(null);
+    redisClusterExtension.beforeEach(null);
+    dynamoDbExtension.beforeEach(null);
+
+    notificationExecutorService = Executors.newSingleThreadExecutor();
+    messageDeliveryScheduler = Schedulers.newBoundedElastic(10, 10_000, "messageDelivery");
+    messageDeletionExecutorService = Executors.newSingleThreadExecutor();
+
+    messagesCache = new MessagesCache(redisClusterExtension.getRedisCluster(), redisClusterExtension.getRedisCluster(),
+        notificationExecutorService, messageDeliveryScheduler, messageDeletionExecutorService, Clock.systemUTC());
+
+    final MessagesDynamoDb messagesDynamoDb = new MessagesDynamoDb(dynamoDbExtension.getDynamoDbClient(),
+        dynamoDbExtension.getDynamoDbAsyncClient(), Tables.MESSAGES.tableName(), Duration.ofDays(14),
+        messageDeletionExecutorService);
+
+    final MessagesManager messagesManager = new MessagesManager(messagesDynamoDb, messagesCache,
+        mock(ReportMessageManager.class, withSettings().stubOnly()), messageDeletionExecutorService);
+
+    accountUuid = UUID.randomUUID();
+
+    // stub-only mocks don't record invocations, and so don't accumulate garbage over a long run
+    final Account account = mock(Account.class, withSettings().stubOnly());
+    when(account.getUuid()).thenReturn(accountUuid);
+
+    final AccountsManager accountsManager = mock(AccountsManager.class, withSettings().stubOnly());
+    when(accountsManager.getByAccountIdentifier(accountUuid)).thenReturn(Optional.of(account));
+
+    @SuppressWarnings("unchecked") final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager =
+        mock(DynamicConfigurationManager.class, withSettings().stubOnly());
+    when(dynamicConfigurationManager.getConfiguration()).thenReturn(new DynamicConfiguration());
+
+    // worker threads are never started; the benchmark drives persistQueue directly
+    messagePersister = new MessagePersister(messagesCache, messagesManager, accountsManager,
+        dynamicConfigurationManager, Duration.ofMinutes(10), 0);
+
+    message = MessagesCacheBenchmark.generateMessage(256);
+  }
+
+  @Setup(Level.Invocation)
+  public void setUpInvocation() {
+    // persisting a queue is far more expensive than the timestamping overhead of an invocation-level fixture
+    for (int i = 0; i < queueSize; i++) {
+      messagesCache.insert(UUID.randomUUID(), accountUuid, DEVICE_ID, message);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownTrial() throws Exception {
+    notificationExecutorService.shutdown();
+    notificationExecutorService.awaitTermination(1, TimeUnit.MINUTES);
+
+    messageDeletionExecutorService.shutdown();
+    messageDeletionExecutorService.awaitTermination(1, TimeUnit.MINUTES);
+
+    messageDeliveryScheduler.dispose();
+
+    dynamoDbExtension.afterEach(null);
+    redisClusterExtension.afterEach(null);
+    redisClusterExtension.afterAll(null);
+  }
+
+  @Benchmark
+  public void persistQueue() throws MessagePersistenceException {
+    messagePersister.persistQueue(accountUuid, DEVICE_ID);
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import com.google.protobuf.ByteString;
+import java.time.Clock;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.textsecuregcm.entities.MessageProtos;
+import org.whispersystems.textsecuregcm.redis.RedisClusterExtension;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Measures the message queue operations on the send ({@link MessagesCache#insert}), fetch ({@link MessagesCache#get})
+ * and acknowledge ({@link MessagesCache#remove}) paths against an embedded Redis cluster.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MessagesCacheBenchmark {
+
+  @Param({"256", "4096"})
+  private int contentSize;
+
+  private final RedisClusterExtension redisClusterExtension = RedisClusterExtension.builder().build();
+
+  private ExecutorService notificationExecutorService;
+  private Scheduler messageDeliveryScheduler;
+  private ExecutorService messageDeletionExecutorService;
+
+  private MessagesCache messagesCache;
+  private MessageProtos.Envelope message;
+
+  private static final long DEVICE_ID = 1;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() throws Exception {
+    redisClusterExtension.beforeAll(null);
+    redisClusterExtension.beforeEach(null);
+
+    notificationExecutorService = Executors.newSingleThreadExecutor();
+    messageDeliveryScheduler = Schedulers.newBoundedElastic(10, 10_000, "messageDelivery");
+    messageDeletionExecutorService = Executors.newSingleThreadExecutor();
+
+    messagesCache = new MessagesCache(redisClusterExtension.getRedisCluster(), redisClusterExtension.getRedisCluster(),
+        notificationExecutorService, messageDeliveryScheduler, messageDeletionExecutorService, Clock.systemUTC());
+
+    message = generateMessage(contentSize);
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDownIteration() {
+    // start each iteration from an empty cluster so queues don't grow across iterations
+    redisClusterExtension.getRedisCluster().useCluster(connection -> connection.sync().flushall());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownTrial() throws Exception {
+    notificationExecutorService.shutdown();
+    notificationExecutorService.awaitTermination(1, TimeUnit.MINUTES);
+
+    messageDeletionExecutorService.shutdown();
+    messageDeletionExecutorService.awaitTermination(1, TimeUnit.MINUTES);
+
+    messageDeliveryScheduler.dispose();
+
+    redisClusterExtension.afterEach(null);
+    redisClusterExtension.afterAll(null);
+  }
+
+  /**
+   * Holds a queue of {@code queueSize} messages for {@link #get(PopulatedQueueState)}.
+   */
+  @State(Scope.Benchmark)
+  public static class PopulatedQueueState {
+
+    @Param({"100", "1000"})
+    private int queueSize;
+
+    private UUID destinationUuid;
+
+    @Setup(Level.Iteration)
+    public void setUp(final MessagesCacheBenchmark benchmark) {
+      destinationUuid = UUID.randomUUID();
+
+      for (int i = 0; i < queueSize; i++) {
+        benchmark.messagesCache.insert(UUID.randomUUID(), destinationUuid, DEVICE_ID, benchmark.message);
+      }
+    }
+  }
+
+  /**
+   * Holds a single freshly-inserted message for {@link #remove(RemovalState)}. Populating the queue per invocation is
+   * acceptable here because the measured operation is itself a network round trip.
+   */
+  @State(Scope.Thread)
+  public static class RemovalState {
+
+    private UUID destinationUuid;
+    private UUID messageGuid;
+
+    @Setup(Level.Invocation)
+    public void setUp(final MessagesCacheBenchmark benchmark) {
+      destinationUuid = UUID.randomUUID();
+      messageGuid = UUID.randomUUID();
+
+      benchmark.messagesCache.insert(messageGuid, destinationUuid, DEVICE_ID, benchmark.message);
+    }
+  }
+
+  @Benchmark
+  public long insert() {
+    // spread inserts over many queues (and therefore slots) as production traffic would
+    return messagesCache.insert(UUID.randomUUID(), UUID.randomUUID(), DEVICE_ID, message);
+  }
+
+  @Benchmark
+  public long get(final PopulatedQueueState populatedQueueState) {
+    return Flux.from(messagesCache.get(populatedQueueState.destinationUuid, DEVICE_ID)).count().block();
+  }
+
+  @Benchmark
+  public Object remove(final RemovalState removalState) {
+    return messagesCache.remove(removalState.destinationUuid, DEVICE_ID, removalState.messageGuid).join();
+  }
+
+  static MessageProtos.Envelope generateMessage(final int contentSize) {
+    final byte[] content = new byte[contentSize];
+    ThreadLocalRandom.current().nextBytes(content);
+
+    final long timestamp = System.currentTimeMillis();
+
+    return MessageProtos.Envelope.newBuilder()
+        .setType(MessageProtos.Envelope.Type.UNIDENTIFIED_SENDER)
+        .setTimestamp(timestamp)
+        .setServerTimestamp(timestamp)
+        .setContent(ByteString.copyFrom(content))
+        .setDestinationUuid(UUID.randomUUID().toString())
+        .setUrgent(true)
+        .build();
+  }
+}
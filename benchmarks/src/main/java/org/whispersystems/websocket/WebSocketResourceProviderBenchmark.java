@@ -0,0 +1,116 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.websocket;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import io.dropwizard.jersey.DropwizardResourceConfig;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.whispersystems.websocket.logging.WebsocketRequestLog;
+import org.whispersystems.websocket.messages.WebSocketMessageFactory;
+import org.whispersystems.websocket.messages.protobuf.ProtobufWebSocketMessageFactory;
+
+/**
+ * Measures {@link WebSocketResourceProvider#onWebSocketBinary(byte[], int, int)} for inbound requests (routed through
+ * Jersey to a trivial resource) and for inbound responses, which is how clients acknowledge delivered messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WebSocketResourceProviderBenchmark {
+
+  @Param({"0", "1024", "65536"})
+  private int bodySize;
+
+  private WebSocketResourceProvider<BenchmarkPrincipal> provider;
+
+  private byte[] requestMessage;
+  private byte[] responseMessage;
+
+  @Path("/v1/benchmark")
+  public static class BenchmarkResource {
+
+    @PUT
+    @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+    public Response put(final byte[] body) {
+      return Response.noContent().build();
+    }
+  }
+
+  public record BenchmarkPrincipal(String getName) implements Principal {
+  }
+
+  @Setup
+  public void setUp() {
+    final ResourceConfig resourceConfig = new DropwizardResourceConfig();
+    resourceConfig.register(new BenchmarkResource());
+
+    final WebSocketMessageFactory messageFactory = new ProtobufWebSocketMessageFactory();
+
+    provider = new WebSocketResourceProvider<>("127.0.0.1", new ApplicationHandler(resourceConfig),
+        new WebsocketRequestLog(), new BenchmarkPrincipal("benchmark"), messageFactory, Optional.empty(), 30_000);
+
+    // stub-only mocks don't record invocations, and so don't accumulate garbage over a long run
+    final Session session = mock(Session.class, withSettings().stubOnly());
+    final UpgradeRequest upgradeRequest = mock(UpgradeRequest.class, withSettings().stubOnly());
+
+    when(session.getUpgradeRequest()).thenReturn(upgradeRequest);
+    when(session.getRemote()).thenReturn(mock(RemoteEndpoint.class, withSettings().stubOnly()));
+    when(upgradeRequest.getHeaders()).thenReturn(Map.of());
+
+    provider.onWebSocketConnect(session);
+
+    final byte[] body = new byte[bodySize];
+    ThreadLocalRandom.current().nextBytes(body);
+
+    requestMessage = messageFactory.createRequest(Optional.of(1L), "PUT", "/v1/benchmark",
+            List.of("content-type:" + MediaType.APPLICATION_OCTET_STREAM), Optional.of(body))
+        .toByteArray();
+
+    responseMessage = messageFactory.createResponse(1L, 200, "OK", List.of(), Optional.empty()).toByteArray();
+  }
+
+  @Benchmark
+  public void request() {
+    provider.onWebSocketBinary(requestMessage, 0, requestMessage.length);
+  }
+
+  @Benchmark
+  public void response() {
+    provider.onWebSocketBinary(responseMessage, 0, responseMessage.length);
+  }
+}
@@ -16,6 +16,7 @@ import java.util.Set;
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 import org.whispersystems.textsecuregcm.attachments.TusConfiguration;
+import org.whispersystems.textsecuregcm.configuration.AccountsNearCacheConfiguration;
 import org.whispersystems.textsecuregcm.configuration.AdminEventLoggingConfiguration;
 import org.whispersystems.textsecuregcm.configuration.ApnConfiguration;
 import org.whispersystems.textsecuregcm.configuration.AppConfigConfiguration;
@@ -111,6 +112,11 @@ public class WhisperServerConfiguration extends Configuration {
   @JsonProperty
   private RedisClusterConfiguration cacheCluster;
 
+  @NotNull
+  @Valid
+  @JsonProperty
+  private AccountsNearCacheConfiguration accountsNearCache = new AccountsNearCacheConfiguration();
+
   @NotNull
   @Valid
   @JsonProperty
@@ -353,6 +359,10 @@ public class WhisperServerConfiguration extends Configuration {
     return cacheCluster;
   }
 
+  public AccountsNearCacheConfiguration getAccountsNearCacheConfiguration() {
+    return accountsNearCache;
+  }
+
   public RedisConfiguration getPubsubCacheConfiguration() {
     return pubsub;
   }
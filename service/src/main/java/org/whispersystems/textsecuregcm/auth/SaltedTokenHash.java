@@ -4,11 +4,21 @@
  */
 package org.whispersystems.textsecuregcm.auth;
 
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.HexFormat;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import org.signal.libsignal.protocol.kdf.HKDF;
 
 public record SaltedTokenHash(String hash, String salt) {
@@ -28,6 +38,35 @@ public record SaltedTokenHash(String hash, String salt) {
 
   private static final SecureRandom SECURE_RANDOM = new SecureRandom();
 
+  // Devices present the same token with every request, and verifying a token requires a key derivation. To avoid
+  // repeating that derivation, we remember a keyed digest of the last token successfully verified against each hash;
+  // a token whose digest matches was already verified against the same hash and salt. Digests are keyed with a secret
+  // that never leaves this process and are cached by hash, so changing a device's credentials leaves its old entry
+  // unreachable.
+  private static final Cache<String, byte[]> VERIFIED_TOKEN_DIGESTS_BY_HASH = Caffeine.newBuilder()
+      .maximumSize(100_000)
+      .expireAfterAccess(Duration.ofHours(1))
+      .build();
+
+  private static final String VERIFIED_TOKEN_DIGEST_ALGORITHM = "HmacSHA256";
+
+  private static final SecretKeySpec VERIFIED_TOKEN_DIGEST_KEY = generateVerifiedTokenDigestKey();
+
+  private static final ThreadLocal<Mac> VERIFIED_TOKEN_MAC = ThreadLocal.withInitial(() -> {
+    try {
+      final Mac mac = Mac.getInstance(VERIFIED_TOKEN_DIGEST_ALGORITHM);
+      mac.init(VERIFIED_TOKEN_DIGEST_KEY);
+      return mac;
+    } catch (final NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  });
+
+  private static final Counter VERIFIED_TOKEN_CACHE_HIT_COUNTER =
+      Metrics.counter(name(SaltedTokenHash.class, "verifiedTokenCacheHit"));
+
+  private static final Counter VERIFIED_TOKEN_CACHE_MISS_COUNTER =
+      Metrics.counter(name(SaltedTokenHash.class, "verifiedTokenCacheMiss"));
 
   public static SaltedTokenHash generateFor(final String token) {
     final String salt = generateSalt();
@@ -40,13 +79,30 @@ public record SaltedTokenHash(String hash, String salt) {
   }
 
   public boolean verify(final String token) {
+    final byte[] tokenDigest = calculateVerifiedTokenDigest(salt, token);
+    final byte[] verifiedTokenDigest = VERIFIED_TOKEN_DIGESTS_BY_HASH.getIfPresent(hash);
+
+    if (verifiedTokenDigest != null && MessageDigest.isEqual(verifiedTokenDigest, tokenDigest)) {
+      VERIFIED_TOKEN_CACHE_HIT_COUNTER.increment();
+      return true;
+    }
+
+    VERIFIED_TOKEN_CACHE_MISS_COUNTER.increment();
+
     final String theirValue = switch (getVersion()) {
       case V1 -> calculateV1Hash(salt, token);
       case V2 -> calculateV2Hash(salt, token);
     };
-    return MessageDigest.isEqual(
+
+    final boolean verified = MessageDigest.isEqual(
         theirValue.getBytes(StandardCharsets.UTF_8),
         hash.getBytes(StandardCharsets.UTF_8));
+
+    if (verified) {
+      VERIFIED_TOKEN_DIGESTS_BY_HASH.put(hash, tokenDigest);
+    }
+
+    return verified;
   }
 
   private static String generateSalt() {
@@ -55,6 +111,23 @@ public record SaltedTokenHash(String hash, String salt) {
     return HexFormat.of().formatHex(salt);
   }
 
+  private static SecretKeySpec generateVerifiedTokenDigestKey() {
+    final byte[] key = new byte[32];
+    SECURE_RANDOM.nextBytes(key);
+
+    return new SecretKeySpec(key, VERIFIED_TOKEN_DIGEST_ALGORITHM);
+  }
+
+  private static byte[] calculateVerifiedTokenDigest(final String salt, final String token) {
+    final Mac mac = VERIFIED_TOKEN_MAC.get();
+
+    // salts are hex strings, so a zero byte unambiguously separates the salt from the token
+    mac.update(salt.getBytes(StandardCharsets.UTF_8));
+    mac.update((byte) 0);
+
+    return mac.doFinal(token.getBytes(StandardCharsets.UTF_8));
+  }
+
   private static String calculateV1Hash(final String salt, final String token) {
     try {
       return HexFormat.of()
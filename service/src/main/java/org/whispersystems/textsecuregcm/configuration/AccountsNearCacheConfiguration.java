@@ -0,0 +1,55 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.configuration;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+import java.time.Duration;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Positive;
+
+public class AccountsNearCacheConfiguration {
+
+  /**
+   * If true, each server keeps recently-read accounts in memory in front of the accounts cache cluster. Only servers
+   * with the near cache enabled (and commands, which always publish) publish invalidations, so until it's enabled on
+   * every server, changes made by servers without it reach other servers' near caches only when cached accounts expire.
+   */
+  @JsonProperty
+  private boolean enabled = false;
+
+  /**
+   * The approximate maximum size of all cached accounts' serialized forms, in bytes.
+   */
+  @JsonProperty
+  @Positive
+  private long maxSizeBytes = 64 * 1024 * 1024;
+
+  /**
+   * The time after which a cached account expires even if no invalidation for it has been received; this bounds how
+   * long a server may use a stale account if an invalidation is lost.
+   */
+  @JsonProperty
+  @NotNull
+  private Duration expiration = Duration.ofSeconds(30);
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @VisibleForTesting
+  public void setEnabled(final boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  public Duration getExpiration() {
+    return expiration;
+  }
+}
@@ -10,19 +10,22 @@ public class AccountsTableConfiguration extends Table {
   private final String phoneNumberTableName;
   private final String phoneNumberIdentifierTableName;
   private final String usernamesTableName;
+  private final boolean writeCompactAccountData;
 
   @JsonCreator
   public AccountsTableConfiguration(
       @JsonProperty("tableName") final String tableName,
       @JsonProperty("phoneNumberTableName") final String phoneNumberTableName,
       @JsonProperty("phoneNumberIdentifierTableName") final String phoneNumberIdentifierTableName,
-      @JsonProperty("usernamesTableName") final String usernamesTableName) {
+      @JsonProperty("usernamesTableName") final String usernamesTableName,
+      @JsonProperty("writeCompactAccountData") final boolean writeCompactAccountData) {
 
     super(tableName);
 
     this.phoneNumberTableName = phoneNumberTableName;
     this.phoneNumberIdentifierTableName = phoneNumberIdentifierTableName;
     this.usernamesTableName = usernamesTableName;
+    this.writeCompactAccountData = writeCompactAccountData;
   }
 
   @NotBlank
@@ -39,4 +42,13 @@ public class AccountsTableConfiguration extends Table {
   public String getUsernamesTableName() {
     return usernamesTableName;
   }
+
+  /**
+   * If true, write stored accounts in the compact binary format instead of JSON. Servers running older code can't read
+   * the compact format, so this must stay disabled until every server has been upgraded to code that can; after that,
+   * it may be enabled (or disabled again) on any subset of servers, since current code reads either format.
+   */
+  public boolean isWriteCompactAccountData() {
+    return writeCompactAccountData;
+  }
 }
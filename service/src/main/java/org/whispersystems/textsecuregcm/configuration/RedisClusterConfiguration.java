@@ -8,6 +8,7 @@ package org.whispersystems.textsecuregcm.configuration;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotEmpty;
 import javax.validation.constraints.NotNull;
 import java.time.Duration;
@@ -32,6 +33,20 @@ public class RedisClusterConfiguration {
   @Valid
   private RetryConfiguration retry = new RetryConfiguration();
 
+  /**
+   * The number of connections to open for each codec; callers are assigned a connection by thread so that a slow reply
+   * on one connection doesn't hold up every caller.
+   */
+  @JsonProperty
+  @Min(1)
+  private int connectionPoolSize = 1;
+
+  /**
+   * If {@code true}, commands written during a single event loop tick are flushed to the network together.
+   */
+  @JsonProperty
+  private boolean consolidateFlushes = false;
+
   public String getConfigurationUri() {
     return configurationUri;
   }
@@ -47,4 +62,12 @@ public class RedisClusterConfiguration {
   public RetryConfiguration getRetryConfiguration() {
     return retry;
   }
+
+  public int getConnectionPoolSize() {
+    return connectionPoolSize;
+  }
+
+  public boolean isConsolidateFlushes() {
+    return consolidateFlushes;
+  }
 }
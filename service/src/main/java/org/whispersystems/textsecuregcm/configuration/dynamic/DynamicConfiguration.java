@@ -59,6 +59,11 @@ public class DynamicConfiguration {
   @Valid
   DynamicInboundMessageByteLimitConfiguration inboundMessageByteLimit = new DynamicInboundMessageByteLimitConfiguration(true);
 
+  @JsonProperty
+  @Valid
+  DynamicSharedMultiRecipientPayloadConfiguration sharedMultiRecipientPayload =
+      new DynamicSharedMultiRecipientPayloadConfiguration(false);
+
   public Optional<DynamicExperimentEnrollmentConfiguration> getExperimentEnrollmentConfiguration(
       final String experimentName) {
     return Optional.ofNullable(experiments.get(experimentName));
@@ -104,4 +109,8 @@ public class DynamicConfiguration {
   public DynamicInboundMessageByteLimitConfiguration getInboundMessageByteLimitConfiguration() {
     return inboundMessageByteLimit;
   }
+
+  public DynamicSharedMultiRecipientPayloadConfiguration getSharedMultiRecipientPayloadConfiguration() {
+    return sharedMultiRecipientPayload;
+  }
 }
@@ -0,0 +1,13 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.configuration.dynamic;
+
+/**
+ * @param enabled whether the common payload of a multi-recipient message should be stored once in the message cache and
+ *                shared by all recipients' queued messages, rather than copied into each of them
+ */
+public record DynamicSharedMultiRecipientPayloadConfiguration(boolean enabled) {
+}
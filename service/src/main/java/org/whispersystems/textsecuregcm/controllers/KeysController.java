@@ -64,7 +64,6 @@ import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
 import org.whispersystems.textsecuregcm.storage.Device;
 import org.whispersystems.textsecuregcm.storage.KeysManager;
-import org.whispersystems.textsecuregcm.util.Util;
 
 @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
 @Path("/v2/keys")
@@ -203,7 +202,7 @@ public class KeysController {
   @ApiResponse(responseCode = "429", description = "Rate limit exceeded.", headers = @Header(
       name = "Retry-After",
       description = "If present, a positive integer indicating the number of seconds before a subsequent attempt could succeed"))
-  public PreKeyResponse getDeviceKeys(@Auth Optional<AuthenticatedAccount> auth,
+  public CompletableFuture<PreKeyResponse> getDeviceKeys(@Auth Optional<AuthenticatedAccount> auth,
       @HeaderParam(OptionalAccess.UNIDENTIFIED) Optional<Anonymous> accessKey,
 
       @Parameter(description="the account or phone-number identifier to retrieve keys for")
@@ -241,51 +240,48 @@ public class KeysController {
     }
 
     final List<Device> devices = parseDeviceId(deviceId, target);
-    final List<PreKeyResponseItem> responseItems = new ArrayList<>(devices.size());
 
-    final List<CompletableFuture<Void>> tasks = devices.stream().map(device -> {
-
-          ECSignedPreKey signedECPreKey = device.getSignedPreKey(targetIdentifier.identityType());
+    if (devices.isEmpty()) {
+      throw new WebApplicationException(Response.Status.NOT_FOUND);
+    }
 
-          final CompletableFuture<Optional<ECPreKey>> unsignedEcPreKeyFuture = keys.takeEC(targetIdentifier.uuid(),
-              device.getId());
-          final CompletableFuture<Optional<KEMSignedPreKey>> pqPreKeyFuture = returnPqKey
-              ? keys.takePQ(targetIdentifier.uuid(), device.getId())
-              : CompletableFuture.completedFuture(Optional.empty());
+    final List<Long> deviceIds = devices.stream().map(Device::getId).toList();
 
-          return pqPreKeyFuture.thenCombine(unsignedEcPreKeyFuture,
-              (maybePqPreKey, maybeUnsignedEcPreKey) -> {
+    final CompletableFuture<Map<Long, ECSignedPreKey>> storedEcSignedPreKeysFuture =
+        keys.getEcSignedPreKeys(targetIdentifier.uuid(), deviceIds);
 
-                KEMSignedPreKey pqPreKey = pqPreKeyFuture.join().orElse(null);
-                ECPreKey unsignedECPreKey = unsignedEcPreKeyFuture.join().orElse(null);
+    return keys.takeAll(targetIdentifier.uuid(), deviceIds, returnPqKey)
+        .thenApply(takenPreKeys -> {
+          final List<PreKeyResponseItem> responseItems = new ArrayList<>(devices.size());
 
-                compareSignedEcPreKeysExperiment.compareFutureResult(Optional.ofNullable(signedECPreKey),
-                    keys.getEcSignedPreKey(targetIdentifier.uuid(), device.getId()));
+          for (final Device device : devices) {
+            final ECSignedPreKey signedECPreKey = device.getSignedPreKey(targetIdentifier.identityType());
+            final KeysManager.DevicePreKeys devicePreKeys = takenPreKeys.get(device.getId());
 
-                if (signedECPreKey != null || unsignedECPreKey != null || pqPreKey != null) {
-                  final int registrationId = switch (targetIdentifier.identityType()) {
-                    case ACI -> device.getRegistrationId();
-                    case PNI -> device.getPhoneNumberIdentityRegistrationId().orElse(device.getRegistrationId());
-                  };
+            final ECPreKey unsignedECPreKey = devicePreKeys != null ? devicePreKeys.ecPreKey() : null;
+            final KEMSignedPreKey pqPreKey = devicePreKeys != null ? devicePreKeys.pqPreKey() : null;
 
-                  responseItems.add(
-                      new PreKeyResponseItem(device.getId(), registrationId, signedECPreKey, unsignedECPreKey,
-                          pqPreKey));
-                }
+            compareSignedEcPreKeysExperiment.compareFutureResult(Optional.ofNullable(signedECPreKey),
+                storedEcSignedPreKeysFuture.thenApply(storedEcSignedPreKeys ->
+                    Optional.ofNullable(storedEcSignedPreKeys.get(device.getId()))));
 
-                return null;
-              }).thenRun(Util.NOOP);
-        })
-        .toList();
+            if (signedECPreKey != null || unsignedECPreKey != null || pqPreKey != null) {
+              final int registrationId = switch (targetIdentifier.identityType()) {
+                case ACI -> device.getRegistrationId();
+                case PNI -> device.getPhoneNumberIdentityRegistrationId().orElse(device.getRegistrationId());
+              };
 
-    CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+              responseItems.add(
+                  new PreKeyResponseItem(device.getId(), registrationId, signedECPreKey, unsignedECPreKey, pqPreKey));
+            }
+          }
 
-    final IdentityKey identityKey = target.getIdentityKey(targetIdentifier.identityType());
+          if (responseItems.isEmpty()) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+          }
 
-    if (responseItems.isEmpty()) {
-      throw new WebApplicationException(Response.Status.NOT_FOUND);
-    }
-    return new PreKeyResponse(identityKey, responseItems);
+          return new PreKeyResponse(target.getIdentityKey(targetIdentifier.identityType()), responseItems);
+        });
   }
 
   @PUT
@@ -25,6 +25,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -32,7 +33,6 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -412,14 +412,14 @@ public class MessageController {
       return Response.ok(new SendMultiRecipientMessageResponse(new LinkedList<>())).build();
     }
 
+    if (isStory) {
+      checkStoryRateLimits(accountsByServiceIdentifier.values(), userAgent);
+    }
+
     Collection<AccountMismatchedDevices> accountMismatchedDevices = new ArrayList<>();
     Collection<AccountStaleDevices> accountStaleDevices = new ArrayList<>();
     accountsByServiceIdentifier.forEach((serviceIdentifier, account) -> {
 
-      if (isStory) {
-        checkStoryRateLimit(account, userAgent);
-      }
-
       Set<Long> deviceIds = accountToDeviceIdAndRegistrationIdMap
         .getOrDefault(account, Collections.emptySet())
         .stream()
@@ -457,34 +457,53 @@ public class MessageController {
           .build();
     }
 
-    List<ServiceIdentifier> uuids404 = Collections.synchronizedList(new ArrayList<>());
+    final Counter sentMessageCounter = Metrics.counter(SENT_MESSAGE_COUNTER_NAME, Tags.of(
+        UserAgentTagUtil.getPlatformTag(userAgent),
+        Tag.of(EPHEMERAL_TAG_NAME, String.valueOf(online)),
+        Tag.of(SENDER_TYPE_TAG_NAME, SENDER_TYPE_UNIDENTIFIED)));
 
-    try {
-      final Counter sentMessageCounter = Metrics.counter(SENT_MESSAGE_COUNTER_NAME, Tags.of(
-          UserAgentTagUtil.getPlatformTag(userAgent),
-          Tag.of(EPHEMERAL_TAG_NAME, String.valueOf(online)),
-          Tag.of(SENDER_TYPE_TAG_NAME, SENDER_TYPE_UNIDENTIFIED)));
-
-      multiRecipientMessageExecutor.invokeAll(Arrays.stream(multiRecipientMessage.recipients())
-          .map(recipient -> (Callable<Void>) () -> {
-            Account destinationAccount = accountsByServiceIdentifier.get(recipient.uuid());
-
-            // we asserted this must exist in validateCompleteDeviceList
-            Device destinationDevice = destinationAccount.getDevice(recipient.deviceId()).orElseThrow();
-            sentMessageCounter.increment();
-            try {
-              sendCommonPayloadMessage(destinationAccount, destinationDevice, timestamp, online, isStory, isUrgent,
-                  recipient, multiRecipientMessage.commonPayload());
-            } catch (NoSuchUserException e) {
-              uuids404.add(recipient.uuid());
-            }
-            return null;
-          })
-          .collect(Collectors.toList()));
-    } catch (InterruptedException e) {
-      logger.error("interrupted while delivering multi-recipient messages", e);
-      return Response.serverError().entity("interrupted during delivery").build();
+    // When the common payload is shared, it's stored once in the message cache instead of being copied into each
+    // recipient's message
+    final boolean shareCommonPayload =
+        dynamicConfigurationManager.getConfiguration().getSharedMultiRecipientPayloadConfiguration().enabled();
+
+    final List<MessageSender.DeviceMessage> deviceMessages = new ArrayList<>(multiRecipientMessage.recipients().length);
+    final Map<MessageSender.DeviceMessage, ServiceIdentifier> serviceIdentifiersByDeviceMessage = new IdentityHashMap<>();
+
+    for (final Recipient recipient : multiRecipientMessage.recipients()) {
+      final Account destinationAccount = accountsByServiceIdentifier.get(recipient.uuid());
+
+      if (destinationAccount == null) {
+        // Unknown recipients are only allowed (and silently skipped) for stories
+        continue;
+      }
+
+      // we asserted this must exist in validateCompleteDeviceList
+      final Device destinationDevice = destinationAccount.getDevice(recipient.deviceId()).orElseThrow();
+
+      final MessageSender.DeviceMessage deviceMessage = new MessageSender.DeviceMessage(destinationAccount,
+          destinationDevice, buildCommonPayloadEnvelope(destinationAccount, timestamp, isStory, isUrgent, recipient,
+          shareCommonPayload ? null : multiRecipientMessage.commonPayload()));
+
+      deviceMessages.add(deviceMessage);
+      serviceIdentifiersByDeviceMessage.put(deviceMessage, recipient.uuid());
+    }
+
+    sentMessageCounter.increment(deviceMessages.size());
+
+    final List<ServiceIdentifier> uuids404 = new ArrayList<>();
+
+    for (final MessageSender.DeviceMessage notPushRegistered :
+        messageSender.sendMessages(deviceMessages, shareCommonPayload ? multiRecipientMessage.commonPayload() : null,
+            online, multiRecipientMessageExecutor)) {
+
+      if (notPushRegistered.device().isPrimary()) {
+        uuids404.add(serviceIdentifiersByDeviceMessage.get(notPushRegistered));
+      } else {
+        logger.debug("Not registered");
+      }
     }
+
     return Response.ok(new SendMultiRecipientMessageResponse(uuids404)).build();
   }
 
@@ -699,41 +718,40 @@ public class MessageController {
     }
   }
 
-  private void sendCommonPayloadMessage(Account destinationAccount,
-      Device destinationDevice,
+  /**
+   * Builds a recipient's copy of a multi-recipient message.
+   *
+   * @param commonPayload the payload common to all recipients, or {@code null} if it will be appended to the content
+   *                      later, in which case the envelope's content holds only the recipient-specific prefix
+   */
+  private static Envelope buildCommonPayloadEnvelope(Account destinationAccount,
       long timestamp,
-      boolean online,
       boolean story,
       boolean urgent,
       Recipient recipient,
-      byte[] commonPayload) throws NoSuchUserException {
-    try {
-      Envelope.Builder messageBuilder = Envelope.newBuilder();
-      long serverTimestamp = System.currentTimeMillis();
-      byte[] recipientKeyMaterial = recipient.perRecipientKeyMaterial();
-
-      byte[] payload = new byte[1 + recipientKeyMaterial.length + commonPayload.length];
-      payload[0] = MultiRecipientMessageProvider.AMBIGUOUS_ID_VERSION_IDENTIFIER;
-      System.arraycopy(recipientKeyMaterial, 0, payload, 1, recipientKeyMaterial.length);
-      System.arraycopy(commonPayload, 0, payload, 1 + recipientKeyMaterial.length, commonPayload.length);
-
-      messageBuilder
-          .setType(Type.UNIDENTIFIED_SENDER)
-          .setTimestamp(timestamp == 0 ? serverTimestamp : timestamp)
-          .setServerTimestamp(serverTimestamp)
-          .setContent(ByteString.copyFrom(payload))
-          .setStory(story)
-          .setUrgent(urgent)
-          .setDestinationUuid(new AciServiceIdentifier(destinationAccount.getUuid()).toServiceIdentifierString());
-
-      messageSender.sendMessage(destinationAccount, destinationDevice, messageBuilder.build(), online);
-    } catch (NotPushRegisteredException e) {
-      if (destinationDevice.isPrimary()) {
-        throw new NoSuchUserException(e);
-      } else {
-        logger.debug("Not registered", e);
-      }
+      @Nullable byte[] commonPayload) {
+
+    long serverTimestamp = System.currentTimeMillis();
+    byte[] recipientKeyMaterial = recipient.perRecipientKeyMaterial();
+    int commonPayloadLength = commonPayload != null ? commonPayload.length : 0;
+
+    byte[] payload = new byte[1 + recipientKeyMaterial.length + commonPayloadLength];
+    payload[0] = MultiRecipientMessageProvider.AMBIGUOUS_ID_VERSION_IDENTIFIER;
+    System.arraycopy(recipientKeyMaterial, 0, payload, 1, recipientKeyMaterial.length);
+
+    if (commonPayload != null) {
+      System.arraycopy(commonPayload, 0, payload, 1 + recipientKeyMaterial.length, commonPayloadLength);
     }
+
+    return Envelope.newBuilder()
+        .setType(Type.UNIDENTIFIED_SENDER)
+        .setTimestamp(timestamp == 0 ? serverTimestamp : timestamp)
+        .setServerTimestamp(serverTimestamp)
+        .setContent(ByteString.copyFrom(payload))
+        .setStory(story)
+        .setUrgent(urgent)
+        .setDestinationUuid(new AciServiceIdentifier(destinationAccount.getUuid()).toServiceIdentifierString())
+        .build();
   }
 
   private void checkStoryRateLimit(Account destination, String userAgent) {
@@ -744,6 +762,17 @@ public class MessageController {
     }
   }
 
+  private void checkStoryRateLimits(final Collection<Account> destinations, final String userAgent) {
+    final int rateLimitedDestinations = rateLimiters.getStoriesLimiter()
+        .validateAll(destinations.stream().map(destination -> destination.getUuid().toString()).toList(), 1)
+        .size();
+
+    if (rateLimitedDestinations > 0) {
+      Metrics.counter(RATE_LIMITED_STORIES_COUNTER_NAME, Tags.of(UserAgentTagUtil.getPlatformTag(userAgent)))
+          .increment(rateLimitedDestinations);
+    }
+  }
+
   private void checkMessageRateLimit(AuthenticatedAccount source, Account destination, String userAgent)
       throws RateLimitExceededException {
     final String senderCountryCode = Util.getCountryCode(source.getAccount().getNumber());
@@ -6,29 +6,83 @@
 package org.whispersystems.textsecuregcm.limits;
 
 import com.google.common.annotations.VisibleForTesting;
+import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.ScriptOutputType;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tags;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.metrics.MetricsUtil;
+import org.whispersystems.textsecuregcm.redis.ClusterLuaScript;
 import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
-import org.whispersystems.textsecuregcm.util.Util;
 
 /**
  * Estimate the number of unique items seen over a configurable period and update a metric
+ * <p>
+ * If constructed with a flush interval, the estimator buffers added elements locally and adds each buffered batch to
+ * the shared estimate in a single call at the end of each interval. Otherwise, each element is added to the shared
+ * estimate as soon as it's seen.
  */
-public class CardinalityEstimator {
+public class CardinalityEstimator implements Managed {
 
   private volatile double uniqueElementCount;
-  private final FaultTolerantRedisCluster redisCluster;
   private final String hllName;
   private final Duration period;
 
+  private final ClusterLuaScript addScript;
+
+  @Nullable
+  private final ScheduledExecutorService scheduledExecutorService;
+
+  @Nullable
+  private final Duration flushInterval;
+
+  private final Set<String> pendingElements = ConcurrentHashMap.newKeySet();
+
+  @Nullable
+  private ScheduledFuture<?> flushFuture;
+
+  private static final Logger logger = LoggerFactory.getLogger(CardinalityEstimator.class);
+
   public CardinalityEstimator(final FaultTolerantRedisCluster redisCluster, final String name, final Duration period) {
-    this.redisCluster = redisCluster;
+    this(redisCluster, name, period, null, null);
+  }
+
+  /**
+   * Constructs a new estimator that buffers elements and adds them to the shared estimate at the given interval while
+   * running.
+   */
+  public CardinalityEstimator(final FaultTolerantRedisCluster redisCluster,
+      final String name,
+      final Duration period,
+      @Nullable final ScheduledExecutorService scheduledExecutorService,
+      @Nullable final Duration flushInterval) {
+
     this.hllName = "cardinality_estimator::" + name;
     this.period = period;
+    this.scheduledExecutorService = scheduledExecutorService;
+    this.flushInterval = flushInterval;
+
+    try {
+      this.addScript = ClusterLuaScript.fromResource(redisCluster, "lua/add_to_cardinality_estimate.lua",
+          ScriptOutputType.INTEGER);
+    } catch (final IOException e) {
+      throw new UncheckedIOException("Failed to load cardinality estimator script", e);
+    }
+
     Metrics.gauge(
         MetricsUtil.name(getClass(), "unique"),
         Tags.of("name", name),
@@ -36,37 +90,77 @@ public class CardinalityEstimator {
         obj -> obj.uniqueElementCount);
   }
 
+  @Override
+  public void start() {
+    if (scheduledExecutorService != null && flushInterval != null) {
+      flushFuture = scheduledExecutorService.scheduleWithFixedDelay(() -> {
+            try {
+              flush().toCompletableFuture().join();
+            } catch (final Exception e) {
+              logger.warn("Failed to update cardinality estimate for {}", hllName, e);
+            }
+          },
+          flushInterval.toMillis(),
+          flushInterval.toMillis(),
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (flushFuture != null) {
+      flushFuture.cancel(false);
+    }
+
+    flush().toCompletableFuture().join();
+  }
+
   public void add(String element) {
     addAsync(element).toCompletableFuture().join();
   }
 
   public CompletionStage<Void> addAsync(String element) {
-    return redisCluster.withCluster(connection -> connection.async()
-        .pfadd(hllName, element)
-        .thenCompose(modCount -> {
-          if (modCount == 0) {
-            return CompletableFuture.completedFuture(false);
-          }
-
-          // The hll changed - update our local view of the cardinality, and
-          // initialize the TTL if required
-          return connection.async()
-              .pfcount(hllName)
-              .thenCompose(count -> {
-                uniqueElementCount = count;
-                // check if this is a new hll with no TTL set
-                return connection.async().ttl(hllName).thenApply(ttl -> ttl == -1);
-              });
-        })
-        .thenCompose(isNewHll -> {
-          if (!isNewHll) {
-            return CompletableFuture.completedFuture(null);
-          }
-
-          // If this is a new hll, we need to set the TTL. This could be
-          // a single atomic op in redis 7.x with EXPIRE NX
-          return connection.async().expire(hllName, period).thenRun(Util.NOOP);
-        }));
+    if (isBuffered()) {
+      pendingElements.add(element);
+      return CompletableFuture.completedFuture(null);
+    }
+
+    return addAll(List.of(element));
+  }
+
+  /**
+   * Adds all buffered elements to the shared estimate.
+   *
+   * @return a future that completes when all elements buffered at the time of the call have been added
+   */
+  @VisibleForTesting
+  CompletionStage<Void> flush() {
+    if (pendingElements.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    final List<String> elements = new ArrayList<>(pendingElements.size());
+
+    for (final String element : pendingElements) {
+      if (pendingElements.remove(element)) {
+        elements.add(element);
+      }
+    }
+
+    return addAll(elements);
+  }
+
+  private CompletionStage<Void> addAll(final List<String> elements) {
+    final List<String> arguments = new ArrayList<>(elements.size() + 1);
+    arguments.add(String.valueOf(period.toMillis()));
+    arguments.addAll(elements);
+
+    return addScript.executeAsync(List.of(hllName), arguments)
+        .thenAccept(count -> uniqueElementCount = (Long) count);
+  }
+
+  private boolean isBuffered() {
+    return flushInterval != null;
   }
 
   @VisibleForTesting
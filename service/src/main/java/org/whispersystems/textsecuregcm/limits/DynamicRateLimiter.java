@@ -8,6 +8,9 @@ package org.whispersystems.textsecuregcm.limits;
 import static java.util.Objects.requireNonNull;
 
 import java.time.Clock;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
@@ -78,6 +81,11 @@ public class DynamicRateLimiter implements RateLimiter {
     return current().getRight().clearAsync(key);
   }
 
+  @Override
+  public Map<String, Duration> validateAll(final Collection<String> keys, final int amount) {
+    return current().getRight().validateAll(keys, amount);
+  }
+
   @Override
   public RateLimiterConfig config() {
     return current().getLeft();
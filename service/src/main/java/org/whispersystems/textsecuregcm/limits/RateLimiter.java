@@ -5,6 +5,11 @@
 
 package org.whispersystems.textsecuregcm.limits;
 
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletionStage;
 import org.whispersystems.textsecuregcm.controllers.RateLimitExceededException;
@@ -26,6 +31,30 @@ public interface RateLimiter {
 
   RateLimiterConfig config();
 
+  /**
+   * Takes the given number of permits for each of the given keys, as if by calling {@link #validate(String, int)} for
+   * each distinct key, but without stopping at the first key that has exceeded its limit.
+   *
+   * @param keys the keys to check
+   * @param amount the number of permits to take for each key
+   *
+   * @return a map of keys whose limits were exceeded to the time to wait before retrying; keys not present in the map
+   * were within their limits
+   */
+  default Map<String, Duration> validateAll(final Collection<String> keys, final int amount) {
+    final Map<String, Duration> retryDurationsByKey = new HashMap<>();
+
+    for (final String key : Set.copyOf(keys)) {
+      try {
+        validate(key, amount);
+      } catch (final RateLimitExceededException e) {
+        retryDurationsByKey.put(key, e.getRetryDuration().orElse(Duration.ZERO));
+      }
+    }
+
+    return retryDurationsByKey;
+  }
+
   default void validate(final String key) throws RateLimitExceededException {
     validate(key, 1);
   }
@@ -6,14 +6,37 @@
 package org.whispersystems.textsecuregcm.limits;
 
 import javax.validation.constraints.AssertTrue;
+import javax.validation.constraints.PositiveOrZero;
 import java.time.Duration;
 
-public record RateLimiterConfig(int bucketSize, Duration permitRegenerationDuration) {
+/**
+ * Configuration for a token bucket rate limiter.
+ *
+ * @param bucketSize the maximum number of permits a key may accumulate
+ * @param permitRegenerationDuration the time needed to regenerate a single permit
+ * @param localLeaseSize the number of permits each server may lease from a key's shared bucket and hand out locally
+ *                       without consulting Redis; if zero (the default), every permit is taken from the shared bucket
+ */
+public record RateLimiterConfig(int bucketSize, Duration permitRegenerationDuration,
+                                @PositiveOrZero int localLeaseSize) {
+
+  public RateLimiterConfig(final int bucketSize, final Duration permitRegenerationDuration) {
+    this(bucketSize, permitRegenerationDuration, 0);
+  }
 
   public double leakRatePerMillis() {
     return 1.0 / (permitRegenerationDuration.toNanos() / 1e6);
   }
 
+  /**
+   * Returns the time for which locally-leased permits remain valid, which is the time needed to regenerate a full
+   * lease. Expiring leases after this time bounds the extra permits a server may hand out after the shared bucket has
+   * refilled to one lease per server.
+   */
+  public Duration localLeaseDuration() {
+    return permitRegenerationDuration.multipliedBy(localLeaseSize);
+  }
+
   @AssertTrue
   public boolean hasPositiveRegenerationRate() {
     try {
@@ -23,4 +46,9 @@ public record RateLimiterConfig(int bucketSize, Duration permitRegenerationDurat
       return true;
     }
   }
+
+  @AssertTrue
+  public boolean isLocalLeaseSmallerThanBucket() {
+    return localLeaseSize == 0 || localLeaseSize < bucketSize;
+  }
 }
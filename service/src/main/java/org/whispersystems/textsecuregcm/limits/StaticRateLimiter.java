@@ -8,14 +8,22 @@ import static java.util.Objects.requireNonNull;
 import static java.util.concurrent.CompletableFuture.completedFuture;
 import static java.util.concurrent.CompletableFuture.failedFuture;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.annotations.VisibleForTesting;
 import io.lettuce.core.RedisException;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
 import java.time.Clock;
 import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
+import javax.annotation.Nullable;
 import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
 import org.whispersystems.textsecuregcm.controllers.RateLimitExceededException;
 import org.whispersystems.textsecuregcm.metrics.MetricsUtil;
@@ -25,6 +33,20 @@ import org.whispersystems.textsecuregcm.storage.DynamicConfigurationManager;
 import org.whispersystems.textsecuregcm.util.ExceptionUtils;
 import org.whispersystems.textsecuregcm.util.Util;
 
+/**
+ * A rate limiter backed by token buckets stored in a Redis cluster.
+ * <p>
+ * If its configuration specifies a {@link RateLimiterConfig#localLeaseSize() local lease size}, the rate limiter also
+ * keeps a local tier of token buckets in memory. When a key has no local permits, the rate limiter takes the requested
+ * permits plus a lease of additional permits from the key's shared bucket in a single call; later requests for the same
+ * key draw from the lease without a round trip to Redis until the lease runs out or expires. If the shared bucket
+ * can't cover a lease, the key is near its limit, and requests for that key go to Redis for exact decisions until
+ * enough permits to cover a lease could have regenerated.
+ * <p>
+ * Leased permits are removed from the shared bucket whether or not they are used, so a local tier makes the limiter
+ * slightly stricter across servers; unused leases expire after {@link RateLimiterConfig#localLeaseDuration()}, which
+ * bounds the extra permits a key may receive after its shared bucket refills to one lease per server.
+ */
 public class StaticRateLimiter implements RateLimiter {
 
   protected final String name;
@@ -32,6 +54,9 @@ public class StaticRateLimiter implements RateLimiter {
   private final RateLimiterConfig config;
 
   private final Counter counter;
+  private final Counter localPermitsCounter;
+  private final Counter leaseGrantedCounter;
+  private final Counter leaseDeniedCounter;
   private final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager;
 
   private final ClusterLuaScript validateScript;
@@ -40,6 +65,46 @@ public class StaticRateLimiter implements RateLimiter {
 
   private final Clock clock;
 
+  private final String bucketSizeArgument;
+  private final String leakRatePerMillisArgument;
+
+  @Nullable
+  private final Cache<String, LocalLease> localLeases;
+
+  private static final int MAX_LOCAL_LEASES = 100_000;
+
+  /**
+   * Permits leased from a key's shared bucket and held locally. A lease with no permits may also mark a key as near its limit.
+   */
+  private static class LocalLease {
+
+    private final long expirationMillis;
+    private final boolean nearLimit;
+    private int permits;
+
+    private LocalLease(final int permits, final long expirationMillis, final boolean nearLimit) {
+      this.permits = permits;
+      this.expirationMillis = expirationMillis;
+      this.nearLimit = nearLimit;
+    }
+
+    boolean isExpired(final long currentTimeMillis) {
+      return currentTimeMillis >= expirationMillis;
+    }
+
+    boolean isNearLimit() {
+      return nearLimit;
+    }
+
+    synchronized boolean tryAcquire(final int amount) {
+      if (permits >= amount) {
+        permits -= amount;
+        return true;
+      }
+
+      return false;
+    }
+  }
 
   public StaticRateLimiter(
       final String name,
@@ -54,17 +119,29 @@ public class StaticRateLimiter implements RateLimiter {
     this.cacheCluster = requireNonNull(cacheCluster);
     this.clock = requireNonNull(clock);
     this.counter = Metrics.counter(MetricsUtil.name(getClass(), "exceeded"), "name", name);
+    this.localPermitsCounter = Metrics.counter(MetricsUtil.name(getClass(), "localPermits"), "name", name);
+    this.leaseGrantedCounter = Metrics.counter(MetricsUtil.name(getClass(), "localLease"), "name", name, "granted", "true");
+    this.leaseDeniedCounter = Metrics.counter(MetricsUtil.name(getClass(), "localLease"), "name", name, "granted", "false");
     this.dynamicConfigurationManager = dynamicConfigurationManager;
+
+    this.bucketSizeArgument = String.valueOf(config.bucketSize());
+    this.leakRatePerMillisArgument = String.valueOf(config.leakRatePerMillis());
+
+    this.localLeases = config.localLeaseSize() > 0
+        ? Caffeine.newBuilder()
+            .maximumSize(MAX_LOCAL_LEASES)
+            .expireAfterWrite(config.localLeaseDuration())
+            .build()
+        : null;
   }
 
   @Override
   public void validate(final String key, final int amount) throws RateLimitExceededException {
     try {
-      final long deficitPermitsAmount = executeValidateScript(key, amount, true);
+      final long deficitPermitsAmount = acquire(key, amount);
       if (deficitPermitsAmount > 0) {
         counter.increment();
-        final Duration retryAfter = Duration.ofMillis(
-            (long) Math.ceil((double) deficitPermitsAmount / config.leakRatePerMillis()));
+        final Duration retryAfter = Duration.ofMillis(retryAfterMillis(deficitPermitsAmount));
         throw new RateLimitExceededException(retryAfter, true);
       }
     } catch (RedisException e) {
@@ -76,14 +153,13 @@ public class StaticRateLimiter implements RateLimiter {
 
   @Override
   public CompletionStage<Void> validateAsync(final String key, final int amount) {
-    return executeValidateScriptAsync(key, amount, true)
+    return acquireAsync(key, amount)
         .thenCompose(deficitPermitsAmount -> {
           if (deficitPermitsAmount == 0) {
             return completedFuture((Void) null);
           }
           counter.increment();
-          final Duration retryAfter = Duration.ofMillis(
-              (long) Math.ceil((double) deficitPermitsAmount / config.leakRatePerMillis()));
+          final Duration retryAfter = Duration.ofMillis(retryAfterMillis(deficitPermitsAmount));
           return failedFuture(new RateLimitExceededException(retryAfter, true));
         })
         .exceptionally(throwable -> {
@@ -94,6 +170,41 @@ public class StaticRateLimiter implements RateLimiter {
         });
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Checks for all keys are issued at once without waiting for earlier checks to complete, so Redis commands for
+   * keys on the same shard are pipelined on a single connection.
+   */
+  @Override
+  public Map<String, Duration> validateAll(final Collection<String> keys, final int amount) {
+    final Map<String, CompletableFuture<Void>> futuresByKey = new HashMap<>();
+
+    for (final String key : keys) {
+      futuresByKey.computeIfAbsent(key, k -> validateAsync(k, amount).toCompletableFuture());
+    }
+
+    final Map<String, Duration> retryDurationsByKey = new HashMap<>();
+
+    futuresByKey.forEach((key, future) -> {
+      try {
+        future.join();
+      } catch (final CompletionException e) {
+        final Throwable cause = ExceptionUtils.unwrap(e);
+
+        if (cause instanceof RateLimitExceededException rateLimitExceededException) {
+          retryDurationsByKey.put(key, rateLimitExceededException.getRetryDuration().orElse(Duration.ZERO));
+        } else if (cause instanceof RuntimeException runtimeException) {
+          throw runtimeException;
+        } else {
+          throw e;
+        }
+      }
+    });
+
+    return retryDurationsByKey;
+  }
+
   @Override
   public boolean hasAvailablePermits(final String key, final int amount) {
     try {
@@ -122,11 +233,13 @@ public class StaticRateLimiter implements RateLimiter {
 
   @Override
   public void clear(final String key) {
+    clearLocalLease(key);
     cacheCluster.useCluster(connection -> connection.sync().del(bucketName(name, key)));
   }
 
   @Override
   public CompletionStage<Void> clearAsync(final String key) {
+    clearLocalLease(key);
     return cacheCluster.withCluster(connection -> connection.async().del(bucketName(name, key)))
         .thenRun(Util.NOOP);
   }
@@ -140,28 +253,149 @@ public class StaticRateLimiter implements RateLimiter {
     return this.dynamicConfigurationManager.getConfiguration().getRateLimitPolicy().failOpen();
   }
 
+  /**
+   * Takes the given number of permits for the given key, drawing from a local lease if possible.
+   *
+   * @return zero if the permits were acquired, or the number of permits by which the key's shared bucket fell short
+   * of the requested amount otherwise
+   */
+  private long acquire(final String key, final int amount) {
+    final long currentTimeMillis = clock.millis();
+
+    return switch (tryAcquireLocalPermits(key, amount, currentTimeMillis)) {
+      case ACQUIRED -> 0;
+      case DISABLED, NEAR_LIMIT -> executeValidateScript(key, amount, true);
+      case LEASE -> {
+        final long leaseDeficit = executeValidateScript(key, amount + config.localLeaseSize(), true);
+
+        if (leaseDeficit == 0) {
+          grantLocalLease(key, currentTimeMillis);
+          yield 0;
+        }
+
+        denyLocalLease(key, leaseDeficit, currentTimeMillis);
+        yield executeValidateScript(key, amount, true);
+      }
+    };
+  }
+
+  private CompletionStage<Long> acquireAsync(final String key, final int amount) {
+    final long currentTimeMillis = clock.millis();
+
+    return switch (tryAcquireLocalPermits(key, amount, currentTimeMillis)) {
+      case ACQUIRED -> completedFuture(0L);
+      case DISABLED, NEAR_LIMIT -> executeValidateScriptAsync(key, amount, true);
+      case LEASE -> executeValidateScriptAsync(key, amount + config.localLeaseSize(), true)
+          .thenCompose(leaseDeficit -> {
+            if (leaseDeficit == 0) {
+              grantLocalLease(key, currentTimeMillis);
+              return completedFuture(0L);
+            }
+
+            denyLocalLease(key, leaseDeficit, currentTimeMillis);
+            return executeValidateScriptAsync(key, amount, true);
+          });
+    };
+  }
+
+  private enum LocalAcquisitionResult {
+    /**
+     * Local tier is disabled, or the shared bucket could never cover a lease along with the requested permits; take
+     * permits from the shared bucket without a lease.
+     */
+    DISABLED,
+
+    /**
+     * Permits were taken from a local lease.
+     */
+    ACQUIRED,
+
+    /**
+     * No local lease could cover the request; try to take a new lease along with the requested permits.
+     */
+    LEASE,
+
+    /**
+     * The key is near its limit; take exactly the requested permits from the shared bucket.
+     */
+    NEAR_LIMIT
+  }
+
+  private LocalAcquisitionResult tryAcquireLocalPermits(final String key, final int amount,
+      final long currentTimeMillis) {
+
+    if (localLeases == null) {
+      return LocalAcquisitionResult.DISABLED;
+    }
+
+    final LocalLease localLease = localLeases.getIfPresent(key);
+
+    if (localLease == null || localLease.isExpired(currentTimeMillis)) {
+      return leaseOrDisabled(amount);
+    }
+
+    if (localLease.isNearLimit()) {
+      return LocalAcquisitionResult.NEAR_LIMIT;
+    }
+
+    if (localLease.tryAcquire(amount)) {
+      localPermitsCounter.increment();
+      return LocalAcquisitionResult.ACQUIRED;
+    }
+
+    return leaseOrDisabled(amount);
+  }
+
+  private LocalAcquisitionResult leaseOrDisabled(final int amount) {
+    // A full bucket can't cover a lease along with a request this large, so trying would always cost an extra round
+    // trip and mark the key as near its limit for no reason
+    return (long) amount + config.localLeaseSize() > config.bucketSize()
+        ? LocalAcquisitionResult.DISABLED
+        : LocalAcquisitionResult.LEASE;
+  }
+
+  private void grantLocalLease(final String key, final long currentTimeMillis) {
+    leaseGrantedCounter.increment();
+    localLeases.put(key, new LocalLease(config.localLeaseSize(),
+        currentTimeMillis + config.localLeaseDuration().toMillis(), false));
+  }
+
+  private void denyLocalLease(final String key, final long leaseDeficit, final long currentTimeMillis) {
+    // Don't try to take another lease until enough permits to cover the shortfall could have regenerated
+    leaseDeniedCounter.increment();
+    localLeases.put(key, new LocalLease(0, currentTimeMillis + retryAfterMillis(leaseDeficit), true));
+  }
+
+  private void clearLocalLease(final String key) {
+    if (localLeases != null) {
+      localLeases.invalidate(key);
+    }
+  }
+
+  private long retryAfterMillis(final long deficitPermitsAmount) {
+    return (long) Math.ceil((double) deficitPermitsAmount / config.leakRatePerMillis());
+  }
+
   private long executeValidateScript(final String key, final int amount, final boolean applyChanges) {
     final List<String> keys = List.of(bucketName(name, key));
-    final List<String> arguments = List.of(
-        String.valueOf(config.bucketSize()),
-        String.valueOf(config.leakRatePerMillis()),
-        String.valueOf(clock.millis()),
-        String.valueOf(amount),
-        String.valueOf(applyChanges)
-    );
+    final List<String> arguments = scriptArguments(amount, applyChanges);
     return (Long) validateScript.execute(keys, arguments);
   }
 
   private CompletionStage<Long> executeValidateScriptAsync(final String key, final int amount, final boolean applyChanges) {
     final List<String> keys = List.of(bucketName(name, key));
-    final List<String> arguments = List.of(
-        String.valueOf(config.bucketSize()),
-        String.valueOf(config.leakRatePerMillis()),
+    final List<String> arguments = scriptArguments(amount, applyChanges);
+    return validateScript.executeAsync(keys, arguments).thenApply(o -> (Long) o);
+  }
+
+  private List<String> scriptArguments(final int amount, final boolean applyChanges) {
+    return List.of(
+        bucketSizeArgument,
+        leakRatePerMillisArgument,
         String.valueOf(clock.millis()),
         String.valueOf(amount),
         String.valueOf(applyChanges)
     );
-    return validateScript.executeAsync(keys, arguments).thenApply(o -> (Long) o);
   }
 
   @VisibleForTesting
@@ -12,12 +12,13 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
 import io.dropwizard.lifecycle.Managed;
 import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisCommandTimeoutException;
 import io.lettuce.core.RedisFuture;
 import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.cluster.SlotHash;
-import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
 import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
 import io.lettuce.core.cluster.pubsub.RedisClusterPubSubAdapter;
 import io.micrometer.core.instrument.Counter;
@@ -29,6 +30,7 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
@@ -65,6 +67,7 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
   private final ExecutorService keyspaceNotificationExecutorService;
   private final ScheduledExecutorService scheduledExecutorService;
   private ScheduledFuture<?> pruneMissingPeersFuture;
+  private ScheduledFuture<?> renewPresencesFuture;
 
   private final Map<String, DisplacedPresenceListener> displacementListenersByPresenceKey = new ConcurrentHashMap<>();
 
@@ -72,13 +75,19 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
   private final Timer setPresenceTimer;
   private final Timer clearPresenceTimer;
   private final Timer prunePeersTimer;
+  private final Timer renewPresencesTimer;
   private final Meter pruneClientMeter;
   private final Meter remoteDisplacementMeter;
   private final Meter pubSubMessageMeter;
   private final Counter displacementListenerAlreadyRemovedCounter;
+  private final Counter renewPresenceFailedCounter;
 
   private static final int PRUNE_PEERS_INTERVAL_SECONDS = (int) Duration.ofSeconds(30).toSeconds();
   private static final int PRESENCE_EXPIRATION_SECONDS = (int) Duration.ofMinutes(11).toSeconds();
+  private static final int RENEW_PRESENCES_INTERVAL_SECONDS = (int) Duration.ofMinutes(5).toSeconds();
+
+  // The number of renewals to have in flight at once while renewing all local presences
+  private static final int RENEW_PRESENCES_BATCH_SIZE = 1_000;
 
   static final String MANAGER_SET_KEY = "presence::managers";
 
@@ -103,11 +112,13 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
     this.setPresenceTimer = metricRegistry.timer(name(getClass(), "setPresence"));
     this.clearPresenceTimer = metricRegistry.timer(name(getClass(), "clearPresence"));
     this.prunePeersTimer = metricRegistry.timer(name(getClass(), "prunePeers"));
+    this.renewPresencesTimer = metricRegistry.timer(name(getClass(), "renewPresences"));
     this.pruneClientMeter = metricRegistry.meter(name(getClass(), "pruneClient"));
     this.remoteDisplacementMeter = metricRegistry.meter(name(getClass(), "remoteDisplacement"));
     this.pubSubMessageMeter = metricRegistry.meter(name(getClass(), "pubSubMessage"));
     this.displacementListenerAlreadyRemovedCounter = Metrics.counter(
         name(getClass(), "displacementListenerAlreadyRemoved"));
+    this.renewPresenceFailedCounter = Metrics.counter(name(getClass(), "renewPresenceFailed"));
   }
 
   @VisibleForTesting
@@ -139,6 +150,14 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
         log.warn("Failed to prune missing peers", t);
       }
     }, new Random().nextInt(PRUNE_PEERS_INTERVAL_SECONDS), PRUNE_PEERS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+    renewPresencesFuture = scheduledExecutorService.scheduleWithFixedDelay(() -> {
+      try {
+        renewPresences();
+      } catch (final Throwable t) {
+        log.warn("Failed to renew presences", t);
+      }
+    }, RENEW_PRESENCES_INTERVAL_SECONDS, RENEW_PRESENCES_INTERVAL_SECONDS, TimeUnit.SECONDS);
   }
 
   @Override
@@ -149,6 +168,10 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
       pruneMissingPeersFuture.cancel(false);
     }
 
+    if (renewPresencesFuture != null) {
+      renewPresencesFuture.cancel(false);
+    }
+
     for (final String presenceKey : displacementListenersByPresenceKey.keySet()) {
       clearPresence(presenceKey);
     }
@@ -172,19 +195,44 @@ public class ClientPresenceManager extends RedisClusterPubSubAdapter<String, Str
       displacementListenersByPresenceKey.put(presenceKey, displacementListener);
 
       presenceCluster.useCluster(connection -> {
-        final RedisAdvancedClusterCommands<String, String> commands = connection.sync();
+        // awaitAll rethrows command failures, but reports timeouts only through its return value; surface them as
+        // exceptions, too, so the cluster's retry and circuit breaker see them
+        if (!LettuceFutures.awaitAll(connection.getTimeout(),
+            connection.async().sadd(connectedClientSetKey, presenceKey),
+            connection.async().setex(presenceKey, PRESENCE_EXPIRATION_SECONDS, managerId))) {
 
-        commands.sadd(connectedClientSetKey, presenceKey);
-        commands.setex(presenceKey, PRESENCE_EXPIRATION_SECONDS, managerId);
+          throw new RedisCommandTimeoutException("Timed out setting presence for " + presenceKey);
+        }
       });
 
       subscribeForRemotePresenceChanges(presenceKey);
     }
   }
 
-  public void renewPresence(final UUID accountUuid, final long deviceId) {
-    renewPresenceScript.execute(List.of(getPresenceKey(accountUuid, deviceId)),
-        List.of(managerId, String.valueOf(PRESENCE_EXPIRATION_SECONDS)));
+  /**
+   * Renews the presence of every client connected to this manager. Renewals are issued in batches without waiting for
+   * individual replies, so renewals for keys on the same shard are pipelined rather than making a round trip each.
+   */
+  @VisibleForTesting
+  void renewPresences() {
+    try (final Timer.Context ignored = renewPresencesTimer.time()) {
+      final List<String> renewPresenceArguments = List.of(managerId, String.valueOf(PRESENCE_EXPIRATION_SECONDS));
+
+      for (final List<String> presenceKeys : Lists.partition(
+          new ArrayList<>(displacementListenersByPresenceKey.keySet()), RENEW_PRESENCES_BATCH_SIZE)) {
+
+        CompletableFuture.allOf(presenceKeys.stream()
+                .map(presenceKey -> renewPresenceScript.executeAsync(List.of(presenceKey), renewPresenceArguments)
+                    .exceptionally(throwable -> {
+                      renewPresenceFailedCounter.increment();
+                      log.debug("Failed to renew presence for {}", presenceKey, throwable);
+
+                      return null;
+                    }))
+                .toArray(CompletableFuture[]::new))
+            .join();
+      }
+    }
   }
 
   public void disconnectAllPresences(final UUID accountUuid, final List<Long> deviceIds) {
@@ -8,10 +8,18 @@ import static com.codahale.metrics.MetricRegistry.name;
 import static org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
 
 import io.micrometer.core.instrument.Metrics;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import javax.annotation.Nullable;
 import org.apache.commons.lang3.StringUtils;
 import org.whispersystems.textsecuregcm.redis.RedisOperation;
 import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.Device;
+import org.whispersystems.textsecuregcm.storage.MessagesCache;
 import org.whispersystems.textsecuregcm.storage.MessagesManager;
 
 /**
@@ -53,20 +61,18 @@ public class MessageSender {
     this.pushLatencyManager = pushLatencyManager;
   }
 
+  /**
+   * A message addressed to a specific device of a destination account.
+   *
+   * @see #sendMessages(List, byte[], boolean, Executor)
+   */
+  public record DeviceMessage(Account account, Device device, Envelope message) {
+  }
+
   public void sendMessage(final Account account, final Device device, final Envelope message, final boolean online)
       throws NotPushRegisteredException {
 
-    final String channel;
-
-    if (device.getGcmId() != null) {
-      channel = "gcm";
-    } else if (device.getApnId() != null) {
-      channel = "apn";
-    } else if (device.getFetchesMessages()) {
-      channel = "websocket";
-    } else {
-      throw new AssertionError();
-    }
+    final String channel = getChannel(device);
 
     final boolean clientPresent;
 
@@ -82,22 +88,165 @@ public class MessageSender {
       // We check for client presence after inserting the message to take a conservative view of notifications. If the
       // client wasn't present at the time of insertion but is now, they'll retrieve the message. If they were present
       // but disconnected before the message was delivered, we should send a notification.
-      clientPresent = clientPresenceManager.isPresent(account.getUuid(), device.getId());
+      clientPresent = notifyIfNotPresent(account, device, message.getUrgent());
+    }
 
-      if (!clientPresent) {
-        try {
-          pushNotificationManager.sendNewMessageNotification(account, device.getId(), message.getUrgent());
+    incrementSendCounter(channel, online, clientPresent, message);
+  }
 
-          final boolean useVoip = StringUtils.isNotBlank(device.getVoipApnId());
-          RedisOperation.unchecked(() -> pushLatencyManager.recordPushSent(account.getUuid(), device.getId(), useVoip, message.getUrgent()));
-        } catch (final NotPushRegisteredException e) {
-          if (!device.getFetchesMessages()) {
-            throw e;
+  /**
+   * Sends several non-ephemeral messages to a single device. The messages are inserted into the device's queue with a
+   * single batch, and the device is checked for presence and notified (if needed) only once for the whole batch; the
+   * notification is urgent if any of the messages is urgent.
+   *
+   * @param account the account to which the destination device belongs
+   * @param device the destination device
+   * @param messages the messages to send, in the order in which they should be delivered
+   *
+   * @throws NotPushRegisteredException if the device is not connected, not registered for push notifications, and does
+   * not fetch messages; the messages will still have been inserted into the device's queue
+   */
+  public void sendMessages(final Account account, final Device device, final List<Envelope> messages)
+      throws NotPushRegisteredException {
+
+    if (messages.isEmpty()) {
+      return;
+    }
+
+    final String channel = getChannel(device);
+
+    messagesManager.insertBatch(messages.stream()
+        .map(message ->
+            new MessagesCache.MessageToInsert(UUID.randomUUID(), account.getUuid(), device.getId(), message))
+        .toList(), null);
+
+    final boolean clientPresent =
+        notifyIfNotPresent(account, device, messages.stream().anyMatch(Envelope::getUrgent));
+
+    messages.forEach(message -> incrementSendCounter(channel, false, clientPresent, message));
+  }
+
+  /**
+   * Sends a batch of messages, usually the per-device copies of a single multi-recipient message. Unlike repeated calls
+   * to {@link #sendMessage(Account, Device, Envelope, boolean)}, all messages are inserted into their destination queues
+   * with a single pipelined batch; only the per-device presence checks and push notifications run individually, on the
+   * given executor.
+   *
+   * @param messages the messages to send
+   * @param sharedContentSuffix a content suffix shared by all messages, which is stored only once rather than with each
+   *                            message, or {@code null} if the messages' content is complete
+   * @param online whether the messages are ephemeral and should only be delivered to currently-connected devices
+   * @param executor the executor on which to run per-device presence checks and push notifications
+   *
+   * @return the messages that could not be sent because their destination devices neither fetch messages nor are
+   * registered for push notifications; these are the messages for which
+   * {@link #sendMessage(Account, Device, Envelope, boolean)} would have thrown {@link NotPushRegisteredException}
+   */
+  public List<DeviceMessage> sendMessages(final List<DeviceMessage> messages,
+      @Nullable final byte[] sharedContentSuffix,
+      final boolean online,
+      final Executor executor) {
+
+    final List<String> channels = messages.stream()
+        .map(message -> getChannel(message.device()))
+        .toList();
+
+    final List<DeviceMessage> notPushRegistered = Collections.synchronizedList(new ArrayList<>());
+
+    if (online) {
+      final List<CompletableFuture<Boolean>> presenceFutures = messages.stream()
+          .map(message -> CompletableFuture.supplyAsync(
+              () -> clientPresenceManager.isPresent(message.account().getUuid(), message.device().getId()), executor))
+          .toList();
+
+      final List<MessagesCache.MessageToInsert> messagesToInsert = new ArrayList<>();
+
+      for (int i = 0; i < messages.size(); i++) {
+        final DeviceMessage message = messages.get(i);
+        final boolean clientPresent = presenceFutures.get(i).join();
+
+        if (clientPresent) {
+          messagesToInsert.add(new MessagesCache.MessageToInsert(UUID.randomUUID(), message.account().getUuid(),
+              message.device().getId(), message.message().toBuilder().setEphemeral(true).build()));
+        }
+
+        incrementSendCounter(channels.get(i), true, clientPresent, message.message());
+      }
+
+      messagesManager.insertBatch(messagesToInsert, sharedContentSuffix);
+    } else {
+      messagesManager.insertBatch(messages.stream()
+          .map(message -> new MessagesCache.MessageToInsert(UUID.randomUUID(), message.account().getUuid(),
+              message.device().getId(), message.message()))
+          .toList(), sharedContentSuffix);
+
+      final CompletableFuture<?>[] notificationFutures = new CompletableFuture[messages.size()];
+
+      for (int i = 0; i < messages.size(); i++) {
+        final DeviceMessage message = messages.get(i);
+        final String channel = channels.get(i);
+
+        notificationFutures[i] = CompletableFuture.runAsync(() -> {
+          try {
+            final boolean clientPresent =
+                notifyIfNotPresent(message.account(), message.device(), message.message().getUrgent());
+            incrementSendCounter(channel, false, clientPresent, message.message());
+          } catch (final NotPushRegisteredException e) {
+            notPushRegistered.add(message);
           }
+        }, executor);
+      }
+
+      CompletableFuture.allOf(notificationFutures).join();
+    }
+
+    return notPushRegistered;
+  }
+
+  private static String getChannel(final Device device) {
+    if (device.getGcmId() != null) {
+      return "gcm";
+    } else if (device.getApnId() != null) {
+      return "apn";
+    } else if (device.getFetchesMessages()) {
+      return "websocket";
+    } else {
+      throw new AssertionError();
+    }
+  }
+
+  /**
+   * Sends a push notification to the given device if it isn't currently connected.
+   *
+   * @return whether the device was connected
+   *
+   * @throws NotPushRegisteredException if the device is not connected, not registered for push notifications, and does
+   * not fetch messages
+   */
+  private boolean notifyIfNotPresent(final Account account, final Device device, final boolean urgent)
+      throws NotPushRegisteredException {
+
+    final boolean clientPresent = clientPresenceManager.isPresent(account.getUuid(), device.getId());
+
+    if (!clientPresent) {
+      try {
+        pushNotificationManager.sendNewMessageNotification(account, device.getId(), urgent);
+
+        final boolean useVoip = StringUtils.isNotBlank(device.getVoipApnId());
+        RedisOperation.unchecked(() -> pushLatencyManager.recordPushSent(account.getUuid(), device.getId(), useVoip, urgent));
+      } catch (final NotPushRegisteredException e) {
+        if (!device.getFetchesMessages()) {
+          throw e;
         }
       }
     }
 
+    return clientPresent;
+  }
+
+  private static void incrementSendCounter(final String channel, final boolean online, final boolean clientPresent,
+      final Envelope message) {
+
     Metrics.counter(SEND_COUNTER_NAME,
             CHANNEL_TAG_NAME, channel,
             EPHEMERAL_TAG_NAME, String.valueOf(online),
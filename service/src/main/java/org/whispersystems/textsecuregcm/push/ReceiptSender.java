@@ -5,33 +5,127 @@
 
 package org.whispersystems.textsecuregcm.push;
 
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.dropwizard.lifecycle.Managed;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
 import org.whispersystems.textsecuregcm.identity.AciServiceIdentifier;
 import org.whispersystems.textsecuregcm.identity.ServiceIdentifier;
 import org.whispersystems.textsecuregcm.metrics.MetricsUtil;
+import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.AccountsManager;
 import org.whispersystems.textsecuregcm.storage.Device;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
-public class ReceiptSender {
+/**
+ * Sends server-generated delivery receipts.
+ * <p>
+ * Receipts tend to arrive in bursts addressed to the same few accounts (for example, when a member of a large group
+ * fetches a backlog of messages), so rather than sending each receipt as it's requested, receipts are buffered per
+ * destination account and flushed at a fixed interval. Each flush looks up each destination account once and inserts
+ * all of its buffered receipts into each of its devices' queues with a single batch (and at most one push notification
+ * per device). Flushes run on a bounded pipeline; if the buffer is full, new receipts are dropped rather than sent from
+ * the caller's thread.
+ * <p>
+ * Buffered receipts are lost if a server stops abruptly; like the receipts themselves, this is best-effort.
+ */
+public class ReceiptSender implements Managed {
 
-  private final MessageSender messageSender;
   private final AccountsManager accountManager;
-  private final ExecutorService executor;
+  private final MessageSender messageSender;
+  private final Scheduler scheduler;
+  private final ScheduledExecutorService scheduledExecutorService;
+  private final Duration flushInterval;
+  private final int maxPendingReceipts;
+
+  private final Map<UUID, List<Envelope>> pendingReceiptsByDestination = new ConcurrentHashMap<>();
+  private final AtomicInteger pendingReceiptCount = new AtomicInteger();
+
+  @Nullable
+  private ScheduledFuture<?> flushFuture;
+
+  private static final int MAX_CONCURRENCY = 16;
+
+  private static final Counter RECEIPT_DROPPED_COUNTER = Metrics.counter(name(ReceiptSender.class, "receiptDropped"));
+  private static final Counter DESTINATION_FLUSHED_COUNTER =
+      Metrics.counter(name(ReceiptSender.class, "destinationFlushed"));
 
   private static final Logger logger = LoggerFactory.getLogger(ReceiptSender.class);
 
-  public ReceiptSender(final AccountsManager accountManager, final MessageSender messageSender,
-      final ExecutorService executor) {
+  /**
+   * Constructs a new receipt sender.
+   *
+   * @param accountManager the source of destination accounts
+   * @param messageSender the sender used to insert receipts into destination devices' queues
+   * @param executor the executor on which receipts are sent; at most {@value MAX_CONCURRENCY} sends are submitted to
+   *                 it at any time
+   * @param scheduledExecutorService the executor on which buffered receipts are flushed
+   * @param flushInterval the interval at which buffered receipts are flushed
+   * @param maxPendingReceipts the maximum number of buffered receipts; receipts requested while the buffer is full are
+   *                           dropped
+   */
+  public ReceiptSender(final AccountsManager accountManager,
+      final MessageSender messageSender,
+      final ExecutorService executor,
+      final ScheduledExecutorService scheduledExecutorService,
+      final Duration flushInterval,
+      final int maxPendingReceipts) {
+
     this.accountManager = accountManager;
     this.messageSender = messageSender;
-    this.executor = ExecutorServiceMetrics.monitor(
-        Metrics.globalRegistry, executor, MetricsUtil.name(ReceiptSender.class, "executor"), MetricsUtil.PREFIX)
-    ;
+    this.scheduler = Schedulers.fromExecutorService(ExecutorServiceMetrics.monitor(
+        Metrics.globalRegistry, executor, MetricsUtil.name(ReceiptSender.class, "executor"), MetricsUtil.PREFIX));
+    this.scheduledExecutorService = scheduledExecutorService;
+    this.flushInterval = flushInterval;
+    this.maxPendingReceipts = maxPendingReceipts;
+
+    Metrics.gauge(name(ReceiptSender.class, "pending"), Collections.emptyList(), pendingReceiptCount);
+  }
+
+  @Override
+  public void start() {
+    flushFuture = scheduledExecutorService.scheduleWithFixedDelay(() -> {
+          try {
+            flush().join();
+          } catch (final Exception e) {
+            logger.warn("Failed to flush delivery receipts", e);
+          }
+        },
+        flushInterval.toMillis(),
+        flushInterval.toMillis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void stop() {
+    if (flushFuture != null) {
+      flushFuture.cancel(false);
+    }
+
+    flush().join();
   }
 
   public void sendReceipt(ServiceIdentifier sourceIdentifier, long sourceDeviceId, AciServiceIdentifier destinationIdentifier, long messageId) {
@@ -39,36 +133,85 @@ public class ReceiptSender {
       return;
     }
 
-    executor.submit(() -> {
-      try {
-        accountManager.getByAccountIdentifier(destinationIdentifier.uuid()).ifPresentOrElse(
-            destinationAccount -> {
-              final Envelope.Builder message = Envelope.newBuilder()
-                  .setServerTimestamp(System.currentTimeMillis())
-                  .setSourceUuid(sourceIdentifier.toServiceIdentifierString())
-                  .setSourceDevice((int) sourceDeviceId)
-                  .setDestinationUuid(destinationIdentifier.toServiceIdentifierString())
-                  .setTimestamp(messageId)
-                  .setType(Envelope.Type.SERVER_DELIVERY_RECEIPT)
-                  .setUrgent(false);
-
-              for (final Device destinationDevice : destinationAccount.getDevices()) {
-                try {
-                  messageSender.sendMessage(destinationAccount, destinationDevice, message.build(), false);
-                } catch (final NotPushRegisteredException e) {
-                  logger.debug("User no longer push registered for delivery receipt: {}", e.getMessage());
-                } catch (final Exception e) {
-                  logger.warn("Could not send delivery receipt", e);
-                }
-              }
-            },
-            () -> logger.info("No longer registered: {}", destinationIdentifier)
-        );
+    if (pendingReceiptCount.get() >= maxPendingReceipts) {
+      RECEIPT_DROPPED_COUNTER.increment();
+      return;
+    }
 
+    final Envelope receipt = Envelope.newBuilder()
+        .setServerTimestamp(System.currentTimeMillis())
+        .setSourceUuid(sourceIdentifier.toServiceIdentifierString())
+        .setSourceDevice((int) sourceDeviceId)
+        .setDestinationUuid(destinationIdentifier.toServiceIdentifierString())
+        .setTimestamp(messageId)
+        .setType(Envelope.Type.SERVER_DELIVERY_RECEIPT)
+        .setUrgent(false)
+        .build();
+
+    // Receipts are only ever appended while holding the map's lock for the destination, and a flush removes the whole
+    // list for a destination at once, so a removed list is never modified again
+    pendingReceiptsByDestination.compute(destinationIdentifier.uuid(), (ignored, receipts) -> {
+      final List<Envelope> pendingReceipts = receipts != null ? receipts : new ArrayList<>();
+      pendingReceipts.add(receipt);
+
+      return pendingReceipts;
+    });
+
+    pendingReceiptCount.incrementAndGet();
+  }
+
+  /**
+   * Sends all buffered receipts.
+   *
+   * @return a future that completes when all receipts buffered at the time of the call have been sent or have failed
+   */
+  @VisibleForTesting
+  CompletableFuture<Void> flush() {
+    final List<Map.Entry<UUID, List<Envelope>>> receiptsByDestination =
+        new ArrayList<>(pendingReceiptsByDestination.size());
+
+    for (final UUID destinationUuid : pendingReceiptsByDestination.keySet()) {
+      final List<Envelope> receipts = pendingReceiptsByDestination.remove(destinationUuid);
+
+      if (receipts != null) {
+        pendingReceiptCount.addAndGet(-receipts.size());
+        receiptsByDestination.add(Map.entry(destinationUuid, receipts));
+      }
+    }
+
+    return Flux.fromIterable(receiptsByDestination)
+        .flatMap(entry -> Mono.fromFuture(() -> accountManager.getByAccountIdentifierAsync(entry.getKey()))
+            .flatMap(maybeAccount -> maybeAccount
+                .map(account -> Mono.fromRunnable(() -> sendReceipts(account, entry.getValue())).subscribeOn(scheduler))
+                .orElseGet(() -> {
+                  logger.info("No longer registered: {}", entry.getKey());
+                  return Mono.empty();
+                }))
+            .onErrorResume(throwable -> {
+              // this exception is most likely a Dynamo timeout or a Redis timeout/circuit breaker
+              logger.warn("Could not send delivery receipts", throwable);
+              return Mono.empty();
+            }), MAX_CONCURRENCY)
+        .then()
+        .toFuture();
+  }
+
+  private void sendReceipts(final Account destinationAccount, final List<Envelope> receipts) {
+    DESTINATION_FLUSHED_COUNTER.increment();
+
+    // Devices that aren't enabled can't receive messages, and may not have a delivery channel at all
+    for (final Device destinationDevice : destinationAccount.getDevices()) {
+      if (!destinationDevice.isEnabled()) {
+        continue;
+      }
+
+      try {
+        messageSender.sendMessages(destinationAccount, destinationDevice, receipts);
+      } catch (final NotPushRegisteredException e) {
+        logger.debug("User no longer push registered for delivery receipt: {}", e.getMessage());
       } catch (final Exception e) {
-        // this exception is most likely a Dynamo timeout or a Redis timeout/circuit breaker
         logger.warn("Could not send delivery receipt", e);
       }
-    });
+    }
   }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.redis;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A fixed-size pool of cluster connections that share a codec. Each connection multiplexes commands from all of its
+ * callers over a single channel per cluster node, so a caller waiting on a large reply delays every caller behind it;
+ * spreading callers over several connections limits that head-of-line blocking.
+ * <p>
+ * Each caller is assigned a connection based on its thread, so commands issued by one thread stay on one connection and
+ * keep their relative order. The pool doesn't try to balance load between connections: most callers issue asynchronous
+ * or reactive commands and return before their replies arrive, so the pool has no meaningful measure of how busy a
+ * connection is. Callers are spread evenly only to the extent that the threads issuing commands are.
+ * <p>
+ * The latency of each slot's commands and the number of commands awaiting a reply on it are reported by
+ * {@link PooledConnectionMetrics}, which is the basis for choosing a pool size.
+ */
+class ClusterConnectionPool<K, V> {
+
+  private final List<StatefulRedisClusterConnection<K, V>> connections;
+
+  /**
+   * Constructs a new pool of the given connections.
+   *
+   * @param connections the connections in this pool
+   */
+  ClusterConnectionPool(final List<StatefulRedisClusterConnection<K, V>> connections) {
+    if (connections.isEmpty()) {
+      throw new IllegalArgumentException("Connection pool must contain at least one connection");
+    }
+
+    this.connections = new ArrayList<>(connections);
+  }
+
+  /**
+   * Applies the given function to the calling thread's connection.
+   */
+  <T> T withConnection(final Function<StatefulRedisClusterConnection<K, V>, T> function) {
+    return function.apply(getConnection());
+  }
+
+  /**
+   * Returns the calling thread's connection.
+   */
+  StatefulRedisClusterConnection<K, V> getConnection() {
+    return connections.size() == 1
+        ? connections.get(0)
+        : connections.get((int) (Thread.currentThread().getId() % connections.size()));
+  }
+
+  List<StatefulRedisClusterConnection<K, V>> getConnections() {
+    return connections;
+  }
+
+  @VisibleForTesting
+  int size() {
+    return connections.size();
+  }
+}
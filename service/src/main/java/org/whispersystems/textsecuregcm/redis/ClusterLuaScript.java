@@ -5,11 +5,15 @@
 
 package org.whispersystems.textsecuregcm.redis;
 
+import static com.codahale.metrics.MetricRegistry.name;
+
 import com.google.common.annotations.VisibleForTesting;
 import io.lettuce.core.RedisException;
 import io.lettuce.core.RedisNoScriptException;
 import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
@@ -30,9 +34,13 @@ public class ClusterLuaScript {
   private final String script;
   private final String sha;
 
+  private final Counter scriptNotLoadedCounter;
+
   private static final String[] STRING_ARRAY = new String[0];
   private static final byte[][] BYTE_ARRAY_ARRAY = new byte[0][];
 
+  private static final String SCRIPT_NOT_LOADED_COUNTER_NAME = name(ClusterLuaScript.class, "scriptNotLoaded");
+
   private static final Logger log = LoggerFactory.getLogger(ClusterLuaScript.class);
 
   public static ClusterLuaScript fromResource(final FaultTolerantRedisCluster redisCluster,
@@ -44,9 +52,14 @@ public class ClusterLuaScript {
         throw new IllegalArgumentException("Script not found: " + resource);
       }
 
-      return new ClusterLuaScript(redisCluster,
+      final ClusterLuaScript clusterLuaScript = new ClusterLuaScript(redisCluster,
+          resource,
           new String(inputStream.readAllBytes(), StandardCharsets.UTF_8),
           scriptOutputType);
+
+      redisCluster.registerScript(clusterLuaScript);
+
+      return clusterLuaScript;
     }
   }
 
@@ -55,6 +68,14 @@ public class ClusterLuaScript {
       final String script,
       final ScriptOutputType scriptOutputType) {
 
+    this(redisCluster, "unnamed", script, scriptOutputType);
+  }
+
+  private ClusterLuaScript(final FaultTolerantRedisCluster redisCluster,
+      final String name,
+      final String script,
+      final ScriptOutputType scriptOutputType) {
+
     this.redisCluster = redisCluster;
     this.scriptOutputType = scriptOutputType;
     this.script = script;
@@ -65,6 +86,20 @@ public class ClusterLuaScript {
       // All Java implementations are required to support SHA-1, so this should never happen
       throw new AssertionError(e);
     }
+
+    this.scriptNotLoadedCounter = Metrics.counter(SCRIPT_NOT_LOADED_COUNTER_NAME, "script", name);
+  }
+
+  /**
+   * Loads this script into the script cache of every node in the cluster so that calls to {@code execute} don't have
+   * to fall back to sending the full script.
+   *
+   * @return a future that completes when the script has been loaded into every node's script cache
+   */
+  CompletableFuture<Void> loadAsync() {
+    return redisCluster.withCluster(connection -> connection.async().scriptLoad(script))
+        .toCompletableFuture()
+        .thenRun(() -> {});
   }
 
   @VisibleForTesting
@@ -107,6 +142,7 @@ public class ClusterLuaScript {
       try {
         return connection.sync().evalsha(sha, scriptOutputType, keys, args);
       } catch (final RedisNoScriptException e) {
+        scriptNotLoadedCounter.increment();
         return connection.sync().eval(script, scriptOutputType, keys, args);
       }
     } catch (final Exception e) {
@@ -121,6 +157,7 @@ public class ClusterLuaScript {
     return connection.async().evalsha(sha, scriptOutputType, keys, args)
         .exceptionallyCompose(throwable -> {
           if (throwable instanceof RedisNoScriptException) {
+            scriptNotLoadedCounter.increment();
             return connection.async().eval(script, scriptOutputType, keys, args);
           }
 
@@ -135,6 +172,7 @@ public class ClusterLuaScript {
     return connection.reactive().evalsha(sha, scriptOutputType, keys, args)
         .onErrorResume(e -> {
           if (e instanceof RedisNoScriptException) {
+            scriptNotLoadedCounter.increment();
             return connection.reactive().eval(script, scriptOutputType, keys, args);
           }
 
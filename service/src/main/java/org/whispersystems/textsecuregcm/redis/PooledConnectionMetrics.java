@@ -0,0 +1,110 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.redis;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.lettuce.core.metrics.CommandLatencyRecorder;
+import io.lettuce.core.protocol.CommandHandler;
+import io.lettuce.core.protocol.ProtocolKeyword;
+import io.lettuce.core.resource.ClientResources;
+import io.lettuce.core.resource.NettyCustomizer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import java.net.SocketAddress;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures command latency and the number of commands awaiting a reply for one slot of a {@link ClusterConnectionPool}.
+ * Lettuce only reports latency and exposes channels through a client's {@link ClientResources}, so each pool slot's
+ * connections are opened by a client whose resources are {@linkplain #instrument instrumented} with an
+ * instance of this class; the connections for both codecs in a slot therefore share a set of metrics.
+ */
+class PooledConnectionMetrics implements CommandLatencyRecorder, NettyCustomizer {
+
+  private final CommandLatencyRecorder delegateRecorder;
+  private final NettyCustomizer delegateCustomizer;
+
+  private final Timer commandLatencyTimer;
+  private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+
+  @VisibleForTesting
+  static final String COMMAND_LATENCY_TIMER_NAME = name(ClusterConnectionPool.class, "commandLatency");
+
+  @VisibleForTesting
+  static final String PENDING_COMMANDS_GAUGE_NAME = name(ClusterConnectionPool.class, "pendingCommands");
+
+  private PooledConnectionMetrics(final ClientResources clientResources, final String clusterName,
+      final int connectionIndex, final MeterRegistry meterRegistry) {
+
+    this.delegateRecorder = clientResources.commandLatencyRecorder();
+    this.delegateCustomizer = clientResources.nettyCustomizer();
+
+    final Tags tags = Tags.of("name", clusterName, "connection", String.valueOf(connectionIndex));
+
+    this.commandLatencyTimer = meterRegistry.timer(COMMAND_LATENCY_TIMER_NAME, tags);
+    meterRegistry.gauge(PENDING_COMMANDS_GAUGE_NAME, tags, this, PooledConnectionMetrics::getPendingCommands);
+  }
+
+  /**
+   * Returns a copy of the given client resources that records metrics for the pool slot with the given index, in
+   * addition to anything the given resources already record.
+   */
+  static ClientResources instrument(final ClientResources clientResources, final String clusterName,
+      final int connectionIndex, final MeterRegistry meterRegistry) {
+
+    final PooledConnectionMetrics metrics =
+        new PooledConnectionMetrics(clientResources, clusterName, connectionIndex, meterRegistry);
+
+    return clientResources.mutate()
+        .commandLatencyRecorder(metrics)
+        .nettyCustomizer(metrics)
+        .build();
+  }
+
+  @Override
+  public void recordCommandLatency(final SocketAddress local, final SocketAddress remote,
+      final ProtocolKeyword commandType, final long firstResponseLatency, final long completionLatency) {
+
+    commandLatencyTimer.record(completionLatency, TimeUnit.NANOSECONDS);
+
+    if (delegateRecorder.isEnabled()) {
+      delegateRecorder.recordCommandLatency(local, remote, commandType, firstResponseLatency, completionLatency);
+    }
+  }
+
+  @Override
+  public void afterBootstrapInitialized(final Bootstrap bootstrap) {
+    delegateCustomizer.afterBootstrapInitialized(bootstrap);
+  }
+
+  @Override
+  public void afterChannelInitialized(final Channel channel) {
+    // Closed channels remove themselves from the group
+    channels.add(channel);
+    delegateCustomizer.afterChannelInitialized(channel);
+  }
+
+  /**
+   * Returns the number of commands written to this slot's channels that haven't yet received a reply. Command stacks
+   * belong to their channels' event loops, so this is an approximation suitable only for reporting.
+   */
+  int getPendingCommands() {
+    return channels.stream()
+        .map(channel -> channel.pipeline().get(CommandHandler.class))
+        .filter(Objects::nonNull)
+        .mapToInt(commandHandler -> commandHandler.getStack().size())
+        .sum();
+  }
+}
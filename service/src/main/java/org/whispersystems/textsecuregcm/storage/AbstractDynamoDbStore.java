@@ -9,8 +9,10 @@ import static com.codahale.metrics.MetricRegistry.name;
 import static io.micrometer.core.instrument.Metrics.counter;
 import static io.micrometer.core.instrument.Metrics.timer;
 
+import io.github.resilience4j.core.IntervalFunction;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -29,7 +31,12 @@ import javax.annotation.Nonnull;
 
 public abstract class AbstractDynamoDbStore {
 
-  private static final int MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE = 25;  // This was arbitrarily chosen and may be entirely too high.
+  static final int MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE = 25;  // This was arbitrarily chosen and may be entirely too high.
+
+  // Items and keys go unprocessed when their partition is throttled, so asynchronous batch operations wait (with
+  // jitter, so throttled callers don't retry in lockstep) before retrying them
+  static final IntervalFunction UNPROCESSED_ITEMS_BACKOFF =
+      IntervalFunction.ofExponentialRandomBackoff(Duration.ofMillis(25), 2.0, Duration.ofSeconds(1));
 
   public static final int DYNAMO_DB_MAX_BATCH_SIZE = 25;  // This limit comes from Amazon Dynamo DB itself. It will reject batch writes larger than this.
 
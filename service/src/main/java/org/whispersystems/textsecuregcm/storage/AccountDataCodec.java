@@ -0,0 +1,110 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.ser.FilterProvider;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.google.common.annotations.VisibleForTesting;
+import java.io.IOException;
+import org.whispersystems.textsecuregcm.util.SystemMapper;
+
+/**
+ * Reads and writes the serialized form of {@link Account} records in either of two formats: JSON, or a compact,
+ * versioned binary format. The compact format uses the same field mapping as the JSON format, but encodes it as CBOR
+ * (RFC 8949) with byte arrays, keys, and UUIDs stored as raw bytes instead of base64 strings.
+ * <p>
+ * Compact records begin with a format version byte. Since JSON records always begin with {@code '{'}, readers can tell
+ * the formats apart from the first byte of a record, and so can read records in either format while writers migrate
+ * from one to the other.
+ */
+public class AccountDataCodec {
+
+  @VisibleForTesting
+  static final byte COMPACT_FORMAT_VERSION = 0x01;
+
+  private static final ObjectMapper CBOR_MAPPER = SystemMapper.configureMapper(new ObjectMapper(new CBORFactory()));
+
+  private static final ObjectReader JSON_READER = SystemMapper.jsonMapper().readerFor(Account.class);
+  private static final ObjectReader CBOR_READER = CBOR_MAPPER.readerFor(Account.class);
+
+  private final ObjectWriter jsonWriter;
+  private final ObjectWriter cborWriter;
+
+  /**
+   * Constructs a new codec that writes all of an account's fields.
+   */
+  public AccountDataCodec() {
+    this(SystemMapper.jsonMapper().writer(), CBOR_MAPPER.writer());
+  }
+
+  /**
+   * Constructs a new codec that applies the given filters (for example, to exclude fields stored elsewhere) when
+   * writing accounts.
+   *
+   * @param filterProvider the filters to apply when writing accounts
+   *
+   * @see SystemMapper#excludingField(Class, java.util.List)
+   */
+  public AccountDataCodec(final FilterProvider filterProvider) {
+    this(SystemMapper.jsonMapper().writer(filterProvider), CBOR_MAPPER.writer(filterProvider));
+  }
+
+  private AccountDataCodec(final ObjectWriter jsonWriter, final ObjectWriter cborWriter) {
+    this.jsonWriter = jsonWriter;
+    this.cborWriter = cborWriter;
+  }
+
+  /**
+   * Serializes the given account as JSON.
+   */
+  public byte[] writeJson(final Account account) throws JsonProcessingException {
+    return jsonWriter.writeValueAsBytes(account);
+  }
+
+  /**
+   * Serializes the given account in the compact binary format.
+   */
+  public byte[] writeCompact(final Account account) throws JsonProcessingException {
+    final byte[] cbor = cborWriter.writeValueAsBytes(account);
+    final byte[] compact = new byte[cbor.length + 1];
+
+    compact[0] = COMPACT_FORMAT_VERSION;
+    System.arraycopy(cbor, 0, compact, 1, cbor.length);
+
+    return compact;
+  }
+
+  /**
+   * Serializes the given account as JSON or in the compact binary format.
+   *
+   * @param account the account to serialize
+   * @param compact if {@code true}, serialize the account in the compact binary format; otherwise, serialize it as JSON
+   */
+  public byte[] write(final Account account, final boolean compact) throws JsonProcessingException {
+    return compact ? writeCompact(account) : writeJson(account);
+  }
+
+  /**
+   * Deserializes an account written in either format.
+   *
+   * @param accountData an account serialized by {@link #writeJson(Account)} or {@link #writeCompact(Account)}
+   *
+   * @return the deserialized account
+   *
+   * @throws IOException if the given data could not be parsed as an account in either format
+   */
+  public static Account read(final byte[] accountData) throws IOException {
+    if (accountData.length > 0 && accountData[0] == COMPACT_FORMAT_VERSION) {
+      return CBOR_READER.readValue(accountData, 1, accountData.length - 1);
+    }
+
+    return JSON_READER.readValue(accountData);
+  }
+}
@@ -8,7 +8,6 @@ import static com.codahale.metrics.MetricRegistry.name;
 import static java.util.Objects.requireNonNull;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import io.micrometer.core.instrument.Metrics;
@@ -80,8 +79,8 @@ public class Accounts extends AbstractDynamoDbStore {
 
   static final List<String> ACCOUNT_FIELDS_TO_EXCLUDE_FROM_SERIALIZATION = List.of("uuid", "usernameLinkHandle");
 
-  private static final ObjectWriter ACCOUNT_DDB_JSON_WRITER = SystemMapper.jsonMapper()
-      .writer(SystemMapper.excludingField(Account.class, ACCOUNT_FIELDS_TO_EXCLUDE_FROM_SERIALIZATION));
+  private static final AccountDataCodec ACCOUNT_DDB_CODEC =
+      new AccountDataCodec(SystemMapper.excludingField(Account.class, ACCOUNT_FIELDS_TO_EXCLUDE_FROM_SERIALIZATION));
 
   private static final Timer CREATE_TIMER = Metrics.timer(name(Accounts.class, "create"));
   private static final Timer CHANGE_NUMBER_TIMER = Metrics.timer(name(Accounts.class, "changeNumber"));
@@ -89,6 +88,7 @@ public class Accounts extends AbstractDynamoDbStore {
   private static final Timer RESERVE_USERNAME_TIMER = Metrics.timer(name(Accounts.class, "reserveUsername"));
   private static final Timer CLEAR_USERNAME_HASH_TIMER = Metrics.timer(name(Accounts.class, "clearUsernameHash"));
   private static final Timer UPDATE_TIMER = Metrics.timer(name(Accounts.class, "update"));
+  private static final Timer UPDATE_DEVICE_LAST_SEEN_TIMER = Metrics.timer(name(Accounts.class, "updateDeviceLastSeen"));
   private static final Timer GET_BY_NUMBER_TIMER = Metrics.timer(name(Accounts.class, "getByNumber"));
   private static final Timer GET_BY_USERNAME_HASH_TIMER = Metrics.timer(name(Accounts.class, "getByUsernameHash"));
   private static final Timer GET_BY_USERNAME_LINK_HANDLE_TIMER = Metrics.timer(name(Accounts.class, "getByUsernameLinkHandle"));
@@ -108,7 +108,7 @@ public class Accounts extends AbstractDynamoDbStore {
   static final String ATTR_USERNAME_LINK_UUID = "UL";
   // phone number
   static final String ATTR_ACCOUNT_E164 = "P";
-  // account, serialized to JSON
+  // account, serialized to JSON or in the compact binary format; see AccountDataCodec
   static final String ATTR_ACCOUNT_DATA = "D";
   // internal version for optimistic locking
   static final String ATTR_VERSION = "V";
@@ -122,6 +122,9 @@ public class Accounts extends AbstractDynamoDbStore {
   static final String ATTR_UAK = "UAK";
   // time to live; number
   static final String ATTR_TTL = "TTL";
+  // prefix for per-device last-seen times, followed by the device ID; number. Values recorded before the device with
+  // that ID was created belong to a removed device that used the same ID, and are ignored.
+  static final String ATTR_DEVICE_LAST_SEEN_PREFIX = "LS";
 
   static final String DELETED_ACCOUNTS_KEY_ACCOUNT_E164 = "P";
   static final String DELETED_ACCOUNTS_ATTR_ACCOUNT_UUID = "U";
@@ -141,6 +144,7 @@ public class Accounts extends AbstractDynamoDbStore {
   private final String usernamesConstraintTableName;
   private final String deletedAccountsTableName;
   private final String accountsTableName;
+  private final boolean writeCompactAccountData;
 
   @VisibleForTesting
   public Accounts(
@@ -151,7 +155,8 @@ public class Accounts extends AbstractDynamoDbStore {
       final String phoneNumberConstraintTableName,
       final String phoneNumberIdentifierConstraintTableName,
       final String usernamesConstraintTableName,
-      final String deletedAccountsTableName) {
+      final String deletedAccountsTableName,
+      final boolean writeCompactAccountData) {
     super(client);
     this.clock = clock;
     this.asyncClient = asyncClient;
@@ -160,6 +165,7 @@ public class Accounts extends AbstractDynamoDbStore {
     this.accountsTableName = accountsTableName;
     this.usernamesConstraintTableName = usernamesConstraintTableName;
     this.deletedAccountsTableName = deletedAccountsTableName;
+    this.writeCompactAccountData = writeCompactAccountData;
   }
 
   public Accounts(
@@ -169,10 +175,11 @@ public class Accounts extends AbstractDynamoDbStore {
       final String phoneNumberConstraintTableName,
       final String phoneNumberIdentifierConstraintTableName,
       final String usernamesConstraintTableName,
-      final String deletedAccountsTableName) {
+      final String deletedAccountsTableName,
+      final boolean writeCompactAccountData) {
     this(Clock.systemUTC(), client, asyncClient, accountsTableName,
         phoneNumberConstraintTableName, phoneNumberIdentifierConstraintTableName, usernamesConstraintTableName,
-        deletedAccountsTableName);
+        deletedAccountsTableName, writeCompactAccountData);
   }
 
   public boolean create(final Account account) {
@@ -676,6 +683,46 @@ public class Accounts extends AbstractDynamoDbStore {
     }
   }
 
+  /**
+   * Advances the last-seen time of a single device without rewriting the rest of the account. Last-seen times written
+   * this way are stored in their own attributes, which aren't versioned and so never contend with other account
+   * updates, and supersede the (possibly older) last-seen times in the serialized account data when the account is
+   * read.
+   *
+   * @param accountIdentifier the identifier of the account to which the device belongs
+   * @param deviceId the identifier of the device to update
+   * @param lastSeen the device's new last-seen time, in milliseconds since the epoch
+   *
+   * @return a future that yields {@code true} if the device's last-seen time was advanced or {@code false} if the
+   * account doesn't exist or the stored last-seen time was already at least {@code lastSeen}
+   */
+  public CompletableFuture<Boolean> updateDeviceLastSeen(final UUID accountIdentifier,
+      final long deviceId,
+      final long lastSeen) {
+
+    final UpdateItemRequest updateItemRequest = UpdateItemRequest.builder()
+        .tableName(accountsTableName)
+        .key(Map.of(KEY_ACCOUNT_UUID, AttributeValues.fromUUID(accountIdentifier)))
+        .updateExpression("SET #lastSeen = :lastSeen")
+        .conditionExpression("attribute_exists(#number) AND (attribute_not_exists(#lastSeen) OR #lastSeen < :lastSeen)")
+        .expressionAttributeNames(Map.of(
+            "#number", ATTR_ACCOUNT_E164,
+            "#lastSeen", ATTR_DEVICE_LAST_SEEN_PREFIX + deviceId))
+        .expressionAttributeValues(Map.of(":lastSeen", AttributeValues.fromLong(lastSeen)))
+        .build();
+
+    return AsyncTimerUtil.record(UPDATE_DEVICE_LAST_SEEN_TIMER, () -> asyncClient.updateItem(updateItemRequest)
+            .thenApply(ignored -> true)
+            .exceptionally(throwable -> {
+              if (ExceptionUtils.unwrap(throwable) instanceof ConditionalCheckFailedException) {
+                return false;
+              }
+
+              throw CompletableFutureUtils.errorAsCompletionException(throwable);
+            }))
+        .toCompletableFuture();
+  }
+
   public CompletableFuture<Boolean> usernameHashAvailable(final byte[] username) {
     return usernameHashAvailable(Optional.empty(), username);
   }
@@ -1095,7 +1142,7 @@ public class Accounts extends AbstractDynamoDbStore {
       throw new RuntimeException("item missing values");
     }
     try {
-      final Account account = SystemMapper.jsonMapper().readValue(item.get(ATTR_ACCOUNT_DATA).b().asByteArray(), Account.class);
+      final Account account = AccountDataCodec.read(item.get(ATTR_ACCOUNT_DATA).b().asByteArray());
 
       final UUID accountIdentifier = UUIDUtil.fromByteBuffer(item.get(KEY_ACCOUNT_UUID).b().asByteBuffer());
       final UUID phoneNumberIdentifierFromAttribute = AttributeValues.getUUID(item, ATTR_PNI_UUID, null);
@@ -1113,6 +1160,16 @@ public class Accounts extends AbstractDynamoDbStore {
       account.setUsernameLinkHandle(AttributeValues.getUUID(item, ATTR_USERNAME_LINK_UUID, null));
       account.setVersion(Integer.parseInt(item.get(ATTR_VERSION).n()));
 
+      for (final Device device : account.getDevices()) {
+        final long lastSeen = AttributeValues.getLong(item, ATTR_DEVICE_LAST_SEEN_PREFIX + device.getId(), 0);
+
+        // device IDs are reused after devices are removed, so a last-seen time from before this device was created
+        // belongs to a previous device
+        if (lastSeen > device.getLastSeen() && lastSeen >= device.getCreated()) {
+          device.setLastSeen(lastSeen);
+        }
+      }
+
       return account;
 
     } catch (final IOException e) {
@@ -1120,8 +1177,8 @@ public class Accounts extends AbstractDynamoDbStore {
     }
   }
 
-  private static AttributeValue accountDataAttributeValue(final Account account) throws JsonProcessingException {
-    return AttributeValues.fromByteArray(ACCOUNT_DDB_JSON_WRITER.writeValueAsBytes(account));
+  private AttributeValue accountDataAttributeValue(final Account account) throws JsonProcessingException {
+    return AttributeValues.fromByteArray(ACCOUNT_DDB_CODEC.write(account, writeCompactAccountData));
   }
 
   private static boolean conditionalCheckFailed(final CancellationReason reason) {
@@ -103,6 +103,8 @@ public class AccountsManager {
   private final Accounts accounts;
   private final PhoneNumberIdentifiers phoneNumberIdentifiers;
   private final FaultTolerantRedisCluster cacheCluster;
+  private final AccountsNearCache accountsNearCache;
+  private final DeviceLastSeenUpdater deviceLastSeenUpdater;
   private final AccountLockManager accountLockManager;
   private final KeysManager keysManager;
   private final MessagesManager messagesManager;
@@ -148,6 +150,8 @@ public class AccountsManager {
   public AccountsManager(final Accounts accounts,
       final PhoneNumberIdentifiers phoneNumberIdentifiers,
       final FaultTolerantRedisCluster cacheCluster,
+      final AccountsNearCache accountsNearCache,
+      final DeviceLastSeenUpdater deviceLastSeenUpdater,
       final AccountLockManager accountLockManager,
       final KeysManager keysManager,
       final MessagesManager messagesManager,
@@ -162,6 +166,8 @@ public class AccountsManager {
     this.accounts = accounts;
     this.phoneNumberIdentifiers = phoneNumberIdentifiers;
     this.cacheCluster = cacheCluster;
+    this.accountsNearCache = accountsNearCache;
+    this.deviceLastSeenUpdater = deviceLastSeenUpdater;
     this.accountLockManager = accountLockManager;
     this.keysManager = keysManager;
     this.messagesManager = messagesManager;
@@ -222,6 +228,9 @@ public class AccountsManager {
 
         redisSet(account);
 
+        // a re-registration replaces an existing account that other servers may have cached
+        accountsNearCache.invalidate(actualUuid);
+
         // In terms of previously-existing accounts, there are three possible cases:
         //
         // 1. This is a completely new account; there was no pre-existing account and no recently-deleted account
@@ -580,25 +589,22 @@ public class AccountsManager {
   }
 
   /**
-   * Specialized version of {@link #updateDevice(Account, long, Consumer)} that minimizes potentially contentious and
-   * redundant updates of {@code device.lastSeen}
+   * Advances a device's last-seen time. Rather than updating the whole account, this updates the given account's copy of
+   * the device immediately and writes the device's new last-seen time to storage in the background.
+   *
+   * @return the given account
+   *
+   * @see DeviceLastSeenUpdater
    */
   public Account updateDeviceLastSeen(Account account, Device device, final long lastSeen) {
-    return update(account, a -> {
-
-      final Optional<Device> maybeDevice = a.getDevice(device.getId());
-
-      return maybeDevice.map(d -> {
-        if (d.getLastSeen() >= lastSeen) {
-          return false;
-        }
-
+    account.getDevice(device.getId()).ifPresent(d -> {
+      if (d.getLastSeen() < lastSeen) {
         d.setLastSeen(lastSeen);
-
-        return true;
-
-      }).orElse(false);
+        deviceLastSeenUpdater.enqueue(account.getUuid(), d.getId(), lastSeen);
+      }
     });
+
+    return account;
   }
 
   public Account updateDeviceAuthentication(final Account account, final Device device, final SaltedTokenHash credentials) {
@@ -627,6 +633,7 @@ public class AccountsManager {
           AccountChangeValidator.GENERAL_CHANGE_VALIDATOR);
 
       redisSet(updatedAccount);
+      accountsNearCache.invalidate(uuid);
     }
 
     return updatedAccount;
@@ -647,7 +654,9 @@ public class AccountsManager {
               AccountChangeValidator.GENERAL_CHANGE_VALIDATOR,
               MAX_UPDATE_ATTEMPTS);
         })
-        .thenCompose(updatedAccount -> redisSetAsync(updatedAccount).thenApply(ignored -> updatedAccount))
+        .thenCompose(updatedAccount -> redisSetAsync(updatedAccount)
+            .thenCompose(ignored -> accountsNearCache.invalidateAsync(updatedAccount.getUuid()))
+            .thenApply(ignored -> updatedAccount))
         .whenComplete((ignored, throwable) -> timerContext.close());
   }
 
@@ -893,7 +902,7 @@ public class AccountsManager {
     return "AccountMap::" + key;
   }
 
-  private String getAccountEntityKey(UUID uuid) {
+  static String getAccountEntityKey(UUID uuid) {
     return "Account3::" + uuid.toString();
   }
 
@@ -1012,7 +1021,8 @@ public class AccountsManager {
 
   private Optional<Account> redisGetByAccountIdentifier(UUID uuid) {
     try (Timer.Context ignored = redisUuidGetTimer.time()) {
-      final String json = cacheCluster.withCluster(connection -> connection.sync().get(getAccountEntityKey(uuid)));
+      final String json = accountsNearCache.get(uuid,
+          () -> cacheCluster.withCluster(connection -> connection.sync().get(getAccountEntityKey(uuid))));
 
       return parseAccountJson(json, uuid);
     } catch (final RedisException e) {
@@ -1022,7 +1032,8 @@ public class AccountsManager {
   }
 
   private CompletableFuture<Optional<Account>> redisGetByAccountIdentifierAsync(final UUID uuid) {
-    return cacheCluster.withCluster(connection -> connection.async().get(getAccountEntityKey(uuid)))
+    return accountsNearCache.getAsync(uuid,
+            () -> cacheCluster.withCluster(connection -> connection.async().get(getAccountEntityKey(uuid))))
         .thenApply(accountJson -> parseAccountJson(accountJson, uuid))
         .exceptionally(throwable -> {
           logger.warn("Failed to retrieve account from Redis", throwable);
@@ -1067,6 +1078,8 @@ public class AccountsManager {
 
         account.getUsernameHash().ifPresent(usernameHash -> connection.sync().del(getUsernameHashAccountMapKey(usernameHash)));
       });
+
+      accountsNearCache.invalidate(account.getUuid());
     }
   }
 
@@ -1082,6 +1095,7 @@ public class AccountsManager {
 
     return cacheCluster.withCluster(connection -> connection.async().del(keysToDelete.toArray(new String[0])))
         .toCompletableFuture()
+        .thenCompose(ignored -> accountsNearCache.invalidateAsync(account.getUuid()))
         .thenRun(timerContext::close);
   }
 }
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.annotations.VisibleForTesting;
+import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.RedisException;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import io.lettuce.core.cluster.pubsub.RedisClusterPubSubAdapter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.time.Clock;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.textsecuregcm.configuration.AccountsNearCacheConfiguration;
+import org.whispersystems.textsecuregcm.redis.FaultTolerantPubSubConnection;
+import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
+import org.whispersystems.textsecuregcm.util.Util;
+
+/**
+ * A bounded, process-local cache of serialized accounts in front of the accounts cache cluster.
+ * <p>
+ * Whenever a server changes or removes an account in the cache cluster, it publishes an invalidation to a channel to
+ * which every server subscribes, and each server evicts its local copy of the account when the invalidation arrives.
+ * Invalidations may be lost (while a server reconnects to the cluster, for example), so cached accounts also expire
+ * after a short time regardless. Servers with the near cache disabled neither subscribe to nor publish invalidations;
+ * processes that change accounts without serving them (like commands) use a {@link #publishOnly publish-only} near
+ * cache, which publishes invalidations without caching accounts or subscribing.
+ * <p>
+ * The near cache holds accounts' JSON representations rather than {@link Account} instances, since callers may modify
+ * (and mark stale) the accounts they retrieve.
+ */
+public class AccountsNearCache extends RedisClusterPubSubAdapter<String, String> implements Managed {
+
+  private final FaultTolerantRedisCluster cacheCluster;
+  @Nullable
+  private final FaultTolerantPubSubConnection<String, String> pubSubConnection;
+  @Nullable
+  private final Cache<UUID, String> accountJsonByUuid;
+  private final Clock clock;
+  private final boolean publishInvalidations;
+
+  // A read that misses the near cache only stores the account it loaded if no invalidation for any account in the same
+  // stripe arrived while the load was in flight, so a slow load can't replace an invalidated account with a stale one
+  private final AtomicLongArray invalidationGenerations = new AtomicLongArray(INVALIDATION_STRIPES);
+
+  private final Counter hitCounter = Metrics.counter(name(AccountsNearCache.class, "hit"));
+  private final Counter missCounter = Metrics.counter(name(AccountsNearCache.class, "miss"));
+  private final Counter discardedLoadCounter = Metrics.counter(name(AccountsNearCache.class, "discardedLoad"));
+  private final Counter invalidationCounter = Metrics.counter(name(AccountsNearCache.class, "invalidation"));
+  private final Timer invalidationLatencyTimer = Timer.builder(name(AccountsNearCache.class, "invalidationLatency"))
+      .description("Time between an account changing in the cache cluster and its local eviction")
+      .publishPercentileHistogram()
+      .register(Metrics.globalRegistry);
+
+  @VisibleForTesting
+  static final String INVALIDATION_CHANNEL = "account_near_cache_invalidations";
+
+  private static final int INVALIDATION_STRIPES = 4096;
+
+  private static final Logger logger = LoggerFactory.getLogger(AccountsNearCache.class);
+
+  public AccountsNearCache(final FaultTolerantRedisCluster cacheCluster,
+      final AccountsNearCacheConfiguration configuration,
+      final Clock clock) {
+
+    this(cacheCluster, configuration, clock, configuration.isEnabled());
+  }
+
+  private AccountsNearCache(final FaultTolerantRedisCluster cacheCluster,
+      final AccountsNearCacheConfiguration configuration,
+      final Clock clock,
+      final boolean publishInvalidations) {
+
+    this.cacheCluster = cacheCluster;
+    this.clock = clock;
+    this.publishInvalidations = publishInvalidations;
+
+    if (configuration.isEnabled()) {
+      this.pubSubConnection = cacheCluster.createPubSubConnection();
+      this.accountJsonByUuid = Caffeine.newBuilder()
+          .maximumWeight(configuration.getMaxSizeBytes())
+          // strings are at least one byte per character
+          .weigher((UUID uuid, String accountJson) -> accountJson.length())
+          .expireAfterWrite(configuration.getExpiration())
+          .build();
+
+      Metrics.gauge(name(AccountsNearCache.class, "size"), Collections.emptyList(), accountJsonByUuid,
+          cache -> cache.estimatedSize());
+
+      Metrics.gauge(name(AccountsNearCache.class, "weightedSize"), Collections.emptyList(), accountJsonByUuid,
+          cache -> cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L));
+    } else {
+      this.pubSubConnection = null;
+      this.accountJsonByUuid = null;
+    }
+  }
+
+  /**
+   * Returns a near cache that doesn't cache accounts or subscribe to invalidations, but publishes invalidations for the
+   * accounts its caller changes so that servers with the near cache enabled evict them.
+   *
+   * @param cacheCluster the cluster to which invalidations are published
+   * @param clock the source of invalidations' publication times
+   */
+  public static AccountsNearCache publishOnly(final FaultTolerantRedisCluster cacheCluster, final Clock clock) {
+    return new AccountsNearCache(cacheCluster, new AccountsNearCacheConfiguration(), clock, true);
+  }
+
+  @Override
+  public void start() {
+    if (pubSubConnection != null) {
+      pubSubConnection.usePubSubConnection(connection -> connection.addListener(this));
+      pubSubConnection.subscribeToClusterTopologyChangedEvents(this::resubscribe);
+
+      subscribe();
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (pubSubConnection != null) {
+      pubSubConnection.usePubSubConnection(connection -> connection.sync().unsubscribe(INVALIDATION_CHANNEL));
+    }
+  }
+
+  private void subscribe() {
+    // published messages reach every node in the cluster, so a single subscription hears every invalidation
+    pubSubConnection.usePubSubConnection(connection -> connection.sync().subscribe(INVALIDATION_CHANNEL));
+  }
+
+  private void resubscribe() {
+    subscribe();
+
+    // we may have missed invalidations while the topology was changing
+    if (accountJsonByUuid != null) {
+      accountJsonByUuid.invalidateAll();
+    }
+  }
+
+  /**
+   * Returns the serialized account with the given identifier from the near cache, or loads (and caches) it with the
+   * given loader if it isn't cached.
+   *
+   * @param uuid the account identifier of the account to retrieve
+   * @param loader a supplier of the serialized account from the cache cluster, which may return {@code null} if the
+   *               account isn't cached there either
+   *
+   * @return the serialized account, or {@code null} if neither the near cache nor the loader had the account
+   */
+  @Nullable
+  String get(final UUID uuid, final Supplier<String> loader) {
+    if (accountJsonByUuid == null) {
+      return loader.get();
+    }
+
+    final String cachedAccountJson = accountJsonByUuid.getIfPresent(uuid);
+
+    if (cachedAccountJson != null) {
+      hitCounter.increment();
+      return cachedAccountJson;
+    }
+
+    missCounter.increment();
+
+    final long generation = getInvalidationGeneration(uuid);
+    final String accountJson = loader.get();
+
+    maybeCache(uuid, accountJson, generation);
+
+    return accountJson;
+  }
+
+  /**
+   * Asynchronously returns the serialized account with the given identifier from the near cache, or loads (and caches)
+   * it with the given loader if it isn't cached.
+   *
+   * @see #get(UUID, Supplier)
+   */
+  CompletableFuture<String> getAsync(final UUID uuid, final Supplier<CompletionStage<String>> loader) {
+    if (accountJsonByUuid == null) {
+      return loader.get().toCompletableFuture();
+    }
+
+    final String cachedAccountJson = accountJsonByUuid.getIfPresent(uuid);
+
+    if (cachedAccountJson != null) {
+      hitCounter.increment();
+      return CompletableFuture.completedFuture(cachedAccountJson);
+    }
+
+    missCounter.increment();
+
+    final long generation = getInvalidationGeneration(uuid);
+
+    return loader.get()
+        .thenApply(accountJson -> {
+          maybeCache(uuid, accountJson, generation);
+          return accountJson;
+        })
+        .toCompletableFuture();
+  }
+
+  private void maybeCache(final UUID uuid, @Nullable final String accountJson, final long generation) {
+    if (accountJson == null) {
+      return;
+    }
+
+    // invalidations remove entries from the map after advancing the generation, so checking the generation within an
+    // atomic computation for this account means an invalidation either prevents this entry or removes it afterward
+    accountJsonByUuid.asMap().compute(uuid, (ignored, existingAccountJson) -> {
+      if (getInvalidationGeneration(uuid) == generation) {
+        return accountJson;
+      }
+
+      discardedLoadCounter.increment();
+      return existingAccountJson;
+    });
+  }
+
+  /**
+   * Evicts the given account from this server's near cache and notifies all other servers to do the same. Callers
+   * should invalidate an account after changing or removing it in the cache cluster. Other servers are notified
+   * asynchronously; this method does not wait for the notification to be published.
+   *
+   * @param uuid the account identifier of the account to invalidate
+   */
+  void invalidate(final UUID uuid) {
+    try {
+      invalidateAsync(uuid);
+    } catch (final RedisException e) {
+      logger.warn("Failed to publish account invalidation", e);
+    }
+  }
+
+  /**
+   * Asynchronously evicts the given account from this server's near cache and notifies all other servers to do the
+   * same.
+   *
+   * @return a future that completes when the invalidation has been published (or has failed to publish)
+   *
+   * @see #invalidate(UUID)
+   */
+  CompletableFuture<Void> invalidateAsync(final UUID uuid) {
+    invalidateLocally(uuid);
+
+    if (!publishInvalidations) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    return cacheCluster.withCluster(connection -> connection.async().publish(INVALIDATION_CHANNEL, getInvalidation(uuid)))
+        .toCompletableFuture()
+        .exceptionally(throwable -> {
+          logger.warn("Failed to publish account invalidation", throwable);
+          return null;
+        })
+        .thenRun(Util.NOOP);
+  }
+
+  private void invalidateLocally(final UUID uuid) {
+    if (accountJsonByUuid != null) {
+      invalidationGenerations.incrementAndGet(getInvalidationStripe(uuid));
+      accountJsonByUuid.invalidate(uuid);
+    }
+  }
+
+  @Override
+  public void message(final RedisClusterNode node, final String channel, final String message) {
+    if (!INVALIDATION_CHANNEL.equals(channel)) {
+      return;
+    }
+
+    try {
+      final int separatorIndex = message.lastIndexOf(':');
+      final UUID uuid = UUID.fromString(message.substring(0, separatorIndex));
+      final long publishedMillis = Long.parseLong(message.substring(separatorIndex + 1));
+
+      invalidateLocally(uuid);
+
+      invalidationCounter.increment();
+      invalidationLatencyTimer.record(Math.max(0, clock.millis() - publishedMillis), TimeUnit.MILLISECONDS);
+    } catch (final IllegalArgumentException | IndexOutOfBoundsException e) {
+      logger.warn("Failed to parse account invalidation: {}", message, e);
+    }
+  }
+
+  private String getInvalidation(final UUID uuid) {
+    return uuid + ":" + clock.millis();
+  }
+
+  private long getInvalidationGeneration(final UUID uuid) {
+    return invalidationGenerations.get(getInvalidationStripe(uuid));
+  }
+
+  private static int getInvalidationStripe(final UUID uuid) {
+    return Math.floorMod(uuid.hashCode(), INVALIDATION_STRIPES);
+  }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.dropwizard.lifecycle.Managed;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Buffers device last-seen updates and writes them to the accounts table in the background.
+ * <p>
+ * Authenticated requests advance their device's last-seen time at most once per day, but the first request of each day
+ * would otherwise have to wait for a full, optimistically-locked account update. Instead, pending updates are held in
+ * memory (keeping only the latest time for each device) and periodically written with narrow, unversioned updates that
+ * touch only the device's last-seen attribute; stored last-seen times that are already current are left alone. After a
+ * device's last-seen time has been written, its account is evicted from the accounts cache so the new time becomes
+ * visible.
+ * <p>
+ * Pending updates are lost if a server stops abruptly; since devices that still appear stale will be updated again on
+ * their next authenticated request, this only delays updates.
+ *
+ * @see Accounts#updateDeviceLastSeen(UUID, long, long)
+ */
+public class DeviceLastSeenUpdater implements Managed {
+
+  private final Accounts accounts;
+  private final FaultTolerantRedisCluster cacheCluster;
+  private final AccountsNearCache accountsNearCache;
+  private final ScheduledExecutorService scheduledExecutorService;
+  private final Duration flushInterval;
+
+  private final Map<AccountAndDevice, Long> pendingLastSeenByDevice = new ConcurrentHashMap<>();
+
+  @Nullable
+  private ScheduledFuture<?> flushFuture;
+
+  private static final int MAX_CONCURRENCY = 16;
+
+  private static final Counter ENQUEUED_COUNTER = Metrics.counter(name(DeviceLastSeenUpdater.class, "enqueued"));
+  private static final Counter WRITTEN_COUNTER = Metrics.counter(name(DeviceLastSeenUpdater.class, "written"));
+  private static final Counter ALREADY_CURRENT_COUNTER =
+      Metrics.counter(name(DeviceLastSeenUpdater.class, "alreadyCurrent"));
+  private static final Counter FAILED_COUNTER = Metrics.counter(name(DeviceLastSeenUpdater.class, "failed"));
+
+  private static final Logger logger = LoggerFactory.getLogger(DeviceLastSeenUpdater.class);
+
+  private record AccountAndDevice(UUID accountIdentifier, long deviceId) {
+  }
+
+  public DeviceLastSeenUpdater(final Accounts accounts,
+      final FaultTolerantRedisCluster cacheCluster,
+      final AccountsNearCache accountsNearCache,
+      final ScheduledExecutorService scheduledExecutorService,
+      final Duration flushInterval) {
+
+    this.accounts = accounts;
+    this.cacheCluster = cacheCluster;
+    this.accountsNearCache = accountsNearCache;
+    this.scheduledExecutorService = scheduledExecutorService;
+    this.flushInterval = flushInterval;
+
+    Metrics.gaugeMapSize(name(DeviceLastSeenUpdater.class, "pending"), Collections.emptyList(),
+        pendingLastSeenByDevice);
+  }
+
+  @Override
+  public void start() {
+    flushFuture = scheduledExecutorService.scheduleWithFixedDelay(() -> {
+          try {
+            flush().join();
+          } catch (final Exception e) {
+            logger.warn("Failed to flush last-seen updates", e);
+          }
+        },
+        flushInterval.toMillis(),
+        flushInterval.toMillis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void stop() {
+    if (flushFuture != null) {
+      flushFuture.cancel(false);
+    }
+
+    flush().join();
+  }
+
+  /**
+   * Schedules an update of the given device's stored last-seen time. If an update for the same device is already
+   * pending, only the later of the two times will be written.
+   *
+   * @param accountIdentifier the identifier of the account to which the device belongs
+   * @param deviceId the identifier of the device to update
+   * @param lastSeen the device's new last-seen time, in milliseconds since the epoch
+   */
+  public void enqueue(final UUID accountIdentifier, final long deviceId, final long lastSeen) {
+    pendingLastSeenByDevice.merge(new AccountAndDevice(accountIdentifier, deviceId), lastSeen, Math::max);
+    ENQUEUED_COUNTER.increment();
+  }
+
+  /**
+   * Writes all pending last-seen updates.
+   *
+   * @return a future that completes when all updates pending at the time of the call have been written or have failed
+   */
+  @VisibleForTesting
+  CompletableFuture<Void> flush() {
+    final List<Map.Entry<AccountAndDevice, Long>> updates = new ArrayList<>(pendingLastSeenByDevice.size());
+
+    for (final AccountAndDevice accountAndDevice : pendingLastSeenByDevice.keySet()) {
+      final Long lastSeen = pendingLastSeenByDevice.remove(accountAndDevice);
+
+      if (lastSeen != null) {
+        updates.add(Map.entry(accountAndDevice, lastSeen));
+      }
+    }
+
+    return Flux.fromIterable(updates)
+        .flatMap(update -> Mono.fromFuture(() -> write(update.getKey(), update.getValue())), MAX_CONCURRENCY)
+        .then()
+        .toFuture();
+  }
+
+  private CompletableFuture<Void> write(final AccountAndDevice accountAndDevice, final long lastSeen) {
+    final UUID accountIdentifier = accountAndDevice.accountIdentifier();
+
+    return accounts.updateDeviceLastSeen(accountIdentifier, accountAndDevice.deviceId(), lastSeen)
+        .thenCompose(updated -> {
+          if (!updated) {
+            ALREADY_CURRENT_COUNTER.increment();
+            return CompletableFuture.completedFuture(null);
+          }
+
+          WRITTEN_COUNTER.increment();
+
+          return cacheCluster.withCluster(connection ->
+                  connection.async().del(AccountsManager.getAccountEntityKey(accountIdentifier)))
+              .toCompletableFuture()
+              .thenCompose(ignored -> accountsNearCache.invalidateAsync(accountIdentifier));
+        })
+        .exceptionally(throwable -> {
+          FAILED_COUNTER.increment();
+          logger.warn("Failed to update last-seen time for device {} of account {}",
+              accountAndDevice.deviceId(), accountIdentifier, throwable);
+
+          return null;
+        });
+  }
+}
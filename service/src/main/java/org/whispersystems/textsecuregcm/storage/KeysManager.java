@@ -7,6 +7,7 @@ package org.whispersystems.textsecuregcm.storage;
 
 import com.google.common.annotations.VisibleForTesting;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -17,6 +18,10 @@ import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfigurati
 import org.whispersystems.textsecuregcm.entities.ECPreKey;
 import org.whispersystems.textsecuregcm.entities.ECSignedPreKey;
 import org.whispersystems.textsecuregcm.entities.KEMSignedPreKey;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
 import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 
 public class KeysManager {
@@ -28,6 +33,16 @@ public class KeysManager {
   private final RepeatedUseECSignedPreKeyStore ecSignedPreKeys;
   private final RepeatedUseKEMSignedPreKeyStore pqLastResortKeys;
 
+  /**
+   * The pre-keys taken for a single device by {@link #takeAll(UUID, Collection, boolean)}.
+   *
+   * @param ecPreKey a single-use EC pre-key, or {@code null} if the device had none
+   * @param pqPreKey a single-use KEM pre-key or, failing that, the device's last-resort KEM pre-key; {@code null} if
+   * neither was available or if KEM pre-keys weren't requested
+   */
+  public record DevicePreKeys(@Nullable ECPreKey ecPreKey, @Nullable KEMSignedPreKey pqPreKey) {
+  }
+
   public KeysManager(
       final DynamoDbAsyncClient dynamoDbAsyncClient,
       final String ecTableName,
@@ -109,6 +124,38 @@ public class KeysManager {
             .orElseGet(() -> pqLastResortKeys.find(identifier, deviceId)));
   }
 
+  /**
+   * Takes pre-keys for several devices at once. Single-use keys for all devices are claimed concurrently; if KEM keys
+   * are requested, last-resort KEM keys for all devices are fetched in a single batch alongside those claims (rather
+   * than after finding that a device has no single-use KEM keys) so that the whole operation takes one round trip.
+   *
+   * @param identifier the identifier for the account/identity with which the target devices are associated
+   * @param deviceIds the identifiers for the devices within the given account/identity
+   * @param includePq whether to take KEM pre-keys in addition to EC pre-keys
+   *
+   * @return a future that yields the pre-keys taken for each of the given devices
+   */
+  public CompletableFuture<Map<Long, DevicePreKeys>> takeAll(final UUID identifier,
+      final Collection<Long> deviceIds,
+      final boolean includePq) {
+
+    final Mono<Map<Long, KEMSignedPreKey>> lastResortKeys = includePq
+        ? Mono.fromFuture(() -> pqLastResortKeys.findAll(identifier, deviceIds)).cache()
+        : Mono.just(Map.of());
+
+    return Flux.fromIterable(deviceIds)
+        .flatMap(deviceId -> Mono.zip(
+                Mono.fromFuture(() -> ecPreKeys.take(identifier, deviceId)),
+                includePq
+                    ? Mono.fromFuture(() -> pqPreKeys.take(identifier, deviceId))
+                    : Mono.just(Optional.<KEMSignedPreKey>empty()),
+                lastResortKeys)
+            .map(keys -> Tuples.of(deviceId, new DevicePreKeys(keys.getT1().orElse(null),
+                keys.getT2().orElseGet(() -> keys.getT3().get(deviceId))))))
+        .collectMap(Tuple2::getT1, Tuple2::getT2)
+        .toFuture();
+  }
+
   @VisibleForTesting
   CompletableFuture<Optional<KEMSignedPreKey>> getLastResort(final UUID identifier, final long deviceId) {
     return pqLastResortKeys.find(identifier, deviceId);
@@ -118,6 +165,12 @@ public class KeysManager {
     return ecSignedPreKeys.find(identifier, deviceId);
   }
 
+  public CompletableFuture<Map<Long, ECSignedPreKey>> getEcSignedPreKeys(final UUID identifier,
+      final Collection<Long> deviceIds) {
+
+    return ecSignedPreKeys.findAll(identifier, deviceIds);
+  }
+
   public CompletableFuture<List<Long>> getPqEnabledDevices(final UUID identifier) {
     return pqLastResortKeys.getDeviceIdsWithKeys(identifier).collectList().toFuture();
   }
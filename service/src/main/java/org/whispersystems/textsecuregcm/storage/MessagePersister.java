@@ -15,14 +15,24 @@ import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.cluster.SlotHash;
 import io.micrometer.core.instrument.Counter;
 import software.amazon.awssdk.services.dynamodb.model.ItemCollectionSizeLimitExceededException;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
@@ -36,26 +46,50 @@ public class MessagePersister implements Managed {
   private final MessagesManager messagesManager;
   private final AccountsManager accountsManager;
 
+  private final DynamicConfigurationManager<DynamicConfiguration> dynamicConfigurationManager;
+
   private final Duration persistDelay;
 
   private final boolean dedicatedProcess;
+  // worker threads are started as the backlog calls for them, up to the length of this array, and exit when they're no
+  // longer needed
   private final Thread[] workerThreads;
+  private final Thread backlogThread;
   private volatile boolean running;
 
+  // sampled slots with queues ready to persist as of the last backlog update, busiest first
+  private volatile Queue<Integer> busySlots = new ConcurrentLinkedQueue<>();
+  private volatile int activeWorkerCount;
+
+  // the first slot of the next window of slots sampled to estimate the backlog; only accessed by the backlog thread
+  private int nextBacklogSampleSlot = 0;
+
   private final MetricRegistry metricRegistry = SharedMetricRegistries.getOrCreate(Constants.METRICS_NAME);
   private final Timer getQueuesTimer = metricRegistry.timer(name(MessagePersister.class, "getQueues"));
   private final Timer persistQueueTimer = metricRegistry.timer(name(MessagePersister.class, "persistQueue"));
+  private final Timer persistQueuesTimer = metricRegistry.timer(name(MessagePersister.class, "persistQueues"));
   private final Meter persistQueueExceptionMeter = metricRegistry.meter(
       name(MessagePersister.class, "persistQueueException"));
   private final Counter oversizedQueueCounter = counter(name(MessagePersister.class, "persistQueueOversized"));
   private final Histogram queueCountHistogram = metricRegistry.histogram(name(MessagePersister.class, "queueCount"));
   private final Histogram queueSizeHistogram = metricRegistry.histogram(name(MessagePersister.class, "queueSize"));
+  private final Histogram backlogHistogram = metricRegistry.histogram(name(MessagePersister.class, "backlog"));
+  private final Histogram activeWorkersHistogram = metricRegistry.histogram(
+      name(MessagePersister.class, "activeWorkers"));
 
   static final int QUEUE_BATCH_LIMIT = 100;
   static final int MESSAGE_BATCH_LIMIT = 100;
 
   private static final long EXCEPTION_PAUSE_MILLIS = Duration.ofSeconds(3).toMillis();
 
+  private static final long BACKLOG_UPDATE_INTERVAL_MILLIS = Duration.ofSeconds(5).toMillis();
+
+  @VisibleForTesting
+  static final int BACKLOG_SAMPLE_SIZE = 256;
+
+  @VisibleForTesting
+  static final Duration QUEUE_RETRY_DELAY = Duration.ofMinutes(1);
+
   private static final int CONSECUTIVE_EMPTY_CACHE_REMOVAL_LIMIT = 3;
 
   private static final Logger logger = LoggerFactory.getLogger(MessagePersister.class);
@@ -68,31 +102,69 @@ public class MessagePersister implements Managed {
     this.messagesCache = messagesCache;
     this.messagesManager = messagesManager;
     this.accountsManager = accountsManager;
+    this.dynamicConfigurationManager = dynamicConfigurationManager;
     this.persistDelay = persistDelay;
     this.workerThreads = new Thread[dedicatedProcessWorkerThreadCount];
     this.dedicatedProcess = true;
+    this.activeWorkerCount = 1;
+
+    backlogThread = new Thread(() -> {
+      while (running) {
+        if (dynamicConfigurationManager.getConfiguration().getMessagePersisterConfiguration()
+            .isPersistenceEnabled()) {
+          try {
+            updateBacklog(Instant.now());
+          } catch (final Throwable t) {
+            logger.warn("Failed to update persistence backlog", t);
+          }
+        }
 
-    for (int i = 0; i < workerThreads.length; i++) {
-      workerThreads[i] = new Thread(() -> {
-        while (running) {
-          if (dynamicConfigurationManager.getConfiguration().getMessagePersisterConfiguration()
-              .isPersistenceEnabled()) {
-            try {
-              final int queuesPersisted = persistNextQueues(Instant.now());
-              queueCountHistogram.update(queuesPersisted);
-
-              if (queuesPersisted == 0) {
-                Util.sleep(100);
-              }
-            } catch (final Throwable t) {
-              logger.warn("Failed to persist queues", t);
-              Util.sleep(EXCEPTION_PAUSE_MILLIS);
+        Util.sleep(BACKLOG_UPDATE_INTERVAL_MILLIS);
+      }
+    }, "MessagePersisterBacklog");
+  }
+
+  private Thread newWorkerThread(final int workerIndex) {
+    return new Thread(() -> {
+      // workers beyond the number needed for the current backlog exit, and are started again if the backlog grows
+      while (running && workerIndex < activeWorkerCount) {
+        if (dynamicConfigurationManager.getConfiguration().getMessagePersisterConfiguration()
+            .isPersistenceEnabled()) {
+          try {
+            final int queuesPersisted = persistNextQueues(Instant.now());
+            queueCountHistogram.update(queuesPersisted);
+
+            if (queuesPersisted == 0) {
+              Util.sleep(100);
             }
-          } else {
-            Util.sleep(1000);
+          } catch (final Throwable t) {
+            logger.warn("Failed to persist queues", t);
+            Util.sleep(EXCEPTION_PAUSE_MILLIS);
           }
+        } else {
+          Util.sleep(1000);
         }
-      }, "MessagePersisterWorker-" + i);
+      }
+    }, "MessagePersisterWorker-" + workerIndex);
+  }
+
+  /**
+   * Sets the number of active workers, starting any worker threads needed to reach that number. Surplus workers exit
+   * after finishing their current pass.
+   */
+  private synchronized void setActiveWorkerCount(final int workerCount) {
+    activeWorkerCount = workerCount;
+
+    if (!running) {
+      return;
+    }
+
+    for (int i = 0; i < workerCount; i++) {
+      // a worker that's about to exit may still be alive here; it will be replaced on the next backlog update
+      if (workerThreads[i] == null || !workerThreads[i].isAlive()) {
+        workerThreads[i] = newWorkerThread(i);
+        workerThreads[i].start();
+      }
     }
   }
 
@@ -105,27 +177,94 @@ public class MessagePersister implements Managed {
   public void start() {
     running = true;
 
-    for (final Thread workerThread : workerThreads) {
-      workerThread.start();
-    }
+    // start with a single worker, and let the backlog thread start more as needed
+    setActiveWorkerCount(1);
+    backlogThread.start();
   }
 
   @Override
   public void stop() {
-    running = false;
+    final List<Thread> startedWorkerThreads;
+
+    synchronized (this) {
+      running = false;
+      startedWorkerThreads = Arrays.stream(workerThreads).filter(Objects::nonNull).toList();
+    }
 
-    for (final Thread workerThread : workerThreads) {
+    for (final Thread workerThread : startedWorkerThreads) {
       try {
         workerThread.join();
       } catch (final InterruptedException e) {
         logger.warn("Interrupted while waiting for worker thread to complete current operation");
       }
     }
+
+    try {
+      backlogThread.join();
+    } catch (final InterruptedException e) {
+      logger.warn("Interrupted while waiting for backlog thread to complete current operation");
+    }
+  }
+
+  /**
+   * Estimates the number of queues ready to be persisted by counting them in a window of {@value BACKLOG_SAMPLE_SIZE}
+   * slots, which advances with each update so that every slot is eventually counted. Workers visit the sampled slots
+   * with queues ready to persist in order of decreasing backlog before falling back to visiting slots in turn, and only
+   * as many workers as are needed to drain the estimated total backlog a page of queues at a time keep running.
+   */
+  @VisibleForTesting
+  void updateBacklog(final Instant currentTime) {
+    final List<Integer> sampleSlots = new ArrayList<>(BACKLOG_SAMPLE_SIZE);
+
+    for (int i = 0; i < BACKLOG_SAMPLE_SIZE; i++) {
+      sampleSlots.add((nextBacklogSampleSlot + i) % SlotHash.SLOT_COUNT);
+    }
+
+    nextBacklogSampleSlot = (nextBacklogSampleSlot + BACKLOG_SAMPLE_SIZE) % SlotHash.SLOT_COUNT;
+
+    final long[] sampleBacklog = messagesCache.getPersistBacklog(sampleSlots, currentTime.minus(persistDelay));
+
+    final Map<Integer, Long> backlogBySlot = new HashMap<>();
+    long totalSampleBacklog = 0;
+
+    for (int i = 0; i < sampleSlots.size(); i++) {
+      if (sampleBacklog[i] > 0) {
+        backlogBySlot.put(sampleSlots.get(i), sampleBacklog[i]);
+        totalSampleBacklog += sampleBacklog[i];
+      }
+    }
+
+    final List<Integer> slots = new ArrayList<>(backlogBySlot.keySet());
+    slots.sort(Comparator.comparing(backlogBySlot::get, Comparator.reverseOrder()));
+
+    final long estimatedBacklog = totalSampleBacklog * SlotHash.SLOT_COUNT / BACKLOG_SAMPLE_SIZE;
+
+    busySlots = new ConcurrentLinkedQueue<>(slots);
+    setActiveWorkerCount(getTargetWorkerCount(estimatedBacklog, workerThreads.length));
+
+    backlogHistogram.update(estimatedBacklog);
+    activeWorkersHistogram.update(activeWorkerCount);
+  }
+
+  @VisibleForTesting
+  static int getTargetWorkerCount(final long backlog, final int maxWorkers) {
+    final long targetWorkers = (backlog + QUEUE_BATCH_LIMIT - 1) / QUEUE_BATCH_LIMIT;
+    return (int) Math.max(1, Math.min(targetWorkers, maxWorkers));
+  }
+
+  @VisibleForTesting
+  int getActiveWorkerCount() {
+    return activeWorkerCount;
+  }
+
+  private int getNextSlotToPersist() {
+    final Integer busySlot = busySlots.poll();
+    return busySlot != null ? busySlot : messagesCache.getNextSlotToPersist();
   }
 
   @VisibleForTesting
   int persistNextQueues(final Instant currentTime) {
-    final int slot = messagesCache.getNextSlotToPersist();
+    final int slot = getNextSlotToPersist();
 
     List<String> queuesToPersist;
     int queuesPersisted = 0;
@@ -135,29 +274,169 @@ public class MessagePersister implements Managed {
         queuesToPersist = messagesCache.getQueuesToPersist(slot, currentTime.minus(persistDelay), QUEUE_BATCH_LIMIT);
       }
 
-      for (final String queue : queuesToPersist) {
-        final UUID accountUuid = MessagesCache.getAccountUuidFromQueueName(queue);
-        final long deviceId = MessagesCache.getDeviceIdFromQueueName(queue);
+      persistQueues(queuesToPersist);
+
+      queuesPersisted += queuesToPersist.size();
+    } while (queuesToPersist.size() >= QUEUE_BATCH_LIMIT);
+
+    return queuesPersisted;
+  }
+
+  /**
+   * Persists a group of queues together. Accounts for all queues are looked up concurrently, and in each round, a page
+   * of messages from every queue that still has messages is stored in shared batch writes and then removed from the
+   * cache. If a round fails, the queues that remain are persisted one at a time instead, so a single problematic queue
+   * can't prevent the others from draining.
+   */
+  @VisibleForTesting
+  void persistQueues(final List<String> queueNames) {
+    if (queueNames.isEmpty()) {
+      return;
+    }
+
+    final List<PersistingQueue> queues = new ArrayList<>(queueNames.size());
+
+    {
+      final List<PersistingQueue> candidateQueues = queueNames.stream()
+          .map(queueName -> new PersistingQueue(MessagesCache.getAccountUuidFromQueueName(queueName),
+              MessagesCache.getDeviceIdFromQueueName(queueName)))
+          .toList();
+
+      final List<CompletableFuture<Optional<Account>>> accountFutures = candidateQueues.stream()
+          .map(queue -> accountsManager.getByAccountIdentifierAsync(queue.accountUuid))
+          .toList();
+
+      for (int i = 0; i < candidateQueues.size(); i++) {
+        final PersistingQueue queue = candidateQueues.get(i);
 
         try {
-          persistQueue(accountUuid, deviceId);
+          if (accountFutures.get(i).join().isPresent()) {
+            queues.add(queue);
+          } else {
+            logger.error("No account record found for account {}", queue.accountUuid);
+          }
         } catch (final Exception e) {
-          if (e instanceof ItemCollectionSizeLimitExceededException) {
-            oversizedQueueCounter.increment();
+          handlePersistQueueException(queue.accountUuid, queue.deviceId, e);
+        }
+      }
+    }
+
+    if (queues.isEmpty()) {
+      return;
+    }
+
+    final List<CompletableFuture<Void>> unlockFutures = new ArrayList<>(queues.size());
+
+    try (final Timer.Context ignored = persistQueuesTimer.time()) {
+      try {
+        List<PersistingQueue> remainingQueues = queues;
+
+        while (!remainingQueues.isEmpty()) {
+          // Persistence locks expire after a fixed time, and each round reads and writes every remaining queue, so a
+          // queue that takes many rounds could outlive a single lock; lock the remaining queues again every round
+          CompletableFuture.allOf(remainingQueues.stream()
+              .map(queue -> messagesCache.lockQueueForPersistenceAsync(queue.accountUuid, queue.deviceId))
+              .toArray(CompletableFuture[]::new)).join();
+
+          final List<PersistingQueue> batchQueues = new ArrayList<>(remainingQueues.size());
+          final List<MessagesDynamoDb.DestinationMessages> batchMessages = new ArrayList<>(remainingQueues.size());
+
+          for (final PersistingQueue queue : remainingQueues) {
+            final List<MessageProtos.Envelope> messages =
+                messagesCache.getMessagesToPersist(queue.accountUuid, queue.deviceId, MESSAGE_BATCH_LIMIT);
+
+            if (messages.isEmpty()) {
+              // this queue is drained; don't make it wait for the rest of the batch
+              queueSizeHistogram.update(queue.messageCount);
+              unlockFutures.add(unlockQueue(queue));
+            } else {
+              batchQueues.add(queue);
+              batchMessages.add(new MessagesDynamoDb.DestinationMessages(queue.accountUuid, queue.deviceId, messages));
+            }
+          }
+
+          if (batchQueues.isEmpty()) {
+            break;
           }
-          persistQueueExceptionMeter.mark();
-          logger.warn("Failed to persist queue {}::{}; will schedule for retry", accountUuid, deviceId, e);
 
-          messagesCache.addQueueToPersist(accountUuid, deviceId);
+          final List<Integer> messagesRemovedFromCache = messagesManager.persistMessages(batchMessages);
+          final List<PersistingQueue> nextQueues = new ArrayList<>(batchQueues.size());
+
+          for (int i = 0; i < batchQueues.size(); i++) {
+            final PersistingQueue queue = batchQueues.get(i);
+            queue.messageCount += batchMessages.get(i).messages().size();
 
-          Util.sleep(EXCEPTION_PAUSE_MILLIS);
+            if (messagesRemovedFromCache.get(i) == 0) {
+              queue.consecutiveEmptyCacheRemovals += 1;
+            } else {
+              queue.consecutiveEmptyCacheRemovals = 0;
+            }
+
+            if (queue.consecutiveEmptyCacheRemovals > CONSECUTIVE_EMPTY_CACHE_REMOVAL_LIMIT) {
+              unlockFutures.add(unlockQueue(queue));
+              handlePersistQueueException(queue.accountUuid, queue.deviceId,
+                  new MessagePersistenceException("persistence failure loop detected"));
+            } else {
+              nextQueues.add(queue);
+            }
+          }
+
+          remainingQueues = nextQueues;
+        }
+      } catch (final Exception e) {
+        final List<PersistingQueue> lockedQueues = queues.stream().filter(queue -> queue.locked).toList();
+        logger.warn("Failed to persist a batch of {} queues; persisting individually", lockedQueues.size(), e);
+
+        for (final PersistingQueue queue : lockedQueues) {
+          // responsibility for unlocking the queue passes to persistQueueWithLock
+          queue.locked = false;
+
+          try {
+            persistQueueWithLock(queue.accountUuid, queue.deviceId);
+          } catch (final Exception persistQueueException) {
+            handlePersistQueueException(queue.accountUuid, queue.deviceId, persistQueueException);
+          }
+        }
+      } finally {
+        try {
+          CompletableFuture.allOf(unlockFutures.toArray(CompletableFuture[]::new)).join();
+        } catch (final Exception e) {
+          // locks expire on their own shortly
+          logger.warn("Failed to unlock queues after persistence", e);
         }
       }
+    }
+  }
 
-      queuesPersisted += queuesToPersist.size();
-    } while (queuesToPersist.size() >= QUEUE_BATCH_LIMIT);
+  private CompletableFuture<Void> unlockQueue(final PersistingQueue queue) {
+    queue.locked = false;
+    return messagesCache.unlockQueueForPersistenceAsync(queue.accountUuid, queue.deviceId);
+  }
 
-    return queuesPersisted;
+  private void handlePersistQueueException(final UUID accountUuid, final long deviceId, final Exception e) {
+    if (e instanceof ItemCollectionSizeLimitExceededException) {
+      oversizedQueueCounter.increment();
+    }
+    persistQueueExceptionMeter.mark();
+    logger.warn("Failed to persist queue {}::{}; will schedule for retry", accountUuid, deviceId, e);
+
+    // rather than pausing this worker, defer the queue so other queues continue to drain in the meantime
+    messagesCache.addQueueToPersist(accountUuid, deviceId, Instant.now().minus(persistDelay).plus(QUEUE_RETRY_DELAY));
+  }
+
+  private static class PersistingQueue {
+
+    private final UUID accountUuid;
+    private final long deviceId;
+
+    private int messageCount = 0;
+    private int consecutiveEmptyCacheRemovals = 0;
+    private boolean locked = true;
+
+    private PersistingQueue(final UUID accountUuid, final long deviceId) {
+      this.accountUuid = accountUuid;
+      this.deviceId = deviceId;
+    }
   }
 
   @VisibleForTesting
@@ -169,6 +448,14 @@ public class MessagePersister implements Managed {
       return;
     }
 
+    persistQueueWithLock(accountUuid, deviceId);
+  }
+
+  /**
+   * Locks the given queue (or refreshes a lock the caller already holds), persists all of its messages, and unlocks
+   * it.
+   */
+  private void persistQueueWithLock(final UUID accountUuid, final long deviceId) throws MessagePersistenceException {
     try (final Timer.Context ignored = persistQueueTimer.time()) {
       messagesCache.lockQueueForPersistence(accountUuid, deviceId);
 
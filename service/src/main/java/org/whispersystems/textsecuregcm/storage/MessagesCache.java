@@ -8,8 +8,13 @@ package org.whispersystems.textsecuregcm.storage;
 import static com.codahale.metrics.MetricRegistry.name;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
 import io.dropwizard.lifecycle.Managed;
+import io.lettuce.core.Range;
+import io.lettuce.core.RedisFuture;
 import io.lettuce.core.ScoredValue;
 import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.ZAddArgs;
@@ -21,21 +26,24 @@ import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.IdentityHashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
@@ -47,7 +55,6 @@ import org.whispersystems.textsecuregcm.metrics.MetricsUtil;
 import org.whispersystems.textsecuregcm.redis.ClusterLuaScript;
 import org.whispersystems.textsecuregcm.redis.FaultTolerantPubSubConnection;
 import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
-import org.whispersystems.textsecuregcm.util.Pair;
 import org.whispersystems.textsecuregcm.util.RedisClusterUtil;
 import org.whispersystems.textsecuregcm.util.Util;
 import reactor.core.observability.micrometer.Micrometer;
@@ -73,13 +80,19 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
   private final ClusterLuaScript getItemsScript;
   private final ClusterLuaScript removeQueueScript;
   private final ClusterLuaScript getQueuesToPersistScript;
+  private final ClusterLuaScript insertSharedPayloadScript;
+  private final ClusterLuaScript releaseSharedPayloadScript;
 
-  private final Map<String, MessageAvailabilityListener> messageListenersByQueueName = new HashMap<>();
-  private final Map<MessageAvailabilityListener, String> queueNamesByMessageListener = new IdentityHashMap<>();
+  // Updates to a single queue's listener are atomic with respect to that queue's entry only, so connections for
+  // different queues never contend. Listeners are always compared by identity, never by equals/hashCode.
+  private final Map<String, MessageAvailabilityListener> messageListenersByQueueName = new ConcurrentHashMap<>();
+  private final Map<ListenerIdentity, String> queueNamesByMessageListener = new ConcurrentHashMap<>();
 
   private final Timer insertTimer = Metrics.timer(name(MessagesCache.class, "insert"));
+  private final Timer insertBatchTimer = Metrics.timer(name(MessagesCache.class, "insertBatch"));
   private final Timer getMessagesTimer = Metrics.timer(name(MessagesCache.class, "get"));
   private final Timer getQueuesToPersistTimer = Metrics.timer(name(MessagesCache.class, "getQueuesToPersist"));
+  private final Timer getPersistBacklogTimer = Metrics.timer(name(MessagesCache.class, "getPersistBacklog"));
   private final Timer clearQueueTimer = Metrics.timer(name(MessagesCache.class, "clear"));
   private final Counter pubSubMessageCounter = Metrics.counter(name(MessagesCache.class, "pubSubMessage"));
   private final Counter newMessageNotificationCounter = Metrics.counter(
@@ -90,11 +103,16 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
       name(MessagesCache.class, "staleEphemeralMessages"));
   private final Counter messageAvailabilityListenerRemovedAfterAddCounter = Metrics.counter(
       name(MessagesCache.class, "messageAvailabilityListenerRemovedAfterAdd"));
+  private final Counter messageAvailabilityListenerReplacedCounter = Metrics.counter(
+      name(MessagesCache.class, "messageAvailabilityListenerReplaced"));
   private final Counter prunedStaleSubscriptionCounter = Metrics.counter(
       name(MessagesCache.class, "prunedStaleSubscription"));
+  private final Counter orphanedSharedPayloadMessagesCounter = Metrics.counter(
+      name(MessagesCache.class, "orphanedSharedPayloadMessages"));
 
   static final String NEXT_SLOT_TO_PERSIST_KEY = "user_queue_persist_slot";
   private static final byte[] LOCK_VALUE = "1".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] SHARED_PAYLOAD_FIELD = "payload".getBytes(StandardCharsets.UTF_8);
 
   private static final String QUEUE_KEYSPACE_PREFIX = "__keyspace@0__:user_queue::";
   private static final String PERSISTING_KEYSPACE_PREFIX = "__keyspace@0__:user_queue_persisting::";
@@ -104,6 +122,10 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
   private static final String GET_FLUX_NAME = MetricsUtil.name(MessagesCache.class, "get");
   private static final int PAGE_SIZE = 100;
+  private static final int MAX_PAGE_SIZE = 1_000;
+  private static final int MAX_PAGE_BYTES = 512 * 1024;
+  // keep the next page in flight while the current page drains
+  private static final int PREFETCH_PAGES = 1;
 
   private static final Logger logger = LoggerFactory.getLogger(MessagesCache.class);
 
@@ -128,6 +150,13 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
         ScriptOutputType.STATUS);
     this.getQueuesToPersistScript = ClusterLuaScript.fromResource(readDeleteCluster, "lua/get_queues_to_persist.lua",
         ScriptOutputType.MULTI);
+    this.insertSharedPayloadScript = ClusterLuaScript.fromResource(insertCluster, "lua/insert_shared_payload.lua",
+        ScriptOutputType.INTEGER);
+    this.releaseSharedPayloadScript = ClusterLuaScript.fromResource(readDeleteCluster,
+        "lua/release_shared_payload.lua", ScriptOutputType.INTEGER);
+
+    Metrics.gaugeMapSize(name(MessagesCache.class, "messageAvailabilityListeners"), Collections.emptyList(),
+        messageListenersByQueueName);
   }
 
   @Override
@@ -143,13 +172,7 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
   private void resubscribeAll() {
 
-    final Set<String> queueNames;
-
-    synchronized (messageListenersByQueueName) {
-      queueNames = new HashSet<>(messageListenersByQueueName.keySet());
-    }
-
-    for (final String queueName : queueNames) {
+    for (final String queueName : List.copyOf(messageListenersByQueueName.keySet())) {
       // avoid overwhelming a newly recovered node by processing synchronously, rather than using CompletableFuture.allOf()
       subscribeForKeyspaceNotifications(queueName).join();
     }
@@ -157,14 +180,104 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
 
   public long insert(final UUID guid, final UUID destinationUuid, final long destinationDevice,
       final MessageProtos.Envelope message) {
-    final MessageProtos.Envelope messageWithGuid = message.toBuilder().setServerGuid(guid.toString()).build();
     return (long) insertTimer.record(() ->
-        insertScript.executeBinary(List.of(getMessageQueueKey(destinationUuid, destinationDevice),
-                getMessageQueueMetadataKey(destinationUuid, destinationDevice),
-                getQueueIndexKey(destinationUuid, destinationDevice)),
-            List.of(messageWithGuid.toByteArray(),
-                String.valueOf(message.getServerTimestamp()).getBytes(StandardCharsets.UTF_8),
-                guid.toString().getBytes(StandardCharsets.UTF_8))));
+        insertScript.executeBinary(getInsertKeys(destinationUuid, destinationDevice), getInsertArgs(guid, message)));
+  }
+
+  private static List<byte[]> getInsertKeys(final UUID destinationUuid, final long destinationDevice) {
+    return List.of(getMessageQueueKey(destinationUuid, destinationDevice),
+        getMessageQueueMetadataKey(destinationUuid, destinationDevice),
+        getQueueIndexKey(destinationUuid, destinationDevice));
+  }
+
+  private static List<byte[]> getInsertArgs(final UUID guid, final MessageProtos.Envelope message) {
+    final MessageProtos.Envelope messageWithGuid = message.toBuilder().setServerGuid(guid.toString()).build();
+
+    return List.of(messageWithGuid.toByteArray(),
+        String.valueOf(message.getServerTimestamp()).getBytes(StandardCharsets.UTF_8),
+        guid.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * A message to be inserted into a destination device's queue as part of a batch.
+   *
+   * @see #insertBatch(List)
+   */
+  public record MessageToInsert(UUID guid, UUID destinationUuid, long destinationDevice,
+                                MessageProtos.Envelope message) {
+  }
+
+  /**
+   * Inserts a batch of messages, possibly destined for many different queues. The insert script is issued for every
+   * message without waiting for individual results, so the calls are pipelined on the shared connection (which routes
+   * each to its queue's node) rather than each costing a blocking round trip.
+   *
+   * @param messages the messages to insert
+   *
+   * @return a future that yields the queue-local message ID of each inserted message, in the same order as the given
+   * messages
+   */
+  public CompletableFuture<List<Long>> insertBatch(final List<MessageToInsert> messages) {
+    if (messages.isEmpty()) {
+      return CompletableFuture.completedFuture(Collections.emptyList());
+    }
+
+    final Timer.Sample sample = Timer.start();
+
+    @SuppressWarnings("unchecked") final CompletableFuture<Object>[] insertFutures =
+        new CompletableFuture[messages.size()];
+
+    for (int i = 0; i < messages.size(); i++) {
+      final MessageToInsert message = messages.get(i);
+
+      insertFutures[i] = insertScript.executeBinaryAsync(
+          getInsertKeys(message.destinationUuid(), message.destinationDevice()),
+          getInsertArgs(message.guid(), message.message()));
+    }
+
+    return CompletableFuture.allOf(insertFutures)
+        .thenApply(ignored -> Arrays.stream(insertFutures)
+            .map(future -> (Long) future.join())
+            .toList())
+        .whenComplete((ignored, throwable) -> sample.stop(insertBatchTimer));
+  }
+
+  /**
+   * Inserts a batch of messages whose content all ends with the same (potentially large) suffix, as is the case for the
+   * per-device copies of a multi-recipient message. The suffix is stored once under a key derived from its contents
+   * and referenced by each queued message, which holds only the part of its content that precedes the suffix. The
+   * full content is reassembled when messages are read from the cache.
+   * <p>
+   * The shared suffix is reference-counted and removed once every message that refers to it has been removed from the
+   * cache. Queues that are {@linkplain #clear(UUID, long) cleared} wholesale do not release their references, and
+   * leave shared payloads to expire with the same TTL as message queues.
+   *
+   * @param messages the messages to insert; their content must not include the shared suffix
+   * @param sharedContentSuffix the content suffix shared by all messages, or {@code null} if the messages' content is
+   *                            already complete
+   *
+   * @return a future that yields the queue-local message ID of each inserted message, in the same order as the given
+   * messages
+   *
+   * @see #insertBatch(List)
+   */
+  public CompletableFuture<List<Long>> insertBatch(final List<MessageToInsert> messages,
+      @Nullable final byte[] sharedContentSuffix) {
+
+    if (sharedContentSuffix == null || messages.isEmpty()) {
+      return insertBatch(messages);
+    }
+
+    final byte[] sharedPayloadKey = getSharedPayloadKey(sharedContentSuffix);
+    final ByteString sharedPayloadKeyByteString = ByteString.copyFrom(sharedPayloadKey);
+
+    // The shared payload must exist before any message that refers to it becomes visible to readers
+    return insertSharedPayloadScript.executeBinaryAsync(List.of(sharedPayloadKey),
+            List.of(sharedContentSuffix, String.valueOf(messages.size()).getBytes(StandardCharsets.UTF_8)))
+        .thenCompose(ignored -> insertBatch(messages.stream()
+            .map(message -> new MessageToInsert(message.guid(), message.destinationUuid(), message.destinationDevice(),
+                message.message().toBuilder().setSharedPayloadKey(sharedPayloadKeyByteString).build()))
+            .toList()));
   }
 
   public CompletableFuture<Optional<MessageProtos.Envelope>> remove(final UUID destinationUuid,
@@ -175,6 +288,12 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
         .thenApply(removed -> removed.isEmpty() ? Optional.empty() : Optional.of(removed.get(0)));
   }
 
+  /**
+   * Removes messages from a destination device's queue by GUID. Messages that refer to a shared payload release their
+   * reference to it, and are returned as they were queued, without the shared part of their content.
+   *
+   * @return the messages that were removed
+   */
   @SuppressWarnings("unchecked")
   public CompletableFuture<List<MessageProtos.Envelope>> remove(final UUID destinationUuid,
       final long destinationDevice,
@@ -199,7 +318,32 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
           }
 
           return removedMessages;
-        }, messageDeletionExecutorService);
+        }, messageDeletionExecutorService)
+        .thenCompose(removedMessages -> releaseSharedPayloads(removedMessages).thenApply(ignored -> removedMessages));
+  }
+
+  private CompletableFuture<Void> releaseSharedPayloads(final List<MessageProtos.Envelope> removedMessages) {
+    final Map<ByteString, Integer> referencesBySharedPayloadKey = new HashMap<>();
+
+    for (final MessageProtos.Envelope message : removedMessages) {
+      if (message.hasSharedPayloadKey()) {
+        referencesBySharedPayloadKey.merge(message.getSharedPayloadKey(), 1, Integer::sum);
+      }
+    }
+
+    if (referencesBySharedPayloadKey.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    return CompletableFuture.allOf(referencesBySharedPayloadKey.entrySet().stream()
+            .map(entry -> releaseSharedPayloadScript.executeBinaryAsync(List.of(entry.getKey().toByteArray()),
+                    List.of(String.valueOf(entry.getValue()).getBytes(StandardCharsets.UTF_8)))
+                .exceptionally(throwable -> {
+                  // The shared payload will eventually expire, so this doesn't need to fail the removal
+                  logger.warn("Failed to release shared payload", throwable);
+                  return null;
+                }))
+            .toArray(CompletableFuture[]::new));
   }
 
   public boolean hasMessages(final UUID destinationUuid, final long destinationDevice) {
@@ -222,12 +366,14 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
         .autoConnect(2);
 
     final Flux<MessageProtos.Envelope> messagesToPublish = allMessages
-        .filter(Predicate.not(envelope -> isStaleEphemeralMessage(envelope, earliestAllowableEphemeralTimestamp)));
+        .filter(Predicate.not(envelope -> isStaleEphemeralMessage(envelope, earliestAllowableEphemeralTimestamp)
+            || isOrphanedSharedPayloadMessage(envelope)));
 
-    final Flux<MessageProtos.Envelope> staleEphemeralMessages = allMessages
-        .filter(envelope -> isStaleEphemeralMessage(envelope, earliestAllowableEphemeralTimestamp));
+    final Flux<MessageProtos.Envelope> messagesToDiscard = allMessages
+        .filter(envelope -> isStaleEphemeralMessage(envelope, earliestAllowableEphemeralTimestamp)
+            || isOrphanedSharedPayloadMessage(envelope));
 
-    discardStaleEphemeralMessages(destinationUuid, destinationDevice, staleEphemeralMessages);
+    discardMessages(destinationUuid, destinationDevice, messagesToDiscard);
 
     return messagesToPublish.name(GET_FLUX_NAME)
         .tap(Micrometer.metrics(Metrics.globalRegistry));
@@ -238,60 +384,127 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     return message.hasEphemeral() && message.getEphemeral() && message.getTimestamp() < earliestAllowableTimestamp;
   }
 
-  private void discardStaleEphemeralMessages(final UUID destinationUuid, final long destinationDevice,
-      Flux<MessageProtos.Envelope> staleEphemeralMessages) {
-    staleEphemeralMessages
+  /**
+   * Indicates whether the given message still refers to a shared payload after an attempt to reassemble its content,
+   * which means that the shared payload no longer exists and the message can never be delivered.
+   */
+  private static boolean isOrphanedSharedPayloadMessage(final MessageProtos.Envelope message) {
+    return message.hasSharedPayloadKey();
+  }
+
+  private void discardMessages(final UUID destinationUuid, final long destinationDevice,
+      Flux<MessageProtos.Envelope> messagesToDiscard) {
+    messagesToDiscard
+        .doOnNext(envelope -> {
+          if (isOrphanedSharedPayloadMessage(envelope)) {
+            orphanedSharedPayloadMessagesCounter.increment();
+          } else {
+            staleEphemeralMessagesCounter.increment();
+          }
+        })
         .map(e -> UUID.fromString(e.getServerGuid()))
         .buffer(PAGE_SIZE)
         .subscribeOn(messageDeletionScheduler)
-        .subscribe(staleEphemeralMessageGuids ->
-                remove(destinationUuid, destinationDevice, staleEphemeralMessageGuids)
-                    .thenAccept(removedMessages -> staleEphemeralMessagesCounter.increment(removedMessages.size())),
-            e -> logger.warn("Could not remove stale ephemeral messages from cache", e));
+        .subscribe(messageGuidsToDiscard -> remove(destinationUuid, destinationDevice, messageGuidsToDiscard),
+            e -> logger.warn("Could not remove stale ephemeral or orphaned messages from cache", e));
   }
 
   @VisibleForTesting
   Flux<MessageProtos.Envelope> getAllMessages(final UUID destinationUuid, final long destinationDevice) {
 
-    // fetch messages by page
-    return getNextMessagePage(destinationUuid, destinationDevice, -1)
-        .expand(queueItemsAndLastMessageId -> {
+    // fetch messages by page, growing pages as long as many messages remain in the queue
+    return getNextMessagePage(destinationUuid, destinationDevice, -1, PAGE_SIZE)
+        .expand(page -> {
           // expand() is breadth-first, so each page will be published in order
-          if (queueItemsAndLastMessageId.first().isEmpty()) {
+          if (page.queueItems().isEmpty()) {
             return Mono.empty();
           }
 
-          return getNextMessagePage(destinationUuid, destinationDevice, queueItemsAndLastMessageId.second());
+          return getNextMessagePage(destinationUuid, destinationDevice, page.lastMessageId(),
+              getNextPageSize(page.pageSize(), page.remainingMessages()));
         })
-        .limitRate(1)
         // we want to ensure we don’t accidentally block the Lettuce/netty i/o executors
-        .publishOn(messageDeliveryScheduler)
-        .map(Pair::first)
+        .publishOn(messageDeliveryScheduler, PREFETCH_PAGES)
+        .map(MessagePage::queueItems)
         .flatMapIterable(queueItems -> {
           final List<MessageProtos.Envelope> envelopes = new ArrayList<>(queueItems.size() / 2);
 
           for (int i = 0; i < queueItems.size() - 1; i += 2) {
             try {
-              final MessageProtos.Envelope message = MessageProtos.Envelope.parseFrom(queueItems.get(i));
-
-              envelopes.add(message);
+              envelopes.add(parseEnvelopeAliased(queueItems.get(i)));
             } catch (InvalidProtocolBufferException e) {
               logger.warn("Failed to parse envelope", e);
             }
           }
 
           return envelopes;
-        });
+        }, PREFETCH_PAGES)
+        // fetch shared payloads concurrently, but keep messages in queue order
+        .flatMapSequential(envelope -> envelope.hasSharedPayloadKey()
+            ? getSharedPayload(envelope.getSharedPayloadKey())
+                .map(sharedPayload -> withSharedPayload(envelope, sharedPayload))
+                .defaultIfEmpty(envelope)
+                .publishOn(messageDeliveryScheduler)
+            : Mono.just(envelope));
+  }
+
+  /**
+   * Parses an envelope for delivery without copying its content; the envelope's byte fields share the given array,
+   * which must not be modified afterward.
+   */
+  private static MessageProtos.Envelope parseEnvelopeAliased(final byte[] serialized)
+      throws InvalidProtocolBufferException {
+
+    // aliasing only applies to input the parser knows to be immutable
+    final CodedInputStream input = UnsafeByteOperations.unsafeWrap(serialized).newCodedInput();
+    input.enableAliasing(true);
+
+    return MessageProtos.Envelope.parser().parseFrom(input);
+  }
+
+  private Mono<byte[]> getSharedPayload(final ByteString sharedPayloadKey) {
+    return Mono.from(readDeleteCluster.withBinaryClusterReactive(
+        connection -> connection.reactive().hget(sharedPayloadKey.toByteArray(), SHARED_PAYLOAD_FIELD)));
   }
 
-  private Flux<Pair<List<byte[]>, Long>> getNextMessagePage(final UUID destinationUuid, final long destinationDevice,
-      long messageId) {
+  private static MessageProtos.Envelope withSharedPayload(final MessageProtos.Envelope envelope,
+      final byte[] sharedPayload) {
+
+    return envelope.toBuilder()
+        .setContent(envelope.getContent().concat(UnsafeByteOperations.unsafeWrap(sharedPayload)))
+        .clearSharedPayloadKey()
+        .build();
+  }
+
+  /**
+   * A page of queue items (alternating messages and message IDs) fetched from a message queue.
+   *
+   * @param queueItems        the messages in the page and their IDs
+   * @param lastMessageId     the ID of the last message in the page
+   * @param remainingMessages the number of messages in the queue after this page at the time the page was fetched
+   * @param pageSize          the maximum number of messages requested for this page
+   */
+  private record MessagePage(List<byte[]> queueItems, long lastMessageId, long remainingMessages, int pageSize) {
+  }
+
+  /**
+   * Doubles the page size for each page until pages reach their maximum size, but never requests many more messages
+   * than the queue holds.
+   */
+  @VisibleForTesting
+  static int getNextPageSize(final int previousPageSize, final long remainingMessages) {
+    return (int) Math.max(PAGE_SIZE, Math.min(Math.min(previousPageSize * 2L, MAX_PAGE_SIZE), remainingMessages));
+  }
+
+  private Flux<MessagePage> getNextMessagePage(final UUID destinationUuid, final long destinationDevice,
+      long messageId, final int pageSize) {
 
     return getItemsScript.executeBinaryReactive(
             List.of(getMessageQueueKey(destinationUuid, destinationDevice),
                 getPersistInProgressKey(destinationUuid, destinationDevice)),
-            List.of(String.valueOf(PAGE_SIZE).getBytes(StandardCharsets.UTF_8),
-                String.valueOf(messageId).getBytes(StandardCharsets.UTF_8)))
+            List.of(String.valueOf(pageSize).getBytes(StandardCharsets.UTF_8),
+                String.valueOf(messageId).getBytes(StandardCharsets.UTF_8),
+                String.valueOf(MAX_PAGE_BYTES).getBytes(StandardCharsets.UTF_8)))
         .map(result -> {
           logger.trace("Processing page: {}", messageId);
 
@@ -299,18 +512,23 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
           List<byte[]> queueItems = (List<byte[]>) result;
 
           if (queueItems.isEmpty()) {
-            return new Pair<>(Collections.emptyList(), null);
+            return new MessagePage(Collections.emptyList(), messageId, 0, pageSize);
           }
 
-          if (queueItems.size() % 2 != 0) {
-            logger.error("\"Get messages\" operation returned a list with a non-even number of elements.");
-            return new Pair<>(Collections.emptyList(), null);
+          // pairs of messages and IDs, followed by the number of remaining messages
+          if (queueItems.size() % 2 != 1) {
+            logger.error("\"Get messages\" operation returned a list with an unexpected number of elements.");
+            return new MessagePage(Collections.emptyList(), messageId, 0, pageSize);
           }
 
-          final long lastMessageId = Long.parseLong(
+          final long remainingMessages = Long.parseLong(
               new String(queueItems.get(queueItems.size() - 1), StandardCharsets.UTF_8));
 
-          return new Pair<>(queueItems, lastMessageId);
+          final long lastMessageId = Long.parseLong(
+              new String(queueItems.get(queueItems.size() - 2), StandardCharsets.UTF_8));
+
+          return new MessagePage(queueItems.subList(0, queueItems.size() - 1), lastMessageId, remainingMessages,
+              pageSize);
         });
   }
 
@@ -323,14 +541,41 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
               .zrangeWithScores(getMessageQueueKey(accountUuid, destinationDevice), 0, limit));
       final List<MessageProtos.Envelope> envelopes = new ArrayList<>(scoredMessages.size());
 
+      final List<UUID> orphanedMessageGuids = new ArrayList<>();
+      final Map<ByteString, byte[]> sharedPayloadsByKey = new HashMap<>();
+
       for (final ScoredValue<byte[]> scoredMessage : scoredMessages) {
         try {
-          envelopes.add(MessageProtos.Envelope.parseFrom(scoredMessage.getValue()));
+          final MessageProtos.Envelope envelope = MessageProtos.Envelope.parseFrom(scoredMessage.getValue());
+
+          if (envelope.hasSharedPayloadKey()) {
+            @Nullable final byte[] sharedPayload = sharedPayloadsByKey.computeIfAbsent(envelope.getSharedPayloadKey(),
+                key -> readDeleteCluster.withBinaryCluster(
+                    connection -> connection.sync().hget(key.toByteArray(), SHARED_PAYLOAD_FIELD)));
+
+            if (sharedPayload == null) {
+              orphanedMessageGuids.add(UUID.fromString(envelope.getServerGuid()));
+            } else {
+              envelopes.add(withSharedPayload(envelope, sharedPayload));
+            }
+          } else {
+            envelopes.add(envelope);
+          }
         } catch (InvalidProtocolBufferException e) {
           logger.warn("Failed to parse envelope", e);
         }
       }
 
+      if (!orphanedMessageGuids.isEmpty()) {
+        orphanedSharedPayloadMessagesCounter.increment(orphanedMessageGuids.size());
+        remove(accountUuid, destinationDevice, orphanedMessageGuids).join();
+
+        if (envelopes.isEmpty()) {
+          // An empty result means that the queue has been drained, which isn't necessarily true yet
+          return getMessagesToPersist(accountUuid, destinationDevice, limit);
+        }
+      }
+
       return envelopes;
     });
   }
@@ -368,9 +613,43 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
             String.valueOf(limit))));
   }
 
-  void addQueueToPersist(final UUID accountUuid, final long deviceId) {
+  /**
+   * Counts the queues in each of the given slots that are ready to be persisted.
+   *
+   * @param slots the slots in which to count queues
+   * @param maxTime the latest index timestamp of queues to count
+   *
+   * @return the number of queues ready to be persisted in each of the given slots, in the same order as the given slots
+   */
+  long[] getPersistBacklog(final List<Integer> slots, final Instant maxTime) {
+    final Range<Long> range = Range.create(0L, maxTime.toEpochMilli());
+
+    return getPersistBacklogTimer.record(() -> readDeleteCluster.withBinaryCluster(connection -> {
+      final List<RedisFuture<Long>> countFutures = new ArrayList<>(slots.size());
+
+      for (final int slot : slots) {
+        countFutures.add(connection.async().zcount(getQueueIndexKey(slot), range));
+      }
+
+      final long[] backlog = new long[slots.size()];
+
+      for (int i = 0; i < slots.size(); i++) {
+        backlog[i] = countFutures.get(i).toCompletableFuture().join();
+      }
+
+      return backlog;
+    }));
+  }
+
+  /**
+   * Adds a queue to its slot's persistence index if it isn't already present. A queue is picked up for persistence once
+   * its timestamp is older than the persister's delay, so a timestamp in the future defers persistence of the queue. A
+   * queue already in the index (for example, because a message was inserted after the queue was last picked up) keeps
+   * its existing timestamp.
+   */
+  void addQueueToPersist(final UUID accountUuid, final long deviceId, final Instant timestamp) {
     readDeleteCluster.useBinaryCluster(connection -> connection.sync()
-        .zadd(getQueueIndexKey(accountUuid, deviceId), ZAddArgs.Builder.nx(), System.currentTimeMillis(),
+        .zadd(getQueueIndexKey(accountUuid, deviceId), ZAddArgs.Builder.nx(), timestamp.toEpochMilli(),
             getMessageQueueKey(accountUuid, deviceId)));
   }
 
@@ -384,42 +663,80 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
         connection -> connection.sync().del(getPersistInProgressKey(accountUuid, deviceId)));
   }
 
+  CompletableFuture<Void> lockQueueForPersistenceAsync(final UUID accountUuid, final long deviceId) {
+    return readDeleteCluster.withBinaryCluster(
+            connection -> connection.async().setex(getPersistInProgressKey(accountUuid, deviceId), 30, LOCK_VALUE))
+        .toCompletableFuture()
+        .thenRun(Util.NOOP);
+  }
+
+  CompletableFuture<Void> unlockQueueForPersistenceAsync(final UUID accountUuid, final long deviceId) {
+    return readDeleteCluster.withBinaryCluster(
+            connection -> connection.async().del(getPersistInProgressKey(accountUuid, deviceId)))
+        .toCompletableFuture()
+        .thenRun(Util.NOOP);
+  }
+
+  /**
+   * A map key that compares message availability listeners by identity.
+   */
+  private record ListenerIdentity(MessageAvailabilityListener listener) {
+
+    @Override
+    public boolean equals(final Object other) {
+      return other instanceof ListenerIdentity listenerIdentity && listenerIdentity.listener == listener;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(listener);
+    }
+  }
+
   public void addMessageAvailabilityListener(final UUID destinationUuid, final long deviceId,
       final MessageAvailabilityListener listener) {
     final String queueName = getQueueName(destinationUuid, deviceId);
 
-    final CompletableFuture<Void> subscribeFuture;
-    synchronized (messageListenersByQueueName) {
-      messageListenersByQueueName.put(queueName, listener);
-      queueNamesByMessageListener.put(listener, queueName);
-      // Submit to the Redis queue within the synchronized block, but don’t wait until exiting
-      subscribeFuture = subscribeForKeyspaceNotifications(queueName);
-    }
+    final AtomicReference<CompletableFuture<Void>> subscribeFuture = new AtomicReference<>();
+
+    queueNamesByMessageListener.put(new ListenerIdentity(listener), queueName);
+    messageListenersByQueueName.compute(queueName, (ignored, existingListener) -> {
+      if (existingListener != null && existingListener != listener) {
+        messageAvailabilityListenerReplacedCounter.increment();
+      }
+
+      // Submit to the Redis queue while this queue's entry is locked, but don’t wait until it's released
+      subscribeFuture.set(subscribeForKeyspaceNotifications(queueName));
+
+      return listener;
+    });
 
-    subscribeFuture.join();
+    subscribeFuture.get().join();
   }
 
   public void removeMessageAvailabilityListener(final MessageAvailabilityListener listener) {
-    @Nullable final String queueName;
-    synchronized (messageListenersByQueueName) {
-      queueName = queueNamesByMessageListener.get(listener);
-    }
+    @Nullable final String queueName = queueNamesByMessageListener.remove(new ListenerIdentity(listener));
 
     if (queueName != null) {
 
-      final CompletableFuture<Void> unsubscribeFuture;
-      synchronized (messageListenersByQueueName) {
-        queueNamesByMessageListener.remove(listener);
-        if (messageListenersByQueueName.remove(queueName, listener)) {
-          // Submit to the Redis queue within the synchronized block, but don’t wait until exiting
-          unsubscribeFuture = unsubscribeFromKeyspaceNotifications(queueName);
-        } else {
-          messageAvailabilityListenerRemovedAfterAddCounter.increment();
-          unsubscribeFuture = CompletableFuture.completedFuture(null);
+      final AtomicReference<CompletableFuture<Void>> unsubscribeFuture = new AtomicReference<>();
+
+      messageListenersByQueueName.computeIfPresent(queueName, (ignored, existingListener) -> {
+        if (existingListener != listener) {
+          return existingListener;
         }
-      }
 
-      unsubscribeFuture.join();
+        // Submit to the Redis queue while this queue's entry is locked, but don’t wait until it's released
+        unsubscribeFuture.set(unsubscribeFromKeyspaceNotifications(queueName));
+
+        return null;
+      });
+
+      if (unsubscribeFuture.get() != null) {
+        unsubscribeFuture.get().join();
+      } else {
+        messageAvailabilityListenerRemovedAfterAddCounter.increment();
+      }
     }
   }
 
@@ -463,40 +780,44 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     pubSubMessageCounter.increment();
 
     if (channel.startsWith(QUEUE_KEYSPACE_PREFIX) && "zadd".equals(message)) {
-      newMessageNotificationCounter.increment();
-      notificationExecutorService.execute(() -> {
-        try {
-          findListener(channel).ifPresentOrElse(listener -> {
-            if (!listener.handleNewMessagesAvailable()) {
-              removeMessageAvailabilityListener(listener);
-            }
-          }, () -> pruneStaleSubscription(channel));
-        } catch (final Exception e) {
-          logger.warn("Unexpected error handling new message", e);
-        }
-      });
+      handleNewMessagesAvailable(getQueueNameFromKeyspaceChannel(channel), () -> pruneStaleSubscription(channel));
     } else if (channel.startsWith(PERSISTING_KEYSPACE_PREFIX) && "del".equals(message)) {
-      queuePersistedNotificationCounter.increment();
-      notificationExecutorService.execute(() -> {
-        try {
-          findListener(channel).ifPresentOrElse(listener -> {
-            if (!listener.handleMessagesPersisted()) {
-              removeMessageAvailabilityListener(listener);
-            }
-          }, () -> pruneStaleSubscription(channel));
-        } catch (final Exception e) {
-          logger.warn("Unexpected error handling messages persisted", e);
-        }
-      });
+      handleMessagesPersisted(getQueueNameFromKeyspaceChannel(channel), () -> pruneStaleSubscription(channel));
     }
   }
 
-  private Optional<MessageAvailabilityListener> findListener(final String keyspaceChannel) {
-    final String queueName = getQueueNameFromKeyspaceChannel(keyspaceChannel);
+  private void handleNewMessagesAvailable(final String queueName, final Runnable noListenerHandler) {
+    newMessageNotificationCounter.increment();
+    notificationExecutorService.execute(() -> {
+      try {
+        findListener(queueName).ifPresentOrElse(listener -> {
+          if (!listener.handleNewMessagesAvailable()) {
+            removeMessageAvailabilityListener(listener);
+          }
+        }, noListenerHandler);
+      } catch (final Exception e) {
+        logger.warn("Unexpected error handling new message", e);
+      }
+    });
+  }
 
-    synchronized (messageListenersByQueueName) {
-      return Optional.ofNullable(messageListenersByQueueName.get(queueName));
-    }
+  private void handleMessagesPersisted(final String queueName, final Runnable noListenerHandler) {
+    queuePersistedNotificationCounter.increment();
+    notificationExecutorService.execute(() -> {
+      try {
+        findListener(queueName).ifPresentOrElse(listener -> {
+          if (!listener.handleMessagesPersisted()) {
+            removeMessageAvailabilityListener(listener);
+          }
+        }, noListenerHandler);
+      } catch (final Exception e) {
+        logger.warn("Unexpected error handling messages persisted", e);
+      }
+    });
+  }
+
+  private Optional<MessageAvailabilityListener> findListener(final String queueName) {
+    return Optional.ofNullable(messageListenersByQueueName.get(queueName));
   }
 
   @VisibleForTesting
@@ -533,6 +854,19 @@ public class MessagesCache extends RedisClusterPubSubAdapter<String, String> imp
     return ("user_queue_persisting::{" + accountUuid + "::" + deviceId + "}").getBytes(StandardCharsets.UTF_8);
   }
 
+  @VisibleForTesting
+  static byte[] getSharedPayloadKey(final byte[] sharedPayload) {
+    final MessageDigest sha256;
+    try {
+      sha256 = MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+
+    return ("shared_payload::{" + HexFormat.of().formatHex(sha256.digest(sharedPayload)) + "}")
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
   static UUID getAccountUuidFromQueueName(final String queueName) {
     final int startOfHashTag = queueName.indexOf('{');
 
@@ -10,6 +10,7 @@ import static io.micrometer.core.instrument.Metrics.timer;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.protobuf.InvalidProtocolBufferException;
 import io.micrometer.core.instrument.Timer;
 import java.nio.ByteBuffer;
@@ -36,7 +37,9 @@ import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteRequest;
 import software.amazon.awssdk.services.dynamodb.model.PutRequest;
 import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
 import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
@@ -60,6 +63,7 @@ public class MessagesDynamoDb extends AbstractDynamoDbStore {
   private static final String KEY_ENVELOPE_BYTES = "EB";
 
   private final Timer storeTimer = timer(name(getClass(), "store"));
+  private final Timer storeAsyncTimer = timer(name(getClass(), "storeAsync"));
   private final Timer deleteByAccount = timer(name(getClass(), "delete", "account"));
   private final Timer deleteByDevice = timer(name(getClass(), "delete", "device"));
 
@@ -69,8 +73,20 @@ public class MessagesDynamoDb extends AbstractDynamoDbStore {
   private final ExecutorService messageDeletionExecutor;
   private final Scheduler messageDeletionScheduler;
 
+  // the maximum number of concurrent batch write requests issued by a single call to storeAsync or deleteMessages
+  private static final int MAX_CONCURRENT_BATCH_WRITES = 8;
+
   private static final Logger logger = LoggerFactory.getLogger(MessagesDynamoDb.class);
 
+  /**
+   * A list of messages for a single destination device.
+   *
+   * @see #storeAsync(List)
+   */
+  public record DestinationMessages(UUID destinationAccountUuid, long destinationDeviceId,
+                                    List<MessageProtos.Envelope> messages) {
+  }
+
   public MessagesDynamoDb(DynamoDbClient dynamoDb, DynamoDbAsyncClient dynamoDbAsyncClient, String tableName,
       Duration timeToLive, ExecutorService messageDeletionExecutor) {
     super(dynamoDb);
@@ -92,26 +108,89 @@ public class MessagesDynamoDb extends AbstractDynamoDbStore {
       throw new IllegalArgumentException("Maximum batch size of " + DYNAMO_DB_MAX_BATCH_SIZE + " exceeded with " + messages.size() + " messages");
     }
 
-    final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
     List<WriteRequest> writeItems = new ArrayList<>();
     for (MessageProtos.Envelope message : messages) {
-      final UUID messageUuid = UUID.fromString(message.getServerGuid());
-
-      final ImmutableMap.Builder<String, AttributeValue> item = ImmutableMap.<String, AttributeValue>builder()
-          .put(KEY_PARTITION, partitionKey)
-          .put(KEY_SORT, convertSortKey(destinationDeviceId, message.getServerTimestamp(), messageUuid))
-          .put(LOCAL_INDEX_MESSAGE_UUID_KEY_SORT, convertLocalIndexMessageUuidSortKey(messageUuid))
-          .put(KEY_TTL, AttributeValues.fromLong(getTtlForMessage(message)))
-          .put(KEY_ENVELOPE_BYTES, AttributeValue.builder().b(SdkBytes.fromByteArray(message.toByteArray())).build());
-
-      writeItems.add(WriteRequest.builder().putRequest(PutRequest.builder()
-          .item(item.build())
-          .build()).build());
+      writeItems.add(buildWriteRequest(message, destinationAccountUuid, destinationDeviceId));
     }
 
     executeTableWriteItemsUntilComplete(Map.of(tableName, writeItems));
   }
 
+  /**
+   * Stores messages for any number of destination devices. Messages from different destinations are packed together
+   * into full batch write requests, which are issued concurrently with the asynchronous client.
+   *
+   * @param destinationMessages the messages to store, grouped by destination device
+   *
+   * @return a future that completes when all messages have been stored, or fails if any batch could not be written
+   * completely
+   */
+  public CompletableFuture<Void> storeAsync(final List<DestinationMessages> destinationMessages) {
+    final List<WriteRequest> writeItems = new ArrayList<>();
+
+    for (final DestinationMessages destination : destinationMessages) {
+      for (final MessageProtos.Envelope message : destination.messages()) {
+        writeItems.add(
+            buildWriteRequest(message, destination.destinationAccountUuid(), destination.destinationDeviceId()));
+      }
+    }
+
+    if (writeItems.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    final Timer.Sample sample = Timer.start();
+
+    return Flux.fromIterable(Lists.partition(writeItems, DYNAMO_DB_MAX_BATCH_SIZE))
+        .flatMap(batch -> Mono.fromFuture(() -> writeBatchUntilCompleteAsync(batch, 0)), MAX_CONCURRENT_BATCH_WRITES)
+        .then()
+        .toFuture()
+        .whenComplete((ignored, throwable) -> sample.stop(storeAsyncTimer));
+  }
+
+  private CompletableFuture<Void> writeBatchUntilCompleteAsync(final List<WriteRequest> writeItems,
+      final int previousAttempts) {
+
+    return dbAsyncClient.batchWriteItem(BatchWriteItemRequest.builder()
+            .requestItems(Map.of(tableName, writeItems))
+            .build())
+        .thenCompose(response -> {
+          final List<WriteRequest> unprocessedItems = response.unprocessedItems().getOrDefault(tableName, List.of());
+
+          if (unprocessedItems.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+          }
+
+          if (previousAttempts + 1 >= MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE) {
+            // Unlike the synchronous path, fail rather than drop the items, so callers can keep the messages elsewhere
+            return CompletableFuture.failedFuture(new MessagePersistenceException(
+                unprocessedItems.size() + " unprocessed items remain after " + MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE
+                    + " attempts"));
+          }
+
+          return Mono.delay(Duration.ofMillis(UNPROCESSED_ITEMS_BACKOFF.apply(previousAttempts + 1)))
+              .then(Mono.fromFuture(() -> writeBatchUntilCompleteAsync(unprocessedItems, previousAttempts + 1)))
+              .toFuture();
+        });
+  }
+
+  private WriteRequest buildWriteRequest(final MessageProtos.Envelope message, final UUID destinationAccountUuid,
+      final long destinationDeviceId) {
+
+    final UUID messageUuid = UUID.fromString(message.getServerGuid());
+
+    final ImmutableMap.Builder<String, AttributeValue> item = ImmutableMap.<String, AttributeValue>builder()
+        .put(KEY_PARTITION, convertPartitionKey(destinationAccountUuid))
+        .put(KEY_SORT, convertSortKey(destinationDeviceId, message.getServerTimestamp(), messageUuid))
+        .put(LOCAL_INDEX_MESSAGE_UUID_KEY_SORT, convertLocalIndexMessageUuidSortKey(messageUuid))
+        .put(KEY_TTL, AttributeValues.fromLong(getTtlForMessage(message)))
+        .put(KEY_ENVELOPE_BYTES, AttributeValue.builder().b(SdkBytes.fromByteArray(message.toByteArray())).build());
+
+    return WriteRequest.builder().putRequest(PutRequest.builder()
+        .item(item.build())
+        .build()).build();
+  }
+
   public Publisher<MessageProtos.Envelope> load(final UUID destinationAccountUuid, final long destinationDeviceId,
       final Integer limit) {
 
@@ -214,6 +293,35 @@ public class MessagesDynamoDb extends AbstractDynamoDbStore {
         }, messageDeletionExecutor);
   }
 
+  /**
+   * Deletes any number of messages for a single destination device with batch write requests. Unlike
+   * {@link #deleteMessage(UUID, long, UUID, long)}, this does not return the deleted messages. Deletes that DynamoDB
+   * leaves unprocessed because of throttling are retried after a backoff.
+   *
+   * @param serverTimestampsByGuid the server timestamps of the messages to delete, keyed by message GUID
+   *
+   * @return a future that completes when all messages have been deleted, or fails if any batch could not be written
+   * completely
+   */
+  public CompletableFuture<Void> deleteMessages(final UUID destinationAccountUuid, final long destinationDeviceId,
+      final Map<UUID, Long> serverTimestampsByGuid) {
+
+    final AttributeValue partitionKey = convertPartitionKey(destinationAccountUuid);
+
+    final List<WriteRequest> writeItems = serverTimestampsByGuid.entrySet().stream()
+        .map(entry -> WriteRequest.builder().deleteRequest(DeleteRequest.builder()
+                .key(Map.of(KEY_PARTITION, partitionKey,
+                    KEY_SORT, convertSortKey(destinationDeviceId, entry.getValue(), entry.getKey())))
+                .build())
+            .build())
+        .toList();
+
+    return Flux.fromIterable(Lists.partition(writeItems, DYNAMO_DB_MAX_BATCH_SIZE))
+        .flatMap(batch -> Mono.fromFuture(() -> writeBatchUntilCompleteAsync(batch, 0)), MAX_CONCURRENT_BATCH_WRITES)
+        .then()
+        .toFuture();
+  }
+
   public CompletableFuture<Void> deleteAllMessagesForAccount(final UUID destinationAccountUuid) {
     final Timer.Sample sample = Timer.start();
 
@@ -11,9 +11,12 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import io.micrometer.core.instrument.Metrics;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -70,6 +73,29 @@ public class MessagesManager {
     }
   }
 
+  /**
+   * Inserts a batch of messages, possibly destined for many different devices and accounts, with pipelined cache
+   * operations.
+   *
+   * @param messages the messages to insert
+   * @param sharedContentSuffix a content suffix shared by all messages and stored only once, or {@code null} if the
+   *                            messages' content is complete
+   *
+   * @see MessagesCache#insertBatch(List, byte[])
+   */
+  public void insertBatch(final List<MessagesCache.MessageToInsert> messages,
+      @Nullable final byte[] sharedContentSuffix) {
+
+    messagesCache.insertBatch(messages, sharedContentSuffix).join();
+
+    for (final MessagesCache.MessageToInsert message : messages) {
+      if (message.message().hasSourceUuid()
+          && !message.destinationUuid().toString().equals(message.message().getSourceUuid())) {
+        reportMessageManager.store(message.message().getSourceUuid(), message.guid());
+      }
+    }
+  }
+
   public boolean hasCachedMessages(final UUID destinationUuid, final long destinationDevice) {
     return messagesCache.hasMessages(destinationUuid, destinationDevice);
   }
@@ -135,6 +161,48 @@ public class MessagesManager {
         }, messageDeletionExecutor);
   }
 
+  /**
+   * Deletes any number of messages for a single destination device. Messages are removed from the cache with a single
+   * operation, and any messages not found in the cache are then deleted from DynamoDB in batches.
+   *
+   * @param messages the messages to delete
+   *
+   * @return a future that completes when all messages have been deleted
+   */
+  public CompletableFuture<Void> delete(final UUID destinationUuid, final long destinationDeviceId,
+      final List<MessageToDelete> messages) {
+
+    return messagesCache.remove(destinationUuid, destinationDeviceId,
+            messages.stream().map(MessageToDelete::guid).toList())
+        .thenComposeAsync(removed -> {
+          cacheHitByGuidMeter.mark(removed.size());
+
+          final Set<String> removedGuids = removed.stream()
+              .map(Envelope::getServerGuid)
+              .collect(Collectors.toSet());
+
+          final Map<UUID, Long> persistedServerTimestampsByGuid = messages.stream()
+              .filter(message -> !removedGuids.contains(message.guid().toString()))
+              .collect(Collectors.toMap(MessageToDelete::guid, MessageToDelete::serverTimestamp, (a, b) -> a));
+
+          if (persistedServerTimestampsByGuid.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+          }
+
+          cacheMissByGuidMeter.mark(persistedServerTimestampsByGuid.size());
+
+          return messagesDynamoDb.deleteMessages(destinationUuid, destinationDeviceId, persistedServerTimestampsByGuid);
+        }, messageDeletionExecutor);
+  }
+
+  /**
+   * A message to delete from a single destination device's queue.
+   *
+   * @see #delete(UUID, long, List)
+   */
+  public record MessageToDelete(UUID guid, long serverTimestamp) {
+  }
+
   /**
    * @return the number of messages successfully removed from the cache.
    */
@@ -163,6 +231,46 @@ public class MessagesManager {
     return messagesRemovedFromCache;
   }
 
+  /**
+   * Persists messages from any number of destination queues at once. Messages from all queues are stored together in
+   * full batches, and are then removed from their queues in the cache concurrently.
+   *
+   * @param destinationMessages the messages to persist, grouped by destination device
+   *
+   * @return the number of messages successfully removed from the cache for each destination, in the same order as the
+   * given destinations
+   *
+   * @throws CompletionException if any messages could not be stored; no messages are removed from the cache in that
+   * case
+   */
+  public List<Integer> persistMessages(final List<MessagesDynamoDb.DestinationMessages> destinationMessages) {
+    final List<MessagesDynamoDb.DestinationMessages> nonEphemeralMessages = destinationMessages.stream()
+        .map(destination -> new MessagesDynamoDb.DestinationMessages(destination.destinationAccountUuid(),
+            destination.destinationDeviceId(),
+            destination.messages().stream().filter(envelope -> !envelope.getEphemeral()).toList()))
+        .toList();
+
+    messagesDynamoDb.storeAsync(nonEphemeralMessages).join();
+
+    final List<CompletableFuture<Integer>> removalFutures = destinationMessages.stream()
+        .map(destination -> messagesCache.remove(destination.destinationAccountUuid(),
+                destination.destinationDeviceId(),
+                destination.messages().stream().map(message -> UUID.fromString(message.getServerGuid())).toList())
+            .orTimeout(30, TimeUnit.SECONDS)
+            .thenApply(List::size)
+            .exceptionally(throwable -> {
+              logger.warn("Failed to remove messages from cache", throwable);
+              return 0;
+            }))
+        .toList();
+
+    final List<Integer> messagesRemovedFromCache = removalFutures.stream().map(CompletableFuture::join).toList();
+
+    persistMessageMeter.mark(nonEphemeralMessages.stream().mapToInt(destination -> destination.messages().size()).sum());
+
+    return messagesRemovedFromCache;
+  }
+
   public void addMessageAvailabilityListener(
       final UUID destinationUuid,
       final long destinationDeviceId,
@@ -5,8 +5,16 @@
 
 package org.whispersystems.textsecuregcm.storage;
 
+import static org.whispersystems.textsecuregcm.storage.AbstractDynamoDbStore.MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE;
+import static org.whispersystems.textsecuregcm.storage.AbstractDynamoDbStore.UNPROCESSED_ITEMS_BACKOFF;
+
+import com.google.common.collect.Lists;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
@@ -18,8 +26,10 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
 import software.amazon.awssdk.services.dynamodb.model.Put;
 import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
@@ -49,9 +59,15 @@ public abstract class RepeatedUseSignedPreKeyStore<K extends SignedPreKey<?>> {
   private final Timer storeKeyBatchTimer = Metrics.timer(MetricsUtil.name(getClass(), "storeKeyBatch"));
   private final Timer deleteForDeviceTimer = Metrics.timer(MetricsUtil.name(getClass(), "deleteForDevice"));
   private final Timer deleteForAccountTimer = Metrics.timer(MetricsUtil.name(getClass(), "deleteForAccount"));
+  private final Timer findAllTimer = Metrics.timer(MetricsUtil.name(getClass(), "findAll"));
+  private final Counter unprocessedKeysCounter =
+      Metrics.counter(MetricsUtil.name(getClass(), "batchGetItemKeysUnprocessed"));
 
   private final String findKeyTimerName = MetricsUtil.name(getClass(), "findKey");
 
+  // This limit comes from DynamoDB itself; it will reject BatchGetItem requests for more keys than this
+  private static final int DYNAMO_DB_MAX_BATCH_GET_SIZE = 100;
+
   public RepeatedUseSignedPreKeyStore(final DynamoDbAsyncClient dynamoDbAsyncClient, final String tableName) {
     this.dynamoDbAsyncClient = dynamoDbAsyncClient;
     this.tableName = tableName;
@@ -134,6 +150,58 @@ public abstract class RepeatedUseSignedPreKeyStore<K extends SignedPreKey<?>> {
     return findFuture;
   }
 
+  /**
+   * Finds the repeated-use pre-keys for several devices at once.
+   *
+   * @param identifier the identifier for the account/identity with which the target devices are associated
+   * @param deviceIds the identifiers for the devices within the given account/identity
+   *
+   * @return a future that yields a map of device IDs to repeated-use pre-keys; devices without a key are absent from
+   * the map
+   */
+  public CompletableFuture<Map<Long, K>> findAll(final UUID identifier, final Collection<Long> deviceIds) {
+    if (deviceIds.isEmpty()) {
+      return CompletableFuture.completedFuture(Map.of());
+    }
+
+    final Timer.Sample sample = Timer.start();
+
+    return Flux.fromIterable(Lists.partition(List.copyOf(deviceIds), DYNAMO_DB_MAX_BATCH_GET_SIZE))
+        .flatMap(batch -> getItems(batch.stream().map(deviceId -> getPrimaryKey(identifier, deviceId)).toList(), 1))
+        .collectMap(item -> Long.parseLong(item.get(KEY_DEVICE_ID).n()), this::getPreKeyFromItem)
+        .toFuture()
+        .whenComplete((ignoredKeys, ignoredThrowable) -> sample.stop(findAllTimer));
+  }
+
+  private Flux<Map<String, AttributeValue>> getItems(final List<Map<String, AttributeValue>> keys, final int attempt) {
+    return Mono.fromFuture(() -> dynamoDbAsyncClient.batchGetItem(BatchGetItemRequest.builder()
+            .requestItems(Map.of(tableName, KeysAndAttributes.builder()
+                .keys(keys)
+                .consistentRead(true)
+                .build()))
+            .build()))
+        .flatMapMany(response -> {
+          final Flux<Map<String, AttributeValue>> items =
+              Flux.fromIterable(response.responses().getOrDefault(tableName, List.of()));
+
+          final KeysAndAttributes unprocessedKeys = response.unprocessedKeys().get(tableName);
+
+          if (unprocessedKeys == null || unprocessedKeys.keys().isEmpty()) {
+            return items;
+          }
+
+          unprocessedKeysCounter.increment(unprocessedKeys.keys().size());
+
+          if (attempt >= MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE) {
+            return items.concatWith(Mono.error(new IllegalStateException(
+                unprocessedKeys.keys().size() + " unprocessed keys remain after " + attempt + " attempts")));
+          }
+
+          return items.concatWith(Mono.delay(Duration.ofMillis(UNPROCESSED_ITEMS_BACKOFF.apply(attempt)))
+              .thenMany(Flux.defer(() -> getItems(unprocessedKeys.keys(), attempt + 1))));
+        });
+  }
+
   /**
    * Clears all repeated-use pre-keys associated with the given account/identity.
    *
@@ -7,32 +7,48 @@ package org.whispersystems.textsecuregcm.storage;
 
 import static org.whispersystems.textsecuregcm.metrics.MetricsUtil.name;
 import static org.whispersystems.textsecuregcm.storage.AbstractDynamoDbStore.DYNAMO_DB_MAX_BATCH_SIZE;
+import static org.whispersystems.textsecuregcm.storage.AbstractDynamoDbStore.MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE;
+import static org.whispersystems.textsecuregcm.storage.AbstractDynamoDbStore.UNPROCESSED_ITEMS_BACKOFF;
 
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
 import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.whispersystems.textsecuregcm.entities.PreKey;
 import org.whispersystems.textsecuregcm.util.AttributeValues;
-import org.whispersystems.textsecuregcm.util.Util;
+import org.whispersystems.textsecuregcm.util.ExceptionUtils;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.DeleteRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
 import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
 import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
 import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
 import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
 import software.amazon.awssdk.services.dynamodb.model.Select;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
 
 /**
  * A single-use pre-key store stores single-use pre-keys of a specific type. Keys returned by a single-use pre-key
@@ -43,17 +59,27 @@ import software.amazon.awssdk.services.dynamodb.model.Select;
  * supply of single-use pre-keys (see {@link #getCount(UUID, long)}) and upload new keys when their supply runs low. In
  * the event that a party wants to begin a session with a device that has no single-use pre-keys remaining, that party
  * may fall back to using the device's repeated-use ("last-resort") signed pre-key instead.
+ * <p/>
+ * Alongside each device's keys, the store maintains an item holding the device's number of available keys so that
+ * checking the supply of keys doesn't require counting them. Count items are kept outside the range of sort keys
+ * belonging to any device's keys, so queries for a device's keys never see them. The count is replaced whenever keys
+ * are stored and decremented whenever a key is taken; since those updates aren't transactional with the writes to the
+ * keys themselves, the count may drift from the true number of keys by the number of keys taken while keys were being
+ * stored (or whose count updates failed). Devices without a count have their keys counted once, and the result stored
+ * as their count.
  */
 public abstract class SingleUsePreKeyStore<K extends PreKey<?>> {
 
   private final DynamoDbAsyncClient dynamoDbAsyncClient;
   private final String tableName;
 
-  private final Timer storeKeyTimer = Metrics.timer(name(getClass(), "storeKey"));
   private final Timer storeKeyBatchTimer = Metrics.timer(name(getClass(), "storeKeyBatch"));
   private final Timer getKeyCountTimer = Metrics.timer(name(getClass(), "getCount"));
   private final Timer deleteForDeviceTimer = Metrics.timer(name(getClass(), "deleteForDevice"));
   private final Timer deleteForAccountTimer = Metrics.timer(name(getClass(), "deleteForAccount"));
+  private final Counter unprocessedItemsCounter = Metrics.counter(name(getClass(), "batchWriteItemsUnprocessed"));
+  private final Counter keyCountMissingCounter = Metrics.counter(name(getClass(), "keyCountMissing"));
+  private final Counter keyCountUpdateFailedCounter = Metrics.counter(name(getClass(), "keyCountUpdateFailed"));
 
   final DistributionSummary keysConsideredForTakeDistributionSummary = DistributionSummary
       .builder(name(getClass(), "keysConsideredForTake"))
@@ -74,6 +100,17 @@ public abstract class SingleUsePreKeyStore<K extends PreKey<?>> {
   static final String KEY_DEVICE_ID_KEY_ID = "DK";
   static final String ATTR_PUBLIC_KEY = "P";
   static final String ATTR_SIGNATURE = "S";
+  static final String ATTR_KEY_COUNT = "C";
+
+  private static final byte KEY_COUNT_SORT_KEY_MARKER = (byte) 0xff;
+
+  private static final int MAX_CONCURRENT_BATCH_WRITES = 8;
+
+  // The number of candidate keys fetched per page when taking a key; concurrent takers choose among each page's keys
+  // at random, so larger pages make collisions less likely at the cost of larger (but still key-only) query responses
+  private static final int TAKE_PAGE_SIZE = 100;
+
+  private static final Logger logger = LoggerFactory.getLogger(SingleUsePreKeyStore.class);
 
   protected SingleUsePreKeyStore(final DynamoDbAsyncClient dynamoDbAsyncClient, final String tableName) {
     this.dynamoDbAsyncClient = dynamoDbAsyncClient;
@@ -81,8 +118,12 @@ public abstract class SingleUsePreKeyStore<K extends PreKey<?>> {
   }
 
   /**
-   * Stores a batch of single-use pre-keys for a specific device. All previously-stored keys for the device are cleared
-   * before storing new keys.
+   * Stores a batch of single-use pre-keys for a specific device. All previously-stored keys for the device are replaced
+   * by the new keys.
+   * <p>
+   * New keys are written at the same time that previously-stored keys are removed; previously-stored keys with the same
+   * IDs as new keys are overwritten rather than removed, so neither phase can undo the other. Until the returned future
+   * completes, callers of {@link #take(UUID, long)} may receive either old or new keys.
    *
    * @param identifier the identifier for the account/identity with which the target device is associated
    * @param deviceId the identifier for the device within the given account/identity
@@ -94,29 +135,37 @@ public abstract class SingleUsePreKeyStore<K extends PreKey<?>> {
   public CompletableFuture<Void> store(final UUID identifier, final long deviceId, final List<K> preKeys) {
     final Timer.Sample sample = Timer.start();
 
-    return Mono.fromFuture(() -> delete(identifier, deviceId))
-        .thenMany(
-            Flux.fromIterable(preKeys)
-                .flatMap(preKey -> Mono.fromFuture(() -> store(identifier, deviceId, preKey)), DYNAMO_DB_MAX_BATCH_SIZE))
-        .then()
-        .toFuture()
-        .thenRun(() -> sample.stop(storeKeyBatchTimer));
-  }
+    // A batch may not write the same item twice, so only the last of any keys with the same ID is stored
+    final Map<Long, K> preKeysById = new LinkedHashMap<>();
+    preKeys.forEach(preKey -> preKeysById.put(preKey.keyId(), preKey));
 
-  private CompletableFuture<Void> store(final UUID identifier, final long deviceId, final K preKey) {
-    final Timer.Sample sample = Timer.start();
+    final Flux<WriteRequest> putRequests = Flux.fromIterable(preKeysById.values())
+        .map(preKey -> getItemFromPreKey(identifier, deviceId, preKey))
+        .concatWith(Mono.just(getKeyCountItem(identifier, deviceId, preKeysById.size())))
+        .map(item -> WriteRequest.builder()
+            .putRequest(PutRequest.builder()
+                .item(item)
+                .build())
+            .build());
 
-    return dynamoDbAsyncClient.putItem(PutItemRequest.builder()
-            .tableName(tableName)
-            .item(getItemFromPreKey(identifier, deviceId, preKey))
-            .build())
-        .thenRun(() -> sample.stop(storeKeyTimer));
+    final Flux<Map<String, AttributeValue>> staleItems = queryItemsForDevice(identifier, deviceId)
+        .filter(item -> !preKeysById.containsKey(getKeyId(item)));
+
+    return Mono.when(
+            Mono.fromFuture(() -> writeItems(putRequests)),
+            Mono.fromFuture(() -> deleteItems(getPartitionKey(identifier), staleItems)))
+        .toFuture()
+        .thenRun(() -> sample.stop(storeKeyBatchTimer));
   }
 
   /**
    * Attempts to retrieve a single-use pre-key for a specific device. Keys may only be returned by this method at most
    * once; once the key is returned, it is removed from the key store and subsequent calls to this method will never
    * return the same key.
+   * <p>
+   * Keys are not returned in any particular order. A key is claimed by the caller whose delete returns it, and only one
+   * of several concurrent deletes of the same key can do so; to keep concurrent callers from repeatedly losing races
+   * for the same key, each caller tries the keys in each page of candidates in a random order.
    *
    * @param identifier the identifier for the account/identity with which the target device is associated
    * @param deviceId the identifier for the device within the given account/identity
@@ -138,8 +187,14 @@ public abstract class SingleUsePreKeyStore<K extends PreKey<?>> {
                     ":sortprefix", getSortKeyPrefix(deviceId)))
                 .projectionExpression(KEY_DEVICE_ID_KEY_ID)
                 .consistentRead(false)
-                .build())
-            .items())
+                .limit(TAKE_PAGE_SIZE)
+                .build()))
+        .concatMapIterable(queryResponse -> {
+          final List<Map<String, AttributeValue>> items = new ArrayList<>(queryResponse.items());
+          Collections.shuffle(items, ThreadLocalRandom.current());
+
+          return items;
+        })
         .map(item -> DeleteItemRequest.builder()
             .tableName(tableName)
             .key(Map.of(
@@ -151,7 +206,8 @@ public abstract class SingleUsePreKeyStore<K extends PreKey<?>> {
         .doOnNext(deleteItemResponse -> keysConsidered.incrementAndGet())
         .filter(DeleteItemResponse::hasAttributes)
         .next()
-        .map(deleteItemResponse -> getPreKeyFromItem(deleteItemResponse.attributes()))
+        .flatMap(deleteItemResponse -> decrementKeyCount(identifier, deviceId)
+            .thenReturn(getPreKeyFromItem(deleteItemResponse.attributes())))
         .toFuture()
         .thenApply(Optional::ofNullable)
         .whenComplete((maybeKey, throwable) -> {
@@ -160,6 +216,32 @@ public abstract class SingleUsePreKeyStore<K extends PreKey<?>> {
         });
   }
 
+  private Mono<Void> decrementKeyCount(final UUID identifier, final long deviceId) {
+    return Mono.fromFuture(() -> dynamoDbAsyncClient.updateItem(UpdateItemRequest.builder()
+            .tableName(tableName)
+            .key(Map.of(
+                KEY_ACCOUNT_UUID, getPartitionKey(identifier),
+                KEY_DEVICE_ID_KEY_ID, getKeyCountSortKey(deviceId)))
+            // Don't create counts for devices that don't have one or let counts go negative
+            .conditionExpression("#count > :zero")
+            .updateExpression("ADD #count :delta")
+            .expressionAttributeNames(Map.of("#count", ATTR_KEY_COUNT))
+            .expressionAttributeValues(Map.of(
+                ":zero", AttributeValues.fromInt(0),
+                ":delta", AttributeValues.fromInt(-1)))
+            .build()))
+        .onErrorResume(ConditionalCheckFailedException.class, e -> Mono.empty())
+        // By the time the count is updated, the key has already been claimed and can't be given back; a stale count is
+        // far less harmful than failing the caller and losing the key
+        .onErrorResume(throwable -> {
+          keyCountUpdateFailedCounter.increment();
+          logger.warn("Failed to decrement single-use pre-key count", throwable);
+
+          return Mono.empty();
+        })
+        .then();
+  }
+
   /**
    * Estimates the number of single-use pre-keys available for a given device.
 
@@ -172,6 +254,35 @@ public abstract class SingleUsePreKeyStore<K extends PreKey<?>> {
   public CompletableFuture<Integer> getCount(final UUID identifier, final long deviceId) {
     final Timer.Sample sample = Timer.start();
 
+    return dynamoDbAsyncClient.getItem(GetItemRequest.builder()
+            .tableName(tableName)
+            .key(Map.of(
+                KEY_ACCOUNT_UUID, getPartitionKey(identifier),
+                KEY_DEVICE_ID_KEY_ID, getKeyCountSortKey(deviceId)))
+            .consistentRead(false)
+            .build())
+        .thenCompose(response -> {
+          if (response.hasItem() && response.item().containsKey(ATTR_KEY_COUNT)) {
+            return CompletableFuture.completedFuture(AttributeValues.getInt(response.item(), ATTR_KEY_COUNT, 0));
+          }
+
+          // Keys stored before counts were maintained (and devices whose keys were all deleted along with their
+          // account) won't have a count, so count the keys once and remember the result
+          keyCountMissingCounter.increment();
+          return countKeys(identifier, deviceId)
+              .thenCompose(keyCount -> putKeyCountIfAbsent(identifier, deviceId, keyCount)
+                  .thenApply(ignored -> keyCount));
+        })
+        .whenComplete((keyCount, throwable) -> {
+          sample.stop(getKeyCountTimer);
+
+          if (throwable == null && keyCount != null) {
+            availableKeyCountDistributionSummary.record(keyCount);
+          }
+        });
+  }
+
+  private CompletableFuture<Integer> countKeys(final UUID identifier, final long deviceId) {
     // Getting an accurate count from DynamoDB can be very confusing. See:
     //
     // - https://github.com/aws/aws-sdk-java/issues/693
@@ -189,13 +300,27 @@ public abstract class SingleUsePreKeyStore<K extends PreKey<?>> {
             .build()))
         .map(QueryResponse::count)
         .reduce(0, Integer::sum)
-        .toFuture()
-        .whenComplete((keyCount, throwable) -> {
-          sample.stop(getKeyCountTimer);
+        .toFuture();
+  }
 
-          if (throwable == null && keyCount != null) {
-            availableKeyCountDistributionSummary.record(keyCount);
+  /**
+   * Stores the given key count for a device unless the device already has a count (for example, because keys were
+   * stored while the keys were being counted). Failures are logged but otherwise ignored; the keys will just be
+   * counted again.
+   */
+  private CompletableFuture<Void> putKeyCountIfAbsent(final UUID identifier, final long deviceId, final int keyCount) {
+    return dynamoDbAsyncClient.putItem(PutItemRequest.builder()
+            .tableName(tableName)
+            .item(getKeyCountItem(identifier, deviceId, keyCount))
+            .conditionExpression("attribute_not_exists(#uuid)")
+            .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID))
+            .build())
+        .handle((ignored, throwable) -> {
+          if (throwable != null && !(ExceptionUtils.unwrap(throwable) instanceof ConditionalCheckFailedException)) {
+            logger.warn("Failed to store single-use pre-key count", throwable);
           }
+
+          return null;
         });
   }
 
@@ -223,7 +348,8 @@ public abstract class SingleUsePreKeyStore<K extends PreKey<?>> {
   }
 
   /**
-   * Removes all single-use pre-keys for a specific device.
+   * Removes all single-use pre-keys for a specific device. The device's key count is set to zero rather than removed so
+   * that checking the device's supply of keys doesn't require counting its (nonexistent) keys.
    *
    * @param identifier the identifier for the account/identity with which the target device is associated
    * @param deviceId the identifier for the device within the given account/identity
@@ -233,7 +359,20 @@ public abstract class SingleUsePreKeyStore<K extends PreKey<?>> {
   public CompletableFuture<Void> delete(final UUID identifier, final long deviceId) {
     final Timer.Sample sample = Timer.start();
 
-    return deleteItems(getPartitionKey(identifier), Flux.from(dynamoDbAsyncClient.queryPaginator(QueryRequest.builder()
+    final AttributeValue partitionKey = getPartitionKey(identifier);
+
+    return writeItems(queryItemsForDevice(identifier, deviceId)
+        .map(item -> getDeleteRequest(partitionKey, item))
+        .concatWith(Mono.just(WriteRequest.builder()
+            .putRequest(PutRequest.builder()
+                .item(getKeyCountItem(identifier, deviceId, 0))
+                .build())
+            .build())))
+        .thenRun(() -> sample.stop(deleteForDeviceTimer));
+  }
+
+  private Flux<Map<String, AttributeValue>> queryItemsForDevice(final UUID identifier, final long deviceId) {
+    return Flux.from(dynamoDbAsyncClient.queryPaginator(QueryRequest.builder()
             .tableName(tableName)
             .keyConditionExpression("#uuid = :uuid AND begins_with (#sort, :sortprefix)")
             .expressionAttributeNames(Map.of("#uuid", KEY_ACCOUNT_UUID, "#sort", KEY_DEVICE_ID_KEY_ID))
@@ -243,24 +382,59 @@ public abstract class SingleUsePreKeyStore<K extends PreKey<?>> {
             .projectionExpression(KEY_DEVICE_ID_KEY_ID)
             .consistentRead(true)
             .build())
-        .items()))
-        .thenRun(() -> sample.stop(deleteForDeviceTimer));
+        .items());
   }
 
   private CompletableFuture<Void> deleteItems(final AttributeValue partitionKey, final Flux<Map<String, AttributeValue>> items) {
-    return items
-        .map(item -> DeleteItemRequest.builder()
-            .tableName(tableName)
+    return writeItems(items.map(item -> getDeleteRequest(partitionKey, item)));
+  }
+
+  private static WriteRequest getDeleteRequest(final AttributeValue partitionKey,
+      final Map<String, AttributeValue> item) {
+
+    return WriteRequest.builder()
+        .deleteRequest(DeleteRequest.builder()
             .key(Map.of(
                 KEY_ACCOUNT_UUID, partitionKey,
-                KEY_DEVICE_ID_KEY_ID, item.get(KEY_DEVICE_ID_KEY_ID)
-            ))
+                KEY_DEVICE_ID_KEY_ID, item.get(KEY_DEVICE_ID_KEY_ID)))
             .build())
-        .flatMap(deleteItemRequest -> Mono.fromFuture(() -> dynamoDbAsyncClient.deleteItem(deleteItemRequest)), DYNAMO_DB_MAX_BATCH_SIZE)
-        // Idiom: wait for everything to finish, but discard the results
-        .reduce(0, (a, b) -> 0)
-        .toFuture()
-        .thenRun(Util.NOOP);
+        .build();
+  }
+
+  private CompletableFuture<Void> writeItems(final Flux<WriteRequest> writeRequests) {
+    return writeRequests
+        .buffer(DYNAMO_DB_MAX_BATCH_SIZE)
+        .flatMap(batch -> Mono.fromFuture(() -> writeBatchUntilComplete(batch, 1)), MAX_CONCURRENT_BATCH_WRITES)
+        .then()
+        .toFuture();
+  }
+
+  private CompletableFuture<Void> writeBatchUntilComplete(final List<WriteRequest> writeRequests, final int attempt) {
+    return dynamoDbAsyncClient.batchWriteItem(BatchWriteItemRequest.builder()
+            .requestItems(Map.of(tableName, writeRequests))
+            .build())
+        .thenCompose(response -> {
+          final List<WriteRequest> unprocessedItems = response.unprocessedItems().getOrDefault(tableName, List.of());
+
+          if (unprocessedItems.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+          }
+
+          unprocessedItemsCounter.increment(unprocessedItems.size());
+
+          if (attempt >= MAX_ATTEMPTS_TO_SAVE_BATCH_WRITE) {
+            return CompletableFuture.failedFuture(new IllegalStateException(
+                unprocessedItems.size() + " unprocessed items remain after " + attempt + " attempts"));
+          }
+
+          return Mono.delay(Duration.ofMillis(UNPROCESSED_ITEMS_BACKOFF.apply(attempt)))
+              .then(Mono.fromFuture(() -> writeBatchUntilComplete(unprocessedItems, attempt + 1)))
+              .toFuture();
+        });
+  }
+
+  private static long getKeyId(final Map<String, AttributeValue> item) {
+    return item.get(KEY_DEVICE_ID_KEY_ID).b().asByteBuffer().getLong(8);
   }
 
   protected static AttributeValue getPartitionKey(final UUID accountUuid) {
@@ -280,6 +454,27 @@ public abstract class SingleUsePreKeyStore<K extends PreKey<?>> {
     return AttributeValues.fromByteBuffer(byteBuffer.flip());
   }
 
+  /**
+   * Returns the sort key for the item holding a device's key count. The key begins with a marker byte that can't begin
+   * any device's key prefix (device IDs are never negative), so count items never appear in queries for a device's
+   * keys; they're still removed along with all of an account's keys.
+   */
+  private static AttributeValue getKeyCountSortKey(final long deviceId) {
+    final ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[9]);
+    byteBuffer.put(KEY_COUNT_SORT_KEY_MARKER);
+    byteBuffer.putLong(deviceId);
+    return AttributeValues.fromByteBuffer(byteBuffer.flip());
+  }
+
+  private static Map<String, AttributeValue> getKeyCountItem(final UUID identifier, final long deviceId,
+      final int keyCount) {
+
+    return Map.of(
+        KEY_ACCOUNT_UUID, getPartitionKey(identifier),
+        KEY_DEVICE_ID_KEY_ID, getKeyCountSortKey(deviceId),
+        ATTR_KEY_COUNT, AttributeValues.fromInt(keyCount));
+  }
+
   protected abstract Map<String, AttributeValue> getItemFromPreKey(final UUID identifier, final long deviceId,
       final K preKey);
 
@@ -7,6 +7,7 @@ package org.whispersystems.textsecuregcm.util;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonSerializer;
@@ -20,13 +21,22 @@ public class ByteArrayAdapter {
     @Override
     public void serialize(byte[] bytes, JsonGenerator jsonGenerator, SerializerProvider serializerProvider)
         throws IOException {
-      jsonGenerator.writeString(Base64.getEncoder().withoutPadding().encodeToString(bytes));
+      // binary formats (like the compact stored account format) can represent byte arrays without base64 overhead
+      if (jsonGenerator.canWriteBinaryNatively()) {
+        jsonGenerator.writeBinary(bytes);
+      } else {
+        jsonGenerator.writeString(Base64.getEncoder().withoutPadding().encodeToString(bytes));
+      }
     }
   }
 
   public static class Deserializing extends JsonDeserializer<byte[]> {
     @Override
     public byte[] deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException {
+      if (jsonParser.currentToken() == JsonToken.VALUE_EMBEDDED_OBJECT) {
+        return jsonParser.getBinaryValue();
+      }
+
       return Base64.getDecoder().decode(jsonParser.getValueAsString());
     }
   }
@@ -75,6 +75,8 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
       name(WebSocketConnection.class, "messagesPersisted"));
   private static final Meter bytesSentMeter = metricRegistry.meter(name(WebSocketConnection.class, "bytes_sent"));
   private static final Meter sendFailuresMeter = metricRegistry.meter(name(WebSocketConnection.class, "send_failures"));
+  private static final Histogram deletionBatchSize = metricRegistry.histogram(
+      name(WebSocketConnection.class, "deletionBatchSize"));
 
   private static final String INITIAL_QUEUE_LENGTH_DISTRIBUTION_NAME = name(WebSocketConnection.class,
       "initialQueueLength");
@@ -106,6 +108,9 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
 
   private static final int DEFAULT_SEND_FUTURES_TIMEOUT_MILLIS = 5 * 60 * 1000;
 
+  @VisibleForTesting
+  static final int MAX_DELETION_BATCH_SIZE = 100;
+
   private static final Logger logger = LoggerFactory.getLogger(WebSocketConnection.class);
 
   private final ReceiptSender receiptSender;
@@ -134,6 +139,11 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
 
   private final ClientReleaseManager clientReleaseManager;
 
+  // Deletions of acknowledged messages are coalesced: while one batch of deletions is in flight, later deletions
+  // accumulate and are sent together as the next batch
+  private final List<PendingDeletion> pendingDeletions = new ArrayList<>();
+  private boolean deletionInFlight = false;
+
   private enum StoredMessageState {
     EMPTY,
     CACHED_NEW_MESSAGES_AVAILABLE,
@@ -203,8 +213,9 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
   }
 
   private CompletableFuture<Void> sendMessage(final Envelope message, StoredMessageInfo storedMessageInfo) {
-    // clear ephemeral field from the envelope
-    final Optional<byte[]> body = Optional.ofNullable(message.toBuilder().clearEphemeral().build().toByteArray());
+    // clear ephemeral field from the envelope; most envelopes don’t have one, and needn’t be rebuilt
+    final Envelope envelopeToSend = message.hasEphemeral() ? message.toBuilder().clearEphemeral().build() : message;
+    final Optional<byte[]> body = Optional.of(envelopeToSend.toByteArray());
 
     sendMessageMeter.mark();
     sentMessageCounter.increment();
@@ -224,9 +235,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
           final CompletableFuture<Void> result;
           if (isSuccessResponse(response)) {
 
-            result = messagesManager.delete(auth.getAccount().getUuid(), device.getId(),
-                    storedMessageInfo.guid(), storedMessageInfo.serverTimestamp())
-                .thenApply(ignored -> null);
+            result = deleteMessage(storedMessageInfo.guid(), storedMessageInfo.serverTimestamp());
 
             if (message.getType() != Envelope.Type.SERVER_DELIVERY_RECEIPT) {
               recordMessageDeliveryDuration(message.getTimestamp(), device);
@@ -253,6 +262,65 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
         });
   }
 
+  private CompletableFuture<Void> deleteMessage(final UUID guid, final long serverTimestamp) {
+    final CompletableFuture<Void> deletedFuture = new CompletableFuture<>();
+    final boolean shouldFlush;
+
+    synchronized (pendingDeletions) {
+      pendingDeletions.add(
+          new PendingDeletion(new MessagesManager.MessageToDelete(guid, serverTimestamp), deletedFuture));
+
+      shouldFlush = !deletionInFlight;
+      deletionInFlight = true;
+    }
+
+    if (shouldFlush) {
+      flushPendingDeletions();
+    }
+
+    return deletedFuture;
+  }
+
+  private void flushPendingDeletions() {
+    final List<PendingDeletion> batch;
+
+    synchronized (pendingDeletions) {
+      if (pendingDeletions.isEmpty()) {
+        deletionInFlight = false;
+        return;
+      }
+
+      final List<PendingDeletion> nextDeletions =
+          pendingDeletions.subList(0, Math.min(pendingDeletions.size(), MAX_DELETION_BATCH_SIZE));
+
+      batch = new ArrayList<>(nextDeletions);
+      nextDeletions.clear();
+    }
+
+    deletionBatchSize.update(batch.size());
+
+    CompletableFuture<Void> deleteFuture;
+
+    try {
+      deleteFuture = messagesManager.delete(auth.getAccount().getUuid(), device.getId(),
+          batch.stream().map(PendingDeletion::message).toList());
+    } catch (final Exception e) {
+      deleteFuture = CompletableFuture.failedFuture(e);
+    }
+
+    deleteFuture.whenComplete((ignored, throwable) -> {
+      for (final PendingDeletion pendingDeletion : batch) {
+        if (throwable == null) {
+          pendingDeletion.deletedFuture().complete(null);
+        } else {
+          pendingDeletion.deletedFuture().completeExceptionally(throwable);
+        }
+      }
+
+      flushPendingDeletions();
+    });
+  }
+
   public static void recordMessageDeliveryDuration(long timestamp, Device messageDestinationDevice) {
     final long messageDeliveryDuration = System.currentTimeMillis() - timestamp;
     messageTime.update(messageDeliveryDuration);
@@ -409,7 +477,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
     final UUID messageGuid = UUID.fromString(envelope.getServerGuid());
 
     if (envelope.getStory() && !client.shouldDeliverStories()) {
-      messagesManager.delete(auth.getAccount().getUuid(), device.getId(), messageGuid, envelope.getServerTimestamp());
+      deleteMessage(messageGuid, envelope.getServerTimestamp());
 
       return CompletableFuture.completedFuture(null);
     } else {
@@ -482,4 +550,7 @@ public class WebSocketConnection implements MessageAvailabilityListener, Displac
   private record StoredMessageInfo(UUID guid, long serverTimestamp) {
 
   }
+
+  private record PendingDeletion(MessagesManager.MessageToDelete message, CompletableFuture<Void> deletedFuture) {
+  }
 }
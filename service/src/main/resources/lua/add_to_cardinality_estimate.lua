@@ -0,0 +1,19 @@
+-- Adds a batch of elements to a HyperLogLog, sets the HyperLogLog's time-to-live if it doesn't already have one, and
+-- returns its estimated cardinality.
+
+local hllKey = KEYS[1]
+local ttlMillis = tonumber(ARGV[1])
+
+-- add elements in chunks to stay well clear of Lua's limit on the number of arguments to a function
+local CHUNK_SIZE = 1000
+
+for i = 2, #ARGV, CHUNK_SIZE do
+    redis.call("PFADD", hllKey, unpack(ARGV, i, math.min(i + CHUNK_SIZE - 1, #ARGV)))
+end
+
+-- this could be a single EXPIRE with the NX option in Redis 7.x
+if redis.call("PTTL", hllKey) == -1 then
+    redis.call("PEXPIRE", hllKey, ttlMillis)
+end
+
+return redis.call("PFCOUNT", hllKey)
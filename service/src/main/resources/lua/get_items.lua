@@ -2,6 +2,7 @@ local queueKey     = KEYS[1]
 local queueLockKey = KEYS[2]
 local limit        = ARGV[1]
 local afterMessageId = ARGV[2]
+local maxBytes     = tonumber(ARGV[3])
 
 local locked = redis.call("GET", queueLockKey)
 
@@ -9,6 +10,8 @@ if locked then
     return {}
 end
 
+local items
+
 if afterMessageId == "null" then
     -- An index range is inclusive
     local min = 0
@@ -18,8 +21,32 @@ if afterMessageId == "null" then
         return {}
     end
 
-    return redis.call("ZRANGE", queueKey, min, max, "WITHSCORES")
+    items = redis.call("ZRANGE", queueKey, min, max, "WITHSCORES")
 else
     -- note: this is deprecated in Redis 6.2, and should be migrated to zrange after the cluster is updated
-    return redis.call("ZRANGEBYSCORE", queueKey, "("..afterMessageId, "+inf", "WITHSCORES", "LIMIT", 0, limit)
+    items = redis.call("ZRANGEBYSCORE", queueKey, "("..afterMessageId, "+inf", "WITHSCORES", "LIMIT", 0, limit)
+end
+
+if #items == 0 then
+    return items
 end
+
+-- trim the page to the byte limit, but always return at least one message
+local bytes = 0
+
+for i = 1, #items, 2 do
+    bytes = bytes + string.len(items[i])
+
+    if i > 1 and bytes > maxBytes then
+        for _ = #items, i, -1 do
+            table.remove(items)
+        end
+
+        break
+    end
+end
+
+-- the last element is the number of messages remaining in the queue after this page
+table.insert(items, tostring(redis.call("ZCOUNT", queueKey, "("..items[#items], "+inf")))
+
+return items
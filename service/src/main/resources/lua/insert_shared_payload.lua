@@ -0,0 +1,12 @@
+local sharedPayloadKey = KEYS[1]
+local payload          = ARGV[1]
+local references       = ARGV[2]
+
+-- the key is derived from the payload itself, so an existing payload is always identical to this one
+redis.call("HSETNX", sharedPayloadKey, "payload", payload)
+
+local totalReferences = redis.call("HINCRBY", sharedPayloadKey, "references", references)
+
+redis.call("EXPIRE", sharedPayloadKey, 7776000) -- 90 days, to match message queues
+
+return totalReferences
@@ -0,0 +1,14 @@
+local sharedPayloadKey = KEYS[1]
+local references       = ARGV[1]
+
+if redis.call("EXISTS", sharedPayloadKey) == 0 then
+    return 0
+end
+
+local remainingReferences = redis.call("HINCRBY", sharedPayloadKey, "references", -tonumber(references))
+
+if remainingReferences <= 0 then
+    redis.call("DEL", sharedPayloadKey)
+end
+
+return remainingReferences
@@ -35,4 +35,29 @@ class SaltedTokenHashTest {
     assertThat(provided.verify("wrong")).isFalse();
   }
 
+  @Test
+  void testMatchingRepeatedly() {
+    SaltedTokenHash credentials = SaltedTokenHash.generateFor("mypassword");
+
+    assertThat(credentials.verify("mypassword")).isTrue();
+    assertThat(credentials.verify("mypassword")).isTrue();
+    assertThat(credentials.verify("wrong")).isFalse();
+    assertThat(credentials.verify("mypassword")).isTrue();
+  }
+
+  @Test
+  void testMisMatchingAfterVerified() {
+    SaltedTokenHash credentials = SaltedTokenHash.generateFor("mypassword");
+    assertThat(credentials.verify("mypassword")).isTrue();
+
+    // a previously-verified token must not verify against the same hash with a different salt
+    SaltedTokenHash differentSalt = new SaltedTokenHash(credentials.hash(), credentials.salt() + "00");
+    assertThat(differentSalt.verify("mypassword")).isFalse();
+
+    // ...and changing credentials must not leave old tokens verifiable
+    SaltedTokenHash changedCredentials = SaltedTokenHash.generateFor("newpassword");
+    assertThat(changedCredentials.verify("mypassword")).isFalse();
+    assertThat(changedCredentials.verify("newpassword")).isTrue();
+  }
+
 }
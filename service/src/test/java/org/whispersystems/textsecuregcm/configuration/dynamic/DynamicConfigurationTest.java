@@ -386,4 +386,27 @@ class DynamicConfigurationTest {
     }
   }
 
+  @Test
+  void testParseSharedMultiRecipientPayload() throws JsonProcessingException {
+    {
+      final String emptyConfigYaml = REQUIRED_CONFIG.concat("test: true");
+      final DynamicConfiguration emptyConfig =
+          DynamicConfigurationManager.parseConfiguration(emptyConfigYaml, DynamicConfiguration.class).orElseThrow();
+
+      assertFalse(emptyConfig.getSharedMultiRecipientPayloadConfiguration().enabled());
+    }
+
+    {
+      final String sharedPayloadEnabledYaml = REQUIRED_CONFIG.concat("""
+          sharedMultiRecipientPayload:
+            enabled: true
+          """);
+
+      final DynamicConfiguration config =
+          DynamicConfigurationManager.parseConfiguration(sharedPayloadEnabledYaml, DynamicConfiguration.class)
+              .orElseThrow();
+
+      assertTrue(config.getSharedMultiRecipientPayloadConfiguration().enabled());
+    }
+  }
 }
@@ -226,13 +226,17 @@ class KeysControllerTest {
     when(rateLimiters.getPreKeysLimiter()).thenReturn(rateLimiter);
 
     when(KEYS.store(any(), anyLong(), any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(null));
-    when(KEYS.getEcSignedPreKey(any(), anyLong())).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+    when(KEYS.getEcSignedPreKeys(any(), any())).thenReturn(CompletableFuture.completedFuture(Map.of()));
     when(KEYS.storeEcSignedPreKeys(any(), any())).thenReturn(CompletableFuture.completedFuture(null));
 
-    when(KEYS.takeEC(EXISTS_UUID, 1)).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_KEY)));
-    when(KEYS.takePQ(EXISTS_UUID, 1)).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_PQ_KEY)));
-    when(KEYS.takeEC(EXISTS_PNI, 1)).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_KEY_PNI)));
-    when(KEYS.takePQ(EXISTS_PNI, 1)).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_PQ_KEY_PNI)));
+    when(KEYS.takeAll(EXISTS_UUID, List.of(1L), false)).thenReturn(CompletableFuture.completedFuture(
+        Map.of(1L, new KeysManager.DevicePreKeys(SAMPLE_KEY, null))));
+    when(KEYS.takeAll(EXISTS_UUID, List.of(1L), true)).thenReturn(CompletableFuture.completedFuture(
+        Map.of(1L, new KeysManager.DevicePreKeys(SAMPLE_KEY, SAMPLE_PQ_KEY))));
+    when(KEYS.takeAll(EXISTS_PNI, List.of(1L), false)).thenReturn(CompletableFuture.completedFuture(
+        Map.of(1L, new KeysManager.DevicePreKeys(SAMPLE_KEY_PNI, null))));
+    when(KEYS.takeAll(EXISTS_PNI, List.of(1L), true)).thenReturn(CompletableFuture.completedFuture(
+        Map.of(1L, new KeysManager.DevicePreKeys(SAMPLE_KEY_PNI, SAMPLE_PQ_KEY_PNI))));
 
     when(KEYS.getEcCount(AuthHelper.VALID_UUID, 1)).thenReturn(CompletableFuture.completedFuture(5));
     when(KEYS.getPqCount(AuthHelper.VALID_UUID, 1)).thenReturn(CompletableFuture.completedFuture(5));
@@ -335,14 +339,15 @@ class KeysControllerTest {
     assertEquals(existsAccount.getDevice(1).get().getSignedPreKey(IdentityType.ACI),
         result.getDevice(1).getSignedPreKey());
 
-    verify(KEYS).takeEC(EXISTS_UUID, 1);
-    verify(KEYS).getEcSignedPreKey(EXISTS_UUID, 1);
+    verify(KEYS).takeAll(EXISTS_UUID, List.of(1L), false);
+    verify(KEYS).getEcSignedPreKeys(EXISTS_UUID, List.of(1L));
     verifyNoMoreInteractions(KEYS);
   }
 
   @Test
   void validSingleRequestPqTestNoPqKeysV2() {
-    when(KEYS.takePQ(EXISTS_UUID, 1)).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+    when(KEYS.takeAll(EXISTS_UUID, List.of(1L), true)).thenReturn(CompletableFuture.completedFuture(
+        Map.of(1L, new KeysManager.DevicePreKeys(SAMPLE_KEY, null))));
 
     PreKeyResponse result = resources.getJerseyTest()
         .target(String.format("/v2/keys/%s/1", EXISTS_UUID))
@@ -359,9 +364,8 @@ class KeysControllerTest {
     assertEquals(existsAccount.getDevice(1).get().getSignedPreKey(IdentityType.ACI),
         result.getDevice(1).getSignedPreKey());
 
-    verify(KEYS).takeEC(EXISTS_UUID, 1);
-    verify(KEYS).takePQ(EXISTS_UUID, 1);
-    verify(KEYS).getEcSignedPreKey(EXISTS_UUID, 1);
+    verify(KEYS).takeAll(EXISTS_UUID, List.of(1L), true);
+    verify(KEYS).getEcSignedPreKeys(EXISTS_UUID, List.of(1L));
     verifyNoMoreInteractions(KEYS);
   }
 
@@ -382,9 +386,8 @@ class KeysControllerTest {
     assertEquals(existsAccount.getDevice(1).get().getSignedPreKey(IdentityType.ACI),
         result.getDevice(1).getSignedPreKey());
 
-    verify(KEYS).takeEC(EXISTS_UUID, 1);
-    verify(KEYS).takePQ(EXISTS_UUID, 1);
-    verify(KEYS).getEcSignedPreKey(EXISTS_UUID, 1);
+    verify(KEYS).takeAll(EXISTS_UUID, List.of(1L), true);
+    verify(KEYS).getEcSignedPreKeys(EXISTS_UUID, List.of(1L));
     verifyNoMoreInteractions(KEYS);
   }
 
@@ -404,8 +407,8 @@ class KeysControllerTest {
     assertEquals(existsAccount.getDevice(1).get().getSignedPreKey(IdentityType.PNI),
         result.getDevice(1).getSignedPreKey());
 
-    verify(KEYS).takeEC(EXISTS_PNI, 1);
-    verify(KEYS).getEcSignedPreKey(EXISTS_PNI, 1);
+    verify(KEYS).takeAll(EXISTS_PNI, List.of(1L), false);
+    verify(KEYS).getEcSignedPreKeys(EXISTS_PNI, List.of(1L));
     verifyNoMoreInteractions(KEYS);
   }
 
@@ -426,9 +429,8 @@ class KeysControllerTest {
     assertEquals(existsAccount.getDevice(1).get().getSignedPreKey(IdentityType.PNI),
         result.getDevice(1).getSignedPreKey());
 
-    verify(KEYS).takeEC(EXISTS_PNI, 1);
-    verify(KEYS).takePQ(EXISTS_PNI, 1);
-    verify(KEYS).getEcSignedPreKey(EXISTS_PNI, 1);
+    verify(KEYS).takeAll(EXISTS_PNI, List.of(1L), true);
+    verify(KEYS).getEcSignedPreKeys(EXISTS_PNI, List.of(1L));
     verifyNoMoreInteractions(KEYS);
   }
 
@@ -450,8 +452,8 @@ class KeysControllerTest {
     assertEquals(existsAccount.getDevice(1).get().getSignedPreKey(IdentityType.PNI),
         result.getDevice(1).getSignedPreKey());
 
-    verify(KEYS).takeEC(EXISTS_PNI, 1);
-    verify(KEYS).getEcSignedPreKey(EXISTS_PNI, 1);
+    verify(KEYS).takeAll(EXISTS_PNI, List.of(1L), false);
+    verify(KEYS).getEcSignedPreKeys(EXISTS_PNI, List.of(1L));
     verifyNoMoreInteractions(KEYS);
   }
 
@@ -486,9 +488,8 @@ class KeysControllerTest {
     assertEquals(existsAccount.getDevice(1).get().getSignedPreKey(IdentityType.ACI),
         result.getDevice(1).getSignedPreKey());
 
-    verify(KEYS).takeEC(EXISTS_UUID, 1);
-    verify(KEYS).takePQ(EXISTS_UUID, 1);
-    verify(KEYS).getEcSignedPreKey(EXISTS_UUID, 1);
+    verify(KEYS).takeAll(EXISTS_UUID, List.of(1L), true);
+    verify(KEYS).getEcSignedPreKeys(EXISTS_UUID, List.of(1L));
     verifyNoMoreInteractions(KEYS);
   }
 
@@ -534,10 +535,10 @@ class KeysControllerTest {
 
   @Test
   void validMultiRequestTestV2() {
-    when(KEYS.takeEC(EXISTS_UUID, 1)).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_KEY)));
-    when(KEYS.takeEC(EXISTS_UUID, 2)).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_KEY2)));
-    when(KEYS.takeEC(EXISTS_UUID, 3)).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_KEY3)));
-    when(KEYS.takeEC(EXISTS_UUID, 4)).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_KEY4)));
+    when(KEYS.takeAll(EXISTS_UUID, List.of(1L, 2L, 4L), false)).thenReturn(CompletableFuture.completedFuture(Map.of(
+        1L, new KeysManager.DevicePreKeys(SAMPLE_KEY, null),
+        2L, new KeysManager.DevicePreKeys(SAMPLE_KEY2, null),
+        4L, new KeysManager.DevicePreKeys(SAMPLE_KEY4, null))));
 
     PreKeyResponse results = resources.getJerseyTest()
         .target(String.format("/v2/keys/%s/*", EXISTS_UUID))
@@ -578,26 +579,17 @@ class KeysControllerTest {
     assertThat(signedPreKey).isNull();
     assertThat(deviceId).isEqualTo(4);
 
-    verify(KEYS).takeEC(EXISTS_UUID, 1);
-    verify(KEYS).takeEC(EXISTS_UUID, 2);
-    verify(KEYS).takeEC(EXISTS_UUID, 4);
-    verify(KEYS).getEcSignedPreKey(EXISTS_UUID, 1);
-    verify(KEYS).getEcSignedPreKey(EXISTS_UUID, 2);
-    verify(KEYS).getEcSignedPreKey(EXISTS_UUID, 4);
+    verify(KEYS).takeAll(EXISTS_UUID, List.of(1L, 2L, 4L), false);
+    verify(KEYS).getEcSignedPreKeys(EXISTS_UUID, List.of(1L, 2L, 4L));
     verifyNoMoreInteractions(KEYS);
   }
 
   @Test
   void validMultiRequestPqTestV2() {
-    when(KEYS.takeEC(any(), anyLong())).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
-    when(KEYS.takePQ(any(), anyLong())).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
-
-    when(KEYS.takeEC(EXISTS_UUID, 1)).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_KEY)));
-    when(KEYS.takeEC(EXISTS_UUID, 3)).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_KEY3)));
-    when(KEYS.takeEC(EXISTS_UUID, 4)).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_KEY4)));
-    when(KEYS.takePQ(EXISTS_UUID, 1)).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_PQ_KEY)));
-    when(KEYS.takePQ(EXISTS_UUID, 2)).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_PQ_KEY2)));
-    when(KEYS.takePQ(EXISTS_UUID, 3)).thenReturn(CompletableFuture.completedFuture(Optional.of(SAMPLE_PQ_KEY3)));
+    when(KEYS.takeAll(EXISTS_UUID, List.of(1L, 2L, 4L), true)).thenReturn(CompletableFuture.completedFuture(Map.of(
+        1L, new KeysManager.DevicePreKeys(SAMPLE_KEY, SAMPLE_PQ_KEY),
+        2L, new KeysManager.DevicePreKeys(null, SAMPLE_PQ_KEY2),
+        4L, new KeysManager.DevicePreKeys(SAMPLE_KEY4, null))));
 
     PreKeyResponse results = resources.getJerseyTest()
         .target(String.format("/v2/keys/%s/*", EXISTS_UUID))
@@ -645,15 +637,8 @@ class KeysControllerTest {
     assertThat(signedPreKey).isNull();
     assertThat(deviceId).isEqualTo(4);
 
-    verify(KEYS).takeEC(EXISTS_UUID, 1);
-    verify(KEYS).takePQ(EXISTS_UUID, 1);
-    verify(KEYS).takeEC(EXISTS_UUID, 2);
-    verify(KEYS).takePQ(EXISTS_UUID, 2);
-    verify(KEYS).takeEC(EXISTS_UUID, 4);
-    verify(KEYS).takePQ(EXISTS_UUID, 4);
-    verify(KEYS).getEcSignedPreKey(EXISTS_UUID, 1);
-    verify(KEYS).getEcSignedPreKey(EXISTS_UUID, 2);
-    verify(KEYS).getEcSignedPreKey(EXISTS_UUID, 4);
+    verify(KEYS).takeAll(EXISTS_UUID, List.of(1L, 2L, 4L), true);
+    verify(KEYS).getEcSignedPreKeys(EXISTS_UUID, List.of(1L, 2L, 4L));
     verifyNoMoreInteractions(KEYS);
   }
 
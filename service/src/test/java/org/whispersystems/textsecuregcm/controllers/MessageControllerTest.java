@@ -9,6 +9,7 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
@@ -19,7 +20,6 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.anyBoolean;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.atLeastOnce;
-import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
@@ -52,7 +52,6 @@ import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -83,6 +82,7 @@ import org.whispersystems.textsecuregcm.auth.OptionalAccess;
 import org.whispersystems.textsecuregcm.auth.UnidentifiedAccessUtil;
 import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
 import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicInboundMessageByteLimitConfiguration;
+import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicSharedMultiRecipientPayloadConfiguration;
 import org.whispersystems.textsecuregcm.entities.AccountMismatchedDevices;
 import org.whispersystems.textsecuregcm.entities.AccountStaleDevices;
 import org.whispersystems.textsecuregcm.entities.ECSignedPreKey;
@@ -107,7 +107,6 @@ import org.whispersystems.textsecuregcm.limits.RateLimiters;
 import org.whispersystems.textsecuregcm.mappers.RateLimitExceededExceptionMapper;
 import org.whispersystems.textsecuregcm.providers.MultiRecipientMessageProvider;
 import org.whispersystems.textsecuregcm.push.MessageSender;
-import org.whispersystems.textsecuregcm.push.NotPushRegisteredException;
 import org.whispersystems.textsecuregcm.push.PushNotificationManager;
 import org.whispersystems.textsecuregcm.push.ReceiptSender;
 import org.whispersystems.textsecuregcm.spam.ReportSpamTokenProvider;
@@ -217,6 +216,8 @@ class MessageControllerTest {
 
     final DynamicConfiguration dynamicConfiguration = mock(DynamicConfiguration.class);
     when(dynamicConfiguration.getInboundMessageByteLimitConfiguration()).thenReturn(inboundMessageByteLimitConfiguration);
+    when(dynamicConfiguration.getSharedMultiRecipientPayloadConfiguration())
+        .thenReturn(new DynamicSharedMultiRecipientPayloadConfiguration(false));
 
     when(dynamicConfigurationManager.getConfiguration()).thenReturn(dynamicConfiguration);
 
@@ -987,19 +988,6 @@ class MessageControllerTest {
     // set up the entity to use in our PUT request
     Entity<InputStream> entity = Entity.entity(stream, MultiRecipientMessageProvider.MEDIA_TYPE);
 
-    when(multiRecipientMessageExecutor.invokeAll(any()))
-        .thenAnswer(answer -> {
-          final List<Callable> tasks = answer.getArgument(0, List.class);
-          tasks.forEach(c -> {
-            try {
-              c.call();
-            } catch (Exception e) {
-              throw new RuntimeException(e);
-            }
-          });
-          return null;
-        });
-
     // start building the request
     Invocation.Builder bldr = resources
         .getJerseyTest()
@@ -1021,9 +1009,10 @@ class MessageControllerTest {
     Response response = bldr.put(entity);
 
     if (authorize) {
-      ArgumentCaptor<Envelope> envelopeArgumentCaptor = ArgumentCaptor.forClass(Envelope.class);
-      verify(messageSender, atLeastOnce()).sendMessage(any(), any(), envelopeArgumentCaptor.capture(), anyBoolean());
-      assertEquals(urgent, envelopeArgumentCaptor.getValue().getUrgent());
+      ArgumentCaptor<List<MessageSender.DeviceMessage>> deviceMessagesCaptor = ArgumentCaptor.forClass(List.class);
+      verify(messageSender, atLeastOnce()).sendMessages(deviceMessagesCaptor.capture(), any(), anyBoolean(), any());
+      deviceMessagesCaptor.getValue()
+          .forEach(deviceMessage -> assertEquals(urgent, deviceMessage.message().getUrgent()));
     }
 
     // We have a 2x2x2 grid of possible situations based on:
@@ -1309,21 +1298,7 @@ class MessageControllerTest {
 
   @ParameterizedTest
   @MethodSource
-  void sendMultiRecipientMessage404(final ServiceIdentifier serviceIdentifier)
-      throws NotPushRegisteredException, InterruptedException {
-
-    when(multiRecipientMessageExecutor.invokeAll(any()))
-        .thenAnswer(answer -> {
-          final List<Callable> tasks = answer.getArgument(0, List.class);
-          tasks.forEach(c -> {
-            try {
-              c.call();
-            } catch (Exception e) {
-              throw new RuntimeException(e);
-            }
-          });
-          return null;
-        });
+  void sendMultiRecipientMessage404(final ServiceIdentifier serviceIdentifier) throws Exception {
 
     final List<Recipient> recipients = List.of(
         new Recipient(serviceIdentifier, MULTI_DEVICE_ID1, MULTI_DEVICE_REG_ID1, new byte[48]),
@@ -1349,8 +1324,9 @@ class MessageControllerTest {
         .header(HttpHeaders.USER_AGENT, "FIXME")
         .header(OptionalAccess.UNIDENTIFIED, Base64.getEncoder().encodeToString(UNIDENTIFIED_ACCESS_BYTES));
 
-    doThrow(NotPushRegisteredException.class)
-        .when(messageSender).sendMessage(any(), any(), any(), anyBoolean());
+    // every device is not push-registered
+    when(messageSender.sendMessages(any(), any(), anyBoolean(), any()))
+        .thenAnswer(invocation -> invocation.getArgument(0));
 
     // make the PUT request
     final SendMultiRecipientMessageResponse response = invocationBuilder.put(entity, SendMultiRecipientMessageResponse.class);
@@ -1364,16 +1340,53 @@ class MessageControllerTest {
         Arguments.of(new PniServiceIdentifier(MULTI_DEVICE_PNI)));
   }
 
+  @Test
+  void sendMultiRecipientMessageSharedPayload() throws Exception {
+    when(dynamicConfigurationManager.getConfiguration().getSharedMultiRecipientPayloadConfiguration())
+        .thenReturn(new DynamicSharedMultiRecipientPayloadConfiguration(true));
+
+    final List<Recipient> recipients = List.of(
+        new Recipient(new AciServiceIdentifier(MULTI_DEVICE_UUID), MULTI_DEVICE_ID1, MULTI_DEVICE_REG_ID1, new byte[48]),
+        new Recipient(new AciServiceIdentifier(MULTI_DEVICE_UUID), MULTI_DEVICE_ID2, MULTI_DEVICE_REG_ID2, new byte[48]));
+
+    final byte[] buffer = new byte[2048];
+    final InputStream stream = initializeMultiPayload(recipients, buffer, true);
+
+    final Response response = resources
+        .getJerseyTest()
+        .target("/v1/messages/multi_recipient")
+        .queryParam("online", false)
+        .queryParam("ts", System.currentTimeMillis())
+        .queryParam("story", true)
+        .request()
+        .header(HttpHeaders.USER_AGENT, "FIXME")
+        .put(Entity.entity(stream, MultiRecipientMessageProvider.MEDIA_TYPE));
+
+    assertEquals(200, response.getStatus());
+
+    final ArgumentCaptor<List<MessageSender.DeviceMessage>> deviceMessagesCaptor = ArgumentCaptor.forClass(List.class);
+    final ArgumentCaptor<byte[]> sharedContentSuffixCaptor = ArgumentCaptor.forClass(byte[].class);
+
+    verify(messageSender).sendMessages(deviceMessagesCaptor.capture(), sharedContentSuffixCaptor.capture(),
+        eq(false), any());
+
+    // the common payload is passed once, and each message only holds the version byte and its key material
+    assertArrayEquals(new byte[39], sharedContentSuffixCaptor.getValue());
+    assertEquals(2, deviceMessagesCaptor.getValue().size());
+    deviceMessagesCaptor.getValue().forEach(deviceMessage ->
+        assertEquals(1 + 48, deviceMessage.message().getContent().size()));
+  }
+
   private void checkBadMultiRecipientResponse(Response response, int expectedCode) throws Exception {
     assertThat("Unexpected response", response.getStatus(), is(equalTo(expectedCode)));
     verify(messageSender, never()).sendMessage(any(), any(), any(), anyBoolean());
-    verify(multiRecipientMessageExecutor, never()).invokeAll(any());
+    verify(messageSender, never()).sendMessages(any(), any(), anyBoolean(), any());
   }
 
   private void checkGoodMultiRecipientResponse(Response response, int expectedCount) throws Exception {
     assertThat("Unexpected response", response.getStatus(), is(equalTo(200)));
-    ArgumentCaptor<List<Callable<Void>>> captor = ArgumentCaptor.forClass(List.class);
-    verify(multiRecipientMessageExecutor, times(1)).invokeAll(captor.capture());
+    ArgumentCaptor<List<MessageSender.DeviceMessage>> captor = ArgumentCaptor.forClass(List.class);
+    verify(messageSender, times(1)).sendMessages(captor.capture(), any(), anyBoolean(), any());
     assert (captor.getValue().size() == expectedCount);
     SendMultiRecipientMessageResponse smrmr = response.readEntity(SendMultiRecipientMessageResponse.class);
     assert (smrmr.uuids404().isEmpty());
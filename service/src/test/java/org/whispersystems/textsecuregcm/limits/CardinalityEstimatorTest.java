@@ -6,12 +6,15 @@
 package org.whispersystems.textsecuregcm.limits;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
 import org.whispersystems.textsecuregcm.redis.RedisClusterExtension;
 import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class CardinalityEstimatorTest {
 
@@ -37,6 +40,32 @@ public class CardinalityEstimatorTest {
     assertThat(count).isEqualTo(2).isEqualTo(estimator.estimate());
   }
 
+  @Test
+  public void testBufferedAdd() {
+    final FaultTolerantRedisCluster redisCluster = REDIS_CLUSTER_EXTENSION.getRedisCluster();
+    final CardinalityEstimator estimator = new CardinalityEstimator(redisCluster, "test", Duration.ofSeconds(1),
+        mock(ScheduledExecutorService.class), Duration.ofSeconds(1));
+
+    estimator.add("1");
+    estimator.add("2");
+    estimator.add("1");
+
+    // buffered elements shouldn't reach the shared estimate until flushed
+    long count = redisCluster.withCluster(conn -> conn.sync().pfcount("cardinality_estimator::test"));
+    assertThat(count).isEqualTo(0).isEqualTo(estimator.estimate());
+
+    estimator.flush().toCompletableFuture().join();
+    count = redisCluster.withCluster(conn -> conn.sync().pfcount("cardinality_estimator::test"));
+    assertThat(count).isEqualTo(2).isEqualTo(estimator.estimate());
+    final long ttl = redisCluster.withCluster(conn -> conn.sync().pttl("cardinality_estimator::test"));
+    assertThat(ttl).isPositive();
+
+    estimator.add("3");
+    estimator.stop();
+    count = redisCluster.withCluster(conn -> conn.sync().pfcount("cardinality_estimator::test"));
+    assertThat(count).isEqualTo(3).isEqualTo(estimator.estimate());
+  }
+
   @Test
   @Timeout(5)
   public void testEventuallyExpires() throws InterruptedException {
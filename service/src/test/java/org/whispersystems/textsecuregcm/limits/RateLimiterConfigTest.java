@@ -27,4 +27,17 @@ class RateLimiterConfigTest {
     assertFalse(new RateLimiterConfig(1, Duration.ZERO).hasPositiveRegenerationRate());
     assertFalse(new RateLimiterConfig(1, Duration.ofSeconds(-1)).hasPositiveRegenerationRate());
   }
+
+  @Test
+  void isLocalLeaseSmallerThanBucket() {
+    assertTrue(new RateLimiterConfig(1, Duration.ofSeconds(1)).isLocalLeaseSmallerThanBucket());
+    assertTrue(new RateLimiterConfig(10, Duration.ofSeconds(1), 9).isLocalLeaseSmallerThanBucket());
+    assertFalse(new RateLimiterConfig(10, Duration.ofSeconds(1), 10).isLocalLeaseSmallerThanBucket());
+  }
+
+  @Test
+  void localLeaseDuration() {
+    assertEquals(Duration.ZERO, new RateLimiterConfig(10, Duration.ofSeconds(1)).localLeaseDuration());
+    assertEquals(Duration.ofSeconds(5), new RateLimiterConfig(10, Duration.ofSeconds(1), 5).localLeaseDuration());
+  }
 }
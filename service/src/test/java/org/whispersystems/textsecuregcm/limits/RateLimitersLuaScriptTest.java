@@ -10,6 +10,9 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -20,11 +23,13 @@ import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletionException;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
 import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicRateLimitPolicy;
 import org.whispersystems.textsecuregcm.controllers.RateLimitExceededException;
+import org.whispersystems.textsecuregcm.redis.ClusterLuaScript;
 import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
 import org.whispersystems.textsecuregcm.redis.RedisClusterExtension;
 import org.whispersystems.textsecuregcm.storage.DynamicConfigurationManager;
@@ -87,6 +92,121 @@ public class RateLimitersLuaScriptTest {
     assertTrue(ttl <= 200000);
   }
 
+  @Test
+  public void testValidateAll() throws Exception {
+    final RateLimiters.For descriptor = RateLimiters.For.STORIES;
+    final FaultTolerantRedisCluster redisCluster = REDIS_CLUSTER_EXTENSION.getRedisCluster();
+    final RateLimiters limiters = new RateLimiters(
+        Map.of(descriptor.id(), new RateLimiterConfig(10, Duration.ofSeconds(1))),
+        dynamicConfig,
+        RateLimiters.defaultScript(redisCluster),
+        redisCluster,
+        clock);
+
+    final RateLimiter rateLimiter = limiters.forDescriptor(descriptor);
+    rateLimiter.validate("exhausted", 10);
+
+    final Map<String, Duration> retryDurationsByKey =
+        rateLimiter.validateAll(List.of("fresh", "exhausted", "fresh", "other"), 5);
+
+    assertEquals(Map.of("exhausted", Duration.ofSeconds(5)), retryDurationsByKey);
+
+    // duplicate keys should only be charged once
+    assertEquals("5", sharedPermitsRemaining(descriptor, "fresh"));
+    assertEquals("5", sharedPermitsRemaining(descriptor, "other"));
+  }
+
+  @Test
+  public void testLocalLease() throws Exception {
+    final RateLimiters.For descriptor = RateLimiters.For.REGISTRATION;
+    final FaultTolerantRedisCluster redisCluster = REDIS_CLUSTER_EXTENSION.getRedisCluster();
+    final RateLimiters limiters = new RateLimiters(
+        Map.of(descriptor.id(), new RateLimiterConfig(60, Duration.ofSeconds(1), 10)),
+        dynamicConfig,
+        RateLimiters.defaultScript(redisCluster),
+        redisCluster,
+        clock);
+
+    final RateLimiter rateLimiter = limiters.forDescriptor(descriptor);
+
+    // the first request takes its own permit and a lease of ten more from the shared bucket
+    rateLimiter.validate("test");
+    assertEquals("49", sharedPermitsRemaining(descriptor, "test"));
+
+    // leased permits shouldn't touch the shared bucket
+    for (int i = 0; i < 10; i++) {
+      rateLimiter.validateAsync("test").toCompletableFuture().join();
+    }
+
+    assertEquals("49", sharedPermitsRemaining(descriptor, "test"));
+
+    // once the lease is exhausted, the next request takes a new lease
+    rateLimiter.validate("test");
+    assertEquals("38", sharedPermitsRemaining(descriptor, "test"));
+
+    // expired leases are abandoned
+    clock.incrementMillis(Duration.ofSeconds(10).toMillis());
+    rateLimiter.validate("test");
+    assertEquals("37", sharedPermitsRemaining(descriptor, "test"));
+  }
+
+  @Test
+  public void testLocalLeaseNearLimit() throws Exception {
+    final RateLimiters.For descriptor = RateLimiters.For.REGISTRATION;
+    final FaultTolerantRedisCluster redisCluster = REDIS_CLUSTER_EXTENSION.getRedisCluster();
+    final RateLimiters limiters = new RateLimiters(
+        Map.of(descriptor.id(), new RateLimiterConfig(20, Duration.ofSeconds(1), 10)),
+        dynamicConfig,
+        RateLimiters.defaultScript(redisCluster),
+        redisCluster,
+        clock);
+
+    final RateLimiter rateLimiter = limiters.forDescriptor(descriptor);
+
+    // the shared bucket can't cover a lease, so requests should take exactly the permits they need
+    rateLimiter.validate("test", 15);
+    assertEquals("5", sharedPermitsRemaining(descriptor, "test"));
+
+    rateLimiter.validate("test", 5);
+    assertEquals("0", sharedPermitsRemaining(descriptor, "test"));
+
+    assertThrows(RateLimitExceededException.class, () -> rateLimiter.validate("test"));
+    final CompletionException completionException = assertThrows(CompletionException.class,
+        () -> rateLimiter.validateAsync("test").toCompletableFuture().join());
+
+    assertTrue(completionException.getCause() instanceof RateLimitExceededException);
+  }
+
+  @Test
+  public void testLocalLeaseLargerThanBucket() throws Exception {
+    final RateLimiters.For descriptor = RateLimiters.For.REGISTRATION;
+    final FaultTolerantRedisCluster redisCluster = REDIS_CLUSTER_EXTENSION.getRedisCluster();
+    final ClusterLuaScript validateScript = spy(RateLimiters.defaultScript(redisCluster));
+    final RateLimiters limiters = new RateLimiters(
+        Map.of(descriptor.id(), new RateLimiterConfig(20, Duration.ofSeconds(1), 10)),
+        dynamicConfig,
+        validateScript,
+        redisCluster,
+        clock);
+
+    final RateLimiter rateLimiter = limiters.forDescriptor(descriptor);
+
+    // even a full bucket can't cover these requests along with a lease, so they shouldn't try to take one
+    rateLimiter.validate("test", 15);
+    assertEquals("5", sharedPermitsRemaining(descriptor, "test"));
+    verify(validateScript, times(1)).execute(any(), any());
+
+    clock.incrementMillis(Duration.ofSeconds(20).toMillis());
+    rateLimiter.validateAsync("test", 15).toCompletableFuture().join();
+    assertEquals("5", sharedPermitsRemaining(descriptor, "test"));
+    verify(validateScript, times(1)).executeAsync(any(), any());
+  }
+
+  private String sharedPermitsRemaining(final RateLimiters.For descriptor, final String key) {
+    return REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(connection ->
+        connection.sync().hget(StaticRateLimiter.bucketName(descriptor.id(), key), "s"));
+  }
+
   @Test
   public void testLuaUpdatesTokenBucket() throws Exception {
     final String key = "key1";
@@ -56,6 +56,7 @@ public class RateLimitersTest {
         smsVoicePrefix:
           bucketSize: 150
           permitRegenerationDuration: PT6S
+          localLeaseSize: 10
         attachmentCreate:
           bucketSize: 4
           permitRegenerationDuration: PT30S
@@ -78,6 +79,8 @@ public class RateLimitersTest {
 
     final GenericHolder cfg = DynamicConfigurationManager.parseConfiguration(GOOD_YAML, GenericHolder.class).orElseThrow();
     assertTrue(cfg.rateLimitPolicy.failOpen());
+    assertEquals(10, cfg.limits().get(RateLimiters.For.SMS_VOICE_PREFIX.id()).localLeaseSize());
+    assertEquals(0, cfg.limits().get(RateLimiters.For.ATTACHMENT.id()).localLeaseSize());
     final RateLimiters rateLimiters = new RateLimiters(cfg.limits(), dynamicConfig, validateScript, redisCluster, clock);
     rateLimiters.validateValuesAndConfigs();
   }
@@ -247,7 +247,9 @@ class ApnPushNotificationSchedulerTest {
     if (expectActivity) {
       verify(redisCluster, atLeastOnce()).withCluster(any());
     } else {
-      verifyNoInteractions(redisCluster);
+      // scripts are registered with the cluster at construction, but no commands should be issued
+      verify(redisCluster, never()).withCluster(any());
+      verify(redisCluster, never()).useCluster(any());
       verifyNoInteractions(accountsManager);
       verifyNoInteractions(apnSender);
     }
@@ -223,14 +223,19 @@ class ClientPresenceManagerTest {
   }
 
   @Test
-  void testRenewPresence() {
+  void testRenewPresences() {
     final UUID accountUuid = UUID.randomUUID();
     final long deviceId = 1;
 
     final String presenceKey = ClientPresenceManager.getPresenceKey(accountUuid, deviceId);
+    final String remotePresenceKey = ClientPresenceManager.getPresenceKey(UUID.randomUUID(), deviceId);
 
-    REDIS_CLUSTER_EXTENSION.getRedisCluster().useCluster(connection ->
-        connection.sync().set(presenceKey, clientPresenceManager.getManagerId()));
+    clientPresenceManager.setPresent(accountUuid, deviceId, NO_OP);
+
+    REDIS_CLUSTER_EXTENSION.getRedisCluster().useCluster(connection -> {
+      connection.sync().persist(presenceKey);
+      connection.sync().set(remotePresenceKey, "another-manager");
+    });
 
     {
       final int ttl = REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(connection ->
@@ -239,7 +244,7 @@ class ClientPresenceManagerTest {
       assertEquals(-1, ttl);
     }
 
-    clientPresenceManager.renewPresence(accountUuid, deviceId);
+    clientPresenceManager.renewPresences();
 
     {
       final int ttl = REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(connection ->
@@ -247,6 +252,14 @@ class ClientPresenceManagerTest {
 
       assertTrue(ttl > 0);
     }
+
+    {
+      // presences belonging to other managers should be left alone
+      final int ttl = REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(connection ->
+          connection.sync().ttl(remotePresenceKey).intValue());
+
+      assertEquals(-1, ttl);
+    }
   }
 
   @Test
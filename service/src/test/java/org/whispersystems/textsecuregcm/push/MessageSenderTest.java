@@ -12,6 +12,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -20,6 +21,7 @@ import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import com.google.protobuf.ByteString;
+import java.util.List;
 import java.util.UUID;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.jupiter.api.BeforeEach;
@@ -28,6 +30,7 @@ import org.mockito.ArgumentCaptor;
 import org.whispersystems.textsecuregcm.entities.MessageProtos;
 import org.whispersystems.textsecuregcm.storage.Account;
 import org.whispersystems.textsecuregcm.storage.Device;
+import org.whispersystems.textsecuregcm.storage.MessagesCache;
 import org.whispersystems.textsecuregcm.storage.MessagesManager;
 
 class MessageSenderTest {
@@ -142,6 +145,89 @@ class MessageSenderTest {
     verify(messagesManager).insert(ACCOUNT_UUID, DEVICE_ID, message);
   }
 
+  @Test
+  void testSendMessagesOnline() {
+    final Device absentDevice = mock(Device.class);
+    when(absentDevice.getId()).thenReturn(DEVICE_ID + 1);
+    when(absentDevice.getGcmId()).thenReturn("gcm-id");
+
+    when(clientPresenceManager.isPresent(ACCOUNT_UUID, DEVICE_ID)).thenReturn(true);
+    when(clientPresenceManager.isPresent(ACCOUNT_UUID, DEVICE_ID + 1)).thenReturn(false);
+    when(device.getGcmId()).thenReturn("gcm-id");
+
+    final List<MessageSender.DeviceMessage> notPushRegistered = messageSender.sendMessages(List.of(
+        new MessageSender.DeviceMessage(account, device, message),
+        new MessageSender.DeviceMessage(account, absentDevice, message)), null, true, Runnable::run);
+
+    assertTrue(notPushRegistered.isEmpty());
+
+    final ArgumentCaptor<List<MessagesCache.MessageToInsert>> messagesCaptor = ArgumentCaptor.forClass(List.class);
+    verify(messagesManager).insertBatch(messagesCaptor.capture(), isNull());
+
+    assertEquals(1, messagesCaptor.getValue().size());
+    assertEquals(DEVICE_ID, messagesCaptor.getValue().get(0).destinationDevice());
+    assertTrue(messagesCaptor.getValue().get(0).message().getEphemeral());
+    verifyNoInteractions(pushNotificationManager);
+  }
+
+  @Test
+  void testSendMessages() throws Exception {
+    final Device unregisteredDevice = mock(Device.class);
+    when(unregisteredDevice.getId()).thenReturn(DEVICE_ID + 1);
+    when(unregisteredDevice.getApnId()).thenReturn("apn-id");
+
+    when(clientPresenceManager.isPresent(ACCOUNT_UUID, DEVICE_ID)).thenReturn(false);
+    when(clientPresenceManager.isPresent(ACCOUNT_UUID, DEVICE_ID + 1)).thenReturn(false);
+    when(device.getGcmId()).thenReturn("gcm-id");
+
+    doThrow(NotPushRegisteredException.class)
+        .when(pushNotificationManager).sendNewMessageNotification(account, DEVICE_ID + 1, message.getUrgent());
+
+    final MessageSender.DeviceMessage unregisteredDeviceMessage =
+        new MessageSender.DeviceMessage(account, unregisteredDevice, message);
+
+    final List<MessageSender.DeviceMessage> notPushRegistered = messageSender.sendMessages(List.of(
+        new MessageSender.DeviceMessage(account, device, message),
+        unregisteredDeviceMessage), null, false, Runnable::run);
+
+    assertEquals(List.of(unregisteredDeviceMessage), notPushRegistered);
+
+    final ArgumentCaptor<List<MessagesCache.MessageToInsert>> messagesCaptor = ArgumentCaptor.forClass(List.class);
+    verify(messagesManager).insertBatch(messagesCaptor.capture(), isNull());
+
+    assertEquals(List.of(DEVICE_ID, DEVICE_ID + 1), messagesCaptor.getValue().stream()
+        .map(MessagesCache.MessageToInsert::destinationDevice)
+        .toList());
+    messagesCaptor.getValue().forEach(messageToInsert -> assertEquals(message, messageToInsert.message()));
+
+    verify(pushNotificationManager).sendNewMessageNotification(account, DEVICE_ID, message.getUrgent());
+    verify(messagesManager, never()).insert(any(), anyLong(), any());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  void testSendMessagesToDevice() throws Exception {
+    final MessageProtos.Envelope urgentMessage = generateRandomMessage().toBuilder().setUrgent(true).build();
+    final MessageProtos.Envelope nonUrgentMessage = generateRandomMessage().toBuilder().setUrgent(false).build();
+
+    when(clientPresenceManager.isPresent(ACCOUNT_UUID, DEVICE_ID)).thenReturn(false);
+    when(device.getGcmId()).thenReturn("gcm-id");
+
+    messageSender.sendMessages(account, device, List.of(nonUrgentMessage, urgentMessage));
+
+    final ArgumentCaptor<List<MessagesCache.MessageToInsert>> messagesCaptor = ArgumentCaptor.forClass(List.class);
+    verify(messagesManager).insertBatch(messagesCaptor.capture(), isNull());
+
+    assertEquals(List.of(nonUrgentMessage, urgentMessage), messagesCaptor.getValue().stream()
+        .map(MessagesCache.MessageToInsert::message)
+        .toList());
+
+    // the device should be notified once for the whole batch, and urgently since one of the messages is urgent
+    verify(pushNotificationManager).sendNewMessageNotification(account, DEVICE_ID, true);
+    verify(pushNotificationManager, never()).sendNewMessageNotification(account, DEVICE_ID, false);
+    verify(messagesManager, never()).insert(any(), anyLong(), any());
+  }
+
   private MessageProtos.Envelope generateRandomMessage() {
     return MessageProtos.Envelope.newBuilder()
         .setTimestamp(System.currentTimeMillis())
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.push;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
+import org.whispersystems.textsecuregcm.identity.AciServiceIdentifier;
+import org.whispersystems.textsecuregcm.storage.Account;
+import org.whispersystems.textsecuregcm.storage.AccountsManager;
+import org.whispersystems.textsecuregcm.storage.Device;
+
+class ReceiptSenderTest {
+
+  private AccountsManager accountsManager;
+  private MessageSender messageSender;
+  private ExecutorService executor;
+  private ReceiptSender receiptSender;
+
+  private static final AciServiceIdentifier SOURCE_IDENTIFIER = new AciServiceIdentifier(UUID.randomUUID());
+  private static final AciServiceIdentifier DESTINATION_IDENTIFIER = new AciServiceIdentifier(UUID.randomUUID());
+  private static final int MAX_PENDING_RECEIPTS = 3;
+
+  @BeforeEach
+  void setUp() {
+    accountsManager = mock(AccountsManager.class);
+    messageSender = mock(MessageSender.class);
+    executor = Executors.newSingleThreadExecutor();
+
+    receiptSender = new ReceiptSender(accountsManager, messageSender, executor,
+        mock(ScheduledExecutorService.class), Duration.ofSeconds(1), MAX_PENDING_RECEIPTS);
+  }
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    executor.shutdown();
+    //noinspection ResultOfMethodCallIgnored
+    executor.awaitTermination(1, TimeUnit.SECONDS);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  void testFlush() throws Exception {
+    final Device enabledDevice = mock(Device.class);
+    when(enabledDevice.isEnabled()).thenReturn(true);
+
+    final Device disabledDevice = mock(Device.class);
+    when(disabledDevice.isEnabled()).thenReturn(false);
+
+    final Account destinationAccount = mock(Account.class);
+    when(destinationAccount.getDevices()).thenReturn(List.of(enabledDevice, disabledDevice));
+
+    when(accountsManager.getByAccountIdentifierAsync(DESTINATION_IDENTIFIER.uuid()))
+        .thenReturn(CompletableFuture.completedFuture(Optional.of(destinationAccount)));
+
+    receiptSender.sendReceipt(SOURCE_IDENTIFIER, Device.PRIMARY_ID, DESTINATION_IDENTIFIER, 1);
+    receiptSender.sendReceipt(SOURCE_IDENTIFIER, Device.PRIMARY_ID, DESTINATION_IDENTIFIER, 2);
+
+    // receipts to oneself should never be sent
+    receiptSender.sendReceipt(DESTINATION_IDENTIFIER, Device.PRIMARY_ID, DESTINATION_IDENTIFIER, 3);
+
+    receiptSender.flush().join();
+
+    // the destination account should be looked up once, and all of its receipts sent to each device in one batch
+    verify(accountsManager).getByAccountIdentifierAsync(DESTINATION_IDENTIFIER.uuid());
+
+    final ArgumentCaptor<List<Envelope>> receiptsCaptor = ArgumentCaptor.forClass(List.class);
+    verify(messageSender).sendMessages(eq(destinationAccount), eq(enabledDevice), receiptsCaptor.capture());
+    verify(messageSender, never()).sendMessages(eq(destinationAccount), eq(disabledDevice), anyList());
+
+    assertEquals(List.of(1L, 2L), receiptsCaptor.getValue().stream().map(Envelope::getTimestamp).toList());
+
+    receiptsCaptor.getValue().forEach(receipt -> {
+      assertEquals(Envelope.Type.SERVER_DELIVERY_RECEIPT, receipt.getType());
+      assertEquals(SOURCE_IDENTIFIER.toServiceIdentifierString(), receipt.getSourceUuid());
+      assertEquals(DESTINATION_IDENTIFIER.toServiceIdentifierString(), receipt.getDestinationUuid());
+    });
+
+    // flushed receipts should not be sent again
+    receiptSender.flush().join();
+    verify(accountsManager, times(1)).getByAccountIdentifierAsync(any());
+  }
+
+  @Test
+  void testFlushFailure() throws Exception {
+    final AciServiceIdentifier otherDestinationIdentifier = new AciServiceIdentifier(UUID.randomUUID());
+
+    final Device device = mock(Device.class);
+    when(device.isEnabled()).thenReturn(true);
+
+    final Account otherDestinationAccount = mock(Account.class);
+    when(otherDestinationAccount.getDevices()).thenReturn(List.of(device));
+
+    when(accountsManager.getByAccountIdentifierAsync(DESTINATION_IDENTIFIER.uuid()))
+        .thenReturn(CompletableFuture.failedFuture(new RuntimeException("OH NO")));
+
+    when(accountsManager.getByAccountIdentifierAsync(otherDestinationIdentifier.uuid()))
+        .thenReturn(CompletableFuture.completedFuture(Optional.of(otherDestinationAccount)));
+
+    doThrow(NotPushRegisteredException.class).when(messageSender).sendMessages(any(), any(), anyList());
+
+    receiptSender.sendReceipt(SOURCE_IDENTIFIER, Device.PRIMARY_ID, DESTINATION_IDENTIFIER, 1);
+    receiptSender.sendReceipt(SOURCE_IDENTIFIER, Device.PRIMARY_ID, otherDestinationIdentifier, 1);
+
+    // one failed destination shouldn't prevent receipts to others from being sent
+    receiptSender.flush().join();
+
+    verify(messageSender).sendMessages(eq(otherDestinationAccount), eq(device), anyList());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  void testBufferFull() throws Exception {
+    final Device device = mock(Device.class);
+    when(device.isEnabled()).thenReturn(true);
+
+    final Account destinationAccount = mock(Account.class);
+    when(destinationAccount.getDevices()).thenReturn(List.of(device));
+
+    when(accountsManager.getByAccountIdentifierAsync(DESTINATION_IDENTIFIER.uuid()))
+        .thenReturn(CompletableFuture.completedFuture(Optional.of(destinationAccount)));
+
+    for (int i = 0; i < MAX_PENDING_RECEIPTS + 1; i++) {
+      receiptSender.sendReceipt(SOURCE_IDENTIFIER, Device.PRIMARY_ID, DESTINATION_IDENTIFIER, i);
+    }
+
+    receiptSender.flush().join();
+
+    // receipts requested while the buffer was full should have been dropped
+    final ArgumentCaptor<List<Envelope>> receiptsCaptor = ArgumentCaptor.forClass(List.class);
+    verify(messageSender).sendMessages(eq(destinationAccount), eq(device), receiptsCaptor.capture());
+    assertEquals(MAX_PENDING_RECEIPTS, receiptsCaptor.getValue().size());
+
+    // ...but flushing should make room for new receipts
+    receiptSender.sendReceipt(SOURCE_IDENTIFIER, Device.PRIMARY_ID, DESTINATION_IDENTIFIER, MAX_PENDING_RECEIPTS + 1);
+    receiptSender.flush().join();
+
+    verify(messageSender, times(2)).sendMessages(eq(destinationAccount), eq(device), anyList());
+  }
+}
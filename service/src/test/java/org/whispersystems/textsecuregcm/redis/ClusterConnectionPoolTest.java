@@ -0,0 +1,66 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+
+class ClusterConnectionPoolTest {
+
+  @SuppressWarnings("unchecked")
+  @Test
+  void testWithConnectionSingle() {
+    final StatefulRedisClusterConnection<String, String> connection = mock(StatefulRedisClusterConnection.class);
+    final ClusterConnectionPool<String, String> pool = new ClusterConnectionPool<>(List.of(connection));
+
+    assertEquals(1, pool.size());
+    assertSame(connection, pool.withConnection(Function.identity()));
+    assertSame(connection, pool.getConnection());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  void testWithConnectionThreadAffinity() throws InterruptedException {
+    final List<StatefulRedisClusterConnection<String, String>> connections = List.of(
+        mock(StatefulRedisClusterConnection.class),
+        mock(StatefulRedisClusterConnection.class),
+        mock(StatefulRedisClusterConnection.class));
+
+    final ClusterConnectionPool<String, String> pool = new ClusterConnectionPool<>(connections);
+
+    // a thread's commands should always use the same connection, even when nested
+    final StatefulRedisClusterConnection<String, String> connection = pool.withConnection(Function.identity());
+    assertSame(connection, pool.getConnection());
+    assertSame(connection, pool.withConnection(first -> pool.withConnection(Function.identity())));
+
+    // ...and different threads should be spread across the pool
+    final Map<Long, StatefulRedisClusterConnection<String, String>> connectionsByThreadId = new ConcurrentHashMap<>();
+
+    for (int i = 0; i < connections.size(); i++) {
+      final Thread thread =
+          new Thread(() -> connectionsByThreadId.put(Thread.currentThread().getId(), pool.getConnection()));
+      thread.start();
+      thread.join();
+    }
+
+    connectionsByThreadId.forEach((threadId, threadConnection) ->
+        assertSame(connections.get((int) (threadId % connections.size())), threadConnection));
+  }
+
+  @Test
+  void testEmptyPool() {
+    assertThrows(IllegalArgumentException.class, () -> new ClusterConnectionPool<>(List.of()));
+  }
+}
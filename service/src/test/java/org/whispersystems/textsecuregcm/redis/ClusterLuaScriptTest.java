@@ -6,6 +6,8 @@
 package org.whispersystems.textsecuregcm.redis;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
@@ -179,7 +181,40 @@ class ClusterLuaScriptTest {
       assertEquals(2L, actual);
     }
 
-    final int evalCount = REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(connection -> {
+    final int evalCount = getEvalCount();
+
+    assertEquals(1, evalCount);
+  }
+
+  @Test
+  void testRegisteredScriptPreloaded() throws Exception {
+    REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(c -> c.sync().scriptFlush(FlushMode.SYNC));
+    REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(c -> c.sync().configResetstat());
+
+    final ClusterLuaScript script = new ClusterLuaScript(REDIS_CLUSTER_EXTENSION.getRedisCluster(),
+        "return 3;",
+        ScriptOutputType.INTEGER);
+
+    REDIS_CLUSTER_EXTENSION.getRedisCluster().registerScript(script).join();
+
+    final List<Boolean> scriptExists = REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(connection ->
+        connection.sync().upstream().commands().scriptExists(script.getSha()).stream()
+            .flatMap(List::stream)
+            .toList());
+
+    assertFalse(scriptExists.isEmpty());
+    assertTrue(scriptExists.stream().allMatch(exists -> exists));
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals(3L, script.executeAsync(Collections.emptyList(), Collections.emptyList()).get(5, TimeUnit.SECONDS));
+    }
+
+    // the script was already loaded everywhere, so it should never have been sent in full
+    assertEquals(0, getEvalCount());
+  }
+
+  private static int getEvalCount() {
+    return REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(connection -> {
       final String commandStats = connection.sync().info("commandstats");
 
       // We're looking for (and parsing) a line in the command stats that looks like:
@@ -198,8 +233,6 @@ class ClusterLuaScriptTest {
           .findFirst()
           .orElse(0);
     });
-
-    assertEquals(1, evalCount);
   }
 
   private enum ExecuteMode {
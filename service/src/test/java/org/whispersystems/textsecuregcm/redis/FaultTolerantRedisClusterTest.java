@@ -10,19 +10,36 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.after;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 import io.lettuce.core.RedisCommandTimeoutException;
 import io.lettuce.core.RedisException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.ScriptOutputType;
 import io.lettuce.core.cluster.RedisClusterClient;
 import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
+import io.lettuce.core.cluster.event.ClusterTopologyChangedEvent;
+import io.lettuce.core.cluster.models.partitions.Partitions;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
 import io.lettuce.core.cluster.pubsub.StatefulRedisClusterPubSubConnection;
+import io.lettuce.core.event.Event;
 import io.lettuce.core.event.EventBus;
 import io.lettuce.core.resource.ClientResources;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
@@ -31,12 +48,17 @@ import org.junit.jupiter.api.extension.RegisterExtension;
 import org.whispersystems.textsecuregcm.configuration.CircuitBreakerConfiguration;
 import org.whispersystems.textsecuregcm.configuration.RetryConfiguration;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
 
 class FaultTolerantRedisClusterTest {
 
   private RedisAdvancedClusterCommands<String, String> clusterCommands;
+  private RedisAdvancedClusterAsyncCommands<String, String> clusterAsyncCommands;
+  private Sinks.Many<Event> eventSink;
   private FaultTolerantRedisCluster faultTolerantCluster;
 
+  private static final String NODE_ID = "own-node";
+
   @SuppressWarnings("unchecked")
   @BeforeEach
   public void setUp() {
@@ -48,13 +70,21 @@ class FaultTolerantRedisClusterTest {
     final EventBus eventBus = mock(EventBus.class);
 
     clusterCommands = mock(RedisAdvancedClusterCommands.class);
+    clusterAsyncCommands = mock(RedisAdvancedClusterAsyncCommands.class);
+    eventSink = Sinks.many().multicast().directBestEffort();
+
+    final Partitions partitions = new Partitions();
+    partitions.add(getNode(NODE_ID));
+    partitions.updateCache();
 
     when(clusterClient.connect()).thenReturn(clusterConnection);
     when(clusterClient.connectPubSub()).thenReturn(pubSubConnection);
     when(clusterClient.getResources()).thenReturn(clientResources);
+    when(clusterClient.getPartitions()).thenReturn(partitions);
     when(clusterConnection.sync()).thenReturn(clusterCommands);
+    when(clusterConnection.async()).thenReturn(clusterAsyncCommands);
     when(clientResources.eventBus()).thenReturn(eventBus);
-    when(eventBus.get()).thenReturn(mock(Flux.class));
+    when(eventBus.get()).thenReturn(eventSink.asFlux());
 
     final CircuitBreakerConfiguration breakerConfiguration = new CircuitBreakerConfiguration();
     breakerConfiguration.setFailureRateThreshold(100);
@@ -107,6 +137,41 @@ class FaultTolerantRedisClusterTest {
 
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  void testReloadScriptsOnTopologyChange() {
+    final RedisFuture<String> scriptLoadFuture = mock(RedisFuture.class);
+    when(scriptLoadFuture.toCompletableFuture()).thenReturn(CompletableFuture.completedFuture("sha"));
+    when(clusterAsyncCommands.scriptLoad(anyString())).thenReturn(scriptLoadFuture);
+
+    final ClusterLuaScript script = new ClusterLuaScript(faultTolerantCluster, "return 1;", ScriptOutputType.INTEGER);
+    faultTolerantCluster.registerScript(script).join();
+
+    verify(clusterAsyncCommands).scriptLoad(anyString());
+
+    // client resources may be shared by several clusters; changes to another cluster shouldn't trigger a reload
+    final RedisClusterNode otherNode = getNode("other-node");
+    eventSink.tryEmitNext(new ClusterTopologyChangedEvent(List.of(otherNode), List.of(otherNode, getNode("new-node"))));
+
+    verify(clusterAsyncCommands, after(FaultTolerantRedisCluster.SCRIPT_RELOAD_DELAY.toMillis() * 2).times(1))
+        .scriptLoad(anyString());
+
+    // a burst of changes to this cluster should trigger a single reload
+    for (int i = 0; i < 3; i++) {
+      eventSink.tryEmitNext(new ClusterTopologyChangedEvent(List.of(getNode(NODE_ID)), List.of(getNode(NODE_ID))));
+    }
+
+    verify(clusterAsyncCommands, after(FaultTolerantRedisCluster.SCRIPT_RELOAD_DELAY.toMillis() * 2).times(2))
+        .scriptLoad(anyString());
+  }
+
+  private static RedisClusterNode getNode(final String nodeId) {
+    final RedisClusterNode node = new RedisClusterNode();
+    node.setNodeId(nodeId);
+
+    return node;
+  }
+
   @Nested
   class WithRealCluster {
 
@@ -139,6 +204,40 @@ class FaultTolerantRedisClusterTest {
       });
 
     }
+
+    @Test
+    void testPooledConnectionMetrics() {
+      final List<RedisURI> redisUris = REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(connection ->
+          connection.getPartitions().stream().map(RedisClusterNode::getUri).toList());
+
+      final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+      Metrics.addRegistry(meterRegistry);
+
+      final FaultTolerantRedisCluster pooledCluster = new FaultTolerantRedisCluster("pooled",
+          RedisClusterClient.create(redisUris),
+          clientResources -> RedisClusterClient.create(clientResources, redisUris),
+          TIMEOUT, new CircuitBreakerConfiguration(), retryConfiguration, 2);
+
+      try {
+        pooledCluster.useCluster(connection -> connection.sync().set("key", "value"));
+        assertEquals("value", pooledCluster.withCluster(connection -> connection.sync().get("key")));
+
+        final Collection<Timer> latencyTimers = meterRegistry.get(PooledConnectionMetrics.COMMAND_LATENCY_TIMER_NAME)
+            .tag("name", "pooled")
+            .timers();
+
+        assertEquals(2, latencyTimers.size());
+        assertTrue(latencyTimers.stream().mapToLong(Timer::count).sum() >= 2);
+
+        assertEquals(2, meterRegistry.get(PooledConnectionMetrics.PENDING_COMMANDS_GAUGE_NAME)
+            .tag("name", "pooled")
+            .gauges()
+            .size());
+      } finally {
+        pooledCluster.shutdown();
+        Metrics.removeRegistry(meterRegistry);
+      }
+    }
   }
 
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.redis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.lettuce.core.metrics.CommandLatencyRecorder;
+import io.lettuce.core.protocol.CommandHandler;
+import io.lettuce.core.protocol.CommandType;
+import io.lettuce.core.protocol.RedisCommand;
+import io.lettuce.core.resource.ClientResources;
+import io.lettuce.core.resource.NettyCustomizer;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.channel.Channel;
+import io.netty.channel.DefaultChannelId;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PooledConnectionMetricsTest {
+
+  private CommandLatencyRecorder delegateRecorder;
+  private NettyCustomizer delegateCustomizer;
+  private ClientResources clientResources;
+  private ClientResources instrumentedResources;
+  private SimpleMeterRegistry meterRegistry;
+
+  @BeforeEach
+  void setUp() {
+    delegateRecorder = mock(CommandLatencyRecorder.class);
+    delegateCustomizer = mock(NettyCustomizer.class);
+    meterRegistry = new SimpleMeterRegistry();
+
+    when(delegateRecorder.isEnabled()).thenReturn(true);
+
+    clientResources = ClientResources.builder()
+        .commandLatencyRecorder(delegateRecorder)
+        .nettyCustomizer(delegateCustomizer)
+        .build();
+
+    instrumentedResources = PooledConnectionMetrics.instrument(clientResources, "test", 1, meterRegistry);
+  }
+
+  @AfterEach
+  void tearDown() {
+    instrumentedResources.shutdown();
+    clientResources.shutdown();
+  }
+
+  @Test
+  void recordCommandLatency() {
+    assertNotSame(delegateRecorder, instrumentedResources.commandLatencyRecorder());
+
+    final InetSocketAddress local = InetSocketAddress.createUnresolved("localhost", 1234);
+    final InetSocketAddress remote = InetSocketAddress.createUnresolved("redis", 6379);
+
+    instrumentedResources.commandLatencyRecorder().recordCommandLatency(local, remote, CommandType.GET,
+        TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(3));
+
+    final Timer timer = meterRegistry.get(PooledConnectionMetrics.COMMAND_LATENCY_TIMER_NAME)
+        .tags("name", "test", "connection", "1")
+        .timer();
+
+    assertEquals(1, timer.count());
+    assertEquals(3, timer.totalTime(TimeUnit.MILLISECONDS), 0.001);
+
+    // Latency should still reach the recorder the resources had before they were instrumented
+    verify(delegateRecorder).recordCommandLatency(local, remote, CommandType.GET,
+        TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(3));
+  }
+
+  @Test
+  void getPendingCommands() {
+    final CommandHandler firstCommandHandler = mock(CommandHandler.class);
+    final CommandHandler secondCommandHandler = mock(CommandHandler.class);
+
+    final Queue<RedisCommand<?, ?, ?>> firstStack = new ArrayDeque<>();
+    final Queue<RedisCommand<?, ?, ?>> secondStack = new ArrayDeque<>();
+
+    firstStack.add(mock(RedisCommand.class));
+    secondStack.add(mock(RedisCommand.class));
+    secondStack.add(mock(RedisCommand.class));
+
+    when(firstCommandHandler.getStack()).thenReturn(firstStack);
+    when(secondCommandHandler.getStack()).thenReturn(secondStack);
+
+    // Embedded channels all share an ID by default, and channel groups track channels by ID
+    final Channel firstChannel = new EmbeddedChannel(DefaultChannelId.newInstance(), firstCommandHandler);
+    final Channel secondChannel = new EmbeddedChannel(DefaultChannelId.newInstance(), secondCommandHandler);
+    final Channel channelWithoutCommandHandler = new EmbeddedChannel(DefaultChannelId.newInstance());
+
+    instrumentedResources.nettyCustomizer().afterChannelInitialized(firstChannel);
+    instrumentedResources.nettyCustomizer().afterChannelInitialized(secondChannel);
+    instrumentedResources.nettyCustomizer().afterChannelInitialized(channelWithoutCommandHandler);
+
+    // Customizations the resources already had should still apply to new channels
+    verify(delegateCustomizer).afterChannelInitialized(firstChannel);
+    verify(delegateCustomizer).afterChannelInitialized(secondChannel);
+    verify(delegateCustomizer).afterChannelInitialized(channelWithoutCommandHandler);
+
+    assertEquals(3, getPendingCommandsGaugeValue());
+
+    // Closed channels shouldn't count toward the total
+    secondChannel.close().syncUninterruptibly();
+    assertEquals(1, getPendingCommandsGaugeValue());
+
+    firstStack.clear();
+    assertEquals(0, getPendingCommandsGaugeValue());
+  }
+
+  private double getPendingCommandsGaugeValue() {
+    return meterRegistry.get(PooledConnectionMetrics.PENDING_COMMANDS_GAUGE_NAME)
+        .tags("name", "test", "connection", "1")
+        .gauge()
+        .value();
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.UUID;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.jupiter.api.Test;
+import org.signal.libsignal.protocol.IdentityKey;
+import org.signal.libsignal.protocol.ecc.Curve;
+import org.signal.libsignal.protocol.ecc.ECKeyPair;
+import org.whispersystems.textsecuregcm.auth.SaltedTokenHash;
+import org.whispersystems.textsecuregcm.auth.UnidentifiedAccessUtil;
+import org.whispersystems.textsecuregcm.tests.util.AccountsHelper;
+import org.whispersystems.textsecuregcm.tests.util.DevicesHelper;
+import org.whispersystems.textsecuregcm.tests.util.KeysHelper;
+import org.whispersystems.textsecuregcm.util.SystemMapper;
+
+class AccountDataCodecTest {
+
+  private static final AccountDataCodec CODEC = new AccountDataCodec();
+
+  @Test
+  void testReadWriteJson() throws IOException {
+    final Account account = generateAccount();
+    final byte[] json = CODEC.writeJson(account);
+
+    // JSON records must be unchanged so that servers without the compact format can still read them
+    assertArrayEquals(SystemMapper.jsonMapper().writeValueAsBytes(account), json);
+    assertEquals('{', json[0]);
+
+    assertSameAccount(account, AccountDataCodec.read(json));
+  }
+
+  @Test
+  void testReadWriteCompact() throws IOException {
+    final Account account = generateAccount();
+    final byte[] compact = CODEC.writeCompact(account);
+
+    assertEquals(AccountDataCodec.COMPACT_FORMAT_VERSION, compact[0]);
+    assertTrue(compact.length < CODEC.writeJson(account).length);
+
+    assertSameAccount(account, AccountDataCodec.read(compact));
+  }
+
+  @Test
+  void testWrite() throws IOException {
+    final Account account = generateAccount();
+
+    assertEquals('{', CODEC.write(account, false)[0]);
+    assertEquals(AccountDataCodec.COMPACT_FORMAT_VERSION, CODEC.write(account, true)[0]);
+  }
+
+  @Test
+  void testWriteFiltered() throws IOException {
+    final AccountDataCodec filteringCodec =
+        new AccountDataCodec(SystemMapper.excludingField(Account.class, List.of("uuid")));
+
+    final Account account = generateAccount();
+
+    assertNull(AccountDataCodec.read(filteringCodec.writeJson(account)).getUuid());
+    assertNull(AccountDataCodec.read(filteringCodec.writeCompact(account)).getUuid());
+  }
+
+  @Test
+  void testReadMalformed() {
+    assertThrows(IOException.class, () -> AccountDataCodec.read("not an account".getBytes(StandardCharsets.UTF_8)));
+    assertThrows(IOException.class, () -> AccountDataCodec.read(new byte[]{AccountDataCodec.COMPACT_FORMAT_VERSION}));
+  }
+
+  private static void assertSameAccount(final Account expected, final Account actual) throws IOException {
+    assertArrayEquals(SystemMapper.jsonMapper().writeValueAsBytes(expected),
+        SystemMapper.jsonMapper().writeValueAsBytes(actual));
+  }
+
+  private static Account generateAccount() {
+    final ECKeyPair aciIdentityKeyPair = Curve.generateKeyPair();
+    final ECKeyPair pniIdentityKeyPair = Curve.generateKeyPair();
+
+    final Device primaryDevice = DevicesHelper.createDevice(Device.PRIMARY_ID);
+    primaryDevice.setAuthTokenHash(SaltedTokenHash.generateFor("password"));
+    primaryDevice.setSignedPreKey(KeysHelper.signedECPreKey(1, aciIdentityKeyPair));
+    primaryDevice.setPhoneNumberIdentitySignedPreKey(KeysHelper.signedECPreKey(2, pniIdentityKeyPair));
+    primaryDevice.setApnId("apn-id");
+    primaryDevice.setName("name");
+
+    final Device linkedDevice = DevicesHelper.createDevice(Device.PRIMARY_ID + 1);
+    linkedDevice.setAuthTokenHash(SaltedTokenHash.generateFor("password"));
+    linkedDevice.setSignedPreKey(KeysHelper.signedECPreKey(3, aciIdentityKeyPair));
+    linkedDevice.setPhoneNumberIdentitySignedPreKey(KeysHelper.signedECPreKey(4, pniIdentityKeyPair));
+    linkedDevice.setFetchesMessages(true);
+
+    final Account account = AccountsHelper.generateTestAccount("+18005551234", UUID.randomUUID(), UUID.randomUUID(),
+        List.of(primaryDevice, linkedDevice),
+        RandomUtils.nextBytes(UnidentifiedAccessUtil.UNIDENTIFIED_ACCESS_KEY_LENGTH));
+
+    account.setIdentityKey(new IdentityKey(aciIdentityKeyPair.getPublicKey()));
+    account.setPhoneNumberIdentityKey(new IdentityKey(pniIdentityKeyPair.getPublicKey()));
+    account.setUsernameHash(RandomUtils.nextBytes(32));
+    account.setUsernameLinkDetails(UUID.randomUUID(), RandomUtils.nextBytes(32));
+    account.setRegistrationLock("registration-lock", "salt");
+    account.addBadge(Clock.systemUTC(),
+        new AccountBadge("badge", Instant.now().plus(1, ChronoUnit.DAYS).truncatedTo(ChronoUnit.SECONDS), true));
+
+    return account;
+  }
+}
@@ -30,6 +30,7 @@ import org.junit.jupiter.api.extension.RegisterExtension;
 import org.signal.libsignal.protocol.IdentityKey;
 import org.signal.libsignal.protocol.ecc.Curve;
 import org.signal.libsignal.protocol.ecc.ECKeyPair;
+import org.whispersystems.textsecuregcm.configuration.AccountsNearCacheConfiguration;
 import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
 import org.whispersystems.textsecuregcm.controllers.MismatchedDevicesException;
 import org.whispersystems.textsecuregcm.entities.AccountAttributes;
@@ -80,7 +81,8 @@ class AccountsManagerChangeNumberIntegrationTest {
           Tables.NUMBERS.tableName(),
           Tables.PNI_ASSIGNMENTS.tableName(),
           Tables.USERNAMES.tableName(),
-          Tables.DELETED_ACCOUNTS.tableName());
+          Tables.DELETED_ACCOUNTS.tableName(),
+          false);
 
       accountLockExecutor = Executors.newSingleThreadExecutor();
 
@@ -117,6 +119,9 @@ class AccountsManagerChangeNumberIntegrationTest {
           accounts,
           phoneNumberIdentifiers,
           CACHE_CLUSTER_EXTENSION.getRedisCluster(),
+          new AccountsNearCache(CACHE_CLUSTER_EXTENSION.getRedisCluster(), new AccountsNearCacheConfiguration(),
+              Clock.systemUTC()),
+          mock(DeviceLastSeenUpdater.class),
           accountLockManager,
           keysManager,
           messagesManager,
@@ -62,6 +62,7 @@ import org.signal.libsignal.protocol.IdentityKey;
 import org.signal.libsignal.protocol.ecc.Curve;
 import org.signal.libsignal.protocol.ecc.ECKeyPair;
 import org.whispersystems.textsecuregcm.auth.UnidentifiedAccessUtil;
+import org.whispersystems.textsecuregcm.configuration.AccountsNearCacheConfiguration;
 import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
 import org.whispersystems.textsecuregcm.controllers.MismatchedDevicesException;
 import org.whispersystems.textsecuregcm.entities.AccountAttributes;
@@ -72,6 +73,7 @@ import org.whispersystems.textsecuregcm.identity.AciServiceIdentifier;
 import org.whispersystems.textsecuregcm.identity.IdentityType;
 import org.whispersystems.textsecuregcm.identity.PniServiceIdentifier;
 import org.whispersystems.textsecuregcm.push.ClientPresenceManager;
+import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
 import org.whispersystems.textsecuregcm.securestorage.SecureStorageClient;
 import org.whispersystems.textsecuregcm.securevaluerecovery.SecureValueRecovery2Client;
 import org.whispersystems.textsecuregcm.storage.Device.DeviceCapabilities;
@@ -100,6 +102,7 @@ class AccountsManagerTest {
   private ProfilesManager profilesManager;
   private ClientPresenceManager clientPresenceManager;
   private ExperimentEnrollmentManager enrollmentManager;
+  private DeviceLastSeenUpdater deviceLastSeenUpdater;
 
   private Map<String, UUID> phoneNumberIdentifiersByE164;
 
@@ -131,6 +134,7 @@ class AccountsManagerTest {
     messagesManager = mock(MessagesManager.class);
     profilesManager = mock(ProfilesManager.class);
     clientPresenceManager = mock(ClientPresenceManager.class);
+    deviceLastSeenUpdater = mock(DeviceLastSeenUpdater.class);
 
     //noinspection unchecked
     commands = mock(RedisAdvancedClusterCommands.class);
@@ -140,6 +144,7 @@ class AccountsManagerTest {
     when(asyncCommands.del(any())).thenReturn(MockRedisFuture.completedFuture(0L));
     when(asyncCommands.get(any())).thenReturn(MockRedisFuture.completedFuture(null));
     when(asyncCommands.setex(any(), anyLong(), any())).thenReturn(MockRedisFuture.completedFuture("OK"));
+    when(asyncCommands.publish(any(), any())).thenReturn(MockRedisFuture.completedFuture(0L));
 
     when(accounts.updateAsync(any())).thenReturn(CompletableFuture.completedFuture(null));
     when(accounts.delete(any())).thenReturn(CompletableFuture.completedFuture(null));
@@ -204,13 +209,17 @@ class AccountsManagerTest {
     when(messagesManager.clear(any())).thenReturn(CompletableFuture.completedFuture(null));
     when(profilesManager.deleteAll(any())).thenReturn(CompletableFuture.completedFuture(null));
 
+    final FaultTolerantRedisCluster cacheCluster = RedisClusterHelper.builder()
+        .stringCommands(commands)
+        .stringAsyncCommands(asyncCommands)
+        .build();
+
     accountsManager = new AccountsManager(
         accounts,
         phoneNumberIdentifiers,
-        RedisClusterHelper.builder()
-            .stringCommands(commands)
-            .stringAsyncCommands(asyncCommands)
-            .build(),
+        cacheCluster,
+        new AccountsNearCache(cacheCluster, new AccountsNearCacheConfiguration(), Clock.systemUTC()),
+        deviceLastSeenUpdater,
         accountLockManager,
         keysManager,
         messagesManager,
@@ -1012,10 +1021,12 @@ class AccountsManagerTest {
     final Device device = generateTestDevice(initialLastSeen);
     account.addDevice(device);
 
-    accountsManager.updateDeviceLastSeen(account, device, updatedLastSeen);
+    assertSame(account, accountsManager.updateDeviceLastSeen(account, device, updatedLastSeen));
 
     assertEquals(expectUpdate ? updatedLastSeen : initialLastSeen, device.getLastSeen());
-    verify(accounts, expectUpdate ? times(1) : never()).update(account);
+    verify(deviceLastSeenUpdater, expectUpdate ? times(1) : never())
+        .enqueue(account.getUuid(), device.getId(), updatedLastSeen);
+    verify(accounts, never()).update(any());
   }
 
   @SuppressWarnings("unused")
@@ -38,6 +38,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.mockito.Mockito;
+import org.whispersystems.textsecuregcm.configuration.AccountsNearCacheConfiguration;
 import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
 import org.whispersystems.textsecuregcm.entities.AccountAttributes;
 import org.whispersystems.textsecuregcm.experiment.ExperimentEnrollmentManager;
@@ -98,7 +99,8 @@ class AccountsManagerUsernameIntegrationTest {
         Tables.NUMBERS.tableName(),
         Tables.PNI_ASSIGNMENTS.tableName(),
         Tables.USERNAMES.tableName(),
-        Tables.DELETED_ACCOUNTS.tableName()));
+        Tables.DELETED_ACCOUNTS.tableName(),
+        false));
 
     final AccountLockManager accountLockManager = mock(AccountLockManager.class);
 
@@ -126,6 +128,9 @@ class AccountsManagerUsernameIntegrationTest {
         accounts,
         phoneNumberIdentifiers,
         CACHE_CLUSTER_EXTENSION.getRedisCluster(),
+        new AccountsNearCache(CACHE_CLUSTER_EXTENSION.getRedisCluster(), new AccountsNearCacheConfiguration(),
+            Clock.systemUTC()),
+        mock(DeviceLastSeenUpdater.class),
         accountLockManager,
         mock(KeysManager.class),
         mock(MessagesManager.class),
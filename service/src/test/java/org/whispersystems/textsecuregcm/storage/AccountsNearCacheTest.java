@@ -0,0 +1,180 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.whispersystems.textsecuregcm.configuration.AccountsNearCacheConfiguration;
+import org.whispersystems.textsecuregcm.redis.FaultTolerantRedisCluster;
+import org.whispersystems.textsecuregcm.redis.RedisClusterExtension;
+
+class AccountsNearCacheTest {
+
+  @RegisterExtension
+  static final RedisClusterExtension REDIS_CLUSTER_EXTENSION = RedisClusterExtension.builder().build();
+
+  private AccountsNearCache accountsNearCache;
+  private AccountsNearCache otherAccountsNearCache;
+
+  private static final UUID ACCOUNT_UUID = UUID.randomUUID();
+
+  @BeforeEach
+  void setUp() {
+    final AccountsNearCacheConfiguration configuration = new AccountsNearCacheConfiguration();
+    configuration.setEnabled(true);
+
+    accountsNearCache =
+        new AccountsNearCache(REDIS_CLUSTER_EXTENSION.getRedisCluster(), configuration, Clock.systemUTC());
+
+    otherAccountsNearCache =
+        new AccountsNearCache(REDIS_CLUSTER_EXTENSION.getRedisCluster(), configuration, Clock.systemUTC());
+
+    accountsNearCache.start();
+    otherAccountsNearCache.start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    accountsNearCache.stop();
+    otherAccountsNearCache.stop();
+  }
+
+  @Test
+  void testGet() {
+    final AtomicInteger loads = new AtomicInteger();
+
+    assertEquals("account", accountsNearCache.get(ACCOUNT_UUID, () -> {
+      loads.incrementAndGet();
+      return "account";
+    }));
+
+    assertEquals("account", accountsNearCache.get(ACCOUNT_UUID, () -> {
+      loads.incrementAndGet();
+      return "changed";
+    }));
+
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  void testGetAbsent() {
+    final AtomicInteger loads = new AtomicInteger();
+
+    assertNull(accountsNearCache.get(ACCOUNT_UUID, () -> {
+      loads.incrementAndGet();
+      return null;
+    }));
+
+    assertEquals("account", accountsNearCache.get(ACCOUNT_UUID, () -> {
+      loads.incrementAndGet();
+      return "account";
+    }));
+
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  void testGetAsync() {
+    assertEquals("account",
+        accountsNearCache.getAsync(ACCOUNT_UUID, () -> CompletableFuture.completedFuture("account")).join());
+
+    assertEquals("account",
+        accountsNearCache.getAsync(ACCOUNT_UUID, () -> CompletableFuture.completedFuture("changed")).join());
+  }
+
+  @Test
+  void testInvalidate() {
+    accountsNearCache.get(ACCOUNT_UUID, () -> "account");
+    accountsNearCache.invalidate(ACCOUNT_UUID);
+
+    assertEquals("changed", accountsNearCache.get(ACCOUNT_UUID, () -> "changed"));
+  }
+
+  @Test
+  void testInvalidateOtherServer() {
+    otherAccountsNearCache.get(ACCOUNT_UUID, () -> "account");
+    accountsNearCache.invalidateAsync(ACCOUNT_UUID).join();
+
+    assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+      while (!"changed".equals(otherAccountsNearCache.get(ACCOUNT_UUID, () -> "changed"))) {
+        Thread.sleep(10);
+      }
+    });
+  }
+
+  @Test
+  void testInvalidateDuringLoad() {
+    // a load that was in flight when the account was invalidated may have read a stale account, and must not be cached
+    assertEquals("stale", accountsNearCache.get(ACCOUNT_UUID, () -> {
+      accountsNearCache.invalidate(ACCOUNT_UUID);
+      return "stale";
+    }));
+
+    assertEquals("changed", accountsNearCache.get(ACCOUNT_UUID, () -> "changed"));
+  }
+
+  @Test
+  void testDisabled() {
+    final FaultTolerantRedisCluster cacheCluster = mock(FaultTolerantRedisCluster.class);
+    final AccountsNearCache disabledAccountsNearCache =
+        new AccountsNearCache(cacheCluster, new AccountsNearCacheConfiguration(), Clock.systemUTC());
+
+    disabledAccountsNearCache.start();
+
+    assertEquals("account", disabledAccountsNearCache.get(ACCOUNT_UUID, () -> "account"));
+    assertEquals("changed", disabledAccountsNearCache.get(ACCOUNT_UUID, () -> "changed"));
+
+    // servers without a near cache shouldn't broadcast invalidations
+    disabledAccountsNearCache.invalidate(ACCOUNT_UUID);
+    disabledAccountsNearCache.invalidateAsync(ACCOUNT_UUID).join();
+
+    disabledAccountsNearCache.stop();
+
+    verifyNoInteractions(cacheCluster);
+  }
+
+  @Test
+  void testPublishOnly() {
+    final FaultTolerantRedisCluster cacheCluster = spy(REDIS_CLUSTER_EXTENSION.getRedisCluster());
+    final AccountsNearCache publishOnlyAccountsNearCache =
+        AccountsNearCache.publishOnly(cacheCluster, Clock.systemUTC());
+
+    publishOnlyAccountsNearCache.start();
+
+    assertEquals("account", publishOnlyAccountsNearCache.get(ACCOUNT_UUID, () -> "account"));
+    assertEquals("changed", publishOnlyAccountsNearCache.get(ACCOUNT_UUID, () -> "changed"));
+
+    // publish-only near caches don't subscribe, but must still tell other servers about changes
+    verify(cacheCluster, never()).createPubSubConnection();
+
+    otherAccountsNearCache.get(ACCOUNT_UUID, () -> "account");
+    publishOnlyAccountsNearCache.invalidate(ACCOUNT_UUID);
+
+    assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+      while (!"changed".equals(otherAccountsNearCache.get(ACCOUNT_UUID, () -> "changed"))) {
+        Thread.sleep(10);
+      }
+    });
+
+    publishOnlyAccountsNearCache.stop();
+  }
+}
@@ -116,7 +116,8 @@ class AccountsTest {
         Tables.NUMBERS.tableName(),
         Tables.PNI_ASSIGNMENTS.tableName(),
         Tables.USERNAMES.tableName(),
-        Tables.DELETED_ACCOUNTS.tableName());
+        Tables.DELETED_ACCOUNTS.tableName(),
+        false);
   }
 
   @Test
@@ -175,6 +176,102 @@ class AccountsTest {
     assertPhoneNumberIdentifierConstraintExists(account.getPhoneNumberIdentifier(), account.getUuid());
   }
 
+  @Test
+  void testStoreCompactAccountData() {
+    final Accounts compactAccounts = new Accounts(
+        DYNAMO_DB_EXTENSION.getDynamoDbClient(),
+        DYNAMO_DB_EXTENSION.getDynamoDbAsyncClient(),
+        Tables.ACCOUNTS.tableName(),
+        Tables.NUMBERS.tableName(),
+        Tables.PNI_ASSIGNMENTS.tableName(),
+        Tables.USERNAMES.tableName(),
+        Tables.DELETED_ACCOUNTS.tableName(),
+        true);
+
+    final Device device = generateDevice(1);
+    final Account account = generateAccount("+14151112222", UUID.randomUUID(), UUID.randomUUID(), List.of(device));
+
+    assertThat(compactAccounts.create(account)).isTrue();
+
+    final byte[] storedAccountData = DYNAMO_DB_EXTENSION.getDynamoDbClient().getItem(GetItemRequest.builder()
+            .tableName(Tables.ACCOUNTS.tableName())
+            .key(Map.of(Accounts.KEY_ACCOUNT_UUID, AttributeValues.fromUUID(account.getUuid())))
+            .consistentRead(true)
+            .build())
+        .item().get(Accounts.ATTR_ACCOUNT_DATA).b().asByteArray();
+
+    assertEquals(AccountDataCodec.COMPACT_FORMAT_VERSION, storedAccountData[0]);
+    verifyStoredState("+14151112222", account.getUuid(), account.getPhoneNumberIdentifier(), null, account, true);
+
+    // servers that write JSON must still be able to read and update accounts written in the compact format, and vice
+    // versa
+    final Account retrieved = accounts.getByAccountIdentifier(account.getUuid()).orElseThrow();
+    verifyStoredState("+14151112222", account.getUuid(), account.getPhoneNumberIdentifier(), null, retrieved, account);
+
+    retrieved.setUnidentifiedAccessKey(new byte[UnidentifiedAccessUtil.UNIDENTIFIED_ACCESS_KEY_LENGTH]);
+    accounts.update(retrieved);
+
+    verifyStoredState("+14151112222", account.getUuid(), account.getPhoneNumberIdentifier(), null,
+        compactAccounts.getByAccountIdentifier(account.getUuid()).orElseThrow(), retrieved);
+  }
+
+  @Test
+  void testUpdateDeviceLastSeen() {
+    final Device device = generateDevice(1);
+    final Account account = generateAccount("+14151112222", UUID.randomUUID(), UUID.randomUUID(), List.of(device));
+    accounts.create(account);
+
+    final long lastSeen = device.getLastSeen() + 86_400_000L;
+
+    assertTrue(accounts.updateDeviceLastSeen(account.getUuid(), device.getId(), lastSeen).join());
+    assertFalse(accounts.updateDeviceLastSeen(account.getUuid(), device.getId(), lastSeen).join());
+    assertFalse(accounts.updateDeviceLastSeen(account.getUuid(), device.getId(), lastSeen - 1).join());
+    assertFalse(accounts.updateDeviceLastSeen(UUID.randomUUID(), device.getId(), lastSeen).join());
+
+    final Account retrieved = accounts.getByAccountIdentifier(account.getUuid()).orElseThrow();
+    assertEquals(lastSeen, retrieved.getDevice(device.getId()).orElseThrow().getLastSeen());
+
+    // last-seen updates don't touch the rest of the account, so they don't conflict with other updates
+    assertEquals(account.getVersion(), retrieved.getVersion());
+    accounts.update(account);
+
+    assertEquals(lastSeen,
+        accounts.getByAccountIdentifier(account.getUuid()).orElseThrow().getDevice(device.getId()).orElseThrow()
+            .getLastSeen());
+  }
+
+  @Test
+  void testUpdateDeviceLastSeenReusedDeviceId() {
+    final Device device = generateDevice(2);
+    final Account account = generateAccount("+14151112222", UUID.randomUUID(), UUID.randomUUID(),
+        List.of(generateDevice(1), device));
+    accounts.create(account);
+
+    final long previousDeviceLastSeen = device.getLastSeen() + 86_400_000L;
+    assertTrue(accounts.updateDeviceLastSeen(account.getUuid(), device.getId(), previousDeviceLastSeen).join());
+
+    // replace the device with a new device that reuses its ID
+    final Account retrieved = accounts.getByAccountIdentifier(account.getUuid()).orElseThrow();
+    retrieved.removeDevice(device.getId());
+
+    final Device newDevice = generateDevice(device.getId());
+    newDevice.setCreated(previousDeviceLastSeen + 1);
+    newDevice.setLastSeen(0);
+    retrieved.addDevice(newDevice);
+    accounts.update(retrieved);
+
+    // the previous device's last-seen time must not be applied to the new device...
+    assertEquals(0, accounts.getByAccountIdentifier(account.getUuid()).orElseThrow()
+        .getDevice(device.getId()).orElseThrow().getLastSeen());
+
+    // ...but the new device's own last-seen times should be
+    final long newDeviceLastSeen = previousDeviceLastSeen + 86_400_000L;
+    assertTrue(accounts.updateDeviceLastSeen(account.getUuid(), device.getId(), newDeviceLastSeen).join());
+
+    assertEquals(newDeviceLastSeen, accounts.getByAccountIdentifier(account.getUuid()).orElseThrow()
+        .getDevice(device.getId()).orElseThrow().getLastSeen());
+  }
+
   @Test
   void testStoreRecentlyDeleted() {
     final UUID originalUuid = UUID.randomUUID();
@@ -419,7 +516,8 @@ class AccountsTest {
     accounts = new Accounts(mock(DynamoDbClient.class),
         dynamoDbAsyncClient, Tables.ACCOUNTS.tableName(),
         Tables.NUMBERS.tableName(), Tables.PNI_ASSIGNMENTS.tableName(), Tables.USERNAMES.tableName(),
-        Tables.DELETED_ACCOUNTS.tableName());
+        Tables.DELETED_ACCOUNTS.tableName(),
+        false);
 
     Exception e = TransactionConflictException.builder().build();
     e = wrapException ? new CompletionException(e) : e;
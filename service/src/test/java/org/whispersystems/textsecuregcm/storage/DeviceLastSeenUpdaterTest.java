@@ -0,0 +1,113 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.textsecuregcm.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.whispersystems.textsecuregcm.configuration.AccountsNearCacheConfiguration;
+import org.whispersystems.textsecuregcm.redis.RedisClusterExtension;
+
+class DeviceLastSeenUpdaterTest {
+
+  @RegisterExtension
+  static final RedisClusterExtension REDIS_CLUSTER_EXTENSION = RedisClusterExtension.builder().build();
+
+  private Accounts accounts;
+  private DeviceLastSeenUpdater deviceLastSeenUpdater;
+
+  private static final UUID ACCOUNT_IDENTIFIER = UUID.randomUUID();
+
+  @BeforeEach
+  void setUp() {
+    accounts = mock(Accounts.class);
+
+    deviceLastSeenUpdater = new DeviceLastSeenUpdater(accounts,
+        REDIS_CLUSTER_EXTENSION.getRedisCluster(),
+        new AccountsNearCache(REDIS_CLUSTER_EXTENSION.getRedisCluster(), new AccountsNearCacheConfiguration(),
+            Clock.systemUTC()),
+        mock(ScheduledExecutorService.class),
+        Duration.ofSeconds(10));
+
+    REDIS_CLUSTER_EXTENSION.getRedisCluster().useCluster(connection ->
+        connection.sync().set(AccountsManager.getAccountEntityKey(ACCOUNT_IDENTIFIER), "{}"));
+  }
+
+  @Test
+  void testFlush() {
+    when(accounts.updateDeviceLastSeen(ACCOUNT_IDENTIFIER, Device.PRIMARY_ID, 2))
+        .thenReturn(CompletableFuture.completedFuture(true));
+
+    deviceLastSeenUpdater.enqueue(ACCOUNT_IDENTIFIER, Device.PRIMARY_ID, 1);
+    deviceLastSeenUpdater.enqueue(ACCOUNT_IDENTIFIER, Device.PRIMARY_ID, 2);
+    deviceLastSeenUpdater.enqueue(ACCOUNT_IDENTIFIER, Device.PRIMARY_ID, 1);
+
+    deviceLastSeenUpdater.flush().join();
+
+    // only the latest time for each device should be written
+    verify(accounts).updateDeviceLastSeen(ACCOUNT_IDENTIFIER, Device.PRIMARY_ID, 2);
+    verifyNoMoreInteractions(accounts);
+
+    assertNull(REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(connection ->
+        connection.sync().get(AccountsManager.getAccountEntityKey(ACCOUNT_IDENTIFIER))));
+
+    // flushed updates should not be written again
+    deviceLastSeenUpdater.flush().join();
+    verifyNoMoreInteractions(accounts);
+  }
+
+  @Test
+  void testFlushAlreadyCurrent() {
+    when(accounts.updateDeviceLastSeen(ACCOUNT_IDENTIFIER, Device.PRIMARY_ID, 1))
+        .thenReturn(CompletableFuture.completedFuture(false));
+
+    deviceLastSeenUpdater.enqueue(ACCOUNT_IDENTIFIER, Device.PRIMARY_ID, 1);
+    deviceLastSeenUpdater.flush().join();
+
+    // the cached account wasn't stale, so it should stay cached
+    assertEquals("{}", REDIS_CLUSTER_EXTENSION.getRedisCluster().withCluster(connection ->
+        connection.sync().get(AccountsManager.getAccountEntityKey(ACCOUNT_IDENTIFIER))));
+  }
+
+  @Test
+  void testFlushFailure() {
+    when(accounts.updateDeviceLastSeen(ACCOUNT_IDENTIFIER, Device.PRIMARY_ID, 1))
+        .thenReturn(CompletableFuture.failedFuture(new RuntimeException("OH NO")));
+
+    final UUID otherAccountIdentifier = UUID.randomUUID();
+
+    when(accounts.updateDeviceLastSeen(otherAccountIdentifier, Device.PRIMARY_ID, 1))
+        .thenReturn(CompletableFuture.completedFuture(true));
+
+    deviceLastSeenUpdater.enqueue(ACCOUNT_IDENTIFIER, Device.PRIMARY_ID, 1);
+    deviceLastSeenUpdater.enqueue(otherAccountIdentifier, Device.PRIMARY_ID, 1);
+
+    // one failed update shouldn't prevent others from being written
+    deviceLastSeenUpdater.flush().join();
+
+    verify(accounts).updateDeviceLastSeen(ACCOUNT_IDENTIFIER, Device.PRIMARY_ID, 1);
+    verify(accounts).updateDeviceLastSeen(otherAccountIdentifier, Device.PRIMARY_ID, 1);
+  }
+
+  @Test
+  void testFlushEmpty() {
+    deviceLastSeenUpdater.flush().join();
+    verifyNoInteractions(accounts);
+  }
+}
@@ -12,6 +12,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -119,11 +120,12 @@ class KeysManagerTest {
   void testTakeAccountAndDeviceId() {
     assertEquals(Optional.empty(), keysManager.takeEC(ACCOUNT_UUID, DEVICE_ID).join());
 
-    final ECPreKey preKey = generateTestPreKey(1);
+    final List<ECPreKey> preKeys = List.of(generateTestPreKey(1), generateTestPreKey(2));
 
-    keysManager.store(ACCOUNT_UUID, DEVICE_ID, List.of(preKey, generateTestPreKey(2)), null, null, null).join();
+    keysManager.store(ACCOUNT_UUID, DEVICE_ID, preKeys, null, null, null).join();
     final Optional<ECPreKey> takenKey = keysManager.takeEC(ACCOUNT_UUID, DEVICE_ID).join();
-    assertEquals(Optional.of(preKey), takenKey);
+    assertTrue(takenKey.isPresent());
+    assertTrue(preKeys.contains(takenKey.get()));
     assertEquals(1, keysManager.getEcCount(ACCOUNT_UUID, DEVICE_ID).join());
   }
 
@@ -137,12 +139,17 @@ class KeysManagerTest {
 
     keysManager.store(ACCOUNT_UUID, DEVICE_ID, null, List.of(preKey1, preKey2), null, preKeyLast).join();
 
-    assertEquals(Optional.of(preKey1), keysManager.takePQ(ACCOUNT_UUID, DEVICE_ID).join());
+    // single-use keys may be taken in any order
+    final Set<Long> takenKeyIds = new HashSet<>();
+
+    takenKeyIds.add(keysManager.takePQ(ACCOUNT_UUID, DEVICE_ID).join().orElseThrow().keyId());
     assertEquals(1, keysManager.getPqCount(ACCOUNT_UUID, DEVICE_ID).join());
 
-    assertEquals(Optional.of(preKey2), keysManager.takePQ(ACCOUNT_UUID, DEVICE_ID).join());
+    takenKeyIds.add(keysManager.takePQ(ACCOUNT_UUID, DEVICE_ID).join().orElseThrow().keyId());
     assertEquals(0, keysManager.getPqCount(ACCOUNT_UUID, DEVICE_ID).join());
 
+    assertEquals(Set.of(preKey1.keyId(), preKey2.keyId()), takenKeyIds);
+
     assertEquals(Optional.of(preKeyLast), keysManager.takePQ(ACCOUNT_UUID, DEVICE_ID).join());
     assertEquals(0, keysManager.getPqCount(ACCOUNT_UUID, DEVICE_ID).join());
 
@@ -150,6 +157,30 @@ class KeysManagerTest {
     assertEquals(0, keysManager.getPqCount(ACCOUNT_UUID, DEVICE_ID).join());
   }
 
+  @Test
+  void testTakeAll() {
+    final KEMSignedPreKey pqPreKey = generateTestKEMSignedPreKey(1);
+    final KEMSignedPreKey pqLastResortKey = generateTestKEMSignedPreKey(1001);
+    final ECPreKey ecPreKey = generateTestPreKey(1);
+
+    keysManager.store(ACCOUNT_UUID, DEVICE_ID, List.of(ecPreKey), List.of(pqPreKey), null, pqLastResortKey).join();
+    keysManager.store(ACCOUNT_UUID, DEVICE_ID + 1, null, null, null, pqLastResortKey).join();
+
+    assertEquals(Map.of(
+            DEVICE_ID, new KeysManager.DevicePreKeys(ecPreKey, null),
+            DEVICE_ID + 1, new KeysManager.DevicePreKeys(null, null)),
+        keysManager.takeAll(ACCOUNT_UUID, List.of(DEVICE_ID, DEVICE_ID + 1), false).join());
+
+    // the single-use EC key is gone, but the single-use KEM key is still available
+    assertEquals(Map.of(
+            DEVICE_ID, new KeysManager.DevicePreKeys(null, pqPreKey),
+            DEVICE_ID + 1, new KeysManager.DevicePreKeys(null, pqLastResortKey)),
+        keysManager.takeAll(ACCOUNT_UUID, List.of(DEVICE_ID, DEVICE_ID + 1), true).join());
+
+    assertEquals(Map.of(DEVICE_ID, new KeysManager.DevicePreKeys(null, pqLastResortKey)),
+        keysManager.takeAll(ACCOUNT_UUID, List.of(DEVICE_ID), true).join());
+  }
+
   @Test
   void testGetCount() {
     assertEquals(0, keysManager.getEcCount(ACCOUNT_UUID, DEVICE_ID).join());
@@ -6,16 +6,20 @@
 package org.whispersystems.textsecuregcm.storage;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -25,9 +29,11 @@ import java.nio.charset.StandardCharsets;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -37,7 +43,10 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.stubbing.Answer;
 import org.whispersystems.textsecuregcm.configuration.dynamic.DynamicConfiguration;
 import org.whispersystems.textsecuregcm.entities.MessageProtos;
@@ -78,15 +87,17 @@ class MessagePersisterTest {
     final Account account = mock(Account.class);
 
     when(accountsManager.getByAccountIdentifier(DESTINATION_ACCOUNT_UUID)).thenReturn(Optional.of(account));
+    when(accountsManager.getByAccountIdentifierAsync(DESTINATION_ACCOUNT_UUID))
+        .thenReturn(CompletableFuture.completedFuture(Optional.of(account)));
     when(account.getNumber()).thenReturn(DESTINATION_ACCOUNT_NUMBER);
     when(dynamicConfigurationManager.getConfiguration()).thenReturn(new DynamicConfiguration());
 
     sharedExecutorService = Executors.newSingleThreadExecutor();
     resubscribeRetryExecutorService = Executors.newSingleThreadScheduledExecutor();
     messageDeliveryScheduler = Schedulers.newBoundedElastic(10, 10_000, "messageDelivery");
-    messagesCache = new MessagesCache(REDIS_CLUSTER_EXTENSION.getRedisCluster(),
+    messagesCache = spy(new MessagesCache(REDIS_CLUSTER_EXTENSION.getRedisCluster(),
         REDIS_CLUSTER_EXTENSION.getRedisCluster(), sharedExecutorService, messageDeliveryScheduler,
-        sharedExecutorService, Clock.systemUTC());
+        sharedExecutorService, Clock.systemUTC()));
     messagePersister = new MessagePersister(messagesCache, messagesManager, accountsManager,
         dynamicConfigurationManager, PERSIST_DELAY, 1);
 
@@ -103,6 +114,25 @@ class MessagePersisterTest {
 
       return null;
     }).when(messagesManager).persistMessages(any(UUID.class), anyLong(), any());
+
+    doAnswer(invocation -> {
+      final List<MessagesDynamoDb.DestinationMessages> destinationMessages = invocation.getArgument(0);
+      final List<Integer> messagesRemovedFromCache = new ArrayList<>();
+
+      for (final MessagesDynamoDb.DestinationMessages destination : destinationMessages) {
+        messagesDynamoDb.store(destination.messages(), destination.destinationAccountUuid(),
+            destination.destinationDeviceId());
+      }
+
+      for (final MessagesDynamoDb.DestinationMessages destination : destinationMessages) {
+        messagesRemovedFromCache.add(messagesCache.remove(destination.destinationAccountUuid(),
+            destination.destinationDeviceId(),
+            destination.messages().stream().map(message -> UUID.fromString(message.getServerGuid())).toList())
+            .get().size());
+      }
+
+      return messagesRemovedFromCache;
+    }).when(messagesManager).persistMessages(anyList());
   }
 
   @AfterEach
@@ -120,6 +150,7 @@ class MessagePersisterTest {
     messagePersister.persistNextQueues(Instant.now());
 
     verify(accountsManager, never()).getByAccountIdentifier(any(UUID.class));
+    verify(accountsManager, never()).getByAccountIdentifierAsync(any(UUID.class));
   }
 
   @Test
@@ -172,6 +203,8 @@ class MessagePersisterTest {
       final Account account = mock(Account.class);
 
       when(accountsManager.getByAccountIdentifier(accountUuid)).thenReturn(Optional.of(account));
+      when(accountsManager.getByAccountIdentifierAsync(accountUuid))
+          .thenReturn(CompletableFuture.completedFuture(Optional.of(account)));
       when(account.getNumber()).thenReturn(accountNumber);
 
       insertMessages(accountUuid, deviceId, messagesPerQueue, now);
@@ -185,6 +218,168 @@ class MessagePersisterTest {
 
     verify(messagesDynamoDb, atLeastOnce()).store(messagesCaptor.capture(), any(UUID.class), anyLong());
     assertEquals(queueCount * messagesPerQueue, messagesCaptor.getAllValues().stream().mapToInt(List::size).sum());
+
+    // queues are persisted in batches rather than one at a time
+    verify(messagesManager, never()).persistMessages(any(UUID.class), anyLong(), anyList());
+  }
+
+  @Test
+  void testPersistNextQueuesBusiestSlotFirst() {
+    final int busySlot = 11;
+    final int quietSlot = 12;
+    final Instant now = Instant.now();
+
+    for (final int slot : List.of(busySlot, busySlot, busySlot, quietSlot)) {
+      final String queueName = generateRandomQueueNameForSlot(slot);
+      final UUID accountUuid = MessagesCache.getAccountUuidFromQueueName(queueName);
+      final Account account = mock(Account.class);
+
+      when(accountsManager.getByAccountIdentifierAsync(accountUuid))
+          .thenReturn(CompletableFuture.completedFuture(Optional.of(account)));
+
+      insertMessages(accountUuid, MessagesCache.getDeviceIdFromQueueName(queueName), 10, now);
+    }
+
+    setNextSlotToPersist(100);
+
+    messagePersister.updateBacklog(now.plus(messagePersister.getPersistDelay()));
+    assertEquals(1, messagePersister.getActiveWorkerCount());
+
+    assertEquals(3, messagePersister.persistNextQueues(now.plus(messagePersister.getPersistDelay())));
+    assertEquals(1, messagePersister.persistNextQueues(now.plus(messagePersister.getPersistDelay())));
+
+    // once busy slots are exhausted, workers fall back to visiting slots in turn
+    assertEquals(0, messagePersister.persistNextQueues(now.plus(messagePersister.getPersistDelay())));
+  }
+
+  @Test
+  void testUpdateBacklogSetsActiveWorkers() {
+    final MessagePersister multiWorkerMessagePersister = new MessagePersister(messagesCache, messagesManager,
+        accountsManager, mock(DynamicConfigurationManager.class), PERSIST_DELAY, 4);
+
+    final int slot = 11;
+    final Instant now = Instant.now();
+
+    for (int i = 0; i < 2; i++) {
+      final String queueName = generateRandomQueueNameForSlot(slot);
+      insertMessages(MessagesCache.getAccountUuidFromQueueName(queueName),
+          MessagesCache.getDeviceIdFromQueueName(queueName), 1, now);
+    }
+
+    // two queues in the first window of sampled slots extrapolate to a backlog that needs two workers
+    multiWorkerMessagePersister.updateBacklog(now.plus(PERSIST_DELAY));
+    assertEquals(2, multiWorkerMessagePersister.getActiveWorkerCount());
+
+    // the next window of slots has no backlog
+    multiWorkerMessagePersister.updateBacklog(now.plus(PERSIST_DELAY));
+    assertEquals(1, multiWorkerMessagePersister.getActiveWorkerCount());
+  }
+
+  @ParameterizedTest
+  @CsvSource({
+      "0, 8, 1",
+      "1, 8, 1",
+      "100, 8, 1",
+      "101, 8, 2",
+      "450, 8, 5",
+      "100000, 8, 8"
+  })
+  void testGetTargetWorkerCount(final long backlog, final int maxWorkers, final int expectedWorkers) {
+    assertEquals(expectedWorkers, MessagePersister.getTargetWorkerCount(backlog, maxWorkers));
+  }
+
+  @Test
+  void testPersistQueuesBatchFailure() {
+    final UUID otherAccountUuid = UUID.randomUUID();
+    final Account otherAccount = mock(Account.class);
+    when(accountsManager.getByAccountIdentifier(otherAccountUuid)).thenReturn(Optional.of(otherAccount));
+    when(accountsManager.getByAccountIdentifierAsync(otherAccountUuid))
+        .thenReturn(CompletableFuture.completedFuture(Optional.of(otherAccount)));
+
+    final String failingQueueName = new String(
+        MessagesCache.getMessageQueueKey(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID), StandardCharsets.UTF_8);
+    final String otherQueueName = new String(
+        MessagesCache.getMessageQueueKey(otherAccountUuid, DESTINATION_DEVICE_ID), StandardCharsets.UTF_8);
+
+    final int messageCount = MessagePersister.MESSAGE_BATCH_LIMIT + 7;
+    final Instant now = Instant.now();
+
+    insertMessages(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID, messageCount, now);
+    insertMessages(otherAccountUuid, DESTINATION_DEVICE_ID, messageCount, now);
+
+    doAnswer((Answer<Void>) invocation -> {
+      throw new RuntimeException("OH NO.");
+    }).when(messagesDynamoDb).store(any(), eq(DESTINATION_ACCOUNT_UUID), eq(DESTINATION_DEVICE_ID));
+
+    messagePersister.persistQueues(List.of(failingQueueName, otherQueueName));
+
+    // the failing queue doesn't prevent the other queue from being persisted, and is scheduled for a retry
+    assertFalse(messagesCache.hasMessages(otherAccountUuid, DESTINATION_DEVICE_ID));
+    assertTrue(messagesCache.hasMessages(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID));
+    assertEquals(List.of(failingQueueName),
+        messagesCache.getQueuesToPersist(SlotHash.getSlot(failingQueueName),
+            Instant.now().plus(messagePersister.getPersistDelay()), 1));
+
+    // queues persisted individually after a batch failure are unlocked exactly once
+    for (final UUID accountUuid : List.of(DESTINATION_ACCOUNT_UUID, otherAccountUuid)) {
+      verify(messagesCache).unlockQueueForPersistence(accountUuid, DESTINATION_DEVICE_ID);
+      verify(messagesCache, never()).unlockQueueForPersistenceAsync(accountUuid, DESTINATION_DEVICE_ID);
+    }
+  }
+
+  @Test
+  void testPersistQueuesUnlocksDrainedQueues() {
+    final UUID otherAccountUuid = UUID.randomUUID();
+    final Account otherAccount = mock(Account.class);
+    when(accountsManager.getByAccountIdentifierAsync(otherAccountUuid))
+        .thenReturn(CompletableFuture.completedFuture(Optional.of(otherAccount)));
+
+    final String shortQueueName = new String(
+        MessagesCache.getMessageQueueKey(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID), StandardCharsets.UTF_8);
+    final String longQueueName = new String(
+        MessagesCache.getMessageQueueKey(otherAccountUuid, DESTINATION_DEVICE_ID), StandardCharsets.UTF_8);
+
+    final Instant now = Instant.now();
+
+    insertMessages(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID, 1, now);
+    insertMessages(otherAccountUuid, DESTINATION_DEVICE_ID, MessagePersister.MESSAGE_BATCH_LIMIT * 2, now);
+
+    messagePersister.persistQueues(List.of(shortQueueName, longQueueName));
+
+    // the short queue is unlocked as soon as it's drained, rather than waiting for the long queue's second page
+    final InOrder inOrder = inOrder(messagesManager, messagesCache);
+    inOrder.verify(messagesManager).persistMessages(anyList());
+    inOrder.verify(messagesCache).unlockQueueForPersistenceAsync(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID);
+    inOrder.verify(messagesManager).persistMessages(anyList());
+    inOrder.verify(messagesCache).unlockQueueForPersistenceAsync(otherAccountUuid, DESTINATION_DEVICE_ID);
+
+    for (final UUID accountUuid : List.of(DESTINATION_ACCOUNT_UUID, otherAccountUuid)) {
+      assertFalse(messagesCache.hasMessages(accountUuid, DESTINATION_DEVICE_ID));
+      verify(messagesCache).unlockQueueForPersistenceAsync(accountUuid, DESTINATION_DEVICE_ID);
+      verify(messagesCache, never()).unlockQueueForPersistence(accountUuid, DESTINATION_DEVICE_ID);
+    }
+  }
+
+  @Test
+  void testPersistQueuesRefreshesLocks() {
+    final String queueName = new String(
+        MessagesCache.getMessageQueueKey(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID), StandardCharsets.UTF_8);
+
+    insertMessages(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID, MessagePersister.MESSAGE_BATCH_LIMIT * 2,
+        Instant.now());
+
+    messagePersister.persistQueues(List.of(queueName));
+
+    // the queue's lock is renewed before every round, including the final round that finds the queue drained
+    final InOrder inOrder = inOrder(messagesManager, messagesCache);
+    inOrder.verify(messagesCache).lockQueueForPersistenceAsync(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID);
+    inOrder.verify(messagesManager).persistMessages(anyList());
+    inOrder.verify(messagesCache).lockQueueForPersistenceAsync(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID);
+    inOrder.verify(messagesManager).persistMessages(anyList());
+    inOrder.verify(messagesCache).lockQueueForPersistenceAsync(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID);
+    inOrder.verify(messagesCache).unlockQueueForPersistenceAsync(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID);
+
+    assertFalse(messagesCache.hasMessages(DESTINATION_ACCOUNT_UUID, DESTINATION_DEVICE_ID));
   }
 
   @Test
@@ -203,9 +398,14 @@ class MessagePersisterTest {
 
     messagePersister.persistNextQueues(now.plus(messagePersister.getPersistDelay()));
 
+    // the failed queue isn't retried right away...
+    assertTrue(messagesCache.getQueuesToPersist(SlotHash.getSlot(queueName),
+        Instant.now().minus(messagePersister.getPersistDelay()), 1).isEmpty());
+
+    // ...but is retried after a delay
     assertEquals(List.of(queueName),
         messagesCache.getQueuesToPersist(SlotHash.getSlot(queueName),
-            Instant.now().plus(messagePersister.getPersistDelay()), 1));
+            Instant.now().minus(messagePersister.getPersistDelay()).plus(MessagePersister.QUEUE_RETRY_DELAY), 1));
   }
 
   @Test
@@ -5,6 +5,7 @@
 
 package org.whispersystems.textsecuregcm.storage;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
@@ -55,6 +56,7 @@ import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
 import org.junit.jupiter.params.provider.ValueSource;
 import org.reactivestreams.Publisher;
 import org.whispersystems.textsecuregcm.entities.MessageProtos;
@@ -137,6 +139,93 @@ class MessagesCacheTest {
       assertEquals(firstId, secondId);
     }
 
+    @Test
+    void testInsertBatch() throws Exception {
+      final UUID otherDestinationUuid = UUID.randomUUID();
+
+      final List<MessagesCache.MessageToInsert> messages = new ArrayList<>();
+
+      for (int i = 0; i < 10; i++) {
+        final UUID messageGuid = UUID.randomUUID();
+        messages.add(new MessagesCache.MessageToInsert(messageGuid, i % 2 == 0 ? DESTINATION_UUID : otherDestinationUuid,
+            DESTINATION_DEVICE_ID, generateRandomMessage(messageGuid, true)));
+      }
+
+      final List<Long> messageIds = messagesCache.insertBatch(messages).get(5, TimeUnit.SECONDS);
+
+      assertEquals(messages.size(), messageIds.size());
+      assertTrue(messageIds.stream().allMatch(messageId -> messageId > 0));
+
+      assertEquals(messages.stream()
+              .filter(message -> message.destinationUuid().equals(DESTINATION_UUID))
+              .map(MessagesCache.MessageToInsert::message)
+              .toList(),
+          get(DESTINATION_UUID, DESTINATION_DEVICE_ID, messages.size()));
+
+      assertEquals(messages.stream()
+              .filter(message -> message.destinationUuid().equals(otherDestinationUuid))
+              .map(MessagesCache.MessageToInsert::message)
+              .toList(),
+          get(otherDestinationUuid, DESTINATION_DEVICE_ID, messages.size()));
+    }
+
+    @Test
+    void testInsertBatchSharedPayload() throws Exception {
+      final byte[] sharedContentSuffix = RandomStringUtils.randomAlphanumeric(1024).getBytes(StandardCharsets.UTF_8);
+      final List<MessagesCache.MessageToInsert> messages = new ArrayList<>();
+
+      for (int deviceId = 1; deviceId <= 3; deviceId++) {
+        final UUID messageGuid = UUID.randomUUID();
+        messages.add(new MessagesCache.MessageToInsert(messageGuid, DESTINATION_UUID, deviceId,
+            generateRandomMessage(messageGuid, true)));
+      }
+
+      messagesCache.insertBatch(messages, sharedContentSuffix).get(5, TimeUnit.SECONDS);
+
+      final byte[] sharedPayloadKey = MessagesCache.getSharedPayloadKey(sharedContentSuffix);
+      assertEquals(1, (long) REDIS_CLUSTER_EXTENSION.getRedisCluster().withBinaryCluster(
+          connection -> connection.sync().exists(sharedPayloadKey)));
+
+      for (final MessagesCache.MessageToInsert message : messages) {
+        final MessageProtos.Envelope expectedMessage = message.message().toBuilder()
+            .setContent(message.message().getContent().concat(ByteString.copyFrom(sharedContentSuffix)))
+            .build();
+
+        assertEquals(List.of(expectedMessage), get(DESTINATION_UUID, message.destinationDevice(), 1));
+        assertEquals(List.of(expectedMessage),
+            messagesCache.getMessagesToPersist(DESTINATION_UUID, message.destinationDevice(), 10));
+      }
+
+      for (final MessagesCache.MessageToInsert message : messages) {
+        assertEquals(1, (long) REDIS_CLUSTER_EXTENSION.getRedisCluster().withBinaryCluster(
+            connection -> connection.sync().exists(sharedPayloadKey)));
+
+        assertTrue(messagesCache.remove(DESTINATION_UUID, message.destinationDevice(), message.guid())
+            .get(5, TimeUnit.SECONDS).isPresent());
+      }
+
+      // the last reference is gone, and so is the shared payload
+      assertEquals(0, (long) REDIS_CLUSTER_EXTENSION.getRedisCluster().withBinaryCluster(
+          connection -> connection.sync().exists(sharedPayloadKey)));
+    }
+
+    @Test
+    void testOrphanedSharedPayloadMessage() throws Exception {
+      final byte[] sharedContentSuffix = RandomStringUtils.randomAlphanumeric(1024).getBytes(StandardCharsets.UTF_8);
+      final UUID messageGuid = UUID.randomUUID();
+
+      messagesCache.insertBatch(List.of(new MessagesCache.MessageToInsert(messageGuid, DESTINATION_UUID,
+          DESTINATION_DEVICE_ID, generateRandomMessage(messageGuid, true))), sharedContentSuffix)
+          .get(5, TimeUnit.SECONDS);
+
+      REDIS_CLUSTER_EXTENSION.getRedisCluster().useBinaryCluster(
+          connection -> connection.sync().del(MessagesCache.getSharedPayloadKey(sharedContentSuffix)));
+
+      // a message whose shared payload is gone can never be delivered, and gets discarded instead
+      assertTrue(messagesCache.getMessagesToPersist(DESTINATION_UUID, DESTINATION_DEVICE_ID, 10).isEmpty());
+      assertFalse(messagesCache.hasMessages(DESTINATION_UUID, DESTINATION_DEVICE_ID));
+    }
+
     @ParameterizedTest
     @ValueSource(booleans = {true, false})
     void testRemoveByUUID(final boolean sealedSender) throws Exception {
@@ -241,6 +330,33 @@ class MessagesCacheTest {
       assertEquals(List.of(message2), get(DESTINATION_UUID, DESTINATION_DEVICE_ID, 1));
     }
 
+    @Test
+    void testGetAllMessagesLargeQueue() {
+      // enough messages, and large enough messages, to span pages limited by both count and size
+      final int messageCount = 2_500;
+
+      final List<MessagesCache.MessageToInsert> messagesToInsert = new ArrayList<>(messageCount);
+
+      for (int i = 0; i < messageCount; i++) {
+        final UUID messageGuid = UUID.randomUUID();
+        final MessageProtos.Envelope message = generateRandomMessage(messageGuid, true).toBuilder()
+            .setContent(ByteString.copyFromUtf8(RandomStringUtils.randomAlphanumeric(1024)))
+            .build();
+
+        messagesToInsert.add(new MessagesCache.MessageToInsert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID,
+            message));
+      }
+
+      messagesCache.insertBatch(messagesToInsert, null).join();
+
+      final List<MessageProtos.Envelope> messages = messagesCache.getAllMessages(DESTINATION_UUID,
+              DESTINATION_DEVICE_ID)
+          .collectList()
+          .block(Duration.ofSeconds(10));
+
+      assertEquals(messagesToInsert.stream().map(MessagesCache.MessageToInsert::message).toList(), messages);
+    }
+
     @ParameterizedTest
     @ValueSource(booleans = {true, false})
     void testGetMessagesPublisher(final boolean expectStale) throws Exception {
@@ -387,6 +503,37 @@ class MessagesCacheTest {
       assertEquals(DESTINATION_DEVICE_ID, MessagesCache.getDeviceIdFromQueueName(queues.get(0)));
     }
 
+    @Test
+    void testGetPersistBacklog() {
+      final UUID messageGuid = UUID.randomUUID();
+
+      messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID,
+          generateRandomMessage(messageGuid, true, Instant.now().toEpochMilli()));
+      final int slot = SlotHash.getSlot(DESTINATION_UUID + "::" + DESTINATION_DEVICE_ID);
+
+      final int otherSlot = (slot + 1) % SlotHash.SLOT_COUNT;
+
+      assertArrayEquals(new long[]{0, 0},
+          messagesCache.getPersistBacklog(List.of(slot, otherSlot), Instant.now().minusSeconds(60)));
+
+      assertArrayEquals(new long[]{1, 0},
+          messagesCache.getPersistBacklog(List.of(slot, otherSlot), Instant.now().plusSeconds(60)));
+    }
+
+    @Test
+    void testAddQueueToPersistKeepsExistingTimestamp() {
+      final UUID messageGuid = UUID.randomUUID();
+
+      messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID,
+          generateRandomMessage(messageGuid, true, Instant.now().toEpochMilli()));
+      final int slot = SlotHash.getSlot(DESTINATION_UUID + "::" + DESTINATION_DEVICE_ID);
+
+      // re-adding a queue that's already in the index shouldn't defer its persistence
+      messagesCache.addQueueToPersist(DESTINATION_UUID, DESTINATION_DEVICE_ID, Instant.now().plusSeconds(3600));
+
+      assertEquals(1, messagesCache.getQueuesToPersist(slot, Instant.now().plusSeconds(60), 100).size());
+    }
+
     @Test
     void testNotifyListenerNewMessage() {
       final AtomicBoolean notified = new AtomicBoolean(false);
@@ -462,6 +609,99 @@ class MessagesCacheTest {
     }
 
 
+    @Test
+    void testRemoveReplacedListener() throws Exception {
+      final AtomicBoolean replacedListenerNotified = new AtomicBoolean(false);
+      final CompletableFuture<Void> newMessagesFuture = new CompletableFuture<>();
+
+      final MessageAvailabilityListener replacedListener = new MessageAvailabilityListener() {
+        @Override
+        public boolean handleNewMessagesAvailable() {
+          replacedListenerNotified.set(true);
+          return true;
+        }
+
+        @Override
+        public boolean handleMessagesPersisted() {
+          return true;
+        }
+      };
+
+      messagesCache.addMessageAvailabilityListener(DESTINATION_UUID, DESTINATION_DEVICE_ID, replacedListener);
+      messagesCache.addMessageAvailabilityListener(DESTINATION_UUID, DESTINATION_DEVICE_ID,
+          new MessageAvailabilityListener() {
+            @Override
+            public boolean handleNewMessagesAvailable() {
+              newMessagesFuture.complete(null);
+              return true;
+            }
+
+            @Override
+            public boolean handleMessagesPersisted() {
+              return true;
+            }
+          });
+
+      // removing the replaced listener must leave the current listener and its subscription in place
+      messagesCache.removeMessageAvailabilityListener(replacedListener);
+
+      final UUID messageGuid = UUID.randomUUID();
+      messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID,
+          generateRandomMessage(messageGuid, true));
+
+      newMessagesFuture.get(5, TimeUnit.SECONDS);
+      assertFalse(replacedListenerNotified.get());
+    }
+
+    @Test
+    void testListenersComparedByIdentity() throws Exception {
+      final CompletableFuture<Void> newMessagesFuture = new CompletableFuture<>();
+
+      // listeners that are "equal" to one another must still be registered independently
+      abstract class EqualListener implements MessageAvailabilityListener {
+
+        @Override
+        public boolean handleMessagesPersisted() {
+          return true;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+          return other instanceof EqualListener;
+        }
+
+        @Override
+        public int hashCode() {
+          return 0;
+        }
+      }
+
+      final MessageAvailabilityListener removedListener = new EqualListener() {
+        @Override
+        public boolean handleNewMessagesAvailable() {
+          return true;
+        }
+      };
+
+      messagesCache.addMessageAvailabilityListener(DESTINATION_UUID, DESTINATION_DEVICE_ID, removedListener);
+      messagesCache.addMessageAvailabilityListener(DESTINATION_UUID, DESTINATION_DEVICE_ID + 1, new EqualListener() {
+        @Override
+        public boolean handleNewMessagesAvailable() {
+          newMessagesFuture.complete(null);
+          return true;
+        }
+      });
+
+      messagesCache.removeMessageAvailabilityListener(removedListener);
+
+      final UUID messageGuid = UUID.randomUUID();
+      messagesCache.insert(messageGuid, DESTINATION_UUID, DESTINATION_DEVICE_ID + 1,
+          generateRandomMessage(messageGuid, true));
+
+      newMessagesFuture.get(5, TimeUnit.SECONDS);
+    }
+
+
     /**
      * Helper class that implements {@link MessageAvailabilityListener#handleNewMessagesAvailable()} by always returning
      * {@code false}. Its {@code counter} field tracks how many times {@code handleNewMessagesAvailable} has been
@@ -672,6 +912,19 @@ class MessagesCacheTest {
       assertTrue(pages.isEmpty());
     }
 
+    @ParameterizedTest
+    @CsvSource({
+        "100, 10000, 200",
+        "200, 10000, 400",
+        "800, 10000, 1000",
+        "1000, 10000, 1000",
+        "400, 250, 250",
+        "400, 0, 100"
+    })
+    void testGetNextPageSize(final int previousPageSize, final long remainingMessages, final int expectedPageSize) {
+      assertEquals(expectedPageSize, MessagesCache.getNextPageSize(previousPageSize, remainingMessages));
+    }
+
     @Test
     void testGetDiscardsEphemeralMessages() {
       final Deque<List<byte[]>> pages = new ArrayDeque<>();
@@ -720,6 +973,9 @@ class MessagesCacheTest {
         messagesAndIds.add(String.valueOf(serialTimestamp).getBytes());
       }
 
+      // number of messages remaining in the queue
+      messagesAndIds.add("0".getBytes());
+
       return messagesAndIds;
     }
 
@@ -733,6 +989,9 @@ class MessagesCacheTest {
         messagesAndIds.add(String.valueOf(serialTimestamp).getBytes());
       }
 
+      // number of messages remaining in the queue
+      messagesAndIds.add("0".getBytes());
+
       return messagesAndIds;
     }
   }
@@ -6,14 +6,22 @@
 package org.whispersystems.textsecuregcm.storage;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import com.google.protobuf.ByteString;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -24,12 +32,16 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
+import org.mockito.ArgumentCaptor;
 import org.reactivestreams.Publisher;
 import org.whispersystems.textsecuregcm.entities.MessageProtos;
 import org.whispersystems.textsecuregcm.storage.DynamoDbExtensionSchema.Tables;
 import org.whispersystems.textsecuregcm.tests.util.MessageHelper;
 import reactor.core.publisher.Flux;
 import reactor.test.StepVerifier;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
 
 class MessagesDynamoDbTest {
 
@@ -144,6 +156,49 @@ class MessagesDynamoDbTest {
         .verify();
   }
 
+  @Test
+  void testStoreAsync() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final UUID secondDestinationUuid = UUID.randomUUID();
+    final int messageCount = AbstractDynamoDbStore.DYNAMO_DB_MAX_BATCH_SIZE + 7;
+
+    final List<MessagesDynamoDb.DestinationMessages> destinationMessages = new ArrayList<>();
+
+    for (final UUID uuid : List.of(destinationUuid, secondDestinationUuid)) {
+      for (final long deviceId : List.of(1L, 2L)) {
+        final List<MessageProtos.Envelope> messages = new ArrayList<>(messageCount);
+
+        for (int i = 0; i < messageCount; i++) {
+          messages.add(MessageHelper.createMessage(UUID.randomUUID(), 1, uuid, (i + 1L) * 1000, "message " + i));
+        }
+
+        destinationMessages.add(new MessagesDynamoDb.DestinationMessages(uuid, deviceId, messages));
+      }
+    }
+
+    messagesDynamoDb.storeAsync(destinationMessages).join();
+
+    for (final MessagesDynamoDb.DestinationMessages destination : destinationMessages) {
+      assertThat(load(destination.destinationAccountUuid(), destination.destinationDeviceId(), messageCount + 1))
+          .containsExactlyInAnyOrderElementsOf(destination.messages());
+    }
+  }
+
+  @Test
+  void testStoreAsyncUnprocessedItems() {
+    final DynamoDbAsyncClient dynamoDbAsyncClient = mockUnprocessedItemsOnce();
+
+    messagesDynamoDb = new MessagesDynamoDb(DYNAMO_DB_EXTENSION.getDynamoDbClient(), dynamoDbAsyncClient,
+        Tables.MESSAGES.tableName(), Duration.ofDays(14), messageDeletionExecutorService);
+
+    final UUID destinationUuid = UUID.randomUUID();
+
+    messagesDynamoDb.storeAsync(List.of(new MessagesDynamoDb.DestinationMessages(destinationUuid, 1,
+        List.of(MessageHelper.createMessage(UUID.randomUUID(), 1, destinationUuid, 1000, "message"))))).join();
+
+    assertUnprocessedItemsRetried(dynamoDbAsyncClient);
+  }
+
   @Test
   void testLimitedLoad() {
     final int messageCount = 200;
@@ -288,6 +343,66 @@ class MessagesDynamoDbTest {
         .isEmpty();
   }
 
+  @Test
+  void testDeleteMessages() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final int messageCount = AbstractDynamoDbStore.DYNAMO_DB_MAX_BATCH_SIZE + 7;
+
+    final List<MessageProtos.Envelope> messages = new ArrayList<>(messageCount);
+
+    for (int i = 0; i < messageCount; i++) {
+      messages.add(MessageHelper.createMessage(UUID.randomUUID(), 1, destinationUuid, (i + 1L) * 1000, "message " + i));
+    }
+
+    messagesDynamoDb.store(messages, destinationUuid, 1);
+    messagesDynamoDb.store(List.of(MESSAGE1), destinationUuid, 2);
+
+    final Map<UUID, Long> serverTimestampsByGuid = new HashMap<>();
+    messages.subList(1, messageCount).forEach(message ->
+        serverTimestampsByGuid.put(UUID.fromString(message.getServerGuid()), message.getServerTimestamp()));
+
+    messagesDynamoDb.deleteMessages(destinationUuid, 1, serverTimestampsByGuid).join();
+
+    assertThat(load(destinationUuid, 1, MessagesDynamoDb.RESULT_SET_CHUNK_SIZE)).containsExactly(messages.get(0));
+    assertThat(load(destinationUuid, 2, MessagesDynamoDb.RESULT_SET_CHUNK_SIZE)).containsExactly(MESSAGE1);
+  }
+
+
+  @Test
+  void testDeleteMessagesUnprocessedItems() {
+    final DynamoDbAsyncClient dynamoDbAsyncClient = mockUnprocessedItemsOnce();
+
+    messagesDynamoDb = new MessagesDynamoDb(DYNAMO_DB_EXTENSION.getDynamoDbClient(), dynamoDbAsyncClient,
+        Tables.MESSAGES.tableName(), Duration.ofDays(14), messageDeletionExecutorService);
+
+    messagesDynamoDb.deleteMessages(UUID.randomUUID(), 1, Map.of(UUID.randomUUID(), 1000L)).join();
+
+    assertUnprocessedItemsRetried(dynamoDbAsyncClient);
+  }
+
+  /**
+   * Returns a client that leaves every item of its first batch write unprocessed and processes everything afterward.
+   */
+  private static DynamoDbAsyncClient mockUnprocessedItemsOnce() {
+    final DynamoDbAsyncClient dynamoDbAsyncClient = mock(DynamoDbAsyncClient.class);
+
+    when(dynamoDbAsyncClient.batchWriteItem(any(BatchWriteItemRequest.class)))
+        .thenAnswer(invocation -> CompletableFuture.completedFuture(BatchWriteItemResponse.builder()
+            .unprocessedItems(invocation.getArgument(0, BatchWriteItemRequest.class).requestItems())
+            .build()))
+        .thenReturn(CompletableFuture.completedFuture(BatchWriteItemResponse.builder().build()));
+
+    return dynamoDbAsyncClient;
+  }
+
+  private static void assertUnprocessedItemsRetried(final DynamoDbAsyncClient dynamoDbAsyncClient) {
+    final ArgumentCaptor<BatchWriteItemRequest> requestCaptor = ArgumentCaptor.forClass(BatchWriteItemRequest.class);
+    verify(dynamoDbAsyncClient, times(2)).batchWriteItem(requestCaptor.capture());
+
+    assertThat(requestCaptor.getAllValues().get(1).requestItems())
+        .isEqualTo(requestCaptor.getAllValues().get(0).requestItems());
+  }
+
   private List<MessageProtos.Envelope> load(final UUID destinationUuid, final long destinationDeviceId,
       final int count) {
     return Flux.from(messagesDynamoDb.load(destinationUuid, destinationDeviceId, count))
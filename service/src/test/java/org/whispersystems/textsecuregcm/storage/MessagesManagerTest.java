@@ -6,12 +6,17 @@
 package org.whispersystems.textsecuregcm.storage;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
 
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import org.junit.jupiter.api.Test;
 import org.whispersystems.textsecuregcm.entities.MessageProtos.Envelope;
@@ -46,4 +51,25 @@ class MessagesManagerTest {
 
     verifyNoMoreInteractions(reportMessageManager);
   }
+
+  @Test
+  void deleteBatch() {
+    final UUID destinationUuid = UUID.randomUUID();
+    final UUID cachedMessageGuid = UUID.randomUUID();
+    final UUID persistedMessageGuid = UUID.randomUUID();
+
+    when(messagesCache.remove(destinationUuid, 1L, List.of(cachedMessageGuid, persistedMessageGuid)))
+        .thenReturn(CompletableFuture.completedFuture(
+            List.of(Envelope.newBuilder().setServerGuid(cachedMessageGuid.toString()).build())));
+
+    when(messagesDynamoDb.deleteMessages(any(), anyLong(), any()))
+        .thenReturn(CompletableFuture.completedFuture(null));
+
+    messagesManager.delete(destinationUuid, 1L, List.of(
+        new MessagesManager.MessageToDelete(cachedMessageGuid, 1234),
+        new MessagesManager.MessageToDelete(persistedMessageGuid, 5678))).join();
+
+    // only messages that weren't in the cache are deleted from DynamoDB
+    verify(messagesDynamoDb).deleteMessages(destinationUuid, 1L, Map.of(persistedMessageGuid, 5678L));
+  }
 }
@@ -18,6 +18,7 @@ import org.signal.libsignal.protocol.ecc.Curve;
 import org.signal.libsignal.protocol.ecc.ECKeyPair;
 import org.whispersystems.textsecuregcm.entities.ECSignedPreKey;
 import org.whispersystems.textsecuregcm.tests.util.KeysHelper;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 
 class RepeatedUseECSignedPreKeyStoreTest extends RepeatedUseSignedPreKeyStoreTest<ECSignedPreKey> {
 
@@ -42,6 +43,16 @@ class RepeatedUseECSignedPreKeyStoreTest extends RepeatedUseSignedPreKeyStoreTes
     return keyStore;
   }
 
+  @Override
+  protected RepeatedUseSignedPreKeyStore<ECSignedPreKey> getKeyStore(final DynamoDbAsyncClient dynamoDbAsyncClient) {
+    return new RepeatedUseECSignedPreKeyStore(dynamoDbAsyncClient, DynamoDbExtensionSchema.Tables.REPEATED_USE_EC_SIGNED_PRE_KEYS.tableName());
+  }
+
+  @Override
+  protected DynamoDbAsyncClient getDynamoDbAsyncClient() {
+    return DYNAMO_DB_EXTENSION.getDynamoDbAsyncClient();
+  }
+
   @Override
   protected ECSignedPreKey generateSignedPreKey() {
     return KeysHelper.signedECPreKey(currentKeyId++, IDENTITY_KEY_PAIR);
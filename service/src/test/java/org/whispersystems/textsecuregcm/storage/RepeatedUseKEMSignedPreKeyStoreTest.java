@@ -11,6 +11,7 @@ import org.signal.libsignal.protocol.ecc.Curve;
 import org.signal.libsignal.protocol.ecc.ECKeyPair;
 import org.whispersystems.textsecuregcm.entities.KEMSignedPreKey;
 import org.whispersystems.textsecuregcm.tests.util.KeysHelper;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 
 class RepeatedUseKEMSignedPreKeyStoreTest extends RepeatedUseSignedPreKeyStoreTest<KEMSignedPreKey> {
 
@@ -35,6 +36,16 @@ class RepeatedUseKEMSignedPreKeyStoreTest extends RepeatedUseSignedPreKeyStoreTe
     return keyStore;
   }
 
+  @Override
+  protected RepeatedUseSignedPreKeyStore<KEMSignedPreKey> getKeyStore(final DynamoDbAsyncClient dynamoDbAsyncClient) {
+    return new RepeatedUseKEMSignedPreKeyStore(dynamoDbAsyncClient, DynamoDbExtensionSchema.Tables.REPEATED_USE_KEM_SIGNED_PRE_KEYS.tableName());
+  }
+
+  @Override
+  protected DynamoDbAsyncClient getDynamoDbAsyncClient() {
+    return DYNAMO_DB_EXTENSION.getDynamoDbAsyncClient();
+  }
+
   @Override
   protected KEMSignedPreKey generateSignedPreKey() {
     return KeysHelper.signedKEMPreKey(currentKeyId++, IDENTITY_KEY_PAIR);
@@ -7,17 +7,31 @@ package org.whispersystems.textsecuregcm.storage;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import org.junit.jupiter.api.Test;
 import org.whispersystems.textsecuregcm.entities.SignedPreKey;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
 
 abstract class RepeatedUseSignedPreKeyStoreTest<K extends SignedPreKey<?>> {
 
   protected abstract RepeatedUseSignedPreKeyStore<K> getKeyStore();
 
+  protected abstract RepeatedUseSignedPreKeyStore<K> getKeyStore(DynamoDbAsyncClient dynamoDbAsyncClient);
+
+  protected abstract DynamoDbAsyncClient getDynamoDbAsyncClient();
+
   protected abstract K generateSignedPreKey();
 
   @Test
@@ -48,6 +62,48 @@ abstract class RepeatedUseSignedPreKeyStoreTest<K extends SignedPreKey<?>> {
     }
   }
 
+  @Test
+  void findAll() {
+    final RepeatedUseSignedPreKeyStore<K> keys = getKeyStore();
+
+    assertEquals(Map.of(), keys.findAll(UUID.randomUUID(), List.of(1L, 2L)).join());
+
+    final UUID identifier = UUID.randomUUID();
+    final Map<Long, K> signedPreKeys = Map.of(
+        1L, generateSignedPreKey(),
+        2L, generateSignedPreKey()
+    );
+
+    keys.store(identifier, signedPreKeys).join();
+
+    assertEquals(signedPreKeys, keys.findAll(identifier, List.of(1L, 2L, 3L)).join());
+    assertEquals(Map.of(2L, signedPreKeys.get(2L)), keys.findAll(identifier, List.of(2L)).join());
+  }
+
+  @Test
+  void findAllUnprocessedKeys() {
+    final DynamoDbAsyncClient dynamoDbAsyncClient = spy(getDynamoDbAsyncClient());
+    final RepeatedUseSignedPreKeyStore<K> keys = getKeyStore(dynamoDbAsyncClient);
+
+    final UUID identifier = UUID.randomUUID();
+    final Map<Long, K> signedPreKeys = Map.of(
+        1L, generateSignedPreKey(),
+        2L, generateSignedPreKey()
+    );
+
+    keys.store(identifier, signedPreKeys).join();
+
+    // leave every key unprocessed on the first attempt, as if the partition were throttled
+    doAnswer(invocation -> CompletableFuture.completedFuture(BatchGetItemResponse.builder()
+        .unprocessedKeys(invocation.<BatchGetItemRequest>getArgument(0).requestItems())
+        .build()))
+        .doCallRealMethod()
+        .when(dynamoDbAsyncClient).batchGetItem(any(BatchGetItemRequest.class));
+
+    assertEquals(signedPreKeys, keys.findAll(identifier, List.of(1L, 2L)).join());
+    verify(dynamoDbAsyncClient, times(2)).batchGetItem(any(BatchGetItemRequest.class));
+  }
+
   @Test
   void delete() {
     final RepeatedUseSignedPreKeyStore<K> keys = getKeyStore();
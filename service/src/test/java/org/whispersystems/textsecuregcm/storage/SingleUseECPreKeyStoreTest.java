@@ -9,6 +9,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.signal.libsignal.protocol.ecc.Curve;
 import org.whispersystems.textsecuregcm.entities.ECPreKey;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 
 class SingleUseECPreKeyStoreTest extends SingleUsePreKeyStoreTest<ECPreKey> {
 
@@ -28,6 +29,21 @@ class SingleUseECPreKeyStoreTest extends SingleUsePreKeyStoreTest<ECPreKey> {
     return preKeyStore;
   }
 
+  @Override
+  protected SingleUsePreKeyStore<ECPreKey> getPreKeyStore(final DynamoDbAsyncClient dynamoDbAsyncClient) {
+    return new SingleUseECPreKeyStore(dynamoDbAsyncClient, DynamoDbExtensionSchema.Tables.EC_KEYS.tableName());
+  }
+
+  @Override
+  protected DynamoDbAsyncClient getDynamoDbAsyncClient() {
+    return DYNAMO_DB_EXTENSION.getDynamoDbAsyncClient();
+  }
+
+  @Override
+  protected String getTableName() {
+    return DynamoDbExtensionSchema.Tables.EC_KEYS.tableName();
+  }
+
   @Override
   protected ECPreKey generatePreKey(final long keyId) {
     return new ECPreKey(keyId, Curve.generateKeyPair().getPublicKey());
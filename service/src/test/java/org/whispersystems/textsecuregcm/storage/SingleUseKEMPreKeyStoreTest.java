@@ -11,6 +11,7 @@ import org.signal.libsignal.protocol.ecc.Curve;
 import org.signal.libsignal.protocol.ecc.ECKeyPair;
 import org.whispersystems.textsecuregcm.entities.KEMSignedPreKey;
 import org.whispersystems.textsecuregcm.tests.util.KeysHelper;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 
 class SingleUseKEMPreKeyStoreTest extends SingleUsePreKeyStoreTest<KEMSignedPreKey> {
 
@@ -32,6 +33,21 @@ class SingleUseKEMPreKeyStoreTest extends SingleUsePreKeyStoreTest<KEMSignedPreK
     return preKeyStore;
   }
 
+  @Override
+  protected SingleUsePreKeyStore<KEMSignedPreKey> getPreKeyStore(final DynamoDbAsyncClient dynamoDbAsyncClient) {
+    return new SingleUseKEMPreKeyStore(dynamoDbAsyncClient, DynamoDbExtensionSchema.Tables.PQ_KEYS.tableName());
+  }
+
+  @Override
+  protected DynamoDbAsyncClient getDynamoDbAsyncClient() {
+    return DYNAMO_DB_EXTENSION.getDynamoDbAsyncClient();
+  }
+
+  @Override
+  protected String getTableName() {
+    return DynamoDbExtensionSchema.Tables.PQ_KEYS.tableName();
+  }
+
   @Override
   protected KEMSignedPreKey generatePreKey(final long keyId) {
     return KeysHelper.signedKEMPreKey(keyId, IDENTITY_KEY_PAIR);
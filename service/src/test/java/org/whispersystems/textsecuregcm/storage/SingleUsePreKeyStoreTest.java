@@ -8,13 +8,27 @@ package org.whispersystems.textsecuregcm.storage;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
-
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.primitives.Longs;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
@@ -22,7 +36,11 @@ import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.whispersystems.textsecuregcm.entities.PreKey;
 import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
 
 abstract class SingleUsePreKeyStoreTest<K extends PreKey<?>> {
 
@@ -30,6 +48,12 @@ abstract class SingleUsePreKeyStoreTest<K extends PreKey<?>> {
 
   protected abstract SingleUsePreKeyStore<K> getPreKeyStore();
 
+  protected abstract SingleUsePreKeyStore<K> getPreKeyStore(DynamoDbAsyncClient dynamoDbAsyncClient);
+
+  protected abstract DynamoDbAsyncClient getDynamoDbAsyncClient();
+
+  protected abstract String getTableName();
+
   protected abstract K generatePreKey(final long keyId);
 
   @Test
@@ -49,8 +73,171 @@ abstract class SingleUsePreKeyStoreTest<K extends PreKey<?>> {
 
     assertDoesNotThrow(() -> preKeyStore.store(accountIdentifier, deviceId, preKeys).join());
 
-    assertEquals(Optional.of(preKeys.get(0)), preKeyStore.take(accountIdentifier, deviceId).join());
-    assertEquals(Optional.of(preKeys.get(1)), preKeyStore.take(accountIdentifier, deviceId).join());
+    final Optional<K> firstKey = preKeyStore.take(accountIdentifier, deviceId).join();
+    final Optional<K> secondKey = preKeyStore.take(accountIdentifier, deviceId).join();
+
+    assertTrue(firstKey.isPresent());
+    assertTrue(secondKey.isPresent());
+    assertTrue(preKeys.contains(firstKey.get()));
+    assertTrue(preKeys.contains(secondKey.get()));
+    assertNotEquals(firstKey, secondKey);
+  }
+
+  @Test
+  void takeConcurrent() {
+    final SingleUsePreKeyStore<K> preKeyStore = getPreKeyStore();
+
+    final UUID accountIdentifier = UUID.randomUUID();
+    final long deviceId = 1;
+
+    final List<K> preKeys = new ArrayList<>(KEY_COUNT);
+
+    for (int i = 0; i < KEY_COUNT; i++) {
+      preKeys.add(generatePreKey(i));
+    }
+
+    preKeyStore.store(accountIdentifier, deviceId, preKeys).join();
+
+    final List<CompletableFuture<Optional<K>>> takeFutures = new ArrayList<>(KEY_COUNT);
+
+    for (int i = 0; i < KEY_COUNT; i++) {
+      takeFutures.add(preKeyStore.take(accountIdentifier, deviceId));
+    }
+
+    final Set<Long> storedKeyIds = preKeys.stream().map(PreKey::keyId).collect(Collectors.toSet());
+
+    // Every concurrent taker should get a key. Claims are exclusive because DynamoDB serializes writes to an item and
+    // returns a deleted item to only one of several concurrent deleters, but DynamoDB Local doesn't make that guarantee,
+    // so exclusivity isn't checked here.
+    takeFutures.stream()
+        .map(CompletableFuture::join)
+        .forEach(maybeKey -> assertTrue(storedKeyIds.contains(maybeKey.orElseThrow().keyId())));
+
+    assertEquals(0, preKeyStore.getCount(accountIdentifier, deviceId).join());
+  }
+
+  @Test
+  void takeKeyCountUpdateFailure() {
+    final DynamoDbAsyncClient dynamoDbAsyncClient = spy(getDynamoDbAsyncClient());
+    final SingleUsePreKeyStore<K> preKeyStore = getPreKeyStore(dynamoDbAsyncClient);
+
+    final UUID accountIdentifier = UUID.randomUUID();
+    final long deviceId = 1;
+
+    final List<K> preKeys = List.of(generatePreKey(1), generatePreKey(2));
+    preKeyStore.store(accountIdentifier, deviceId, preKeys).join();
+
+    doReturn(CompletableFuture.failedFuture(ProvisionedThroughputExceededException.builder().build()))
+        .when(dynamoDbAsyncClient).updateItem(any(UpdateItemRequest.class));
+
+    // the key has already been claimed by the time the count is updated, so it should be returned regardless
+    final K firstKey = preKeyStore.take(accountIdentifier, deviceId).join().orElseThrow();
+    final K secondKey = preKeyStore.take(accountIdentifier, deviceId).join().orElseThrow();
+
+    assertTrue(preKeys.contains(firstKey));
+    assertTrue(preKeys.contains(secondKey));
+    assertNotEquals(firstKey.keyId(), secondKey.keyId());
+    assertEquals(Optional.empty(), preKeyStore.take(accountIdentifier, deviceId).join());
+
+    // ...but the count is left stale
+    assertEquals(preKeys.size(), preKeyStore.getCount(accountIdentifier, deviceId).join());
+  }
+
+  @Test
+  void getCountWithoutKeys() {
+    final DynamoDbAsyncClient dynamoDbAsyncClient = spy(getDynamoDbAsyncClient());
+    final SingleUsePreKeyStore<K> preKeyStore = getPreKeyStore(dynamoDbAsyncClient);
+
+    final UUID accountIdentifier = UUID.randomUUID();
+    final long deviceId = 1;
+
+    // a device without a count should have its keys counted only once
+    assertEquals(0, preKeyStore.getCount(accountIdentifier, deviceId).join());
+    assertEquals(0, preKeyStore.getCount(accountIdentifier, deviceId).join());
+    verify(dynamoDbAsyncClient, times(1)).queryPaginator(any(QueryRequest.class));
+
+    preKeyStore.store(accountIdentifier, deviceId, List.of(generatePreKey(1))).join();
+    preKeyStore.delete(accountIdentifier, deviceId).join();
+    clearInvocations(dynamoDbAsyncClient);
+
+    // removing a device's keys should leave a count behind
+    assertEquals(0, preKeyStore.getCount(accountIdentifier, deviceId).join());
+    verify(dynamoDbAsyncClient, never()).queryPaginator(any(QueryRequest.class));
+  }
+
+  @Test
+  void keyCountOutsideDeviceKeyRange() {
+    final SingleUsePreKeyStore<K> preKeyStore = getPreKeyStore();
+
+    final UUID accountIdentifier = UUID.randomUUID();
+    final long deviceId = 1;
+
+    final List<K> preKeys = new ArrayList<>(KEY_COUNT);
+
+    for (int i = 0; i < KEY_COUNT; i++) {
+      preKeys.add(generatePreKey(i));
+    }
+
+    preKeyStore.store(accountIdentifier, deviceId, preKeys).join();
+    assertEquals(KEY_COUNT, preKeyStore.getCount(accountIdentifier, deviceId).join());
+
+    // queries for a device's keys (including those from servers that don't know about counts) should see only keys
+    final List<Map<String, AttributeValue>> items = getDynamoDbAsyncClient().query(QueryRequest.builder()
+            .tableName(getTableName())
+            .keyConditionExpression("#uuid = :uuid AND begins_with (#sort, :sortprefix)")
+            .expressionAttributeNames(Map.of(
+                "#uuid", SingleUsePreKeyStore.KEY_ACCOUNT_UUID,
+                "#sort", SingleUsePreKeyStore.KEY_DEVICE_ID_KEY_ID))
+            .expressionAttributeValues(Map.of(
+                ":uuid", SingleUsePreKeyStore.getPartitionKey(accountIdentifier),
+                ":sortprefix", AttributeValue.fromB(SdkBytes.fromByteArray(Longs.toByteArray(deviceId)))))
+            .consistentRead(true)
+            .build())
+        .join()
+        .items();
+
+    assertEquals(KEY_COUNT, items.size());
+    items.forEach(item -> assertTrue(preKeys.contains(preKeyStore.getPreKeyFromItem(item))));
+  }
+
+  @Test
+  void storeReplacesExistingKeys() {
+    final SingleUsePreKeyStore<K> preKeyStore = getPreKeyStore();
+
+    final UUID accountIdentifier = UUID.randomUUID();
+    final long deviceId = 1;
+
+    final List<K> originalPreKeys = new ArrayList<>(KEY_COUNT);
+    final List<K> replacementPreKeys = new ArrayList<>(KEY_COUNT);
+
+    for (int i = 0; i < KEY_COUNT; i++) {
+      originalPreKeys.add(generatePreKey(i));
+
+      // Overlap the original key IDs so some keys are overwritten and the rest are deleted
+      replacementPreKeys.add(generatePreKey(i + KEY_COUNT / 2));
+    }
+
+    preKeyStore.store(accountIdentifier, deviceId, originalPreKeys).join();
+    preKeyStore.store(accountIdentifier, deviceId, replacementPreKeys).join();
+
+    assertEquals(KEY_COUNT, preKeyStore.getCount(accountIdentifier, deviceId).join());
+    assertTrue(replacementPreKeys.contains(preKeyStore.take(accountIdentifier, deviceId).join().orElseThrow()));
+  }
+
+  @Test
+  void storeDuplicateKeyIds() {
+    final SingleUsePreKeyStore<K> preKeyStore = getPreKeyStore();
+
+    final UUID accountIdentifier = UUID.randomUUID();
+    final long deviceId = 1;
+
+    final K preKey = generatePreKey(1);
+    final K duplicatePreKey = generatePreKey(1);
+
+    assertDoesNotThrow(() -> preKeyStore.store(accountIdentifier, deviceId, List.of(preKey, duplicatePreKey)).join());
+
+    assertEquals(1, preKeyStore.getCount(accountIdentifier, deviceId).join());
+    assertEquals(Optional.of(duplicatePreKey), preKeyStore.take(accountIdentifier, deviceId).join());
   }
 
   @Test
@@ -71,6 +258,12 @@ abstract class SingleUsePreKeyStoreTest<K extends PreKey<?>> {
     preKeyStore.store(accountIdentifier, deviceId, preKeys).join();
 
     assertEquals(KEY_COUNT, preKeyStore.getCount(accountIdentifier, deviceId).join());
+
+    preKeyStore.take(accountIdentifier, deviceId).join();
+    assertEquals(KEY_COUNT - 1, preKeyStore.getCount(accountIdentifier, deviceId).join());
+
+    preKeyStore.store(accountIdentifier, deviceId, preKeys.subList(0, 10)).join();
+    assertEquals(10, preKeyStore.getCount(accountIdentifier, deviceId).join());
   }
 
   @Test
@@ -15,6 +15,7 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyList;
 import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.mock;
@@ -178,8 +179,8 @@ class WebSocketConnectionTest {
     when(accountsManager.getByE164("sender1")).thenReturn(Optional.of(sender1));
     when(accountsManager.getByE164("sender2")).thenReturn(Optional.empty());
 
-    when(messagesManager.delete(any(), anyLong(), any(), any())).thenReturn(
-        CompletableFuture.completedFuture(Optional.empty()));
+    when(messagesManager.delete(any(), anyLong(), anyList())).thenReturn(
+        CompletableFuture.completedFuture(null));
 
     String userAgent = HttpHeaders.USER_AGENT;
 
@@ -214,7 +215,8 @@ class WebSocketConnectionTest {
     futures.get(2).completeExceptionally(new IOException());
 
     verify(messagesManager, times(1)).delete(eq(accountUuid), eq(deviceId),
-        eq(UUID.fromString(outgoingMessages.get(1).getServerGuid())), eq(outgoingMessages.get(1).getServerTimestamp()));
+        eq(List.of(new MessagesManager.MessageToDelete(UUID.fromString(outgoingMessages.get(1).getServerGuid()),
+            outgoingMessages.get(1).getServerTimestamp()))));
     verify(receiptSender, times(1)).sendReceipt(eq(new AciServiceIdentifier(accountUuid)), eq(deviceId), eq(new AciServiceIdentifier(senderOneUuid)),
         eq(2222L));
 
@@ -222,6 +224,63 @@ class WebSocketConnectionTest {
     verify(client).close(anyInt(), anyString());
   }
 
+  @Test
+  void testCoalescedDeletions() {
+    final UUID accountUuid = UUID.randomUUID();
+    final UUID senderUuid = UUID.randomUUID();
+
+    final List<Envelope> outgoingMessages = List.of(createMessage(senderUuid, accountUuid, 1111, "first"),
+        createMessage(senderUuid, accountUuid, 2222, "second"),
+        createMessage(senderUuid, accountUuid, 3333, "third"));
+
+    when(device.getId()).thenReturn(1L);
+    when(account.getUuid()).thenReturn(accountUuid);
+
+    final CompletableFuture<Void> firstDeletionFuture = new CompletableFuture<>();
+
+    when(messagesManager.delete(eq(accountUuid), eq(1L), anyList()))
+        .thenReturn(firstDeletionFuture)
+        .thenReturn(CompletableFuture.completedFuture(null));
+
+    when(messagesManager.getMessagesForDeviceReactive(accountUuid, 1L, false))
+        .thenReturn(Flux.fromIterable(outgoingMessages));
+
+    final List<CompletableFuture<WebSocketResponseMessage>> futures = new LinkedList<>();
+    final WebSocketClient client = mock(WebSocketClient.class);
+
+    when(client.sendRequest(eq("PUT"), eq("/api/v1/message"), nullable(List.class), any()))
+        .thenAnswer(invocation -> {
+          CompletableFuture<WebSocketResponseMessage> future = new CompletableFuture<>();
+          futures.add(future);
+          return future;
+        });
+
+    final WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager,
+        auth, device, client, retrySchedulingExecutor, Schedulers.immediate(), clientReleaseManager);
+
+    connection.start();
+
+    final WebSocketResponseMessage response = mock(WebSocketResponseMessage.class);
+    when(response.getStatus()).thenReturn(200);
+
+    futures.forEach(future -> future.complete(response));
+
+    // the first deletion goes out right away, and the rest wait for it to finish
+    verify(messagesManager, times(1)).delete(eq(accountUuid), eq(1L), anyList());
+    verify(messagesManager).delete(accountUuid, 1L, List.of(toMessageToDelete(outgoingMessages.get(0))));
+
+    firstDeletionFuture.complete(null);
+
+    verify(messagesManager, times(2)).delete(eq(accountUuid), eq(1L), anyList());
+    verify(messagesManager).delete(accountUuid, 1L, List.of(toMessageToDelete(outgoingMessages.get(1)),
+        toMessageToDelete(outgoingMessages.get(2))));
+  }
+
+  private static MessagesManager.MessageToDelete toMessageToDelete(final Envelope envelope) {
+    return new MessagesManager.MessageToDelete(UUID.fromString(envelope.getServerGuid()),
+        envelope.getServerTimestamp());
+  }
+
   @Test
   public void testOnlineSend() {
     final WebSocketClient client = mock(WebSocketClient.class);
@@ -326,8 +385,8 @@ class WebSocketConnectionTest {
     when(accountsManager.getByE164("sender1")).thenReturn(Optional.of(sender1));
     when(accountsManager.getByE164("sender2")).thenReturn(Optional.empty());
 
-    when(messagesManager.delete(any(), anyLong(), any(), any())).thenReturn(
-        CompletableFuture.completedFuture(Optional.empty()));
+    when(messagesManager.delete(any(), anyLong(), anyList())).thenReturn(
+        CompletableFuture.completedFuture(null));
 
     String userAgent = HttpHeaders.USER_AGENT;
 
@@ -453,7 +512,7 @@ class WebSocketConnectionTest {
     when(messagesManager.getMessagesForDeviceReactive(eq(accountUuid), eq(1L), eq(false)))
         .thenReturn(Flux.fromStream(Stream.concat(firstPageMessages.stream(), secondPageMessages.stream())));
 
-    when(messagesManager.delete(eq(accountUuid), eq(1L), any(), any()))
+    when(messagesManager.delete(eq(accountUuid), eq(1L), anyList()))
         .thenReturn(CompletableFuture.completedFuture(null));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
@@ -503,7 +562,7 @@ class WebSocketConnectionTest {
         .thenReturn(Flux.fromIterable(messages))
         .thenReturn(Flux.empty());
 
-    when(messagesManager.delete(eq(accountUuid), eq(1L), any(UUID.class), any()))
+    when(messagesManager.delete(eq(accountUuid), eq(1L), anyList()))
         .thenReturn(CompletableFuture.completedFuture(null));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
@@ -598,7 +657,7 @@ class WebSocketConnectionTest {
         .thenReturn(Flux.fromIterable(secondPageMessages))
         .thenReturn(Flux.empty());
 
-    when(messagesManager.delete(eq(accountUuid), eq(1L), any(), any()))
+    when(messagesManager.delete(eq(accountUuid), eq(1L), anyList()))
         .thenReturn(CompletableFuture.completedFuture(null));
 
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
@@ -767,8 +826,8 @@ class WebSocketConnectionTest {
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
     when(client.sendRequest(any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(successResponse));
-    when(messagesManager.delete(any(), anyLong(), any(), any())).thenReturn(
-        CompletableFuture.completedFuture(Optional.empty()));
+    when(messagesManager.delete(any(), anyLong(), anyList())).thenReturn(
+        CompletableFuture.completedFuture(null));
 
     WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
         retrySchedulingExecutor, messageDeliveryScheduler, clientReleaseManager);
@@ -824,8 +883,8 @@ class WebSocketConnectionTest {
     final WebSocketResponseMessage successResponse = mock(WebSocketResponseMessage.class);
     when(successResponse.getStatus()).thenReturn(200);
     when(client.sendRequest(any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(successResponse));
-    when(messagesManager.delete(any(), anyLong(), any(), any())).thenReturn(
-        CompletableFuture.completedFuture(Optional.empty()));
+    when(messagesManager.delete(any(), anyLong(), anyList())).thenReturn(
+        CompletableFuture.completedFuture(null));
 
     WebSocketConnection connection = new WebSocketConnection(receiptSender, messagesManager, auth, device, client,
         retrySchedulingExecutor, Schedulers.immediate(), clientReleaseManager);
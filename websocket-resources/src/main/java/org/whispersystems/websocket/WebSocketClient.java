@@ -12,6 +12,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketException;
@@ -27,6 +29,12 @@ public class WebSocketClient {
 
   private static final Logger logger = LoggerFactory.getLogger(WebSocketClient.class);
 
+  // Outgoing requests are serialized directly into pooled direct buffers, which spares both a heap copy of each frame
+  // and the copy into a temporary direct buffer that the socket write would otherwise make. Frames larger than the
+  // largest pooled buffer are still written from direct buffers, but those buffers aren't retained.
+  private static final ByteBufferPool REQUEST_BUFFER_POOL =
+      new ArrayByteBufferPool(0, 4096, 256 * 1024, -1, 0, 64 * 1024 * 1024);
+
   private final Session                                                session;
   private final RemoteEndpoint                                         remoteEndpoint;
   private final WebSocketMessageFactory                                messageFactory;
@@ -54,19 +62,30 @@ public class WebSocketClient {
 
     WebSocketMessage requestMessage = messageFactory.createRequest(Optional.of(requestId), verb, path, headers, body);
 
+    final ByteBuffer buffer = REQUEST_BUFFER_POOL.acquire(requestMessage.getSerializedSize(), true);
+    buffer.clear();
+    requestMessage.writeTo(buffer);
+    buffer.flip();
+
     try {
-      remoteEndpoint.sendBytes(ByteBuffer.wrap(requestMessage.toByteArray()), new WriteCallback() {
+      remoteEndpoint.sendBytes(buffer, new WriteCallback() {
         @Override
         public void writeFailed(Throwable x) {
+          REQUEST_BUFFER_POOL.release(buffer);
+
           logger.debug("Write failed", x);
           pendingRequestMapper.remove(requestId);
           future.completeExceptionally(x);
         }
 
         @Override
-        public void writeSuccess() {}
+        public void writeSuccess() {
+          REQUEST_BUFFER_POOL.release(buffer);
+        }
       });
     } catch (WebSocketException e) {
+      // the write callback may still be invoked, so leave the buffer to the garbage collector rather than risk
+      // returning it to the pool twice
       logger.debug("Write", e);
       pendingRequestMapper.remove(requestId);
       future.completeExceptionally(e);
@@ -4,6 +4,8 @@
  */
 package org.whispersystems.websocket.messages;
 
+import java.nio.ByteBuffer;
+
 public interface WebSocketMessage {
 
   public enum Type {
@@ -16,5 +18,12 @@ public interface WebSocketMessage {
   public WebSocketRequestMessage  getRequestMessage();
   public WebSocketResponseMessage getResponseMessage();
   public byte[]                   toByteArray();
+  public int                      getSerializedSize();
+
+  /**
+   * Writes this message to the given buffer, starting at its position, and advances its position past the message.
+   * The buffer must have at least {@link #getSerializedSize()} bytes remaining.
+   */
+  public void                     writeTo(ByteBuffer buffer);
 
 }
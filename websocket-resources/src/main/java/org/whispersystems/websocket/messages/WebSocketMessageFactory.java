@@ -14,11 +14,19 @@ public interface WebSocketMessageFactory {
   public WebSocketMessage parseMessage(byte[] serialized, int offset, int len)
       throws InvalidMessageException;
 
+  /**
+   * Creates a request message. The body, if present, may be included in the message without being copied, and so must
+   * not be modified afterward.
+   */
   public WebSocketMessage createRequest(Optional<Long> requestId,
                                         String verb, String path,
                                         List<String> headers,
                                         Optional<byte[]> body);
 
+  /**
+   * Creates a response message. The body, if present, may be included in the message without being copied, and so must
+   * not be modified afterward.
+   */
   public WebSocketMessage createResponse(long requestId, int status, String message,
                                          List<String> headers,
                                          Optional<byte[]> body);
@@ -5,7 +5,11 @@
 package org.whispersystems.websocket.messages.protobuf;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import org.whispersystems.websocket.messages.InvalidMessageException;
 import org.whispersystems.websocket.messages.WebSocketMessage;
 import org.whispersystems.websocket.messages.WebSocketRequestMessage;
@@ -66,4 +70,22 @@ public class ProtobufWebSocketMessage implements WebSocketMessage {
   public byte[] toByteArray() {
     return message.toByteArray();
   }
+
+  @Override
+  public int getSerializedSize() {
+    return message.getSerializedSize();
+  }
+
+  @Override
+  public void writeTo(final ByteBuffer buffer) {
+    final CodedOutputStream outputStream = CodedOutputStream.newInstance(buffer);
+
+    try {
+      message.writeTo(outputStream);
+      outputStream.flush();
+    } catch (final IOException e) {
+      // writing to a buffer can only fail if the buffer is too small
+      throw new UncheckedIOException(e);
+    }
+  }
 }
@@ -4,7 +4,7 @@
  */
 package org.whispersystems.websocket.messages.protobuf;
 
-import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import org.whispersystems.websocket.messages.InvalidMessageException;
 import org.whispersystems.websocket.messages.WebSocketMessage;
 import org.whispersystems.websocket.messages.WebSocketMessageFactory;
@@ -37,7 +37,7 @@ public class ProtobufWebSocketMessageFactory implements WebSocketMessageFactory
     }
 
     if (body.isPresent()) {
-      requestMessage.setBody(ByteString.copyFrom(body.get()));
+      requestMessage.setBody(UnsafeByteOperations.unsafeWrap(body.get()));
     }
 
     if (headers != null) {
@@ -62,7 +62,7 @@ public class ProtobufWebSocketMessageFactory implements WebSocketMessageFactory
                                             .setMessage(messageString);
 
     if (body.isPresent()) {
-      responseMessage.setBody(ByteString.copyFrom(body.get()));
+      responseMessage.setBody(UnsafeByteOperations.unsafeWrap(body.get()));
     }
 
     if (headers != null) {
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2023 Signal Messenger, LLC
+ * SPDX-License-Identifier: AGPL-3.0-only
+ */
+
+package org.whispersystems.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.mockito.ArgumentCaptor;
+import org.whispersystems.websocket.messages.WebSocketResponseMessage;
+import org.whispersystems.websocket.messages.protobuf.ProtobufWebSocketMessageFactory;
+import org.whispersystems.websocket.messages.protobuf.SubProtocol;
+
+class WebSocketClientTest {
+
+  private RemoteEndpoint remoteEndpoint;
+  private Map<Long, CompletableFuture<WebSocketResponseMessage>> pendingRequests;
+
+  private WebSocketClient client;
+
+  @BeforeEach
+  void setUp() {
+    remoteEndpoint = mock(RemoteEndpoint.class);
+    pendingRequests = new HashMap<>();
+
+    client = new WebSocketClient(mock(Session.class), remoteEndpoint, new ProtobufWebSocketMessageFactory(),
+        pendingRequests);
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, 1024, 1024 * 1024})
+  void testSendRequest(final int bodySize) throws Exception {
+    final byte[] body = new byte[bodySize];
+    ThreadLocalRandom.current().nextBytes(body);
+
+    client.sendRequest("PUT", "/api/v1/message", List.of("X-Signal-Key: false"), Optional.of(body));
+
+    final ArgumentCaptor<ByteBuffer> bufferCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
+    verify(remoteEndpoint).sendBytes(bufferCaptor.capture(), any(WriteCallback.class));
+
+    assertTrue(bufferCaptor.getValue().isDirect());
+
+    final SubProtocol.WebSocketMessage message = SubProtocol.WebSocketMessage.parseFrom(bufferCaptor.getValue());
+
+    assertEquals(SubProtocol.WebSocketMessage.Type.REQUEST, message.getType());
+    assertEquals("PUT", message.getRequest().getVerb());
+    assertEquals("/api/v1/message", message.getRequest().getPath());
+    assertEquals(List.of("X-Signal-Key: false"), message.getRequest().getHeadersList());
+    assertArrayEquals(body, message.getRequest().getBody().toByteArray());
+    assertTrue(pendingRequests.containsKey(message.getRequest().getId()));
+  }
+
+  @Test
+  void testSendRequestWriteFailed() {
+    final CompletableFuture<WebSocketResponseMessage> responseFuture =
+        client.sendRequest("PUT", "/api/v1/queue/empty", List.of(), Optional.empty());
+
+    final ArgumentCaptor<WriteCallback> callbackCaptor = ArgumentCaptor.forClass(WriteCallback.class);
+    verify(remoteEndpoint).sendBytes(any(ByteBuffer.class), callbackCaptor.capture());
+
+    callbackCaptor.getValue().writeFailed(new RuntimeException("OH NO"));
+
+    assertThrows(CompletionException.class, responseFuture::join);
+    assertFalse(pendingRequests.values().contains(responseFuture));
+  }
+}
@@ -696,7 +696,8 @@ class WebSocketResourceProviderTest {
 
   private SubProtocol.WebSocketRequestMessage getRequest(ArgumentCaptor<ByteBuffer> requestCaptor)
       throws InvalidProtocolBufferException {
-    return SubProtocol.WebSocketMessage.parseFrom(requestCaptor.getValue().array()).getRequest();
+    // requests are written from direct buffers, which don't expose a backing array
+    return SubProtocol.WebSocketMessage.parseFrom(requestCaptor.getValue().duplicate()).getRequest();
   }
 
 